@@ -0,0 +1,104 @@
+package koketso;
+
+import java.util.ArrayList;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Measures login throughput of the Authenticator with 1, 2, 4 ... threads up to the number of
+ * cores (or more if asked), against a population of users. For comparison it also runs the old
+ * login, a scan of the user list like UserManager.findUser() and RegistrationLogin.loginUser(),
+ * on one thread.
+ * Every tenth attempt uses a wrong password, so failures are part of the mix.
+ *
+ * Usage: java koketso.AuthBenchmark [users] [maxThreads] [seconds]
+ * The users only live in memory, nothing is written to disk.
+ */
+public class AuthBenchmark {
+    private static final String PASSWORD = "Passw0rd!";
+
+    public static void main(String[] args) throws InterruptedException {
+        int userCount = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+        int maxThreads = args.length > 1 ? Integer.parseInt(args[1]) : Runtime.getRuntime().availableProcessors();
+        long seconds = args.length > 2 ? Long.parseLong(args[2]) : 3;
+
+        // Four character usernames run out at 36^4
+        userCount = Math.min(userCount, 36 * 36 * 36 * 36);
+        Authenticator authenticator = new Authenticator();
+        String[] userNames = new String[userCount];
+        long start = System.nanoTime();
+        for (int i = 0; i < userCount; i++) {
+            userNames[i] = LoadGenerator.userNameFor(i);
+            authenticator.put(new UserRecord(userNames[i], PASSWORD, LoadGenerator.cellFor(i), "Load", "Tester"));
+        }
+        System.out.printf("Loaded %d users into %d stripes in %d ms (%d cores)%n", authenticator.size(),
+                authenticator.stripeCount(), TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start),
+                Runtime.getRuntime().availableProcessors());
+
+        double single = 0;
+        for (int threads = 1; threads <= maxThreads; threads *= 2) {
+            double perSecond = run(authenticator, userNames, threads, seconds);
+            if (threads == 1) {
+                single = perSecond;
+            }
+            System.out.printf("Authenticator  %3d threads  %,12.0f logins/s  (%.1fx one thread)%n",
+                    threads, perSecond, perSecond / single);
+        }
+
+        // The old way scans the list, so a smaller population keeps this from taking all day
+        int scanUsers = Math.min(userCount, 10_000);
+        ArrayList<RegistrationLogin> users = new ArrayList<>(scanUsers);
+        for (int i = 0; i < scanUsers; i++) {
+            RegistrationLogin user = new RegistrationLogin();
+            user.registerUser(userNames[i], PASSWORD, LoadGenerator.cellFor(i), "Load", "Tester");
+            users.add(user);
+        }
+        long logins = 0;
+        long end = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+        start = System.nanoTime();
+        while (System.nanoTime() < end) {
+            String userName = userNames[ThreadLocalRandom.current().nextInt(scanUsers)];
+            for (RegistrationLogin user : users) {
+                if (user.getUserName().equals(userName)) {
+                    user.loginUser(userName, logins % 10 == 0 ? "wrong" : PASSWORD);
+                    break;
+                }
+            }
+            logins++;
+        }
+        System.out.printf("findUser+loginUser  1 thread  %,12.0f logins/s  (only %d users)%n",
+                logins / ((System.nanoTime() - start) / 1e9), scanUsers);
+    }
+
+    private static double run(Authenticator authenticator, String[] userNames, int threads, long seconds)
+            throws InterruptedException {
+        AtomicLong total = new AtomicLong();
+        long end = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+        Thread[] workers = new Thread[threads];
+        long start = System.nanoTime();
+        for (int t = 0; t < threads; t++) {
+            workers[t] = new Thread(() -> {
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                long logins = 0;
+                long granted = 0;
+                while ((logins & 1023) != 0 || System.nanoTime() < end) {
+                    String userName = userNames[random.nextInt(userNames.length)];
+                    if (authenticator.login(userName, logins % 10 == 0 ? "wrong" : PASSWORD).isSuccess()) {
+                        granted++;
+                    }
+                    logins++;
+                }
+                if (granted == 0) {
+                    System.out.println("No login worked, the benchmark is broken");
+                }
+                total.addAndGet(logins);
+            }, "auth-bench-" + t);
+            workers[t].start();
+        }
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        return total.get() / ((System.nanoTime() - start) / 1e9);
+    }
+}
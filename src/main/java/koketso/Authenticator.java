@@ -0,0 +1,134 @@
+package koketso;
+
+import java.util.HashMap;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Checks logins for many threads at once.
+ *
+ * Users are spread over a number of stripes by the hash of their username
+ * (-Dquickchat.auth.stripes, 64 by default). Each stripe is a HashMap with its own read/write lock,
+ * so a login is one hash lookup under a read lock that only the users of that stripe share.
+ * Logins never block each other, and a registration only blocks logins that land in its stripe.
+ *
+ * Nothing about a login is saved anywhere: the records are immutable (see UserRecord) and every
+ * attempt gets its own LoginResult back.
+ */
+public class Authenticator {
+    private static final int STRIPES = Integer.getInteger("quickchat.auth.stripes", 64);
+
+    // One shard of the users and the lock that guards it
+    private static class Stripe {
+        final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+        final HashMap<String, UserRecord> users = new HashMap<>();
+    }
+
+    private final Stripe[] stripes;
+    private final int mask;
+
+    public Authenticator() {
+        this(STRIPES);
+    }
+
+    /**
+     * @param stripeCount How many stripes to use, rounded up to a power of two.
+     */
+    public Authenticator(int stripeCount) {
+        int size = stripeCount <= 1 ? 1 : Integer.highestOneBit(stripeCount - 1) << 1;
+        stripes = new Stripe[size];
+        for (int i = 0; i < size; i++) {
+            stripes[i] = new Stripe();
+        }
+        mask = size - 1;
+    }
+
+    private Stripe stripeFor(String userName) {
+        int h = userName.hashCode();
+        // Spread the high bits down, short usernames differ mostly in the low ones
+        return stripes[(h ^ (h >>> 16)) & mask];
+    }
+
+    /**
+     * Adds a user, or replaces the record of a user with the same username.
+     */
+    public void put(UserRecord user) {
+        Stripe stripe = stripeFor(user.getUserName());
+        stripe.lock.writeLock().lock();
+        try {
+            stripe.users.put(user.getUserName(), user);
+        } finally {
+            stripe.lock.writeLock().unlock();
+        }
+    }
+
+    public void remove(String userName) {
+        Stripe stripe = stripeFor(userName);
+        stripe.lock.writeLock().lock();
+        try {
+            stripe.users.remove(userName);
+        } finally {
+            stripe.lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Removes every user, one stripe at a time.
+     */
+    public void clear() {
+        for (Stripe stripe : stripes) {
+            stripe.lock.writeLock().lock();
+            try {
+                stripe.users.clear();
+            } finally {
+                stripe.lock.writeLock().unlock();
+            }
+        }
+    }
+
+    /**
+     * Finds a user by username.
+     * @return The record, or null if there is no such user.
+     */
+    public UserRecord find(String userName) {
+        if (userName == null) {
+            return null;
+        }
+        Stripe stripe = stripeFor(userName);
+        stripe.lock.readLock().lock();
+        try {
+            return stripe.users.get(userName);
+        } finally {
+            stripe.lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Checks one login attempt.
+     * @return The outcome of this attempt only.
+     */
+    public LoginResult login(String userName, String password) {
+        UserRecord user = find(userName);
+        // The password check runs outside the lock, the record can't change under it
+        if (user == null || !user.passwordMatches(password)) {
+            return LoginResult.FAILED;
+        }
+        return LoginResult.success(user);
+    }
+
+    public int size() {
+        int size = 0;
+        for (Stripe stripe : stripes) {
+            stripe.lock.readLock().lock();
+            try {
+                size += stripe.users.size();
+            } finally {
+                stripe.lock.readLock().unlock();
+            }
+        }
+        return size;
+    }
+
+    int stripeCount() {
+        return stripes.length;
+    }
+}
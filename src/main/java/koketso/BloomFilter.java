@@ -0,0 +1,72 @@
+package koketso;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A Bloom filter: remembers which keys were added using a fixed block of bits.
+ * It can say a key might have been added when it wasn't (about 1% of the time when sized with
+ * forKeys), but never the other way round. Adding and checking are lock free.
+ */
+public class BloomFilter {
+    private final AtomicLongArray words;
+    private final long bits;
+    private final int hashes;
+
+    public BloomFilter(long bits, int hashes) {
+        this.words = new AtomicLongArray((int) ((bits + 63) / 64));
+        this.bits = (long) words.length() * 64;
+        this.hashes = hashes;
+    }
+
+    /**
+     * A filter with the best number of bits and hashes for the expected number of keys.
+     * @param falsePositiveRate How often mightContain may say yes for a key that was never added.
+     */
+    public static BloomFilter forKeys(long expectedKeys, double falsePositiveRate) {
+        double ln2 = Math.log(2);
+        long bits = (long) Math.ceil(-expectedKeys * Math.log(falsePositiveRate) / (ln2 * ln2));
+        int hashes = Math.max(1, (int) Math.round((double) bits / expectedKeys * ln2));
+        return new BloomFilter(Math.max(64, bits), hashes);
+    }
+
+    /**
+     * Adds a key.
+     * @return true if the key was definitely not in the filter before.
+     */
+    public boolean add(String key) {
+        // Two hashes make all the others (Kirsch and Mitzenmacher), so the key is only read twice
+        long h1 = CountMinSketch.hash64(key, 0);
+        long h2 = CountMinSketch.hash64(key, 1);
+        boolean added = false;
+        for (int i = 0; i < hashes; i++) {
+            long bit = Long.remainderUnsigned(h1 + i * h2, bits);
+            int word = (int) (bit >>> 6);
+            long mask = 1L << bit;
+            long old = words.get(word);
+            while ((old & mask) == 0) {
+                if (words.compareAndSet(word, old, old | mask)) {
+                    added = true;
+                    break;
+                }
+                old = words.get(word);
+            }
+        }
+        return added;
+    }
+
+    public boolean mightContain(String key) {
+        long h1 = CountMinSketch.hash64(key, 0);
+        long h2 = CountMinSketch.hash64(key, 1);
+        for (int i = 0; i < hashes; i++) {
+            long bit = Long.remainderUnsigned(h1 + i * h2, bits);
+            if ((words.get((int) (bit >>> 6)) & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public long bitCount() {
+        return bits;
+    }
+}
@@ -0,0 +1,72 @@
+package koketso;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Stream;
+
+/**
+ * Compares sending one notice to many numbers as separate messages with one broadcast.
+ * Both runs skip the rate limiter, so only the cost of the send itself is measured.
+ *
+ * Usage: java koketso.BroadcastBenchmark [recipients] [dir]
+ * The dir (default 'broadcastbench') gets its own messages folder, so real data is never touched.
+ */
+public class BroadcastBenchmark {
+
+    public static void main(String[] args) throws IOException {
+        int count = args.length > 0 ? Integer.parseInt(args[0]) : 10_000;
+        String dir = args.length > 1 ? args[1] : "broadcastbench";
+        File individualDir = new File(dir, "messages");
+        // Must be set before anything asks MessageManager for its folder
+        System.setProperty("quickchat.messages.dir", individualDir.getPath());
+
+        String sender = LoadGenerator.cellFor(1);
+        String payload = "It is dinner time!";
+        List<String> recipients = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            recipients.add(LoadGenerator.cellFor(1000 + i));
+        }
+
+        long start = System.nanoTime();
+        int sent = 0;
+        for (String recipient : recipients) {
+            if ("Message sent successfully".equals(new Message(sender, recipient, payload).sendWithoutLimit())) {
+                sent++;
+            }
+        }
+        long individualNanos = System.nanoTime() - start;
+        long[] individualDisk = diskUse(individualDir.toPath());
+
+        File broadcastDir = new File(dir, "broadcast");
+        BroadcastStore store = new BroadcastStore(broadcastDir);
+        start = System.nanoTime();
+        String result = store.send(sender, recipients, payload);
+        long broadcastNanos = System.nanoTime() - start;
+        long[] broadcastDisk = diskUse(broadcastDir.toPath());
+
+        System.out.printf("Individual sends: %d messages in %.1f ms, %d files, %d bytes%n",
+                sent, individualNanos / 1e6, individualDisk[0], individualDisk[1]);
+        System.out.printf("Broadcast:        %s in %.1f ms, %d files, %d bytes%n",
+                result, broadcastNanos / 1e6, broadcastDisk[0], broadcastDisk[1]);
+        System.out.printf("The broadcast was %.0fx faster%n", (double) individualNanos / Math.max(1, broadcastNanos));
+    }
+
+    // {files, bytes} under a folder
+    private static long[] diskUse(Path root) throws IOException {
+        long[] use = new long[2];
+        if (!Files.exists(root)) {
+            return use;
+        }
+        try (Stream<Path> paths = Files.walk(root)) {
+            paths.filter(Files::isRegularFile).forEach(path -> {
+                use[0]++;
+                use[1] += path.toFile().length();
+            });
+        }
+        return use;
+    }
+}
@@ -0,0 +1,517 @@
+package koketso;
+
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Group and broadcast sends: one payload to many numbers with a single write.
+ *
+ * A broadcast is two files in 'messages/broadcasts': a small JSON header (ID, sender, payload, hash)
+ * and a '.rcpt' file with the recipients as a sorted list of 4 byte numbers (the 9 digits after +27).
+ * So a notice to 10 000 people is one ID, one hash and about 40 KB on disk instead of 10 000 files.
+ *
+ * Each recipient's inbox holds a small reference (which broadcast, which slot in its list), built in
+ * memory when the broadcasts are loaded. Delivered and read flags go in the message store next to the
+ * normal ones under the ID 'broadcastId#slot', so every recipient has their own status, and the inbox
+ * marks a broadcast the same way as any other message.
+ *
+ * With -Dquickchat.store=memory the default broadcast store keeps everything in memory too: nothing
+ * goes to 'messages/broadcasts' and the receipts are kept by the InMemoryMessageStore.
+ *
+ * Every recipient is checked like a normal send and costs one token of the broadcast rate limit.
+ * Sends and deletes go in the change log, so followers get the broadcasts too, and snapshots keep
+ * them with every recipient's receipts. Broadcasts are not part of the message store itself, so
+ * retention and the sent reports leave them out.
+ */
+public class BroadcastStore {
+    private static final String BROADCAST_DIR = "broadcasts";
+    private static final String SUCCESS = "Broadcast sent successfully";
+    // How many rejected numbers the result of send() lists by name
+    private static final int REJECTS_LISTED = 10;
+
+    private static final ConcurrentHashMap<String, BroadcastStore> stores = new ConcurrentHashMap<>();
+    // The ones for stores that are not on disk, dropped along with their store
+    private static final Map<MessageStore, BroadcastStore> memoryStores = Collections.synchronizedMap(new WeakHashMap<>());
+
+    /**
+     * One broadcast. The recipients are the numbers after +27, sorted, and a recipient's slot is
+     * their position in that list.
+     */
+    public static class Broadcast {
+        private final String id;
+        private final String sender;
+        private final String payload;
+        private final String hash;
+        private final int index;
+        private final int[] recipients;
+
+        Broadcast(String id, String sender, String payload, String hash, int index, int[] recipients) {
+            this.id = id;
+            this.sender = sender;
+            this.payload = payload;
+            this.hash = hash;
+            this.index = index;
+            this.recipients = recipients;
+        }
+
+        public String getId() { return id; }
+        public String getSender() { return sender; }
+        public String getPayload() { return payload; }
+        public String getHash() { return hash; }
+        public int getRecipientCount() { return recipients.length; }
+
+        public String getRecipient(int slot) {
+            return cellOf(recipients[slot]);
+        }
+
+        int getIndex() { return index; }
+
+        // The numbers after +27, in slot order. Not a copy, callers must not change it.
+        int[] recipientNumbers() { return recipients; }
+
+        /**
+         * The ID the receipts of one recipient are kept under.
+         */
+        public String receiptId(int slot) {
+            return id + "#" + slot;
+        }
+
+        /**
+         * A read-only Message for one recipient, so the inbox can show it like any other message.
+         */
+        Message viewFor(int slot) {
+            Message view = new Message(receiptId(slot), sender, getRecipient(slot), payload, index, hash);
+            view.setStatus("Sent");
+            return view;
+        }
+    }
+
+    // A growing list of inbox references: broadcast number in the high half, slot in the low half
+    private static class InboxRefs {
+        long[] refs = new long[2];
+        int size;
+
+        void add(long ref) {
+            if (size == refs.length) {
+                refs = Arrays.copyOf(refs, size * 2);
+            }
+            refs[size++] = ref;
+        }
+    }
+
+    // Both null for a store that is only kept in memory
+    private final File messagesDir;
+    private final File broadcastDir;
+    // Where the receipts of every recipient are kept
+    private final MessageStore receipts;
+    // Deleted broadcasts leave a null behind, so the numbers in the inbox references stay valid
+    private final ArrayList<Broadcast> broadcasts = new ArrayList<>();
+    private final HashMap<String, Integer> numberOf = new HashMap<>();
+    private final HashMap<Integer, InboxRefs> inboxes = new HashMap<>();
+
+    public BroadcastStore(File messagesDir) {
+        this.messagesDir = messagesDir;
+        this.broadcastDir = new File(messagesDir, BROADCAST_DIR);
+        this.receipts = FileMessageStore.of(messagesDir);
+        load();
+    }
+
+    /**
+     * Broadcasts next to any message store. A FileMessageStore gets the broadcasts in its folder,
+     * any other store gets broadcasts that are only kept in memory, with their receipts in that store.
+     */
+    public BroadcastStore(MessageStore store) {
+        if (store instanceof FileMessageStore) {
+            this.messagesDir = ((FileMessageStore) store).getMessagesDir();
+            this.broadcastDir = new File(messagesDir, BROADCAST_DIR);
+            load();
+        } else {
+            this.messagesDir = null;
+            this.broadcastDir = null;
+        }
+        this.receipts = store;
+    }
+
+    public static BroadcastStore of(File messagesDir) {
+        return stores.computeIfAbsent(messagesDir.getAbsolutePath(), path -> new BroadcastStore(messagesDir));
+    }
+
+    /**
+     * The broadcasts that go with a message store, the same object every time for the same store.
+     */
+    public static BroadcastStore forStore(MessageStore store) {
+        if (store instanceof FileMessageStore) {
+            return of(((FileMessageStore) store).getMessagesDir());
+        }
+        return memoryStores.computeIfAbsent(store, BroadcastStore::new);
+    }
+
+    /**
+     * The broadcasts that go with MessageStore.getDefault().
+     */
+    public static BroadcastStore getDefault() {
+        return forStore(MessageStore.getDefault());
+    }
+
+    private boolean onDisk() {
+        return broadcastDir != null;
+    }
+
+    /**
+     * Sends one payload to many recipients. Every recipient gets the same checks as a normal send,
+     * the ones that fail are left out and listed in the result, and a number that is listed twice
+     * only gets the message once. Each recipient takes one token from the broadcast rate limit.
+     * @return "Broadcast sent successfully to N recipients" (followed by the rejected numbers if
+     * there were any), or the reason it failed.
+     */
+    public String send(String sender, List<String> recipients, String payload) {
+        if (recipients == null || recipients.isEmpty()) {
+            return "Failed to send message: Invalid recipient";
+        }
+
+        String id = Message.newMessageId();
+        int[] numbers = new int[recipients.size()];
+        int count = 0;
+        ArrayList<String> rejected = new ArrayList<>();
+        String firstFailure = null;
+        for (String recipient : recipients) {
+            String failure = new Message(id, sender, recipient, payload, 0, "").validate();
+            if (failure == null) {
+                numbers[count++] = Integer.parseInt(recipient.substring(3));
+            } else {
+                if (firstFailure == null) {
+                    firstFailure = failure;
+                }
+                rejected.add(recipient + " (" + failure.substring(failure.indexOf(':') + 2) + ")");
+            }
+        }
+        if (count == 0) {
+            return firstFailure;
+        }
+        numbers = Arrays.stream(numbers, 0, count).sorted().distinct().toArray();
+
+        SendRateLimiter limiter = SendRateLimiter.forBroadcasts();
+        if (numbers.length > limiter.getBurst()) {
+            return "Failed to send message: A broadcast can have at most " + limiter.getBurst() + " recipients";
+        }
+        SendRateLimiter.Decision decision = limiter.tryAcquire(sender, numbers.length);
+        if (!decision.isAllowed()) return decision.getFailureMessage();
+
+        Message template = new Message(id, sender, cellOf(numbers[0]), payload, 0, "");
+        template.markSent(Message.reserveIndexes(1));
+        Broadcast broadcast = new Broadcast(id, sender, payload, template.getHash(), template.getIndex(), numbers);
+        JSONObject header = headerOf(broadcast);
+        if (onDisk()) {
+            // Logged first, like MessageManager.storeRecord()
+            ChangeLog changeLog = ChangeLog.forDir(messagesDir);
+            if (changeLog != null) {
+                changeLog.recordBroadcast(header, numbers);
+            }
+            if (!save(broadcast, header)) {
+                return "Failed to send message: Could not save the broadcast";
+            }
+        }
+        publish(broadcast);
+        String result = SUCCESS + " to " + numbers.length + " recipients";
+        if (!rejected.isEmpty()) {
+            result += ", " + rejected.size() + " rejected: "
+                    + String.join(", ", rejected.subList(0, Math.min(REJECTS_LISTED, rejected.size())));
+            if (rejected.size() > REJECTS_LISTED) {
+                result += " and " + (rejected.size() - REJECTS_LISTED) + " more";
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Adds a broadcast that came from the replication leader. Getting the same one twice does no harm.
+     */
+    void applyReplicated(JSONObject header, List<?> recipients) {
+        int[] numbers = new int[recipients.size()];
+        for (int i = 0; i < numbers.length; i++) {
+            numbers[i] = (int) (long) (Long) recipients.get(i);
+        }
+        Broadcast broadcast = fromHeader(header, numbers);
+        if (get(broadcast.id) != null || (onDisk() && !save(broadcast, header))) {
+            return;
+        }
+        publish(broadcast);
+    }
+
+    /**
+     * Puts back a broadcast from a snapshot, with the receipt flags of each slot. It is logged like
+     * a new send so followers get it too. One that is already here is left alone.
+     * @return true if it was restored.
+     */
+    boolean restore(Broadcast broadcast, int[] slotFlags) {
+        if (get(broadcast.id) != null) {
+            return false;
+        }
+        if (onDisk()) {
+            JSONObject header = headerOf(broadcast);
+            ChangeLog changeLog = ChangeLog.forDir(messagesDir);
+            if (changeLog != null) {
+                changeLog.recordBroadcast(header, broadcast.recipients);
+            }
+            if (!save(broadcast, header)) {
+                return false;
+            }
+        }
+        publish(broadcast);
+        for (int slot = 0; slot < slotFlags.length; slot++) {
+            if (slotFlags[slot] != 0) {
+                receipts.updateFlags(broadcast.receiptId(slot), slotFlags[slot]);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Every broadcast, in the order they were sent.
+     */
+    synchronized List<Broadcast> all() {
+        ArrayList<Broadcast> all = new ArrayList<>(numberOf.size());
+        for (Broadcast broadcast : broadcasts) {
+            if (broadcast != null) {
+                all.add(broadcast);
+            }
+        }
+        return all;
+    }
+
+    /**
+     * The receipt flags of every slot of a broadcast, in slot order.
+     */
+    int[] receiptFlags(Broadcast broadcast) {
+        ArrayList<String> ids = new ArrayList<>(broadcast.recipients.length);
+        for (int slot = 0; slot < broadcast.recipients.length; slot++) {
+            ids.add(broadcast.receiptId(slot));
+        }
+        return receipts.flagsOf(ids);
+    }
+
+    /**
+     * Every broadcast a number received, as messages that can be shown in the inbox.
+     * Their receipt flags are filled in from the message store, so marking them through
+     * the store (like the inbox does) shows up here.
+     */
+    public List<Message> inboxFor(String cell) {
+        ArrayList<Message> messages = new ArrayList<>();
+        if (cell == null || !cell.startsWith("+27") || cell.length() != 12) {
+            return messages;
+        }
+        synchronized (this) {
+            InboxRefs refs = inboxes.get(Integer.parseInt(cell.substring(3)));
+            if (refs != null) {
+                for (int i = 0; i < refs.size; i++) {
+                    Broadcast broadcast = broadcasts.get((int) (refs.refs[i] >>> 32));
+                    if (broadcast != null) {
+                        messages.add(broadcast.viewFor((int) refs.refs[i]));
+                    }
+                }
+            }
+        }
+        ArrayList<String> ids = new ArrayList<>(messages.size());
+        for (Message message : messages) {
+            ids.add(message.getId());
+        }
+        int[] flags = receipts.flagsOf(ids);
+        for (int i = 0; i < flags.length; i++) {
+            messages.get(i).setReceived((flags[i] & (ReceiptLog.DELIVERED | ReceiptLog.READ)) != 0);
+            messages.get(i).setRead((flags[i] & ReceiptLog.READ) != 0);
+        }
+        return messages;
+    }
+
+    public synchronized Broadcast get(String broadcastId) {
+        Integer number = numberOf.get(broadcastId);
+        return number == null ? null : broadcasts.get(number);
+    }
+
+    /**
+     * Every broadcast a number sent.
+     */
+    public synchronized List<Broadcast> sentBy(String sender) {
+        ArrayList<Broadcast> sent = new ArrayList<>();
+        for (Broadcast broadcast : broadcasts) {
+            if (broadcast != null && broadcast.sender.equals(sender)) {
+                sent.add(broadcast);
+            }
+        }
+        return sent;
+    }
+
+    /**
+     * How many recipients of a broadcast got it and how many read it.
+     * @return {delivered, read}, or null if there is no such broadcast.
+     */
+    public int[] receiptCounts(String broadcastId) {
+        Broadcast broadcast = get(broadcastId);
+        if (broadcast == null) {
+            return null;
+        }
+        int[] counts = new int[2];
+        for (int flags : receiptFlags(broadcast)) {
+            if ((flags & ReceiptLog.DELIVERED) != 0) counts[0]++;
+            if ((flags & ReceiptLog.READ) != 0) counts[1]++;
+        }
+        return counts;
+    }
+
+    /**
+     * Deletes a broadcast for everybody, along with its receipts.
+     * @return true if it existed.
+     */
+    public boolean delete(String broadcastId) {
+        Broadcast broadcast;
+        synchronized (this) {
+            Integer number = numberOf.remove(broadcastId);
+            if (number == null) {
+                return false;
+            }
+            if (onDisk()) {
+                // Under the lock, so a snapshot sees the broadcast in its scan or gets the delete
+                Snapshot.beforeBroadcastDelete(messagesDir, broadcastId);
+            }
+            broadcast = broadcasts.set(number, null);
+        }
+        if (!onDisk()) {
+            // The memory store drops the flags along with the (missing) message
+            for (int slot = 0; slot < broadcast.recipients.length; slot++) {
+                receipts.delete(broadcast.receiptId(slot));
+            }
+            return true;
+        }
+        ChangeLog changeLog = ChangeLog.forDir(messagesDir);
+        if (changeLog != null) {
+            changeLog.recordBroadcastDelete(broadcastId);
+        }
+        // The header goes first, a recipient file without a header is ignored
+        new File(broadcastDir, "broadcast_" + broadcastId + ".json").delete();
+        new File(broadcastDir, "broadcast_" + broadcastId + ".rcpt").delete();
+        ReceiptLog receiptLog = ReceiptLog.of(messagesDir);
+        for (int slot = 0; slot < broadcast.recipients.length; slot++) {
+            receiptLog.forget(broadcast.receiptId(slot));
+        }
+        return true;
+    }
+
+    // Makes a saved broadcast show up in the inboxes
+    private synchronized void publish(Broadcast broadcast) {
+        if (numberOf.containsKey(broadcast.id)) {
+            return;
+        }
+        if (onDisk()) {
+            // Under the same lock the snapshot scan takes, so a snapshot either sees it or captures it
+            Snapshot.beforeBroadcast(messagesDir, broadcast);
+        }
+        add(broadcast);
+    }
+
+    private void add(Broadcast broadcast) {
+        int number = broadcasts.size();
+        broadcasts.add(broadcast);
+        numberOf.put(broadcast.id, number);
+        for (int slot = 0; slot < broadcast.recipients.length; slot++) {
+            inboxes.computeIfAbsent(broadcast.recipients[slot], k -> new InboxRefs())
+                    .add(((long) number << 32) | slot);
+        }
+    }
+
+    static String cellOf(int number) {
+        // Same as String.format("+27%09d", number) without the formatter
+        String digits = Integer.toString(number);
+        StringBuilder cell = new StringBuilder(12).append("+27");
+        for (int i = digits.length(); i < 9; i++) {
+            cell.append('0');
+        }
+        return cell.append(digits).toString();
+    }
+
+    @SuppressWarnings("unchecked")
+    private static JSONObject headerOf(Broadcast broadcast) {
+        JSONObject header = new JSONObject();
+        header.put("BROADCAST_ID", broadcast.id);
+        header.put("MESSAGE_SENDER", broadcast.sender);
+        header.put("MESSAGE_PAYLOAD", broadcast.payload);
+        header.put("MESSAGE_HASH", broadcast.hash);
+        header.put("MESSAGE_INDEX", broadcast.index);
+        header.put("RECIPIENT_COUNT", broadcast.recipients.length);
+        return header;
+    }
+
+    private static Broadcast fromHeader(JSONObject header, int[] recipients) {
+        return new Broadcast((String) header.get("BROADCAST_ID"), (String) header.get("MESSAGE_SENDER"),
+                (String) header.get("MESSAGE_PAYLOAD"), (String) header.get("MESSAGE_HASH"),
+                (int) (long) (Long) header.get("MESSAGE_INDEX"), recipients);
+    }
+
+    private boolean save(Broadcast broadcast, JSONObject header) {
+        broadcastDir.mkdirs();
+        File recipientFile = new File(broadcastDir, "broadcast_" + broadcast.id + ".rcpt");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(recipientFile)))) {
+            out.writeInt(broadcast.recipients.length);
+            for (int number : broadcast.recipients) {
+                out.writeInt(number);
+            }
+        } catch (IOException e) {
+            System.err.println("Could not save the recipients of broadcast " + broadcast.id + ": " + e.getMessage());
+            return false;
+        }
+        // The header is written last, so a broadcast only exists once its recipient list is complete
+        return MessageManager.writeJsonAtomically(new File(broadcastDir, "broadcast_" + broadcast.id + ".json"), header);
+    }
+
+    private void load() {
+        File[] headers = broadcastDir.listFiles((dir, name) -> name.startsWith("broadcast_") && name.endsWith(".json"));
+        if (headers == null) {
+            return;
+        }
+        JSONParser parser = new JSONParser();
+        ArrayList<Broadcast> loaded = new ArrayList<>(headers.length);
+        for (File headerFile : headers) {
+            try (FileReader reader = new FileReader(headerFile)) {
+                JSONObject header = (JSONObject) parser.parse(reader);
+                String id = (String) header.get("BROADCAST_ID");
+                int[] recipients = readRecipients(new File(broadcastDir, "broadcast_" + id + ".rcpt"));
+                loaded.add(fromHeader(header, recipients));
+            } catch (IOException | ParseException | ClassCastException | NullPointerException e) {
+                System.err.println("Problem reading broadcast " + headerFile.getName() + ": " + e.getMessage());
+            }
+        }
+        // The IDs are random, the message index gives the order they were sent in
+        loaded.sort(Comparator.comparingInt(broadcast -> broadcast.index));
+        for (Broadcast broadcast : loaded) {
+            add(broadcast);
+        }
+    }
+
+    private static int[] readRecipients(File file) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            int[] recipients = new int[in.readInt()];
+            for (int i = 0; i < recipients.length; i++) {
+                recipients[i] = in.readInt();
+            }
+            return recipients;
+        }
+    }
+}
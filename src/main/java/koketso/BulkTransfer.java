@@ -0,0 +1,375 @@
+package koketso;
+
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.stream.IntStream;
+
+/**
+ * Bulk import and export of messages as JSONL (one JSON message record per line).
+ * The import streams the file in batches: each batch is parsed and validated in parallel,
+ * gets a whole block of message indexes at once and is then saved with one batched write.
+ * Lines that fail are written to a rejects file with the reason, they never stop the import.
+ * A line with the ID of a message that is already stored (or that came earlier in the same file)
+ * is rejected too, so an import never overwrites anything. Status, index, hash and timestamps are
+ * kept as they are in the file, only records without a status count as new sends and get an index.
+ * Messages go through a MessageStore, so the command line uses whatever -Dquickchat.store picks.
+ *
+ * Usage:
+ *   java koketso.BulkTransfer import messages.jsonl [rejects.jsonl]
+ *   java koketso.BulkTransfer export messages.jsonl
+ */
+public class BulkTransfer {
+    private static final int BATCH_SIZE = Integer.getInteger("quickchat.bulk.batchSize", 10_000);
+
+    // json-simple's parser keeps state, so every worker thread gets its own
+    private static final ThreadLocal<JSONParser> parsers = ThreadLocal.withInitial(JSONParser::new);
+
+    private final MessageStore store;
+    // Only for a FileMessageStore, so the export can copy the files as they are
+    private final MessageLayout layout;
+    private final MessageArchive archive;
+    // Set once the index counter is above everything in the store, see seedIndexes()
+    private boolean indexesSeeded;
+
+    public BulkTransfer(File messagesDir) {
+        this(FileMessageStore.of(messagesDir));
+    }
+
+    public BulkTransfer(MessageStore store) {
+        this.store = store;
+        if (store instanceof FileMessageStore) {
+            File messagesDir = ((FileMessageStore) store).getMessagesDir();
+            this.layout = MessageLayout.of(messagesDir);
+            this.archive = MessageArchive.of(messagesDir);
+        } else {
+            this.layout = null;
+            this.archive = null;
+        }
+    }
+
+    /**
+     * The outcome of one import run.
+     */
+    public static class ImportResult {
+        private final long accepted;
+        private final long rejected;
+        private final long millis;
+
+        ImportResult(long accepted, long rejected, long millis) {
+            this.accepted = accepted;
+            this.rejected = rejected;
+            this.millis = millis;
+        }
+
+        public long getAccepted() { return accepted; }
+        public long getRejected() { return rejected; }
+        public long getMillis() { return millis; }
+
+        public long messagesPerSecond() {
+            return millis == 0 ? accepted * 1000 : accepted * 1000 / millis;
+        }
+
+        @Override
+        public String toString() {
+            return "Imported " + accepted + " messages, rejected " + rejected + " in " + millis
+                    + " ms (" + messagesPerSecond() + " messages/s)";
+        }
+    }
+
+    // The result of checking one line: either a message or the reason it was rejected
+    private static class ParsedLine {
+        final Message message;
+        final String reason;
+        final boolean exists;
+
+        ParsedLine(Message message, String reason) {
+            this(message, reason, false);
+        }
+
+        ParsedLine(Message message, String reason, boolean exists) {
+            this.message = message;
+            this.reason = reason;
+            this.exists = exists;
+        }
+    }
+
+    // A sent message from another store already has its index and hash, only new sends need one
+    private static boolean needsIndex(Message message) {
+        return "Sent".equals(message.getStatus())
+                && (message.getIndex() == 0 || message.getHash() == null || message.getHash().isEmpty());
+    }
+
+    /**
+     * Streams a JSONL file into the message store.
+     * @param input The file to read.
+     * @param rejectsFile Where rejected lines are reported, one JSON object per line.
+     * @return How many lines were accepted and rejected.
+     */
+    public ImportResult importJsonl(Path input, Path rejectsFile) throws IOException {
+        long start = System.currentTimeMillis();
+        long accepted = 0;
+        long rejected = 0;
+        long lineNumber = 0;
+
+        try (BufferedReader reader = Files.newBufferedReader(input, StandardCharsets.UTF_8);
+             BufferedWriter rejects = Files.newBufferedWriter(rejectsFile, StandardCharsets.UTF_8)) {
+            ArrayList<String> lines = new ArrayList<>(BATCH_SIZE);
+            String line;
+            while ((line = reader.readLine()) != null) {
+                lines.add(line);
+                if (lines.size() == BATCH_SIZE) {
+                    long[] counts = importBatch(lines, lineNumber, rejects);
+                    accepted += counts[0];
+                    rejected += counts[1];
+                    lineNumber += lines.size();
+                    lines.clear();
+                }
+            }
+            if (!lines.isEmpty()) {
+                long[] counts = importBatch(lines, lineNumber, rejects);
+                accepted += counts[0];
+                rejected += counts[1];
+            }
+        }
+        return new ImportResult(accepted, rejected, System.currentTimeMillis() - start);
+    }
+
+    // The index counter starts at 0 every run, so before the first new send of an import it is moved
+    // past the highest index in the store. That costs one scan, and only imports with new sends pay it.
+    private void seedIndexes() {
+        if (indexesSeeded) {
+            return;
+        }
+        int[] highest = new int[1];
+        store.scan(message -> highest[0] = Math.max(highest[0], message.getIndex()));
+        Message.seedIndexes(highest[0]);
+        indexesSeeded = true;
+    }
+
+    @SuppressWarnings("unchecked")
+    private long[] importBatch(List<String> lines, long firstLine, BufferedWriter rejects) throws IOException {
+        // Parsing and validation is the expensive part, so it runs on all cores.
+        // The array keeps the file order so index numbers follow the input.
+        ParsedLine[] parsed = IntStream.range(0, lines.size()).parallel()
+                .mapToObj(i -> parseLine(lines.get(i)))
+                .toArray(ParsedLine[]::new);
+
+        ArrayList<Message> valid = new ArrayList<>(parsed.length);
+        HashSet<String> idsInBatch = new HashSet<>();
+        long rejected = 0;
+        int needIndex = 0;
+        for (int i = 0; i < parsed.length; i++) {
+            String reason = parsed[i].reason;
+            Message message = parsed[i].message;
+            // Earlier batches are already on disk, so this finds repeats across the whole file too
+            if (message != null && !idsInBatch.add(message.getId())) {
+                reason = "Message ID " + message.getId() + " is repeated in the file";
+            } else if (message != null && parsed[i].exists) {
+                reason = "Message ID " + message.getId() + " already exists";
+            } else if (message != null) {
+                valid.add(message);
+                if (needsIndex(message)) {
+                    needIndex++;
+                }
+                continue;
+            }
+            if (lines.get(i).trim().isEmpty()) {
+                continue;
+            }
+            JSONObject reject = new JSONObject();
+            reject.put("line", firstLine + i + 1);
+            reject.put("reason", reason);
+            reject.put("record", lines.get(i));
+            rejects.write(reject.toJSONString());
+            rejects.newLine();
+            rejected++;
+        }
+
+        if (needIndex > 0) {
+            seedIndexes();
+        }
+        // One atomic step hands out the indexes for the whole batch
+        int nextIndex = Message.reserveIndexes(needIndex);
+        for (Message message : valid) {
+            if (needsIndex(message)) {
+                message.markSent(nextIndex++);
+            }
+        }
+        long saved = 0;
+        for (boolean ok : store.putAll(valid)) {
+            if (ok) {
+                saved++;
+            }
+        }
+        SendAnalytics.getDefault().recordAll(valid);
+        return new long[]{saved, rejected + (valid.size() - saved)};
+    }
+
+    @SuppressWarnings("unchecked")
+    private ParsedLine parseLine(String line) {
+        if (line.trim().isEmpty()) {
+            return new ParsedLine(null, "Empty line");
+        }
+        JSONObject json;
+        try {
+            json = (JSONObject) parsers.get().parse(line);
+        } catch (ParseException | ClassCastException e) {
+            return new ParsedLine(null, "Not a JSON object: " + e);
+        }
+
+        try {
+            String id = (String) json.get("MESSAGE_ID");
+            if (id == null || id.isEmpty()) {
+                json.put("MESSAGE_ID", Message.newMessageId());
+            }
+            // The same reader as for message files, so every field comes back as it was exported
+            Message message = MessageManager.fromJson(json);
+            if (!json.containsKey("MESSAGE_STATUS")) {
+                // A bare record is a new send
+                message.setStatus("Sent");
+            }
+            String failure = message.validate();
+            if (failure != null) {
+                return new ParsedLine(null, failure);
+            }
+            // Checked here so the disk lookups run in parallel with the parsing
+            boolean exists = layout != null
+                    ? layout.findFile(message.getId()) != null || archive.contains(message.getId())
+                    : store.get(message.getId()) != null;
+            return new ParsedLine(message, null, exists);
+        } catch (ClassCastException e) {
+            return new ParsedLine(null, "A field has the wrong type");
+        }
+    }
+
+    // Swaps PAYLOAD_REF for the stored text, a record that can't be read is exported as it is
+    private String inlinePayload(String record) {
+        try {
+            JSONObject json = (JSONObject) parsers.get().parse(record);
+            PayloadStore.of(layout.getMessagesDir()).inline(json);
+            return json.toJSONString();
+        } catch (ParseException | ClassCastException e) {
+            return record;
+        }
+    }
+
+    /**
+     * Streams every message out as JSONL. Messages are never all in memory at once: loose files
+     * are copied one at a time, then archived messages follow one block at a time. Only the list
+     * of loose file names grows with the store.
+     * @param output The file to write.
+     * @return How many messages were written.
+     */
+    public long exportJsonl(Path output) throws IOException {
+        if (layout == null) {
+            return exportScan(output);
+        }
+        long written = 0;
+        try (BufferedWriter writer = Files.newBufferedWriter(output, StandardCharsets.UTF_8)) {
+            for (File file : layout.listMessageFiles()) {
+                String name = file.getName();
+                String id = name.substring("message_".length(), name.length() - ".json".length());
+                // If a migration left two copies, only the one findFile() picks (the sharded one) is written
+                if (!file.equals(layout.findFile(id))) {
+                    continue;
+                }
+                String record = new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8).trim();
+                if (record.isEmpty()) {
+                    continue;
+                }
+                if (record.contains(PayloadStore.PAYLOAD_REF)) {
+                    // Exports always carry the full text
+                    record = inlinePayload(record);
+                }
+                writer.write(record);
+                writer.newLine();
+                written++;
+            }
+            long[] archived = new long[1];
+            IOException[] failed = new IOException[1];
+            archive.forEach(message -> {
+                // A loose copy was written above
+                if (failed[0] != null || layout.findFile(message.getId()) != null) {
+                    return;
+                }
+                try {
+                    writer.write(message.toJson().toJSONString());
+                    writer.newLine();
+                    archived[0]++;
+                } catch (IOException e) {
+                    failed[0] = e;
+                }
+            });
+            if (failed[0] != null) {
+                throw failed[0];
+            }
+            written += archived[0];
+        }
+        return written;
+    }
+
+    // Any other store is exported through scan(), one message at a time
+    private long exportScan(Path output) throws IOException {
+        long[] written = new long[1];
+        IOException[] failed = new IOException[1];
+        try (BufferedWriter writer = Files.newBufferedWriter(output, StandardCharsets.UTF_8)) {
+            store.scan(message -> {
+                if (failed[0] != null) {
+                    return;
+                }
+                try {
+                    writer.write(message.toJson().toJSONString());
+                    writer.newLine();
+                    written[0]++;
+                } catch (IOException e) {
+                    failed[0] = e;
+                }
+            });
+        }
+        if (failed[0] != null) {
+            throw failed[0];
+        }
+        return written[0];
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.out.println("Usage: BulkTransfer import <file.jsonl> [rejects.jsonl]");
+            System.out.println("       BulkTransfer export <file.jsonl>");
+            return;
+        }
+        if (!(MessageStore.getDefault() instanceof FileMessageStore)) {
+            // A memory store would be gone again as soon as this command ends
+            System.out.println("BulkTransfer only works with the file store, not -Dquickchat.store=memory");
+            return;
+        }
+        BulkTransfer transfer = new BulkTransfer(MessageStore.getDefault());
+        if ("import".equals(args[0])) {
+            ReplicationLeader.startIfConfigured();
+            Path rejects = Paths.get(args.length > 2 ? args[2] : args[1] + ".rejects.jsonl");
+            ImportResult result = transfer.importJsonl(Paths.get(args[1]), rejects);
+            System.out.println(result);
+            if (result.getRejected() > 0) {
+                System.out.println("Rejected records were written to " + rejects);
+            }
+        } else if ("export".equals(args[0])) {
+            long start = System.currentTimeMillis();
+            long count = transfer.exportJsonl(Paths.get(args[1]));
+            System.out.println("Exported " + count + " messages in " + (System.currentTimeMillis() - start) + " ms");
+        } else {
+            System.out.println("Unknown command: " + args[0]);
+        }
+    }
+}
@@ -0,0 +1,315 @@
+package koketso;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+
+/**
+ * The ordered list of every change made to the message store, used for replication.
+ * Each line of 'messages/changelog.jsonl' is one change (a message saved, a receipt, a delete,
+ * or a broadcast sent or deleted)
+ * with an offset that counts up from 0. Followers remember the offset they got to and ask the
+ * leader for everything after it, so they can catch up after a reconnect.
+ *
+ * The leader trims the head of the log once no follower needs it (see trimBelow()). Offsets
+ * keep counting from where they were, the first line of the file says where the log starts now.
+ * A follower that is further behind than that gets a snapshot instead, see ReplicationLeader.
+ *
+ * The log is only written while this process is a replication leader.
+ */
+public class ChangeLog {
+    private static final String LOG_FILE = "changelog.jsonl";
+    private static final int CHECKPOINT_EVERY = 1024;
+
+    static final String PUT = "PUT";
+    static final String RECEIPT = "RECEIPT";
+    static final String DELETE = "DELETE";
+    static final String BROADCAST = "BROADCAST";
+    static final String BROADCAST_DELETE = "BROADCAST_DELETE";
+
+    private static volatile ChangeLog active;
+
+    private final File messagesDir;
+    private final File file;
+    private BufferedWriter out;
+    // Byte position of every 1024th entry counted from firstOffset, so a follower can start
+    // anywhere without reading from the top
+    private final ArrayList<Long> checkpoints = new ArrayList<>();
+    private long firstOffset;
+    private long nextOffset;
+    private long bytes;
+
+    public ChangeLog(File messagesDir) throws IOException {
+        this.messagesDir = messagesDir.getAbsoluteFile();
+        this.file = new File(messagesDir, LOG_FILE);
+        messagesDir.mkdirs();
+        scan();
+        this.out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file, true), StandardCharsets.UTF_8));
+    }
+
+    public File getMessagesDir() {
+        return messagesDir;
+    }
+
+    /**
+     * Makes this the log that the store writes its changes to.
+     */
+    public static void activate(ChangeLog log) {
+        active = log;
+    }
+
+    /**
+     * Gives us the active change log if it belongs to the given messages folder, otherwise null.
+     * Writes to any other folder (a follower's copy, a test folder) are not logged.
+     */
+    static ChangeLog forDir(File messagesDir) {
+        ChangeLog log = active;
+        if (log == null || !log.messagesDir.equals(messagesDir.getAbsoluteFile())) {
+            return null;
+        }
+        return log;
+    }
+
+    @SuppressWarnings("unchecked")
+    public void recordPut(JSONObject record) {
+        JSONObject entry = new JSONObject();
+        entry.put("op", PUT);
+        entry.put("record", record);
+        append(entry);
+    }
+
+    @SuppressWarnings("unchecked")
+    public void recordReceipt(String messageId, int type) {
+        JSONObject entry = new JSONObject();
+        entry.put("op", RECEIPT);
+        entry.put("id", messageId);
+        entry.put("type", type);
+        append(entry);
+    }
+
+    @SuppressWarnings("unchecked")
+    public void recordDelete(String messageId) {
+        JSONObject entry = new JSONObject();
+        entry.put("op", DELETE);
+        entry.put("id", messageId);
+        append(entry);
+    }
+
+    /**
+     * A broadcast: its header and the recipient numbers, the same as the two files it is saved in.
+     */
+    @SuppressWarnings("unchecked")
+    public void recordBroadcast(JSONObject header, int[] recipients) {
+        JSONArray numbers = new JSONArray();
+        for (int number : recipients) {
+            numbers.add(number);
+        }
+        JSONObject entry = new JSONObject();
+        entry.put("op", BROADCAST);
+        entry.put("record", header);
+        entry.put("recipients", numbers);
+        append(entry);
+    }
+
+    @SuppressWarnings("unchecked")
+    public void recordBroadcastDelete(String broadcastId) {
+        JSONObject entry = new JSONObject();
+        entry.put("op", BROADCAST_DELETE);
+        entry.put("id", broadcastId);
+        append(entry);
+    }
+
+    @SuppressWarnings("unchecked")
+    private synchronized void append(JSONObject entry) {
+        entry.put("offset", nextOffset);
+        String line = entry.toJSONString() + "\n";
+        try {
+            out.write(line);
+            out.flush();
+        } catch (IOException e) {
+            System.err.println("Could not write to the change log: " + e.getMessage());
+            return;
+        }
+        if ((nextOffset - firstOffset) % CHECKPOINT_EVERY == 0) {
+            checkpoints.add(bytes);
+        }
+        bytes += line.getBytes(StandardCharsets.UTF_8).length;
+        nextOffset++;
+        notifyAll();
+    }
+
+    /**
+     * The offset of the oldest change still in the log.
+     */
+    public synchronized long getFirstOffset() {
+        return firstOffset;
+    }
+
+    /**
+     * The offset the next change will get, which is also how many changes there are.
+     */
+    public synchronized long getNextOffset() {
+        return nextOffset;
+    }
+
+    /**
+     * Waits until there is at least one change at or after the given offset.
+     * @return The offset the next change will get, which may still be the same if the wait timed out.
+     */
+    public synchronized long awaitChanges(long fromOffset, long timeoutMillis) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        while (nextOffset <= fromOffset) {
+            long left = deadline - System.currentTimeMillis();
+            if (left <= 0) {
+                break;
+            }
+            wait(left);
+        }
+        return nextOffset;
+    }
+
+    /**
+     * Opens the log for reading, positioned at the change with the given offset.
+     * The caller must only read changes below getNextOffset(), those lines are complete.
+     * If the log is trimmed while the reader is open, the reader runs out at the changes that were
+     * there at the time, open it again from where it got to for the rest.
+     * @throws IOException Also if the change was trimmed off already.
+     */
+    public BufferedReader openFrom(long offset) throws IOException {
+        long checkpointOffset;
+        long position;
+        FileInputStream in;
+        synchronized (this) {
+            if (offset < firstOffset) {
+                throw new IOException("Change " + offset + " was trimmed off, the log starts at " + firstOffset);
+            }
+            int checkpoint = (int) Math.min((offset - firstOffset) / CHECKPOINT_EVERY, checkpoints.size() - 1);
+            checkpointOffset = firstOffset + (checkpoint < 0 ? 0 : (long) checkpoint * CHECKPOINT_EVERY);
+            position = checkpoint < 0 ? 0 : checkpoints.get(checkpoint);
+            // Opened under the lock, so the positions belong to this file and not one a trim put in its place
+            in = new FileInputStream(file);
+        }
+        in.getChannel().position(position);
+        BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+        for (long skip = checkpointOffset; skip < offset; skip++) {
+            reader.readLine();
+        }
+        return reader;
+    }
+
+    /**
+     * Drops the changes below the given offset, the leader calls this once no follower needs them.
+     * The newest change always stays, it is what tells the next start where the offsets are.
+     * The changes that are kept are copied into a new file, and new changes wait for that copy.
+     * @return How many changes were dropped.
+     */
+    public synchronized long trimBelow(long offset) throws IOException {
+        long cut = Math.min(offset, nextOffset - 1);
+        if (cut <= firstOffset) {
+            return 0;
+        }
+        out.flush();
+        // Start at the checkpoint before the cut and step over the lines up to it
+        int checkpoint = (int) Math.min((cut - firstOffset) / CHECKPOINT_EVERY, checkpoints.size() - 1);
+        long position = checkpoints.get(checkpoint);
+        long lines = cut - firstOffset - (long) checkpoint * CHECKPOINT_EVERY;
+        File tmp = new File(file.getParentFile(), LOG_FILE + ".tmp");
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r");
+             FileOutputStream copy = new FileOutputStream(tmp)) {
+            raf.seek(position);
+            byte[] buffer = new byte[64 * 1024];
+            int read;
+            while ((read = raf.read(buffer)) > 0) {
+                int from = 0;
+                for (; lines > 0 && from < read; from++) {
+                    if (buffer[from] == '\n') {
+                        lines--;
+                    }
+                }
+                copy.write(buffer, from, read - from);
+            }
+        } catch (IOException e) {
+            tmp.delete();
+            throw e;
+        }
+        out.close();
+        try {
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            // The old file is still whole, keep writing to it
+            tmp.delete();
+            out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file, true), StandardCharsets.UTF_8));
+            throw e;
+        }
+        long dropped = cut - firstOffset;
+        checkpoints.clear();
+        nextOffset = 0;
+        bytes = 0;
+        scan();
+        out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file, true), StandardCharsets.UTF_8));
+        return dropped;
+    }
+
+    // Counts the entries that are already in the file and cuts off a half written last line.
+    // The first line's offset says where the log starts, after a trim that is no longer 0.
+    private void scan() throws IOException {
+        firstOffset = readFirstOffset();
+        nextOffset = firstOffset;
+        if (!file.exists()) {
+            return;
+        }
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            long lineStart = 0;
+            long position = 0;
+            byte[] buffer = new byte[64 * 1024];
+            int read;
+            while ((read = raf.read(buffer)) > 0) {
+                for (int i = 0; i < read; i++) {
+                    if (buffer[i] == '\n') {
+                        if ((nextOffset - firstOffset) % CHECKPOINT_EVERY == 0) {
+                            checkpoints.add(lineStart);
+                        }
+                        nextOffset++;
+                        lineStart = position + i + 1;
+                    }
+                }
+                position += read;
+            }
+            if (lineStart < raf.length()) {
+                raf.setLength(lineStart);
+            }
+            bytes = lineStart;
+        }
+    }
+
+    private long readFirstOffset() throws IOException {
+        if (!file.exists()) {
+            return 0;
+        }
+        try (BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8))) {
+            String line = in.readLine();
+            if (line == null || line.isEmpty()) {
+                return 0;
+            }
+            Object offset = ((JSONObject) new JSONParser().parse(line)).get("offset");
+            return offset instanceof Long ? (Long) offset : 0;
+        } catch (ParseException | ClassCastException e) {
+            // Only a half written line, scan() cuts it off
+            return 0;
+        }
+    }
+}
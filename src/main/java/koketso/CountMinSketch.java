@@ -0,0 +1,61 @@
+package koketso;
+
+/**
+ * A Count-Min sketch: estimates how often each key was seen using a fixed block of counters.
+ * The estimate is never too low, and it is too high by at most a small share of the total count.
+ */
+public class CountMinSketch {
+    private final int depth;
+    private final int width;
+    private final long[][] counters;
+
+    public CountMinSketch(int depth, int width) {
+        this.depth = depth;
+        this.width = width;
+        this.counters = new long[depth][width];
+    }
+
+    /**
+     * Counts one more sighting of the key.
+     * @return The new estimate for the key.
+     */
+    public long addAndEstimate(String key) {
+        long estimate = Long.MAX_VALUE;
+        for (int row = 0; row < depth; row++) {
+            int column = column(key, row);
+            long value = ++counters[row][column];
+            estimate = Math.min(estimate, value);
+        }
+        return estimate;
+    }
+
+    public long estimate(String key) {
+        long estimate = Long.MAX_VALUE;
+        for (int row = 0; row < depth; row++) {
+            estimate = Math.min(estimate, counters[row][column(key, row)]);
+        }
+        return estimate;
+    }
+
+    private int column(String key, int row) {
+        return (int) Long.remainderUnsigned(hash64(key, row), width);
+    }
+
+    /**
+     * A 64 bit hash of a string (FNV-1a, then mixed). The seed gives independent hashes.
+     */
+    static long hash64(String key, long seed) {
+        long h = 0xcbf29ce484222325L ^ (seed * 0x9E3779B97F4A7C15L);
+        for (int i = 0; i < key.length(); i++) {
+            h ^= key.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        // Final mix from MurmurHash3 so every input bit affects every output bit
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
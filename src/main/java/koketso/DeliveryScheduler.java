@@ -0,0 +1,244 @@
+package koketso;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Sends stored messages at their send-at time using a hierarchical timer wheel.
+ *
+ * The wheel has 4 levels of 64 slots. Level 0 has one slot per tick, level 1 one slot per
+ * 64 ticks, and so on, so with one second ticks it covers about 194 days before the overflow
+ * list is needed. A message is put in the lowest level that still reaches its due time, and
+ * moves down a level each time the wheel above it turns over. Each tick only touches the
+ * entries that are due (or moving down), so the cost of a tick does not depend on how many
+ * messages are waiting.
+ *
+ * Nothing extra is saved for the wheel: the send-at time is part of the message record,
+ * so after a restart rebuild() puts every stored message with a send-at time back in.
+ *
+ * The wheel only holds message IDs. When one is due the message is read fresh from the
+ * MessageStore, so the ticker thread never shares Message objects with the UI and a reload
+ * of the UI's list can't leave it holding stale copies.
+ */
+public class DeliveryScheduler {
+    private static final int SLOT_BITS = 6;
+    private static final int SLOTS = 1 << SLOT_BITS;
+    private static final int LEVELS = 4;
+    private static final long TICK_MILLIS = Long.getLong("quickchat.scheduler.tickMillis", 1000L);
+
+    // One waiting message. Entries in the same slot form a linked list.
+    private static class Entry {
+        final String messageId;
+        final long dueTick;
+        Entry next;
+        boolean cancelled;
+
+        Entry(String messageId, long dueTick) {
+            this.messageId = messageId;
+            this.dueTick = dueTick;
+        }
+    }
+
+    private final long tickMillis;
+    private final Consumer<String> deliver;
+    private volatile Consumer<Message> onSent;
+    private final Entry[][] wheels = new Entry[LEVELS][SLOTS];
+    private final HashMap<String, Entry> pending = new HashMap<>();
+    private Entry overflow;
+    private long currentTick;
+
+    /**
+     * @param tickMillis How long one tick is.
+     * @param startMillis The current time, the wheel starts from here.
+     * @param deliver What to do with the ID of a message when it is due, or null to send it.
+     */
+    public DeliveryScheduler(long tickMillis, long startMillis, Consumer<String> deliver) {
+        this.tickMillis = tickMillis;
+        this.deliver = deliver != null ? deliver : this::sendNow;
+        this.currentTick = startMillis / tickMillis;
+    }
+
+    /**
+     * Creates the scheduler the app uses, puts back every stored message that has a send-at time,
+     * and starts a background thread that ticks the wheel.
+     * @param messages All loaded messages.
+     * @param onSent Gets the sent copy of each scheduled message (on the ticker thread), may be null.
+     */
+    public static DeliveryScheduler start(List<Message> messages, Consumer<Message> onSent) {
+        DeliveryScheduler scheduler = new DeliveryScheduler(TICK_MILLIS, System.currentTimeMillis(), null);
+        scheduler.onSent = onSent;
+        scheduler.rebuild(messages);
+
+        ScheduledExecutorService ticker = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "delivery-scheduler");
+            t.setDaemon(true);
+            return t;
+        });
+        ticker.scheduleAtFixedRate(() -> scheduler.advanceTo(System.currentTimeMillis()),
+                TICK_MILLIS, TICK_MILLIS, TimeUnit.MILLISECONDS);
+        return scheduler;
+    }
+
+    /**
+     * The normal way a due message is handled: read it from the store and send it, and if it
+     * can't be sent stop trying so it is not picked up again after a restart.
+     * A message that was deleted, sent or unscheduled in the meantime is left alone.
+     * If the rate limiter says to wait, the message goes back in the wheel instead.
+     */
+    void sendNow(String messageId) {
+        Message message = MessageStore.getDefault().get(messageId);
+        if (message == null || !"Stored".equals(message.getStatus()) || message.getSendAt() <= 0) {
+            return;
+        }
+        SendRateLimiter.Decision decision = SendRateLimiter.getDefault().tryAcquire(message.getSender());
+        if (!decision.isAllowed()) {
+            schedule(messageId, System.currentTimeMillis() + decision.getRetryAfterMillis());
+            return;
+        }
+        String result = message.sendWithoutLimit();
+        if (!"Message sent successfully".equals(result)) {
+            System.err.println("Scheduled message " + message.getId() + " was not sent: " + result);
+            message.setSendAt(0);
+            message.storeMessage();
+        }
+        Consumer<Message> listener = onSent;
+        if (listener != null) {
+            listener.accept(message);
+        }
+    }
+
+    /**
+     * Puts every stored message with a send-at time into the wheel. Ones that are
+     * already overdue go out on the next tick.
+     * @return How many messages were scheduled.
+     */
+    public int rebuild(List<Message> messages) {
+        int count = 0;
+        for (Message message : messages) {
+            if ("Stored".equals(message.getStatus()) && message.getSendAt() > 0) {
+                schedule(message);
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Adds a message to the wheel using its send-at time. Scheduling the same
+     * message ID again replaces the old entry.
+     */
+    public void schedule(Message message) {
+        schedule(message.getId(), message.getSendAt());
+    }
+
+    /**
+     * Adds a message ID to the wheel, due at the given time.
+     */
+    public synchronized void schedule(String messageId, long sendAtMillis) {
+        cancel(messageId);
+        long dueTick = Math.max((sendAtMillis + tickMillis - 1) / tickMillis, currentTick + 1);
+        Entry entry = new Entry(messageId, dueTick);
+        pending.put(messageId, entry);
+        insert(entry);
+    }
+
+    /**
+     * Stops a message from being sent.
+     * @return true if it was waiting in the wheel.
+     */
+    public synchronized boolean cancel(String messageId) {
+        Entry entry = pending.remove(messageId);
+        if (entry == null) {
+            return false;
+        }
+        // The entry is skipped when its slot comes round, there is no need to unlink it now
+        entry.cancelled = true;
+        return true;
+    }
+
+    public synchronized int pendingCount() {
+        return pending.size();
+    }
+
+    /**
+     * Moves the wheel forward to the given time and delivers everything that became due.
+     * Delivery happens outside the lock so slow disk writes never block schedule().
+     * @return How many messages were delivered.
+     */
+    public int advanceTo(long nowMillis) {
+        List<String> due = new ArrayList<>();
+        synchronized (this) {
+            long targetTick = nowMillis / tickMillis;
+            while (currentTick < targetTick) {
+                currentTick++;
+                tick(due);
+            }
+        }
+        for (String messageId : due) {
+            try {
+                deliver.accept(messageId);
+            } catch (RuntimeException e) {
+                System.err.println("Could not deliver scheduled message " + messageId + ": " + e.getMessage());
+            }
+        }
+        return due.size();
+    }
+
+    private void tick(List<String> due) {
+        if ((currentTick & ((1L << (SLOT_BITS * LEVELS)) - 1)) == 0) {
+            Entry list = overflow;
+            overflow = null;
+            reinsert(list, due);
+        }
+        // When a level's lower bits roll over to zero, its current slot moves down a level
+        for (int level = LEVELS - 1; level >= 1; level--) {
+            if ((currentTick & ((1L << (SLOT_BITS * level)) - 1)) == 0) {
+                int slot = (int) (currentTick >>> (SLOT_BITS * level)) & (SLOTS - 1);
+                Entry list = wheels[level][slot];
+                wheels[level][slot] = null;
+                reinsert(list, due);
+            }
+        }
+        int slot = (int) currentTick & (SLOTS - 1);
+        Entry list = wheels[0][slot];
+        wheels[0][slot] = null;
+        reinsert(list, due);
+    }
+
+    private void reinsert(Entry list, List<String> due) {
+        while (list != null) {
+            Entry next = list.next;
+            list.next = null;
+            if (!list.cancelled) {
+                if (list.dueTick <= currentTick) {
+                    pending.remove(list.messageId);
+                    due.add(list.messageId);
+                } else {
+                    insert(list);
+                }
+            }
+            list = next;
+        }
+    }
+
+    private void insert(Entry entry) {
+        // Use the lowest level where the due tick is in the same turn of the level above,
+        // so the slot is always ahead of where that level currently is
+        for (int level = 0; level < LEVELS; level++) {
+            int shift = SLOT_BITS * (level + 1);
+            if ((entry.dueTick >>> shift) == (currentTick >>> shift)) {
+                int slot = (int) (entry.dueTick >>> (SLOT_BITS * level)) & (SLOTS - 1);
+                entry.next = wheels[level][slot];
+                wheels[level][slot] = entry;
+                return;
+            }
+        }
+        entry.next = overflow;
+        overflow = entry;
+    }
+}
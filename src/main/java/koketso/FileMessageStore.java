@@ -0,0 +1,310 @@
+package koketso;
+
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+import java.util.stream.IntStream;
+
+/**
+ * The original way of keeping messages: one JSON file per message in a messages folder
+ * (flat or sharded, see MessageLayout), old read messages in the archive, and receipts in the
+ * ReceiptLog. Writes go into the change log when this process is a replication leader.
+ */
+public class FileMessageStore implements MessageStore {
+    // One store per folder, so every write to a folder lands in the same time index
+    private static final ConcurrentHashMap<String, FileMessageStore> stores = new ConcurrentHashMap<>();
+
+    private final File messagesDir;
+    private final MessageLayout layout;
+    private final TimeBucketIndex timeIndex = new TimeBucketIndex();
+    // Archived messages are only put in the time index when it is first asked for, not on every load
+    private volatile boolean archiveIndexed;
+
+    public FileMessageStore(File messagesDir) {
+        this.messagesDir = messagesDir;
+        this.layout = MessageLayout.of(messagesDir);
+    }
+
+    /**
+     * The store for a messages folder, the same one every time it is asked for.
+     */
+    public static FileMessageStore of(File messagesDir) {
+        return stores.computeIfAbsent(messagesDir.getAbsolutePath(), path -> new FileMessageStore(messagesDir));
+    }
+
+    public File getMessagesDir() {
+        return messagesDir;
+    }
+
+    @Override
+    public boolean put(Message message) {
+        if (!MessageManager.storeRecord(layout, message.getId(), message.toJson())) {
+            return false;
+        }
+        timeIndex.add(message);
+        if (!message.isRead() && (ReceiptLog.of(messagesDir).flagsOf(message.getId()) & ReceiptLog.READ) != 0) {
+            // Read since this copy was loaded, the receipt log knows better than the message
+            timeIndex.markRead(message.getId());
+        }
+        return true;
+    }
+
+    /**
+     * Writes the files of a batch in parallel.
+     */
+    @Override
+    public boolean[] putAll(List<Message> messages) {
+        boolean[] saved = new boolean[messages.size()];
+        IntStream.range(0, saved.length).parallel().forEach(i -> saved[i] = put(messages.get(i)));
+        return saved;
+    }
+
+    @Override
+    public boolean updateFlags(String messageId, int flags) {
+        if ((flags & ReceiptLog.READ) != 0) {
+            ReceiptLog.of(messagesDir).record(messageId, ReceiptLog.READ);
+            timeIndex.markRead(messageId);
+        } else if ((flags & ReceiptLog.DELIVERED) != 0) {
+            ReceiptLog.of(messagesDir).record(messageId, ReceiptLog.DELIVERED);
+        } else {
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * One lookup in the ReceiptLog for all of them, no message file is read.
+     */
+    @Override
+    public int[] flagsOf(List<String> messageIds) {
+        return ReceiptLog.of(messagesDir).flagsOf(messageIds);
+    }
+
+    /**
+     * Deletes the JSON file for a message.
+     * If there is no loose file, the message is removed from the archive index instead.
+     */
+    @Override
+    public boolean delete(String messageId) {
+        boolean deleted;
+        // Under the write lock like a put, so a snapshot can wait for the delete to reach the disk
+        synchronized (MessageManager.writeLockFor(messageId)) {
+            Snapshot.beforeDelete(messagesDir, messageId);
+            timeIndex.remove(messageId);
+            ReceiptLog.of(messagesDir).forget(messageId);
+            if (layout.delete(messageId)) {
+                // An older archived copy must not come back on the next load
+                MessageArchive.of(messagesDir).remove(messageId);
+                MessageManager.releasePayload(messagesDir, messageId);
+                deleted = true;
+            } else {
+                deleted = MessageArchive.of(messagesDir).remove(messageId);
+            }
+        }
+        ChangeLog changeLog = ChangeLog.forDir(messagesDir);
+        if (deleted && changeLog != null) {
+            changeLog.recordDelete(messageId);
+        }
+        return deleted;
+    }
+
+    /**
+     * Deletes the loose files one by one (there is no way around that with one file per message),
+     * but takes all of them out of the archive index with a single write.
+     */
+    @Override
+    public int deleteAll(Collection<String> messageIds) {
+        ReceiptLog receiptLog = ReceiptLog.of(messagesDir);
+        LinkedHashSet<String> deleted = new LinkedHashSet<>();
+        for (String messageId : messageIds) {
+            synchronized (MessageManager.writeLockFor(messageId)) {
+                Snapshot.beforeDelete(messagesDir, messageId);
+                timeIndex.remove(messageId);
+                receiptLog.forget(messageId);
+                if (layout.delete(messageId)) {
+                    MessageManager.releasePayload(messagesDir, messageId);
+                    deleted.add(messageId);
+                }
+            }
+        }
+        // An older archived copy of a loose message must not come back either
+        deleted.addAll(MessageArchive.of(messagesDir).removeAll(messageIds));
+        ChangeLog changeLog = ChangeLog.forDir(messagesDir);
+        if (changeLog != null) {
+            deleted.forEach(changeLog::recordDelete);
+        }
+        return deleted.size();
+    }
+
+    /**
+     * Moves the loose files into new archive blocks (see MessageArchive). Messages that are
+     * already archived are left where they are.
+     */
+    @Override
+    public int archiveAll(Collection<String> messageIds) {
+        for (String messageId : messageIds) {
+            timeIndex.remove(messageId);
+        }
+        return MessageArchive.of(messagesDir).archiveMessages(messageIds);
+    }
+
+    @Override
+    public TimeBucketIndex timeIndex() {
+        if (!archiveIndexed) {
+            synchronized (this) {
+                if (!archiveIndexed) {
+                    MessageArchive.of(messagesDir).forEach(message -> {
+                        if (layout.findFile(message.getId()) == null) {
+                            ReceiptLog.of(messagesDir).applyTo(List.of(message));
+                            timeIndex.add(message);
+                        }
+                    });
+                    archiveIndexed = true;
+                }
+            }
+        }
+        return timeIndex;
+    }
+
+    /**
+     * Loads one message without reading the whole folder.
+     * It checks the shard, then the flat folder, then the archive.
+     */
+    @Override
+    public Message get(String messageId) {
+        File file = layout.findFile(messageId);
+        Message message = null;
+        if (file == null) {
+            message = MessageArchive.of(messagesDir).get(messageId);
+        } else {
+            try (FileReader reader = new FileReader(file)) {
+                message = MessageManager.fromJson((JSONObject) new JSONParser().parse(reader));
+            } catch (IOException | ParseException e) {
+                System.err.println("Problem reading file " + file.getName() + ": " + e.getMessage());
+            }
+        }
+        if (message != null) {
+            ReceiptLog.of(messagesDir).applyTo(List.of(message));
+        }
+        return message;
+    }
+
+    /**
+     * Hands over the loose messages, then the archived ones one block at a time.
+     */
+    @Override
+    public void scan(Consumer<Message> visitor) {
+        HashSet<String> loose = new HashSet<>();
+        for (Message message : loadInto(new ArrayList<>())) {
+            loose.add(message.getId());
+            visitor.accept(message);
+        }
+        ReceiptLog receiptLog = ReceiptLog.of(messagesDir);
+        MessageArchive.of(messagesDir).forEach(archived -> {
+            // A loose file wins over an archived copy, because it means the message was rewritten after it was archived
+            if (!loose.contains(archived.getId())) {
+                receiptLog.applyTo(List.of(archived));
+                visitor.accept(archived);
+            }
+        });
+    }
+
+    /**
+     * Reads only the archived messages of one number, through the archive's index.
+     */
+    @Override
+    public List<Message> loadArchived(String cellNumber) {
+        ArrayList<Message> archived = new ArrayList<>();
+        for (Message message : MessageArchive.of(messagesDir).loadFor(cellNumber)) {
+            if (layout.findFile(message.getId()) == null) {
+                archived.add(message);
+            }
+        }
+        ReceiptLog.of(messagesDir).applyTo(archived);
+        return archived;
+    }
+
+    /**
+     * Reads all the loose message files (flat or sharded) into a list. Archived messages are
+     * left out, so the list only holds the hot set. They can be read with get(), loadArchived()
+     * or scan().
+     */
+    @Override
+    public <L extends List<Message>> L loadInto(L allMessages) {
+        readLooseFiles(allMessages, null);
+        for (Message message : allMessages) {
+            timeIndex.add(message);
+        }
+        return allMessages;
+    }
+
+    /**
+     * There is no per-number index for loose files, so this still reads every one of them from
+     * disk. A file that doesn't mention the number is skipped before it is parsed, which is what
+     * makes this quicker than loading everything: it saves the parsing, not the reading.
+     */
+    @Override
+    public List<Message> loadFor(String cellNumber) {
+        return readLooseFiles(new ArrayList<>(), cellNumber);
+    }
+
+    // Reads the loose files into the list, only the ones to or from cellNumber unless it is null
+    private <L extends List<Message>> L readLooseFiles(L allMessages, String cellNumber) {
+        JSONParser parser = new JSONParser();
+
+        if (!messagesDir.exists()) {
+            messagesDir.mkdirs();
+            return allMessages;
+        }
+
+        // During a shard migration the same ID can show up in both layouts,
+        // and the sharded copy comes last, so it replaces the flat one.
+        HashMap<String, Integer> positionOf = new HashMap<>();
+        for (File file : layout.listMessageFiles()) {
+            try {
+                String text = new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8);
+                if (cellNumber != null && !text.contains(cellNumber)) {
+                    continue;
+                }
+                JSONObject jsonMessage = (JSONObject) parser.parse(text);
+                Message message = MessageManager.fromJson(jsonMessage);
+                if (cellNumber != null && !cellNumber.equals(message.getSender())
+                        && !cellNumber.equals(message.getRecipient())) {
+                    continue;
+                }
+                if (message.getTimestamp() == 0) {
+                    // Saved before messages had timestamps, the file time is the best we have
+                    message.setCreatedAt(file.lastModified());
+                }
+                Integer position = positionOf.get(message.getId());
+                if (position != null) {
+                    allMessages.set(position, message);
+                } else {
+                    positionOf.put(message.getId(), allMessages.size());
+                    allMessages.add(message);
+                }
+            } catch (IOException | ParseException e) {
+                System.err.println("Problem reading file " + file.getName() + ": " + e.getMessage());
+            } catch (Exception e) {
+                System.err.println("A weird error happened with file " + file.getName() + ": " + e.getMessage());
+            }
+        }
+
+        // Receipts are kept in their own log, not in the message files
+        ReceiptLog.of(messagesDir).applyTo(allMessages);
+        return allMessages;
+    }
+}
@@ -0,0 +1,219 @@
+package koketso;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+
+/**
+ * Makes a send safe to retry. A client that gives the same idempotency key again (for example
+ * after a timeout) gets the result of the first send back, and nothing is written a second time.
+ *
+ * Keys are remembered per sender for a window of time (-Dquickchat.idempotency.windowSeconds,
+ * 10 minutes by default):
+ * - A Bloom filter of every key seen lately sits in front. For almost every first attempt it says
+ *   "never seen", and the key is reserved straight away without looking for an earlier send.
+ *   There are two filters that take turns: a new one is started every window and the one before
+ *   it is kept for one more window, so old keys never fill them up.
+ * - Behind it each sender has a small LRU of their latest keys and results, and only the most
+ *   recently active senders keep one. Both limits are fixed, so the memory is too.
+ *   The senders are spread over stripes (-Dquickchat.idempotency.stripes, 64 by default), each
+ *   with its own lock and its own share of maxSenders, so keyed sends from different senders
+ *   hardly ever wait for each other.
+ * A retry that comes in while the first send is still running waits for it and gets its result,
+ * which carries the message that was really saved (with its ID, index and hash).
+ * Only successful sends are remembered, anything else can be retried for real.
+ *
+ * Sends without a key never come here, so the normal send path costs exactly what it did.
+ */
+public class IdempotencyCache {
+    private static final long WINDOW_MILLIS = Long.getLong("quickchat.idempotency.windowSeconds", 600L) * 1000L;
+    private static final int MAX_SENDERS = Integer.getInteger("quickchat.idempotency.maxSenders", 10_000);
+    private static final int KEYS_PER_SENDER = Integer.getInteger("quickchat.idempotency.keysPerSender", 32);
+    private static final long EXPECTED_KEYS = Long.getLong("quickchat.idempotency.expectedKeys", 100_000L);
+    private static final int STRIPES = Integer.getInteger("quickchat.idempotency.stripes", 64);
+    private static final String SUCCESS = "Message sent successfully";
+
+    private static volatile IdempotencyCache defaultCache;
+
+    // What the first send with a key gave back, or will give back once it finishes
+    private static class Entry {
+        final CompletableFuture<SendResult> result = new CompletableFuture<>();
+        final long startedAt;
+
+        Entry(long startedAt) {
+            this.startedAt = startedAt;
+        }
+    }
+
+    private final long windowMillis;
+    private final int keysPerSender;
+    private final long expectedKeys;
+    private final LongSupplier clock;
+    // Each stripe is an LRU of senders, locked on itself
+    private final LinkedHashMap<String, LinkedHashMap<String, Entry>>[] stripes;
+    private final int mask;
+    private volatile BloomFilter current;
+    private volatile BloomFilter previous;
+    private volatile long currentSince;
+    private final AtomicLong duplicates = new AtomicLong();
+
+    /**
+     * @param windowMillis How long a key is remembered.
+     * @param maxSenders How many senders keep their recent keys.
+     * @param keysPerSender How many keys each of them keeps.
+     * @param expectedKeys About how many keyed sends there are in one window, this sizes the filters.
+     * @param clock Gives the time in epoch millis (System::currentTimeMillis outside of tests).
+     */
+    public IdempotencyCache(long windowMillis, int maxSenders, int keysPerSender, long expectedKeys, LongSupplier clock) {
+        this(windowMillis, maxSenders, keysPerSender, expectedKeys, STRIPES, clock);
+    }
+
+    /**
+     * @param stripeCount How many stripes the senders are spread over, rounded up to a power of two.
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public IdempotencyCache(long windowMillis, int maxSenders, int keysPerSender, long expectedKeys,
+                            int stripeCount, LongSupplier clock) {
+        this.windowMillis = windowMillis;
+        this.keysPerSender = keysPerSender;
+        this.expectedKeys = expectedKeys;
+        this.clock = clock;
+        int size = stripeCount <= 1 ? 1 : Integer.highestOneBit(stripeCount - 1) << 1;
+        // Every stripe keeps its share, rounded up so a small limit still leaves room in each
+        int sendersPerStripe = Math.max(1, (maxSenders + size - 1) / size);
+        this.stripes = new LinkedHashMap[size];
+        for (int i = 0; i < size; i++) {
+            stripes[i] = new LinkedHashMap<String, LinkedHashMap<String, Entry>>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, LinkedHashMap<String, Entry>> eldest) {
+                    return size() > sendersPerStripe;
+                }
+            };
+        }
+        this.mask = size - 1;
+        this.current = BloomFilter.forKeys(expectedKeys, 0.01);
+        this.previous = BloomFilter.forKeys(expectedKeys, 0.01);
+        this.currentSince = clock.getAsLong();
+    }
+
+    public static IdempotencyCache getDefault() {
+        if (defaultCache == null) {
+            synchronized (IdempotencyCache.class) {
+                if (defaultCache == null) {
+                    defaultCache = new IdempotencyCache(WINDOW_MILLIS, MAX_SENDERS, KEYS_PER_SENDER,
+                            EXPECTED_KEYS, System::currentTimeMillis);
+                }
+            }
+        }
+        return defaultCache;
+    }
+
+    /**
+     * Runs a send unless the same sender already sent with this key inside the window.
+     * @param sender The sender's cellphone number.
+     * @param key The client's idempotency key, null to always send.
+     * @param send Does the real send and gives back its result text.
+     * @return The result of this send, or of the first send with the same key.
+     */
+    public String send(String sender, String key, Supplier<String> send) {
+        return sendMessage(sender, key, () -> {
+            String text = send.get();
+            return SUCCESS.equals(text) ? SendResult.sent(null) : SendResult.failed(null, text);
+        }).getText();
+    }
+
+    /**
+     * Like send(), for a send that gives back the whole SendResult. A retry gets the first
+     * send's result, so getMessage() is the message that was saved, not the retry's copy.
+     */
+    public SendResult sendMessage(String sender, String key, Supplier<SendResult> send) {
+        if (key == null || sender == null) {
+            return send.get();
+        }
+        long now = clock.getAsLong();
+        rotateIfDue(now);
+        String filterKey = sender + '\u0000' + key;
+        // previous is read before adding to current, so a rotation in between can't hide a key
+        boolean maybeSeen = previous.mightContain(filterKey);
+        maybeSeen |= !current.add(filterKey);
+
+        LinkedHashMap<String, LinkedHashMap<String, Entry>> senders = stripeFor(sender);
+        Entry mine = new Entry(now);
+        Entry earlier = null;
+        synchronized (senders) {
+            LinkedHashMap<String, Entry> keys = senders.computeIfAbsent(sender, s -> newKeyMap());
+            if (maybeSeen) {
+                earlier = keys.get(key);
+            }
+            if (earlier == null || now - earlier.startedAt >= windowMillis) {
+                Entry replaced = keys.put(key, mine);
+                // Two first attempts at the same moment can both be "never seen" by the filter
+                earlier = replaced != null && now - replaced.startedAt < windowMillis ? replaced : null;
+                if (earlier != null) {
+                    keys.put(key, earlier);
+                }
+            }
+        }
+        if (earlier != null) {
+            duplicates.incrementAndGet();
+            return earlier.result.join();
+        }
+
+        SendResult result = null;
+        try {
+            result = send.get();
+            return result;
+        } finally {
+            if (result == null || !result.isSent()) {
+                // Forget it, so the client's retry does the send again
+                synchronized (senders) {
+                    LinkedHashMap<String, Entry> keys = senders.get(sender);
+                    if (keys != null) {
+                        keys.remove(key, mine);
+                    }
+                }
+            }
+            mine.result.complete(result != null ? result
+                    : SendResult.failed(null, "Failed to send message: Could not save the message"));
+        }
+    }
+
+    /**
+     * How many sends were answered from an earlier send instead of being sent again.
+     */
+    public long getDuplicateCount() {
+        return duplicates.get();
+    }
+
+    private LinkedHashMap<String, LinkedHashMap<String, Entry>> stripeFor(String sender) {
+        int h = sender.hashCode();
+        // Spread the high bits down, cellphone numbers differ mostly in the low ones
+        return stripes[(h ^ (h >>> 16)) & mask];
+    }
+
+    private LinkedHashMap<String, Entry> newKeyMap() {
+        return new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                return size() > keysPerSender;
+            }
+        };
+    }
+
+    // Each filter holds one window of keys, so together they always cover at least the last window
+    private void rotateIfDue(long now) {
+        if (now - currentSince < windowMillis) {
+            return;
+        }
+        synchronized (this) {
+            if (now - currentSince >= windowMillis) {
+                previous = current;
+                current = BloomFilter.forKeys(expectedKeys, 0.01);
+                currentSince = now;
+            }
+        }
+    }
+}
@@ -0,0 +1,110 @@
+package koketso;
+
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+
+/**
+ * Keeps messages in memory only, for tests and benchmarks that should not touch the disk.
+ * Turned on for the app with -Dquickchat.store=memory, everything is gone when the process stops.
+ *
+ * The store keeps its own copy of every message, so changing a Message after put() does not
+ * change what is stored, and changing one that came from get() does not either.
+ * Flags are kept apart from the messages, like the ReceiptLog does, so they can be set for any ID.
+ */
+public class InMemoryMessageStore implements MessageStore {
+    private final ConcurrentHashMap<String, Message> messages = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Integer> flags = new ConcurrentHashMap<>();
+    private final TimeBucketIndex timeIndex = new TimeBucketIndex();
+
+    @Override
+    public boolean put(Message message) {
+        messages.put(message.getId(), copyOf(message));
+        timeIndex.add(withFlags(message));
+        return true;
+    }
+
+    @Override
+    public boolean updateFlags(String messageId, int newFlags) {
+        int added = newFlags & (ReceiptLog.DELIVERED | ReceiptLog.READ);
+        if (added == 0) {
+            return false;
+        }
+        if ((added & ReceiptLog.READ) != 0) {
+            added |= ReceiptLog.DELIVERED;
+        }
+        flags.merge(messageId, added, (a, b) -> a | b);
+        if ((added & ReceiptLog.READ) != 0) {
+            timeIndex.markRead(messageId);
+        }
+        return true;
+    }
+
+    @Override
+    public int[] flagsOf(List<String> messageIds) {
+        int[] found = new int[messageIds.size()];
+        // Also IDs without a message, like the receipts of a broadcast recipient
+        for (int i = 0; i < found.length; i++) {
+            String messageId = messageIds.get(i);
+            found[i] = flags.getOrDefault(messageId, 0);
+            Message stored = messages.get(messageId);
+            if (stored != null) {
+                found[i] |= (stored.isReceived() ? ReceiptLog.DELIVERED : 0) | (stored.isRead() ? ReceiptLog.READ : 0);
+            }
+        }
+        return found;
+    }
+
+    @Override
+    public boolean delete(String messageId) {
+        flags.remove(messageId);
+        timeIndex.remove(messageId);
+        return messages.remove(messageId) != null;
+    }
+
+    @Override
+    public TimeBucketIndex timeIndex() {
+        return timeIndex;
+    }
+
+    @Override
+    public Message get(String messageId) {
+        Message stored = messages.get(messageId);
+        return stored == null ? null : withFlags(stored);
+    }
+
+    @Override
+    public void scan(Consumer<Message> visitor) {
+        for (Message stored : messages.values()) {
+            visitor.accept(withFlags(stored));
+        }
+    }
+
+    public int size() {
+        return messages.size();
+    }
+
+    private Message withFlags(Message stored) {
+        Message copy = copyOf(stored);
+        int f = flags.getOrDefault(stored.getId(), 0);
+        if ((f & ReceiptLog.DELIVERED) != 0) {
+            copy.setReceived(true);
+        }
+        if ((f & ReceiptLog.READ) != 0) {
+            copy.setRead(true);
+        }
+        return copy;
+    }
+
+    private static Message copyOf(Message message) {
+        Message copy = new Message(message.getId(), message.getSender(), message.getRecipient(),
+                message.getPayload(), message.getIndex(), message.getHash());
+        copy.setStatus(message.getStatus());
+        copy.setReceived(message.isReceived());
+        copy.setRead(message.isRead());
+        copy.setSendAt(message.getSendAt());
+        copy.setCreatedAt(message.getCreatedAt());
+        copy.setSentAt(message.getSentAt());
+        return copy;
+    }
+}
@@ -0,0 +1,91 @@
+package koketso;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A small lock free latency histogram for load tests and benchmarks.
+ * Values are kept in log-linear buckets (every power of two is split into 16 steps),
+ * so any percentile is accurate to about 6% while the whole thing stays a fixed size.
+ * Many threads can record into it at the same time.
+ */
+public class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 4;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKETS = 64 * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+
+    /**
+     * Adds one measurement.
+     * @param nanos The latency in nanoseconds.
+     */
+    public void record(long nanos) {
+        counts.incrementAndGet(bucketOf(Math.max(0, nanos)));
+    }
+
+    public long getCount() {
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            total += counts.get(i);
+        }
+        return total;
+    }
+
+    /**
+     * Finds the latency below which the given fraction of measurements fall.
+     * @param fraction For example 0.99 for the p99.
+     * @return The latency in nanoseconds (the top of the matching bucket), or 0 if nothing was recorded.
+     */
+    public long percentile(double fraction) {
+        long total = getCount();
+        if (total == 0) {
+            return 0;
+        }
+        long wanted = (long) Math.ceil(total * fraction);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts.get(i);
+            if (seen >= wanted) {
+                return upperBoundOf(i);
+            }
+        }
+        return upperBoundOf(BUCKETS - 1);
+    }
+
+    /**
+     * Adds all the counts from another histogram into this one.
+     */
+    public void add(LatencyHistogram other) {
+        for (int i = 0; i < BUCKETS; i++) {
+            long c = other.counts.get(i);
+            if (c != 0) {
+                counts.addAndGet(i, c);
+            }
+        }
+    }
+
+    public void reset() {
+        for (int i = 0; i < BUCKETS; i++) {
+            counts.set(i, 0);
+        }
+    }
+
+    private static int bucketOf(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int magnitude = 63 - Long.numberOfLeadingZeros(value);
+        int sub = (int) (value >>> (magnitude - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return (magnitude - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + sub;
+    }
+
+    private static long upperBoundOf(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int magnitude = bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        long sub = bucket % SUB_BUCKETS;
+        long base = (SUB_BUCKETS + sub) << (magnitude - SUB_BUCKET_BITS);
+        return base + (1L << (magnitude - SUB_BUCKET_BITS)) - 1;
+    }
+}
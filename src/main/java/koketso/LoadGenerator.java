@@ -0,0 +1,353 @@
+package koketso;
+
+import java.io.File;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Synthetic load generator and soak test for UserManager, Message and MessageManager.
+ * It registers N fake users (valid '_' usernames and +27 numbers), then many threads run a
+ * mix of register, login, send, inbox and delete at a fixed target rate. Every interval it prints
+ * p50, p99 and p999 latency per operation, throughput, heap use and errors, so slowdowns and
+ * leaks show up over a long run.
+ *
+ * Latency is measured from the time an operation was supposed to start, not from when the
+ * thread got to it, so a stall is not hidden by the threads falling behind.
+ *
+ * Usage (all arguments are optional):
+ *   java koketso.LoadGenerator --users 1000 --threads 8 --rate 500 --duration 3600 --interval 10
+ *        --mix register=2,login=20,send=50,inbox=20,delete=8 --dir loadtest
+ * The --dir folder gets its own users.json and messages folder, so real data is never touched.
+ * Like a real client it only remembers the newest messages of each inbox
+ * (quickchat.load.inboxSize, 50 by default) and the newest ones it may delete
+ * (quickchat.load.deletableSize, 10000 by default), so its own memory stays flat during a soak.
+ */
+public class LoadGenerator {
+
+    enum Operation { REGISTER, LOGIN, SEND, INBOX, DELETE }
+
+    private static final String PASSWORD = "Passw0rd!";
+    private static final int INBOX_SIZE = Integer.getInteger("quickchat.load.inboxSize", 50);
+    private static final int DELETABLE_SIZE = Integer.getInteger("quickchat.load.deletableSize", 10_000);
+
+    private final int threads;
+    private final double rate;
+    private final long durationSeconds;
+    private final long intervalSeconds;
+    private final int[] mix = new int[Operation.values().length];
+    private int mixTotal;
+
+    private final UserManager userManager;
+    private final AtomicInteger nextUser = new AtomicInteger();
+    private final List<RegistrationLogin> users = new ArrayList<>();
+
+    // What a real client would remember: the inbox of each number and the messages it can delete
+    private final ConcurrentHashMap<String, RecentMessages> inboxes = new ConcurrentHashMap<>();
+    private final ArrayBlockingQueue<Message> deletable = new ArrayBlockingQueue<>(DELETABLE_SIZE);
+
+    private final LatencyHistogram[] intervalLatency = new LatencyHistogram[Operation.values().length];
+    private final AtomicLong[] intervalErrors = new AtomicLong[Operation.values().length];
+    private final AtomicLong totalOps = new AtomicLong();
+    private final AtomicLong totalErrors = new AtomicLong();
+
+    /**
+     * A ring of the newest messages of one inbox, the oldest one drops off when it is full.
+     */
+    static class RecentMessages {
+        private final ArrayDeque<Message> ring;
+        private final int capacity;
+
+        RecentMessages(int capacity) {
+            this.capacity = capacity;
+            this.ring = new ArrayDeque<>(capacity);
+        }
+
+        synchronized void add(Message message) {
+            if (ring.size() == capacity) {
+                ring.pollFirst();
+            }
+            ring.addLast(message);
+        }
+
+        synchronized boolean remove(Message message) {
+            return ring.remove(message);
+        }
+
+        synchronized Message[] toArray() {
+            return ring.toArray(new Message[0]);
+        }
+    }
+
+    public LoadGenerator(String workDir, int threads, double rate, long durationSeconds,
+                         long intervalSeconds, String mixSpec) {
+        this.threads = threads;
+        this.rate = rate;
+        this.durationSeconds = durationSeconds;
+        this.intervalSeconds = intervalSeconds;
+        parseMix(mixSpec);
+        new File(workDir).mkdirs();
+        this.userManager = new UserManager(new File(workDir, "users.json").getPath());
+        for (int i = 0; i < intervalLatency.length; i++) {
+            intervalLatency[i] = new LatencyHistogram();
+            intervalErrors[i] = new AtomicLong();
+        }
+    }
+
+    private void parseMix(String spec) {
+        for (String part : spec.split(",")) {
+            String[] kv = part.split("=");
+            Operation op = Operation.valueOf(kv[0].trim().toUpperCase());
+            mix[op.ordinal()] = Integer.parseInt(kv[1].trim());
+        }
+        for (int weight : mix) {
+            mixTotal += weight;
+        }
+        if (mixTotal <= 0) {
+            throw new IllegalArgumentException("The operation mix needs at least one positive weight");
+        }
+    }
+
+    /**
+     * Makes a valid username: at most five characters with an underscore.
+     */
+    static String userNameFor(int n) {
+        return "_" + Integer.toString(n, 36);
+    }
+
+    /**
+     * Makes a valid South African number from a user number.
+     */
+    static String cellFor(int n) {
+        return String.format("+27%09d", n);
+    }
+
+    /**
+     * Registers the starting population of users.
+     */
+    public void setUp(int userCount) {
+        for (RegistrationLogin user : userManager.getAllUsers()) {
+            users.add(user);
+        }
+        nextUser.set(users.size());
+        long start = System.nanoTime();
+        while (users.size() < userCount) {
+            RegistrationLogin user = registerNext();
+            if (user == null) {
+                break;
+            }
+            users.add(user);
+        }
+        System.out.printf("Set up %d users in %d ms%n", users.size(),
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+    }
+
+    private RegistrationLogin registerNext() {
+        int n = nextUser.getAndIncrement();
+        if (n >= 36 * 36 * 36 * 36) {
+            return null; // We have run out of four character usernames
+        }
+        RegistrationLogin user = new RegistrationLogin();
+        userManager.registerUser(user, userNameFor(n), PASSWORD, cellFor(n), "Load", "Tester");
+        return user.isRegistered() ? user : null;
+    }
+
+    /**
+     * Runs the load for the configured time and prints a report line every interval.
+     */
+    public void run() throws InterruptedException {
+        long start = System.nanoTime();
+        long end = start + TimeUnit.SECONDS.toNanos(durationSeconds);
+        // Each thread gets an equal share of the target rate
+        long periodNanos = (long) (threads * 1_000_000_000L / rate);
+
+        Thread[] workers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            long offset = periodNanos * t / threads;
+            workers[t] = new Thread(() -> work(start + offset, end, periodNanos), "load-" + t);
+            workers[t].setDaemon(true);
+            workers[t].start();
+        }
+
+        System.out.println("elapsed_s  ops/s  op        p50_us  p99_us  p999_us  errors  heap_mb");
+        long nextReport = start + TimeUnit.SECONDS.toNanos(intervalSeconds);
+        long lastOps = 0;
+        while (System.nanoTime() < end) {
+            long sleep = Math.min(nextReport, end) - System.nanoTime();
+            if (sleep > 0) {
+                TimeUnit.NANOSECONDS.sleep(sleep);
+            }
+            long now = System.nanoTime();
+            long ops = totalOps.get();
+            double seconds = (now - start) / 1e9;
+            double perSecond = (ops - lastOps) / (double) intervalSeconds;
+            lastOps = ops;
+            report(seconds, perSecond);
+            nextReport += TimeUnit.SECONDS.toNanos(intervalSeconds);
+        }
+
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        System.out.printf("Done: %d operations, %d errors%n", totalOps.get(), totalErrors.get());
+    }
+
+    private void report(double seconds, double perSecond) {
+        Runtime runtime = Runtime.getRuntime();
+        long heapMb = (runtime.totalMemory() - runtime.freeMemory()) / (1024 * 1024);
+        for (Operation op : Operation.values()) {
+            LatencyHistogram histogram = intervalLatency[op.ordinal()];
+            long count = histogram.getCount();
+            long errors = intervalErrors[op.ordinal()].getAndSet(0);
+            if (count == 0 && errors == 0) {
+                continue;
+            }
+            System.out.printf("%9.0f  %5.0f  %-8s  %6d  %6d  %7d  %6d  %7d%n", seconds, perSecond, op,
+                    histogram.percentile(0.50) / 1000, histogram.percentile(0.99) / 1000,
+                    histogram.percentile(0.999) / 1000, errors, heapMb);
+            histogram.reset();
+        }
+    }
+
+    private void work(long firstStart, long end, long periodNanos) {
+        long intended = firstStart;
+        while (intended < end) {
+            long wait = intended - System.nanoTime();
+            if (wait > 0) {
+                LockSupport.parkNanos(wait);
+            }
+            Operation op = pickOperation();
+            boolean ok;
+            try {
+                ok = execute(op);
+            } catch (RuntimeException e) {
+                ok = false;
+            }
+            intervalLatency[op.ordinal()].record(System.nanoTime() - intended);
+            totalOps.incrementAndGet();
+            if (!ok) {
+                intervalErrors[op.ordinal()].incrementAndGet();
+                totalErrors.incrementAndGet();
+            }
+            intended += periodNanos;
+        }
+    }
+
+    private Operation pickOperation() {
+        int roll = ThreadLocalRandom.current().nextInt(mixTotal);
+        for (Operation op : Operation.values()) {
+            roll -= mix[op.ordinal()];
+            if (roll < 0) {
+                return op;
+            }
+        }
+        return Operation.SEND;
+    }
+
+    private RegistrationLogin randomUser() {
+        synchronized (users) {
+            return users.get(ThreadLocalRandom.current().nextInt(users.size()));
+        }
+    }
+
+    private boolean execute(Operation op) {
+        switch (op) {
+            case REGISTER: {
+                RegistrationLogin user = registerNext();
+                if (user == null) {
+                    return false;
+                }
+                synchronized (users) {
+                    users.add(user);
+                }
+                return true;
+            }
+            case LOGIN: {
+                return userManager.getAuthenticator().login(randomUser().getUserName(), PASSWORD).isSuccess();
+            }
+            case SEND: {
+                Message message = new Message(randomUser().getCellPhoneNumber(),
+                        randomUser().getCellPhoneNumber(), "Load test message " + System.nanoTime());
+                if (!"Message sent successfully".equals(message.sentMessage())) {
+                    return false;
+                }
+                inboxes.computeIfAbsent(message.getRecipient(), k -> new RecentMessages(INBOX_SIZE)).add(message);
+                // When full the oldest one is forgotten, it just stays in the store
+                while (!deletable.offer(message)) {
+                    deletable.poll();
+                }
+                return true;
+            }
+            case INBOX: {
+                RecentMessages inbox = inboxes.get(randomUser().getCellPhoneNumber());
+                if (inbox == null) {
+                    return true;
+                }
+                // Same work as showInbox: mark everything delivered and read the newest one
+                Message newest = null;
+                for (Message msg : inbox.toArray()) {
+                    if (!msg.isReceived()) {
+                        MessageStore.getDefault().markDelivered(msg);
+                    }
+                    newest = msg;
+                }
+                if (newest != null) {
+                    MessageStore.getDefault().markRead(newest);
+                }
+                return true;
+            }
+            case DELETE: {
+                Message message = deletable.poll();
+                if (message == null) {
+                    return true;
+                }
+                RecentMessages inbox = inboxes.get(message.getRecipient());
+                if (inbox != null) {
+                    inbox.remove(message);
+                }
+                return MessageManager.deleteMessageFile(message.getId());
+            }
+            default:
+                return false;
+        }
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        int userCount = 1000;
+        int threads = 8;
+        double rate = 500;
+        long duration = 60;
+        long interval = 10;
+        String mix = "register=2,login=20,send=50,inbox=20,delete=8";
+        String dir = "loadtest";
+
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            switch (args[i]) {
+                case "--users": userCount = Integer.parseInt(args[i + 1]); break;
+                case "--threads": threads = Integer.parseInt(args[i + 1]); break;
+                case "--rate": rate = Double.parseDouble(args[i + 1]); break;
+                case "--duration": duration = Long.parseLong(args[i + 1]); break;
+                case "--interval": interval = Long.parseLong(args[i + 1]); break;
+                case "--mix": mix = args[i + 1]; break;
+                case "--dir": dir = args[i + 1]; break;
+                default: System.out.println("Unknown option " + args[i]); return;
+            }
+        }
+
+        // Messages have to go into the scratch folder too. This must be set before
+        // anything asks MessageManager for its folder.
+        System.setProperty("quickchat.messages.dir", new File(dir, "messages").getPath());
+        ReplicationLeader.startIfConfigured();
+
+        LoadGenerator generator = new LoadGenerator(dir, threads, rate, duration, interval, mix);
+        generator.setUp(userCount);
+        generator.run();
+    }
+}
@@ -0,0 +1,40 @@
+package koketso;
+
+/**
+ * The outcome of one login attempt. Each attempt gets its own result, so two people logging in
+ * to the same account at the same time can never see each other's outcome (that could happen
+ * with RegistrationLogin.loginUser(), which keeps the last outcome on the user).
+ */
+public final class LoginResult {
+    static final LoginResult FAILED = new LoginResult(null);
+
+    private final UserRecord user;
+
+    private LoginResult(UserRecord user) {
+        this.user = user;
+    }
+
+    static LoginResult success(UserRecord user) {
+        return new LoginResult(user);
+    }
+
+    public boolean isSuccess() {
+        return user != null;
+    }
+
+    /**
+     * The user that logged in, or null if the login failed.
+     */
+    public UserRecord getUser() {
+        return user;
+    }
+
+    /**
+     * The same text as RegistrationLogin.returnLoginStatus().
+     */
+    public String getStatusMessage() {
+        return user != null ?
+                String.format("Welcome %s %s,\nit is great to see you.", user.getFirstName(), user.getLastName()) :
+                "Username & Password do not match our records, please try again.";
+    }
+}
@@ -1,9 +1,8 @@
 package koketso;
 
 import org.json.simple.JSONObject;
-import java.io.File;
-import java.io.FileWriter;
-import java.io.IOException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class Message {
 
@@ -20,14 +19,22 @@ public class Message {
     private boolean isReceived;
     private boolean isRead;
 
-    private static int messageCounter = 0;
+    // When a stored message should be sent by the DeliveryScheduler (epoch millis, 0 = never)
+    private long sendAt;
+
+    // When the message was written and when it was sent (epoch millis, 0 = not known or not sent).
+    // The RetentionSweeper uses these to decide when a message is old enough to go.
+    private long createdAt;
+    private long sentAt;
+
+    private static final AtomicInteger messageCounter = new AtomicInteger();
     private static String lastSentMessage = "";
 
     /**
      * Constructor for creating a new message.
      */
     public Message(final String sender, final String recipient, final String payload) {
-        this.MESSAGE_ID = String.format("%010d", (long) (Math.random() * 10000000000L));
+        this.MESSAGE_ID = newMessageId();
         this.MESSAGE_SENDER = sender;
         this.MESSAGE_RECIPIENT = recipient;
         this.MESSAGE_PAYLOAD = payload;
@@ -36,6 +43,7 @@ public class Message {
         this.messageStatus = "Stored";
         this.isReceived = false; // A new message has not been received yet
         this.isRead = false;     // Or read yet
+        this.createdAt = System.currentTimeMillis();
     }
 
     /**
@@ -57,73 +65,198 @@ public class Message {
      * Tries to send the message. It does all the checks first.
      */
     public String sentMessage() {
-        // ... (validation checks remain the same)
-        if (!checkMessageID(MESSAGE_ID)) return "Failed to send message: Invalid message ID";
-        if (checkRecipientCell(MESSAGE_RECIPIENT) != 1) return "Failed to send message: Invalid recipient";
-        if (checkRecipientCell(MESSAGE_SENDER) != 1) return "Failed to send message: Invalid sender";
-        if (MESSAGE_PAYLOAD == null || MESSAGE_PAYLOAD.trim().isEmpty()) return "Failed to send message: Message content cannot be empty";
-        if (MESSAGE_PAYLOAD.length() > 250) return "Failed to send message: Payload too long";
-
-        messageCounter++;
-        this.MESSAGE_INDEX = messageCounter;
-        this.MESSAGE_HASH = createMessageHash(MESSAGE_ID, MESSAGE_INDEX, MESSAGE_PAYLOAD);
-        this.messageStatus = "Sent";
-        
-        lastSentMessage = "ID: " + MESSAGE_ID + ", To: " + MESSAGE_RECIPIENT + ", Message: " + MESSAGE_PAYLOAD;
-        
+        // Noisy senders and an overloaded disk are turned away before doing any work
+        SendRateLimiter.Decision decision = SendRateLimiter.getDefault().tryAcquire(getSender());
+        if (!decision.isAllowed()) return decision.getFailureMessage();
+        return sendWithoutLimit();
+    }
+
+    /**
+     * Sends the message, unless this sender already sent one with the same idempotency key a
+     * short while ago (see IdempotencyCache). A client that retries after a timeout passes the
+     * same key again and gets the first result back, without a second message being saved.
+     * @param idempotencyKey Any string the client picks for this send, or null for a normal send.
+     */
+    public String sentMessage(String idempotencyKey) {
+        return send(idempotencyKey).getText();
+    }
+
+    /**
+     * Like sentMessage(idempotencyKey), but gives back the whole result. This message is never
+     * saved when it is a retry, so the result's getMessage() is the one that was: that is where
+     * the ID, index and hash of the send are.
+     * @param idempotencyKey Any string the client picks for this send, or null for a normal send.
+     */
+    public SendResult send(String idempotencyKey) {
+        return IdempotencyCache.getDefault().sendMessage(getSender(), idempotencyKey, () -> {
+            String text = sentMessage();
+            return "Message sent successfully".equals(text) ? SendResult.sent(this) : SendResult.failed(this, text);
+        });
+    }
+
+    /**
+     * Sends the message without asking the rate limiter, for callers that already did.
+     */
+    String sendWithoutLimit() {
+        String failure = validate();
+        if (failure != null) return failure;
+
+        markSent(messageCounter.incrementAndGet());
         storeMessage(); // Save the message to a file after sending
+        afterSent();
         return "Message sent successfully";
     }
 
     /**
-     * Saves the message's details into a JSON file, including the new statuses.
+     * The bookkeeping after a message is saved: the last sent message and the analytics.
+     */
+    void afterSent() {
+        lastSentMessage = "ID: " + getId() + ", To: " + getRecipient() + ", Message: " + getPayload();
+        SendAnalytics.getDefault().record(this);
+    }
+
+    /**
+     * Runs the send checks without changing anything.
+     * @return The failure text, or null if the message can be sent.
+     */
+    String validate() {
+        // Goes through the getters so an off-heap view (see OffHeapMessageArena) is checked the same way
+        String payload = getPayload();
+        if (!checkMessageID(getId())) return "Failed to send message: Invalid message ID";
+        if (checkRecipientCell(getRecipient()) != 1) return "Failed to send message: Invalid recipient";
+        if (checkRecipientCell(getSender()) != 1) return "Failed to send message: Invalid sender";
+        if (payload == null || payload.trim().isEmpty()) return "Failed to send message: Message content cannot be empty";
+        if (payload.length() > 250) return "Failed to send message: Payload too long";
+        return null;
+    }
+
+    /**
+     * Gives the message its index and hash and marks it as sent. It does not save it.
+     */
+    void markSent(int index) {
+        this.MESSAGE_INDEX = index;
+        this.MESSAGE_HASH = createMessageHash(MESSAGE_ID, MESSAGE_INDEX, MESSAGE_PAYLOAD);
+        this.messageStatus = "Sent";
+        this.sentAt = System.currentTimeMillis();
+    }
+
+    /**
+     * Reserves a block of message indexes in one go, for bulk sends.
+     * @param count How many indexes are needed.
+     * @return The first index of the block.
+     */
+    static int reserveIndexes(int count) {
+        return messageCounter.addAndGet(count) - count + 1;
+    }
+
+    /**
+     * Makes sure the next index handed out is above the given one. The counter lives in memory
+     * only, so anything that adds to a store that already has messages should seed it first.
+     * @param highest The highest index already in use.
+     */
+    static void seedIndexes(int highest) {
+        messageCounter.accumulateAndGet(highest, Math::max);
+    }
+
+    /**
+     * Makes a new random 10 digit message ID.
+     */
+    static String newMessageId() {
+        // Same as String.format("%010d", n) without the formatter, this runs for every message
+        long n = ThreadLocalRandom.current().nextLong(10000000000L);
+        char[] digits = new char[10];
+        for (int i = 9; i >= 0; i--) {
+            digits[i] = (char) ('0' + n % 10);
+            n /= 10;
+        }
+        return new String(digits);
+    }
+
+    /**
+     * Saves the message's details in the message store, including the new statuses.
      */
-    @SuppressWarnings("unchecked")
     public void storeMessage() {
+        // The store decides where it goes, with the file store that is the flat folder or a shard
+        MessageStore.getDefault().put(this);
+    }
+
+    /**
+     * Builds the JSON record for this message. The same record is used for the
+     * loose message files and for the lines inside archive blocks.
+     */
+    @SuppressWarnings("unchecked")
+    JSONObject toJson() {
         JSONObject json = new JSONObject();
-        json.put("MESSAGE_ID", MESSAGE_ID);
-        json.put("MESSAGE_SENDER", MESSAGE_SENDER);
-        json.put("MESSAGE_RECIPIENT", MESSAGE_RECIPIENT);
-        json.put("MESSAGE_PAYLOAD", MESSAGE_PAYLOAD);
-        json.put("MESSAGE_INDEX", MESSAGE_INDEX);
-        json.put("MESSAGE_HASH", MESSAGE_HASH);
-        json.put("MESSAGE_STATUS", messageStatus);
-        json.put("IS_RECEIVED", isReceived); // Save the received status
-        json.put("IS_READ", isRead);         // Save the read status
-
-        File directory = new File("messages");
-        if (!directory.exists()) {
-            directory.mkdirs();
+        json.put("MESSAGE_ID", getId());
+        json.put("MESSAGE_SENDER", getSender());
+        json.put("MESSAGE_RECIPIENT", getRecipient());
+        json.put("MESSAGE_PAYLOAD", getPayload());
+        json.put("MESSAGE_INDEX", getIndex());
+        json.put("MESSAGE_HASH", getHash());
+        json.put("MESSAGE_STATUS", getStatus());
+        json.put("IS_RECEIVED", isReceived()); // Save the received status
+        json.put("IS_READ", isRead());         // Save the read status
+        if (getSendAt() > 0) {
+            json.put("SEND_AT", getSendAt());
         }
-
-        String fileName = "messages/message_" + MESSAGE_ID + ".json";
-        try (FileWriter file = new FileWriter(fileName)) {
-            file.write(json.toJSONString());
-        } catch (IOException e) {
-            System.err.println("Error trying to save message file: " + e.getMessage());
+        if (getCreatedAt() > 0) {
+            json.put("CREATED_AT", getCreatedAt());
+        }
+        if (getSentAt() > 0) {
+            json.put("SENT_AT", getSentAt());
         }
+        return json;
     }
     
     // --- Other methods like checkMessageID, checkRecipientCell, etc. remain the same ---
 
     public boolean checkMessageID(final String id) {
         if (id == null || id.length() != 10) return false;
-        for (char c : id.toCharArray()) if (!Character.isDigit(c)) return false;
+        for (int i = 0; i < id.length(); i++) if (!Character.isDigit(id.charAt(i))) return false;
         return true;
     }
 
     public int checkRecipientCell(final String cellNumber) {
-        if (cellNumber != null && cellNumber.matches("^\\+27\\d{9}$")) return 1;
-        return 403;
+        return isCellNumber(cellNumber) ? 1 : 403;
+    }
+
+    /**
+     * Whether a number is "+27" followed by exactly 9 digits. Does the same as matching
+     * "^\\+27\\d{9}$" but without compiling a regex on every call.
+     */
+    static boolean isCellNumber(final String cellNumber) {
+        if (cellNumber == null || cellNumber.length() != 12 || !cellNumber.startsWith("+27")) return false;
+        for (int i = 3; i < 12; i++) {
+            char c = cellNumber.charAt(i);
+            if (c < '0' || c > '9') return false;
+        }
+        return true;
     }
 
     public String createMessageHash(final String id, int index, final String payload) {
         String firstTwo = (id != null && id.length() >= 2) ? id.substring(0, 2) : "XX";
-        String[] words = payload.trim().split("\\s+");
-        String firstWord = words.length > 0 ? words[0] : "";
-        String lastWord = words.length > 1 ? words[words.length - 1] : firstWord;
-        String combinedWords = firstWord.equalsIgnoreCase(lastWord) ? firstWord : firstWord + lastWord;
-        return (firstTwo + ":" + index + ":" + combinedWords).toUpperCase();
+        // The first and last words, found by scanning instead of splitting the whole payload.
+        // Word breaks are the same characters as the old split("\\s+").
+        String text = payload.trim();
+        int firstEnd = 0;
+        while (firstEnd < text.length() && !isSpace(text.charAt(firstEnd))) firstEnd++;
+        int lastStart = text.length();
+        while (lastStart > firstEnd && !isSpace(text.charAt(lastStart - 1))) lastStart--;
+
+        StringBuilder hash = new StringBuilder(firstTwo.length() + 12 + firstEnd + text.length() - lastStart);
+        hash.append(firstTwo).append(':').append(index).append(':').append(text, 0, firstEnd);
+        // Like before, the last word is left off when there is one word or it repeats the first one
+        boolean sameWord = lastStart <= firstEnd
+                || (text.length() - lastStart == firstEnd && text.regionMatches(true, 0, text, lastStart, firstEnd));
+        if (!sameWord) {
+            hash.append(text, lastStart, text.length());
+        }
+        return hash.toString().toUpperCase();
+    }
+
+    // The characters \s matches in a Java regex
+    private static boolean isSpace(char c) {
+        return c == ' ' || c == '\t' || c == '\n' || c == '\u000B' || c == '\f' || c == '\r';
     }
     
     // --- Getter and Setter Methods ---
@@ -133,11 +266,27 @@ public class Message {
     public String getRecipient() { return MESSAGE_RECIPIENT; }
     public String getPayload() { return MESSAGE_PAYLOAD; }
     public String getHash() { return MESSAGE_HASH; }
+    public int getIndex() { return MESSAGE_INDEX; }
     public String getStatus() { return messageStatus; }
     public boolean isReceived() { return isReceived; }
     public boolean isRead() { return isRead; }
+    public long getSendAt() { return sendAt; }
+    public long getCreatedAt() { return createdAt; }
+    public long getSentAt() { return sentAt; }
+
+    /**
+     * The time retention counts from: when it was sent, or when it was written if it never was.
+     * A scheduled message counts from its send-at time, so it can't expire before it goes out.
+     * @return Epoch millis, or 0 if the message has no times at all.
+     */
+    public long getTimestamp() {
+        return getSentAt() > 0 ? getSentAt() : Math.max(getCreatedAt(), getSendAt());
+    }
 
     public void setStatus(String status) { this.messageStatus = status; }
     public void setReceived(boolean received) { this.isReceived = received; }
     public void setRead(boolean read) { this.isRead = read; }
+    public void setSendAt(long sendAt) { this.sendAt = sendAt; }
+    public void setCreatedAt(long createdAt) { this.createdAt = createdAt; }
+    public void setSentAt(long sentAt) { this.sentAt = sentAt; }
 }
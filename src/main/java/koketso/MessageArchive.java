@@ -0,0 +1,520 @@
+package koketso;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * The cold tier for messages. Old messages that have already been read are
+ * moved out of the loose 'messages' folder into Deflate compressed blocks.
+ * Each block holds many records (one JSON object per line) and a small index
+ * file remembers which block every archived message ID lives in, and which blocks
+ * hold messages to or from each number.
+ *
+ * Archived messages are not part of the normal load (see FileMessageStore.loadInto), they are
+ * read when someone asks for them: by ID, or all of one number's messages for an inbox or report.
+ */
+public class MessageArchive {
+    private static final String ARCHIVE_DIR = "archive";
+    private static final String INDEX_FILE = "index.json";
+    private static final int BLOCK_SIZE = Integer.getInteger("quickchat.archive.blockSize", 500);
+    private static final long MAX_AGE_DAYS = Long.getLong("quickchat.archive.ageDays", 30L);
+
+    private static final ConcurrentHashMap<String, MessageArchive> archives = new ConcurrentHashMap<>();
+
+    private final File messagesDir;
+    private final File archiveDir;
+    private final HashMap<String, Integer> blockForId = new HashMap<>();
+    // Which blocks have messages to or from a number. Blocks are never taken out, get() still checks blockForId.
+    private final HashMap<String, Set<Integer>> blocksForNumber = new HashMap<>();
+    // false for an index saved before blocksForNumber existed, it is built from the blocks when first needed
+    private boolean numbersIndexed = true;
+    private int nextBlock = 1;
+
+    public MessageArchive(File messagesDir) {
+        this.messagesDir = messagesDir;
+        this.archiveDir = new File(messagesDir, ARCHIVE_DIR);
+        loadIndex();
+    }
+
+    /**
+     * Gives us the archive that sits under the normal 'messages' folder.
+     */
+    public static MessageArchive getDefault() {
+        return of(MessageManager.getMessagesDir());
+    }
+
+    /**
+     * Gives us the archive for any messages folder, one instance per folder.
+     */
+    public static MessageArchive of(File messagesDir) {
+        return archives.computeIfAbsent(messagesDir.getAbsolutePath(), path -> new MessageArchive(messagesDir));
+    }
+
+    /**
+     * Starts a background job that moves old read messages into the archive once an hour.
+     * The thread is a daemon so it never keeps the app open.
+     */
+    public static ScheduledExecutorService startTieringJob() {
+        ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "message-archive-tiering");
+            t.setDaemon(true);
+            return t;
+        });
+        scheduler.scheduleWithFixedDelay(() -> {
+            int moved = getDefault().archiveOldReadMessages(TimeUnit.DAYS.toMillis(MAX_AGE_DAYS));
+            if (moved > 0) {
+                System.out.println("Archived " + moved + " old read messages.");
+            }
+        }, 1, 60, TimeUnit.MINUTES);
+        return scheduler;
+    }
+
+    // A loose file on its way into a block: the text it had when it was read, and the record made from it
+    private static class Candidate {
+        final File file;
+        final String text;
+        final JSONObject record;
+
+        Candidate(File file, String text, JSONObject record) {
+            this.file = file;
+            this.text = text;
+            this.record = record;
+        }
+
+        String id() {
+            return (String) record.get("MESSAGE_ID");
+        }
+    }
+
+    /**
+     * Moves every loose message that is read and older than the given age into new archive blocks.
+     * The block and the index are written before the loose files are removed, so a crash half way
+     * through only leaves a duplicate, and the loose copy wins when loading.
+     * @param maxAgeMillis How old (by file time) a read message must be before it is archived.
+     * @return How many messages were archived.
+     */
+    public int archiveOldReadMessages(long maxAgeMillis) {
+        ArrayList<Candidate> moved = new ArrayList<>();
+        synchronized (this) {
+            List<File> files = MessageLayout.of(messagesDir).listMessageFiles();
+            long cutoff = System.currentTimeMillis() - maxAgeMillis;
+            ReceiptLog receiptLog = ReceiptLog.of(messagesDir);
+            JSONParser parser = new JSONParser();
+            ArrayList<Candidate> batch = new ArrayList<>();
+
+            for (File file : files) {
+                if (file.lastModified() > cutoff) {
+                    continue;
+                }
+                Candidate candidate = readForArchive(file, parser, receiptLog);
+                if (candidate == null || !Boolean.TRUE.equals(candidate.record.get("IS_READ"))) {
+                    continue;
+                }
+                batch.add(candidate);
+                if (batch.size() >= BLOCK_SIZE) {
+                    moved.addAll(writeBlock(batch));
+                    batch.clear();
+                }
+            }
+            if (!batch.isEmpty()) {
+                moved.addAll(writeBlock(batch));
+            }
+        }
+        return deleteLooseCopies(moved);
+    }
+
+    /**
+     * Moves the given messages into new archive blocks whatever their age or status, for the
+     * RetentionSweeper. IDs without a loose file (already archived, or gone) are skipped.
+     * @return How many messages were archived.
+     */
+    public int archiveMessages(Collection<String> messageIds) {
+        ArrayList<Candidate> moved = new ArrayList<>();
+        synchronized (this) {
+            MessageLayout layout = MessageLayout.of(messagesDir);
+            ReceiptLog receiptLog = ReceiptLog.of(messagesDir);
+            JSONParser parser = new JSONParser();
+            ArrayList<Candidate> batch = new ArrayList<>();
+
+            for (String messageId : messageIds) {
+                File file = layout.findFile(messageId);
+                Candidate candidate = file == null ? null : readForArchive(file, parser, receiptLog);
+                if (candidate == null) {
+                    continue;
+                }
+                batch.add(candidate);
+                if (batch.size() >= BLOCK_SIZE) {
+                    moved.addAll(writeBlock(batch));
+                    batch.clear();
+                }
+            }
+            if (!batch.isEmpty()) {
+                moved.addAll(writeBlock(batch));
+            }
+        }
+        return deleteLooseCopies(moved);
+    }
+
+    /**
+     * Reads a loose file into the record that goes in a block, or null if it can't be read.
+     */
+    @SuppressWarnings("unchecked")
+    private Candidate readForArchive(File file, JSONParser parser, ReceiptLog receiptLog) {
+        try {
+            String text = new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8);
+            JSONObject json = (JSONObject) parser.parse(text);
+            // The file may be out of date, the receipt log knows if it was delivered or read since
+            int receipts = receiptLog.flagsOf((String) json.get("MESSAGE_ID"));
+            if ((receipts & ReceiptLog.DELIVERED) != 0) {
+                json.put("IS_RECEIVED", true);
+            }
+            if ((receipts & ReceiptLog.READ) != 0) {
+                json.put("IS_READ", true);
+            }
+            // Blocks hold the full text, compression already takes care of repeats inside a block
+            if (json.containsKey(PayloadStore.PAYLOAD_REF)) {
+                PayloadStore.of(messagesDir).inline(json);
+            }
+            return new Candidate(file, text, json);
+        } catch (IOException | ParseException | ClassCastException e) {
+            System.err.println("Skipping " + file.getName() + " while archiving: " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Writes one block and adds it to the index. The index only changes in memory once the new
+     * one is on disk, so a failed save leaves nothing pointing at the block.
+     * @return The candidates that are in the archive now, none if the block could not be saved.
+     */
+    private List<Candidate> writeBlock(List<Candidate> candidates) {
+        archiveDir.mkdirs();
+        int block = nextBlock;
+        File blockFile = blockFile(block);
+        try (Writer out = new OutputStreamWriter(new DeflaterOutputStream(new FileOutputStream(blockFile),
+                new Deflater(Deflater.BEST_COMPRESSION)), StandardCharsets.UTF_8)) {
+            for (Candidate candidate : candidates) {
+                out.write(candidate.record.toJSONString());
+                out.write('\n');
+            }
+        } catch (IOException e) {
+            System.err.println("Could not write archive block " + blockFile.getName() + ": " + e.getMessage());
+            blockFile.delete();
+            return List.of();
+        }
+
+        HashMap<String, Integer> added = new HashMap<>();
+        TreeSet<String> addedNumbers = new TreeSet<>();
+        for (Candidate candidate : candidates) {
+            added.put(candidate.id(), block);
+            for (Object number : new Object[] {candidate.record.get("MESSAGE_SENDER"), candidate.record.get("MESSAGE_RECIPIENT")}) {
+                if (number instanceof String) {
+                    addedNumbers.add((String) number);
+                }
+            }
+        }
+        if (!saveIndex(block + 1, added, addedNumbers, block)) {
+            blockFile.delete();
+            return List.of();
+        }
+        nextBlock = block + 1;
+        blockForId.putAll(added);
+        for (Candidate candidate : candidates) {
+            addNumbers(candidate.record, block);
+        }
+        return new ArrayList<>(candidates);
+    }
+
+    /**
+     * Deletes the loose files that went into blocks, each under its message's write lock, and only
+     * if it still holds what was archived. A file that was rewritten in the meantime is kept and the
+     * archived copy, which is out of date, is taken out of the index instead.
+     * This runs outside the archive's lock, because a delete takes the write lock first and then this one.
+     * @return How many messages were moved.
+     */
+    private int deleteLooseCopies(List<Candidate> moved) {
+        int archived = 0;
+        for (Candidate candidate : moved) {
+            String messageId = candidate.id();
+            synchronized (MessageManager.writeLockFor(messageId)) {
+                if (stillHolds(candidate)) {
+                    candidate.file.delete();
+                    MessageManager.releasePayload(messagesDir, messageId);
+                    archived++;
+                    continue;
+                }
+            }
+            // Deleted or rewritten since it was read
+            remove(messageId);
+        }
+        return archived;
+    }
+
+    private static boolean stillHolds(Candidate candidate) {
+        try {
+            return candidate.text.equals(new String(Files.readAllBytes(candidate.file.toPath()), StandardCharsets.UTF_8));
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Reads every message that is still listed in the index.
+     * Each block is only inflated once no matter how many messages it holds.
+     */
+    public synchronized List<Message> loadAll() {
+        ArrayList<Message> messages = new ArrayList<>();
+        forEach(messages::add);
+        return messages;
+    }
+
+    /**
+     * Hands every archived message to the visitor, one block at a time, so only one block
+     * is ever in memory. The archive is only locked while a block is read, not for the whole walk.
+     */
+    public void forEach(Consumer<Message> visitor) {
+        TreeSet<Integer> blocks;
+        synchronized (this) {
+            blocks = new TreeSet<>(blockForId.values());
+        }
+        for (Integer block : blocks) {
+            ArrayList<Message> live = new ArrayList<>();
+            synchronized (this) {
+                File blockFile = blockFile(block);
+                for (JSONObject record : readBlock(block)) {
+                    // Deleted messages stay inside the block, the index decides what is live
+                    if (block.equals(blockForId.get((String) record.get("MESSAGE_ID")))) {
+                        live.add(toMessage(record, blockFile));
+                    }
+                }
+            }
+            live.forEach(visitor);
+        }
+    }
+
+    /**
+     * Reads the archived messages sent to or from one number. Only the blocks that hold
+     * that number are inflated.
+     * @param cellNumber The sender or recipient.
+     * @return The messages, oldest block first.
+     */
+    public synchronized List<Message> loadFor(String cellNumber) {
+        indexNumbers();
+        ArrayList<Message> messages = new ArrayList<>();
+        Set<Integer> blocks = blocksForNumber.get(cellNumber);
+        if (blocks == null) {
+            return messages;
+        }
+        for (Integer block : new TreeSet<>(blocks)) {
+            File blockFile = blockFile(block);
+            for (JSONObject record : readBlock(block)) {
+                if (block.equals(blockForId.get((String) record.get("MESSAGE_ID")))
+                        && (cellNumber.equals(record.get("MESSAGE_SENDER")) || cellNumber.equals(record.get("MESSAGE_RECIPIENT")))) {
+                    messages.add(toMessage(record, blockFile));
+                }
+            }
+        }
+        return messages;
+    }
+
+    /**
+     * Looks up a single archived message through the index.
+     * @param messageId The ID of the message.
+     * @return The message, or null if it is not in the archive.
+     */
+    public synchronized Message get(String messageId) {
+        Integer block = blockForId.get(messageId);
+        if (block == null) {
+            return null;
+        }
+        for (JSONObject record : readBlock(block)) {
+            if (messageId.equals(record.get("MESSAGE_ID"))) {
+                return toMessage(record, blockFile(block));
+            }
+        }
+        return null;
+    }
+
+    private static Message toMessage(JSONObject record, File blockFile) {
+        Message message = MessageManager.fromJson(record);
+        if (message.getTimestamp() == 0) {
+            // Saved before messages had timestamps, like a loose file the block's file time is the best we have
+            message.setCreatedAt(blockFile.lastModified());
+        }
+        return message;
+    }
+
+    private void addNumbers(JSONObject record, int block) {
+        for (Object number : new Object[] {record.get("MESSAGE_SENDER"), record.get("MESSAGE_RECIPIENT")}) {
+            if (number instanceof String) {
+                blocksForNumber.computeIfAbsent((String) number, n -> new TreeSet<>()).add(block);
+            }
+        }
+    }
+
+    // Builds blocksForNumber for an archive made before it existed, reading every block once
+    private void indexNumbers() {
+        if (numbersIndexed) {
+            return;
+        }
+        for (Integer block : new TreeSet<>(blockForId.values())) {
+            for (JSONObject record : readBlock(block)) {
+                addNumbers(record, block);
+            }
+        }
+        numbersIndexed = true;
+        saveIndex();
+    }
+
+    /**
+     * Takes a message out of the archive index. The bytes stay in the block until it is rewritten.
+     * @return true if the message was in the archive.
+     */
+    public synchronized boolean remove(String messageId) {
+        if (blockForId.remove(messageId) == null) {
+            return false;
+        }
+        return saveIndex();
+    }
+
+    /**
+     * Takes many messages out of the archive index, saving the index once.
+     * @return The IDs that were in the archive.
+     */
+    public synchronized List<String> removeAll(Collection<String> messageIds) {
+        ArrayList<String> removed = new ArrayList<>();
+        for (String messageId : messageIds) {
+            if (blockForId.remove(messageId) != null) {
+                removed.add(messageId);
+            }
+        }
+        if (!removed.isEmpty()) {
+            saveIndex();
+        }
+        return removed;
+    }
+
+    public synchronized boolean contains(String messageId) {
+        return blockForId.containsKey(messageId);
+    }
+
+    public synchronized int size() {
+        return blockForId.size();
+    }
+
+    private List<JSONObject> readBlock(int block) {
+        ArrayList<JSONObject> records = new ArrayList<>();
+        JSONParser parser = new JSONParser();
+        File blockFile = blockFile(block);
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(
+                new InflaterInputStream(new FileInputStream(blockFile)), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (!line.isEmpty()) {
+                    records.add((JSONObject) parser.parse(line));
+                }
+            }
+        } catch (IOException | ParseException e) {
+            System.err.println("Problem reading archive block " + blockFile.getName() + ": " + e.getMessage());
+        }
+        return records;
+    }
+
+    private File blockFile(int block) {
+        return new File(archiveDir, String.format("block_%06d.dfl", block));
+    }
+
+    @SuppressWarnings("unchecked")
+    private void loadIndex() {
+        File indexFile = new File(archiveDir, INDEX_FILE);
+        if (!indexFile.exists()) {
+            return;
+        }
+        try (FileReader reader = new FileReader(indexFile)) {
+            JSONObject index = (JSONObject) new JSONParser().parse(reader);
+            nextBlock = (int) (long) (Long) index.getOrDefault("nextBlock", 1L);
+            JSONObject entries = (JSONObject) index.get("entries");
+            if (entries != null) {
+                for (Object entry : entries.entrySet()) {
+                    Map.Entry<?, ?> e = (Map.Entry<?, ?>) entry;
+                    blockForId.put((String) e.getKey(), (int) (long) (Long) e.getValue());
+                }
+            }
+            JSONObject numbers = (JSONObject) index.get("numbers");
+            if (numbers != null) {
+                for (Object entry : numbers.entrySet()) {
+                    Map.Entry<?, ?> e = (Map.Entry<?, ?>) entry;
+                    TreeSet<Integer> blocks = new TreeSet<>();
+                    for (Object block : (JSONArray) e.getValue()) {
+                        blocks.add((int) (long) (Long) block);
+                    }
+                    blocksForNumber.put((String) e.getKey(), blocks);
+                }
+            } else {
+                numbersIndexed = blockForId.isEmpty();
+            }
+        } catch (IOException | ParseException | ClassCastException e) {
+            System.err.println("Problem reading archive index: " + e.getMessage());
+        }
+    }
+
+    private boolean saveIndex() {
+        return saveIndex(nextBlock, Map.of(), Set.of(), -1);
+    }
+
+    // Saves the index as it would be with a new block holding the added entries and numbers,
+    // without changing the one in memory
+    @SuppressWarnings("unchecked")
+    private boolean saveIndex(int nextBlock, Map<String, Integer> added, Set<String> addedNumbers, int block) {
+        archiveDir.mkdirs();
+        JSONObject index = new JSONObject();
+        index.put("nextBlock", nextBlock);
+        JSONObject entries = new JSONObject();
+        entries.putAll(blockForId);
+        entries.putAll(added);
+        index.put("entries", entries);
+        if (numbersIndexed) {
+            JSONObject numbers = new JSONObject();
+            for (Map.Entry<String, Set<Integer>> e : blocksForNumber.entrySet()) {
+                JSONArray blocks = new JSONArray();
+                blocks.addAll(e.getValue());
+                numbers.put(e.getKey(), blocks);
+            }
+            for (String number : addedNumbers) {
+                JSONArray blocks = (JSONArray) numbers.computeIfAbsent(number, n -> new JSONArray());
+                blocks.add(block);
+            }
+            index.put("numbers", numbers);
+        }
+
+        return MessageManager.writeJsonAtomically(new File(archiveDir, INDEX_FILE), index);
+    }
+}
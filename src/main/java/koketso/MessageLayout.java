@@ -0,0 +1,252 @@
+package koketso;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Decides where the loose message files live on disk.
+ * The old layout keeps every file directly in 'messages'. The sharded layout puts
+ * each file in 'messages/shards/XX' where XX is the first two digits of the message ID,
+ * so no single folder gets too big. A small manifest.json records the layout and the
+ * shards that exist, so loading never has to list the shards folder itself.
+ * While a migration is running both layouts are read, and new writes go to the shards.
+ */
+public class MessageLayout {
+    private static final String MANIFEST_FILE = "manifest.json";
+    private static final String SHARDS_DIR = "shards";
+    private static final int PREFIX_LENGTH = 2;
+
+    static final String FLAT = "flat";
+    static final String MIGRATING = "migrating";
+    static final String SHARDED = "sharded";
+
+    private static final ConcurrentHashMap<String, MessageLayout> layouts = new ConcurrentHashMap<>();
+
+    private final File messagesDir;
+    private final File shardsDir;
+    private final TreeSet<String> shards = new TreeSet<>();
+    private volatile String layout = FLAT;
+
+    private MessageLayout(File messagesDir) {
+        this.messagesDir = messagesDir;
+        this.shardsDir = new File(messagesDir, SHARDS_DIR);
+        loadManifest();
+    }
+
+    /**
+     * Gives us the layout for a messages folder. There is only ever one per folder,
+     * so everybody sees the same manifest.
+     */
+    public static MessageLayout of(File messagesDir) {
+        return layouts.computeIfAbsent(messagesDir.getAbsolutePath(), path -> new MessageLayout(messagesDir));
+    }
+
+    public static MessageLayout getDefault() {
+        return of(MessageManager.getMessagesDir());
+    }
+
+    public File getMessagesDir() {
+        return messagesDir;
+    }
+
+    public String getLayout() {
+        return layout;
+    }
+
+    public synchronized List<String> getShards() {
+        return new ArrayList<>(shards);
+    }
+
+    /**
+     * The file a message should be written to. Once a migration has started,
+     * all writes go to the sharded location.
+     */
+    public File fileForWrite(String messageId) {
+        if (FLAT.equals(layout)) {
+            return flatFile(messageId);
+        }
+        String shard = shardOf(messageId);
+        ensureShard(shard);
+        return new File(new File(shardsDir, shard), fileName(messageId));
+    }
+
+    /**
+     * Finds the current file for a message, checking the shard first and then the flat folder.
+     * @return The file, or null if the message has no loose file.
+     */
+    public File findFile(String messageId) {
+        if (!FLAT.equals(layout)) {
+            File sharded = new File(new File(shardsDir, shardOf(messageId)), fileName(messageId));
+            if (sharded.exists()) {
+                return sharded;
+            }
+        }
+        File flat = flatFile(messageId);
+        return flat.exists() ? flat : null;
+    }
+
+    /**
+     * Deletes every loose copy of a message, in both layouts.
+     * @return true if at least one file was deleted.
+     */
+    public boolean delete(String messageId) {
+        boolean deleted = false;
+        if (!FLAT.equals(layout)) {
+            File sharded = new File(new File(shardsDir, shardOf(messageId)), fileName(messageId));
+            deleted = sharded.exists() && sharded.delete();
+        }
+        File flat = flatFile(messageId);
+        if (flat.exists()) {
+            deleted = flat.delete() || deleted;
+        }
+        return deleted;
+    }
+
+    /**
+     * Lists every loose message file. Flat files come first and sharded files after,
+     * so when the same ID shows up twice during a migration the sharded (newer) copy is seen last.
+     */
+    public List<File> listMessageFiles() {
+        ArrayList<File> result = new ArrayList<>();
+        File[] flat = messagesDir.listFiles((dir, name) -> name.startsWith("message_") && name.endsWith(".json"));
+        if (flat != null) {
+            for (File file : flat) {
+                result.add(file);
+            }
+        }
+        if (!FLAT.equals(layout)) {
+            for (String shard : getShards()) {
+                File[] files = new File(shardsDir, shard).listFiles((dir, name) -> name.endsWith(".json"));
+                if (files != null) {
+                    for (File file : files) {
+                        result.add(file);
+                    }
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Moves every flat message file into its shard while the app keeps running.
+     * The manifest is switched to 'migrating' first so new writes already go to the shards.
+     * A flat file whose shard copy already exists is older, so it is simply removed.
+     * @return How many files were moved.
+     */
+    public int migrateToShards() {
+        synchronized (this) {
+            if (SHARDED.equals(layout)) {
+                return 0;
+            }
+            layout = MIGRATING;
+            saveManifest();
+        }
+
+        int moved = 0;
+        File[] flat = messagesDir.listFiles((dir, name) -> name.startsWith("message_") && name.endsWith(".json"));
+        if (flat != null) {
+            for (File file : flat) {
+                String id = file.getName().substring("message_".length(), file.getName().length() - ".json".length());
+                File target = fileForWrite(id);
+                try {
+                    // A hard link fails if the target exists, so a write that already landed in the
+                    // shard (and is newer) is never overwritten. A plain rename would replace it.
+                    Files.createLink(target.toPath(), file.toPath());
+                    file.delete();
+                    moved++;
+                } catch (FileAlreadyExistsException e) {
+                    file.delete();
+                } catch (IOException | UnsupportedOperationException e) {
+                    System.err.println("Could not move " + file.getName() + " into its shard: " + e.getMessage());
+                }
+            }
+        }
+
+        synchronized (this) {
+            layout = SHARDED;
+            saveManifest();
+        }
+        return moved;
+    }
+
+    /**
+     * Runs the migration on a background thread so the menus stay usable.
+     */
+    public Thread startMigration() {
+        Thread thread = new Thread(() -> {
+            int moved = migrateToShards();
+            System.out.println("Moved " + moved + " message files into shards.");
+        }, "message-shard-migration");
+        thread.setDaemon(true);
+        thread.start();
+        return thread;
+    }
+
+    static String shardOf(String messageId) {
+        if (messageId == null || messageId.length() < PREFIX_LENGTH) {
+            return "XX";
+        }
+        return messageId.substring(0, PREFIX_LENGTH);
+    }
+
+    private File flatFile(String messageId) {
+        return new File(messagesDir, fileName(messageId));
+    }
+
+    private static String fileName(String messageId) {
+        return "message_" + messageId + ".json";
+    }
+
+    private void ensureShard(String shard) {
+        synchronized (this) {
+            if (shards.contains(shard)) {
+                return;
+            }
+            new File(shardsDir, shard).mkdirs();
+            shards.add(shard);
+            saveManifest();
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private void loadManifest() {
+        File manifest = new File(messagesDir, MANIFEST_FILE);
+        if (!manifest.exists()) {
+            return;
+        }
+        try (FileReader reader = new FileReader(manifest)) {
+            JSONObject json = (JSONObject) new JSONParser().parse(reader);
+            layout = (String) json.getOrDefault("layout", FLAT);
+            JSONArray shardList = (JSONArray) json.get("shards");
+            if (shardList != null) {
+                for (Object shard : shardList) {
+                    shards.add((String) shard);
+                }
+            }
+        } catch (IOException | ParseException | ClassCastException e) {
+            System.err.println("Problem reading message manifest: " + e.getMessage());
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private void saveManifest() {
+        messagesDir.mkdirs();
+        JSONObject json = new JSONObject();
+        json.put("layout", layout);
+        JSONArray shardList = new JSONArray();
+        shardList.addAll(shards);
+        json.put("shards", shardList);
+        MessageManager.writeJsonAtomically(new File(messagesDir, MANIFEST_FILE), json);
+    }
+}
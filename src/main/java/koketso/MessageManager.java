@@ -1,68 +1,125 @@
 package koketso;
 
+import org.json.simple.JSONAware;
 import org.json.simple.JSONObject;
-import org.json.simple.parser.JSONParser;
-import org.json.simple.parser.ParseException;
 import java.io.File;
-import java.io.FileReader;
+import java.io.FileWriter;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class MessageManager {
-    private static final String MESSAGES_DIR = "messages";
+    private static final String MESSAGES_DIR = System.getProperty("quickchat.messages.dir", "messages");
+    private static final AtomicInteger inFlightWrites = new AtomicInteger();
+    // Writes to the same ID take the same lock, so the change log and the files see them in the same order
+    private static final Object[] writeLocks = new Object[64];
+    static {
+        for (int i = 0; i < writeLocks.length; i++) {
+            writeLocks[i] = new Object();
+        }
+    }
+    private static final boolean OFF_HEAP = Boolean.getBoolean("quickchat.messages.offHeap");
+
+    /**
+     * The folder all messages are kept in. It is 'messages' unless the
+     * quickchat.messages.dir system property points somewhere else.
+     */
+    public static File getMessagesDir() {
+        return new File(MESSAGES_DIR);
+    }
 
     /**
-     * This method reads all the .json files from the 'messages' folder
-     * and loads them into a list.
+     * This method reads all messages from the store (see MessageStore) into a list.
+     * With the file store that is every message file in the 'messages' folder. Archived
+     * messages are left out, messagesFor() adds them back for one number.
      */
     public static ArrayList<Message> loadAllMessages() {
-        ArrayList<Message> allMessages = new ArrayList<>();
-        JSONParser parser = new JSONParser();
-        File directory = new File(MESSAGES_DIR);
+        return MessageStore.getDefault().loadInto(new ArrayList<>());
+    }
 
-        if (!directory.exists()) {
-            directory.mkdirs();
-            return allMessages;
-        }
+    /**
+     * Same as loadAllMessages(), but the messages are kept off the heap (see OffHeapMessageArena).
+     * The store's TimeBucketIndex still gets a heap entry per message.
+     */
+    public static OffHeapMessageList loadAllMessagesOffHeap() {
+        return MessageStore.getDefault().loadInto(new OffHeapMessageList());
+    }
 
-        File[] files = directory.listFiles((dir, name) -> name.endsWith(".json"));
-
-        if (files != null) {
-            for (File file : files) {
-                try (FileReader reader = new FileReader(file)) {
-                    JSONObject jsonMessage = (JSONObject) parser.parse(reader);
-
-                    String id = (String) jsonMessage.get("MESSAGE_ID");
-                    String sender = (String) jsonMessage.get("MESSAGE_SENDER");
-                    String recipient = (String) jsonMessage.get("MESSAGE_RECIPIENT");
-                    String payload = (String) jsonMessage.get("MESSAGE_PAYLOAD");
-                    long indexLong = (Long) jsonMessage.getOrDefault("MESSAGE_INDEX", 0L);
-                    int index = (int) indexLong;
-                    String hash = (String) jsonMessage.get("MESSAGE_HASH");
-                    String status = (String) jsonMessage.getOrDefault("MESSAGE_STATUS", "Stored");
-                    
-                    boolean isReceived = (boolean) jsonMessage.getOrDefault("IS_RECEIVED", false);
-                    boolean isRead = (boolean) jsonMessage.getOrDefault("IS_READ", false);
-
-                    Message message = new Message(id, sender, recipient, payload, index, hash);
-                    message.setStatus(status);
-                    message.setReceived(isReceived);
-                    message.setRead(isRead);
-                    
-                    allMessages.add(message);
-                    
-                } catch (IOException | ParseException e) {
-                    System.err.println("Problem reading file " + file.getName() + ": " + e.getMessage());
-                } catch (Exception e) { 
-                    System.err.println("A weird error happened with file " + file.getName() + ": " + e.getMessage());
-                }
+    /**
+     * Loads all messages into the kind of list chosen with -Dquickchat.messages.offHeap.
+     */
+    public static List<Message> loadMessageList() {
+        return OFF_HEAP ? loadAllMessagesOffHeap() : loadAllMessages();
+    }
+
+    /**
+     * The messages to or from one number: the ones from a loaded list, then the archived ones,
+     * which are only read now and only from the blocks that have that number.
+     * @param loaded The list from loadMessageList() (or the StartupLoader).
+     * @param cellNumber The sender or recipient.
+     */
+    public static ArrayList<Message> messagesFor(List<Message> loaded, String cellNumber) {
+        ArrayList<Message> messages = new ArrayList<>();
+        for (Message message : loaded) {
+            if (cellNumber.equals(message.getSender()) || cellNumber.equals(message.getRecipient())) {
+                messages.add(message);
             }
         }
-        return allMessages;
+        messages.addAll(MessageStore.getDefault().loadArchived(cellNumber));
+        return messages;
+    }
+
+    /**
+     * Loads a single message by its ID without reading the whole folder.
+     * @param messageId The ID of the message.
+     * @return The message, or null if it does not exist.
+     */
+    public static Message loadMessage(String messageId) {
+        if (messageId == null || messageId.isEmpty()) {
+            return null;
+        }
+        return MessageStore.getDefault().get(messageId);
     }
 
     /**
-     * This method deletes the JSON file for a specific message.
+     * Turns one stored JSON record back into a Message.
+     * @param jsonMessage The record read from a message file or archive block.
+     * @return The rebuilt message.
+     */
+    @SuppressWarnings("unchecked")
+    static Message fromJson(JSONObject jsonMessage) {
+        String id = (String) jsonMessage.get("MESSAGE_ID");
+        String sender = (String) jsonMessage.get("MESSAGE_SENDER");
+        String recipient = (String) jsonMessage.get("MESSAGE_RECIPIENT");
+        String payload = (String) jsonMessage.get("MESSAGE_PAYLOAD");
+        if (jsonMessage.containsKey(PayloadStore.PAYLOAD_REF)) {
+            // The text lives in the payload store and is shared with every other message that has it
+            payload = PayloadStore.getDefault().text((String) jsonMessage.get(PayloadStore.PAYLOAD_REF));
+        }
+        long indexLong = (Long) jsonMessage.getOrDefault("MESSAGE_INDEX", 0L);
+        int index = (int) indexLong;
+        String hash = (String) jsonMessage.get("MESSAGE_HASH");
+        String status = (String) jsonMessage.getOrDefault("MESSAGE_STATUS", "Stored");
+
+        boolean isReceived = (boolean) jsonMessage.getOrDefault("IS_RECEIVED", false);
+        boolean isRead = (boolean) jsonMessage.getOrDefault("IS_READ", false);
+
+        Message message = new Message(id, sender, recipient, payload, index, hash);
+        message.setStatus(status);
+        message.setReceived(isReceived);
+        message.setRead(isRead);
+        message.setSendAt((Long) jsonMessage.getOrDefault("SEND_AT", 0L));
+        message.setCreatedAt((Long) jsonMessage.getOrDefault("CREATED_AT", 0L));
+        message.setSentAt((Long) jsonMessage.getOrDefault("SENT_AT", 0L));
+        return message;
+    }
+
+    /**
+     * This method deletes a specific message from the store.
      * @param messageId The ID of the message to delete.
      * @return true if it was deleted, false otherwise.
      */
@@ -70,10 +127,129 @@ public class MessageManager {
         if (messageId == null || messageId.isEmpty()) {
             return false;
         }
-        File fileToDelete = new File(MESSAGES_DIR + "/message_" + messageId + ".json");
-        if (fileToDelete.exists()) {
-            return fileToDelete.delete();
+        return MessageStore.getDefault().delete(messageId);
+    }
+
+    /**
+     * Drops a deleted message's reference to a shared payload, if the folder uses the payload store.
+     */
+    static void releasePayload(File messagesDir, String messageId) {
+        if (PayloadStore.isInUse(messagesDir)) {
+            PayloadStore.of(messagesDir).release(messageId);
+        }
+    }
+
+    /**
+     * Saves a whole batch of messages at once. The files are written in parallel,
+     * which is much faster than calling storeMessage() one by one for a bulk load.
+     * It goes through the folder's FileMessageStore, so the messages are in its time index too.
+     * @param layout Where the files should go.
+     * @param messages The messages to save.
+     * @return How many were saved.
+     */
+    static int storeBatch(MessageLayout layout, List<Message> messages) {
+        layout.getMessagesDir().mkdirs();
+        int saved = 0;
+        for (boolean ok : FileMessageStore.of(layout.getMessagesDir()).putAll(messages)) {
+            if (ok) {
+                saved++;
+            }
+        }
+        return saved;
+    }
+
+    /**
+     * The lock a write to this message ID holds from its snapshot hook until the disk is changed.
+     * Deletes take it too.
+     */
+    static Object writeLockFor(String messageId) {
+        return writeLocks[(messageId.hashCode() & 0x7fffffff) % writeLocks.length];
+    }
+
+    /**
+     * Waits for every message write that is running right now. A write that starts after this sees
+     * whatever the caller set before calling it, Snapshot uses this after switching on its capture.
+     */
+    static void awaitWritesInFlight() {
+        for (Object lock : writeLocks) {
+            synchronized (lock) {
+                // Getting the lock is enough, whoever had it is done
+            }
+        }
+    }
+
+    /**
+     * How many message writes are happening right now. The rate limiter
+     * uses this to push back on senders when the disk can't keep up.
+     */
+    static int pendingWrites() {
+        return inFlightWrites.get();
+    }
+
+    /**
+     * Writes one message record to its file. If this process is a replication leader
+     * the change is also added to the change log for the followers.
+     * The log entry goes first and both happen under the lock of the message ID, so two writes
+     * of the same message reach the log and the disk in the same order, and a crash in between
+     * never leaves a file change the followers will not hear about.
+     * @return true if the file was written.
+     */
+    static boolean storeRecord(MessageLayout layout, String messageId, JSONObject json) {
+        File target = layout.fileForWrite(messageId);
+        File directory = target.getParentFile();
+        if (!directory.exists()) {
+            directory.mkdirs();
+        }
+        PayloadStore payloads = PayloadStore.ENABLED ? PayloadStore.of(layout.getMessagesDir()) : null;
+        ChangeLog changeLog = ChangeLog.forDir(layout.getMessagesDir());
+        synchronized (writeLockFor(messageId)) {
+            // Under the lock, so a delete can't release the reference before the file that uses it is written.
+            // With dedup on, the file only points at the payload, but the change log still gets the full record.
+            String before = payloads == null ? null : payloads.referenceOf(messageId);
+            String beforeText = before == null ? null : payloads.text(before);
+            JSONObject onDisk = payloads == null ? json : payloads.externalize(messageId, json);
+            // An online snapshot has to hear about the write before the file can change under its scan
+            Snapshot.beforePut(layout.getMessagesDir(), messageId, json);
+            if (changeLog != null) {
+                changeLog.recordPut(json);
+            }
+            inFlightWrites.incrementAndGet();
+            try {
+                Files.write(target.toPath(), onDisk.toJSONString().getBytes(StandardCharsets.UTF_8));
+            } catch (IOException e) {
+                System.err.println("Error trying to save message file: " + e.getMessage());
+                if (payloads != null && onDisk != json) {
+                    // The old file (if any) still points at the old payload
+                    payloads.restore(messageId, before, beforeText);
+                }
+                return false;
+            } finally {
+                inFlightWrites.decrementAndGet();
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Writes a small JSON file through a temp file and a rename,
+     * so a crash never leaves a half written index or manifest behind,
+     * and a reader never sees one that is only half there.
+     * @return true if the file was saved.
+     */
+    static boolean writeJsonAtomically(File target, JSONAware json) {
+        File tmp = new File(target.getParentFile(), target.getName() + ".tmp");
+        try (FileWriter writer = new FileWriter(tmp)) {
+            writer.write(json.toJSONString());
+        } catch (IOException e) {
+            System.err.println("Could not save " + target.getName() + ": " + e.getMessage());
+            return false;
+        }
+        try {
+            Files.move(tmp.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            return true;
+        } catch (IOException e) {
+            System.err.println("Could not save " + target.getName() + ": " + e.getMessage());
+            return false;
         }
-        return false;
     }
 }
@@ -0,0 +1,167 @@
+package koketso;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * Where messages are kept. The app talks to whichever store -Dquickchat.store picks:
+ * 'file' (the default, one JSON file per message in the messages folder, see FileMessageStore)
+ * or 'memory' (InMemoryMessageStore, nothing touches the disk).
+ *
+ * Every store must pass MessageStoreContractTest.
+ */
+public interface MessageStore {
+
+    /**
+     * Saves a message, replacing any message with the same ID.
+     * @return true if it was saved.
+     */
+    boolean put(Message message);
+
+    /**
+     * Saves many messages at once. Stores that can write a batch faster than one by one override this.
+     * @return For each message, whether it was saved.
+     */
+    default boolean[] putAll(List<Message> messages) {
+        boolean[] saved = new boolean[messages.size()];
+        for (int i = 0; i < saved.length; i++) {
+            saved[i] = put(messages.get(i));
+        }
+        return saved;
+    }
+
+    /**
+     * Adds receipt flags (ReceiptLog.DELIVERED and/or ReceiptLog.READ) to a message.
+     * Flags are only ever added, and READ means delivered too.
+     * @return true if the flags were recorded.
+     */
+    boolean updateFlags(String messageId, int flags);
+
+    /**
+     * The receipt flags (ReceiptLog.DELIVERED and/or ReceiptLog.READ) of many messages in one go,
+     * 0 for a message that has none or does not exist.
+     */
+    default int[] flagsOf(List<String> messageIds) {
+        int[] flags = new int[messageIds.size()];
+        for (int i = 0; i < flags.length; i++) {
+            Message message = get(messageIds.get(i));
+            if (message != null) {
+                flags[i] = (message.isReceived() ? ReceiptLog.DELIVERED : 0) | (message.isRead() ? ReceiptLog.READ : 0);
+            }
+        }
+        return flags;
+    }
+
+    /**
+     * Removes a message and its flags.
+     * @return true if there was a message to remove.
+     */
+    boolean delete(String messageId);
+
+    /**
+     * Removes many messages at once, for example a whole expired time bucket.
+     * @return How many of them were there to remove.
+     */
+    default int deleteAll(Collection<String> messageIds) {
+        int deleted = 0;
+        for (String messageId : messageIds) {
+            if (delete(messageId)) {
+                deleted++;
+            }
+        }
+        return deleted;
+    }
+
+    /**
+     * Moves many messages to cold storage, where they can still be read but cost less to keep.
+     * Stores without a cold tier drop them instead.
+     * @return How many messages were moved (or dropped).
+     */
+    default int archiveAll(Collection<String> messageIds) {
+        return deleteAll(messageIds);
+    }
+
+    /**
+     * The store's messages grouped by retention class and time, kept up to date by put(),
+     * updateFlags(), delete() and loading. The RetentionSweeper works from this.
+     */
+    TimeBucketIndex timeIndex();
+
+    /**
+     * Looks up one message, with its receipt flags filled in.
+     * @return A copy of the message, or null if there is none with that ID.
+     */
+    Message get(String messageId);
+
+    /**
+     * Hands every message to the visitor, cold storage included, with receipt flags filled in.
+     */
+    void scan(Consumer<Message> visitor);
+
+    /**
+     * Adds every message to a list, for example an ArrayList or an OffHeapMessageList.
+     * Messages in cold storage are left out, see loadArchived().
+     */
+    default <L extends List<Message>> L loadInto(L messages) {
+        scan(messages::add);
+        return messages;
+    }
+
+    /**
+     * The messages to or from one number that loadInto() would give, without building the
+     * rest of the list. Stores that can skip the other numbers' messages cheaply override this.
+     */
+    default List<Message> loadFor(String cellNumber) {
+        ArrayList<Message> messages = new ArrayList<>();
+        for (Message message : loadInto(new ArrayList<>())) {
+            if (cellNumber.equals(message.getSender()) || cellNumber.equals(message.getRecipient())) {
+                messages.add(message);
+            }
+        }
+        return messages;
+    }
+
+    /**
+     * The messages to or from one number that loadInto() leaves out because they are in cold
+     * storage, with receipt flags filled in. Stores without a cold tier have none.
+     */
+    default List<Message> loadArchived(String cellNumber) {
+        return new ArrayList<>();
+    }
+
+    /**
+     * Records that a message reached its recipient and sets the flag on the message.
+     */
+    default void markDelivered(Message message) {
+        message.setReceived(true);
+        updateFlags(message.getId(), ReceiptLog.DELIVERED);
+    }
+
+    /**
+     * Records that a message was opened and sets the flags on the message.
+     */
+    default void markRead(Message message) {
+        message.setReceived(true);
+        message.setRead(true);
+        updateFlags(message.getId(), ReceiptLog.DELIVERED | ReceiptLog.READ);
+    }
+
+    /**
+     * The store the app uses, picked by -Dquickchat.store (file or memory).
+     */
+    static MessageStore getDefault() {
+        return DefaultStore.INSTANCE;
+    }
+
+    // Holds the default store, made the first time it is asked for
+    final class DefaultStore {
+        private static final MessageStore INSTANCE = "memory".equalsIgnoreCase(System.getProperty("quickchat.store"))
+                ? new InMemoryMessageStore()
+                : FileMessageStore.of(MessageManager.getMessagesDir());
+
+        private DefaultStore() {
+        }
+    }
+}
@@ -0,0 +1,328 @@
+package koketso;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Keeps messages outside the Java heap, so a server holding millions of them does not pay for
+ * millions of objects at every garbage collection.
+ *
+ * Every message is a 72 byte header record in a direct buffer. The ID and the two cellphone numbers
+ * are packed into longs when they have the usual shape (10 digits, +27 and 9 digits), anything else
+ * goes into the byte area like the payload and hash, as a length and UTF-8 bytes. The status and
+ * receipt flags share one int. Memory comes in chunks of 16 MB and is never given back one message
+ * at a time: the whole arena is freed when nothing points to it any more.
+ *
+ * View is a Message that reads its fields from the arena whenever a getter is called, and writes the
+ * setters straight back, so the rest of the app can use it like any other message.
+ *
+ * Writers hold the arena's lock, readers don't. Header fields are written with release and read
+ * with acquire, so a reader that sees a new value also sees everything written before it, for
+ * example the data chunk and bytes of a hash that markSent() just added.
+ */
+public class OffHeapMessageArena {
+    private static final int CHUNK_BYTES = Integer.getInteger("quickchat.offHeap.chunkBytes", 16 << 20);
+    private static final int MAX_CHUNKS = 1 << 16;
+    // Same byte order as ByteBuffer's own getLong() and getInt()
+    private static final VarHandle LONGS = MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.BIG_ENDIAN);
+    private static final VarHandle INTS = MethodHandles.byteBufferViewVarHandle(int[].class, ByteOrder.BIG_ENDIAN);
+
+    // Header layout
+    private static final int HEADER_BYTES = 72;
+    private static final int ID = 0;
+    private static final int SENDER = 8;
+    private static final int RECIPIENT = 16;
+    private static final int HASH = 24;
+    private static final int PAYLOAD = 32;
+    private static final int SEND_AT = 40;
+    private static final int INDEX = 48;
+    private static final int FLAGS = 52;
+    private static final int CREATED_AT = 56;
+    private static final int SENT_AT = 64;
+
+    // The low two bits of FLAGS hold the status
+    private static final String[] STATUSES = {"Stored", "Sent", "Disregarded"};
+    private static final int STATUS_MASK = 3;
+    private static final int RECEIVED = 4;
+    private static final int READ = 8;
+
+    // A field is a packed number (>= 0), null, or a reference into the byte area
+    private static final long NULL = -1;
+
+    private final int recordsPerChunk = CHUNK_BYTES / HEADER_BYTES;
+    // Fixed size arrays, so readers never see a list in the middle of growing
+    private final ByteBuffer[] headerChunks = new ByteBuffer[MAX_CHUNKS];
+    private final ByteBuffer[] dataChunks = new ByteBuffer[MAX_CHUNKS];
+    private volatile int records;
+    private int dataChunkCount;
+    private int dataPosition = CHUNK_BYTES; // Forces a new chunk on the first string
+
+    /**
+     * Copies a message into the arena.
+     * @return The record number, which never changes for this message.
+     */
+    public synchronized int append(Message message) {
+        int record = records;
+        int chunk = record / recordsPerChunk;
+        if (chunk >= MAX_CHUNKS) {
+            throw new IllegalStateException("The off-heap arena is full");
+        }
+        if (headerChunks[chunk] == null) {
+            headerChunks[chunk] = ByteBuffer.allocateDirect(recordsPerChunk * HEADER_BYTES);
+        }
+        ByteBuffer header = headerChunks[chunk];
+        int base = (record % recordsPerChunk) * HEADER_BYTES;
+        header.putLong(base + ID, packId(message.getId()));
+        header.putLong(base + SENDER, packCell(message.getSender()));
+        header.putLong(base + RECIPIENT, packCell(message.getRecipient()));
+        header.putLong(base + HASH, writeString(message.getHash()));
+        header.putLong(base + PAYLOAD, writeString(message.getPayload()));
+        header.putLong(base + SEND_AT, message.getSendAt());
+        header.putLong(base + CREATED_AT, message.getCreatedAt());
+        header.putLong(base + SENT_AT, message.getSentAt());
+        header.putInt(base + INDEX, message.getIndex());
+        header.putInt(base + FLAGS, statusCode(message.getStatus())
+                | (message.isReceived() ? RECEIVED : 0) | (message.isRead() ? READ : 0));
+        records = record + 1;
+        return record;
+    }
+
+    public int size() {
+        return records;
+    }
+
+    /**
+     * A message view of one record. Views are cheap, make one whenever you need it.
+     */
+    public View view(int record) {
+        if (record < 0 || record >= records) {
+            throw new IndexOutOfBoundsException("No record " + record);
+        }
+        return new View(this, record);
+    }
+
+    /**
+     * How many bytes of direct memory the arena holds.
+     */
+    public synchronized long reservedBytes() {
+        long bytes = 0;
+        for (int i = 0; i < MAX_CHUNKS && headerChunks[i] != null; i++) {
+            bytes += headerChunks[i].capacity();
+        }
+        return bytes + (long) dataChunkCount * CHUNK_BYTES;
+    }
+
+    // --- Reading and writing header fields ---
+
+    private ByteBuffer headerOf(int record) {
+        return headerChunks[record / recordsPerChunk];
+    }
+
+    private long getLong(int record, int field) {
+        return (long) LONGS.getAcquire(headerOf(record), (record % recordsPerChunk) * HEADER_BYTES + field);
+    }
+
+    private int getInt(int record, int field) {
+        return (int) INTS.getAcquire(headerOf(record), (record % recordsPerChunk) * HEADER_BYTES + field);
+    }
+
+    private synchronized void putLong(int record, int field, long value) {
+        LONGS.setRelease(headerOf(record), (record % recordsPerChunk) * HEADER_BYTES + field, value);
+    }
+
+    private synchronized void putInt(int record, int field, int value) {
+        INTS.setRelease(headerOf(record), (record % recordsPerChunk) * HEADER_BYTES + field, value);
+    }
+
+    private synchronized void updateFlags(int record, int clear, int set) {
+        int flags = getInt(record, FLAGS);
+        putInt(record, FLAGS, (flags & ~clear) | set);
+    }
+
+    // --- Packing the small fields ---
+
+    private long packId(String id) {
+        if (id != null && id.length() == 10 && allDigits(id, 0)) {
+            return Long.parseLong(id);
+        }
+        return writeString(id);
+    }
+
+    private long packCell(String cell) {
+        if (cell != null && cell.length() == 12 && cell.startsWith("+27") && allDigits(cell, 3)) {
+            return Long.parseLong(cell, 3, 12, 10);
+        }
+        return writeString(cell);
+    }
+
+    private static boolean allDigits(String text, int from) {
+        for (int i = from; i < text.length(); i++) {
+            if (text.charAt(i) < '0' || text.charAt(i) > '9') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private String unpackId(long value) {
+        if (value >= 0) {
+            return padded(value, 10, "");
+        }
+        return readString(value);
+    }
+
+    private String unpackCell(long value) {
+        if (value >= 0) {
+            return padded(value, 9, "+27");
+        }
+        return readString(value);
+    }
+
+    private static String padded(long value, int width, String prefix) {
+        String digits = Long.toString(value);
+        StringBuilder text = new StringBuilder(prefix.length() + width).append(prefix);
+        for (int i = digits.length(); i < width; i++) {
+            text.append('0');
+        }
+        return text.append(digits).toString();
+    }
+
+    private static int statusCode(String status) {
+        for (int i = 0; i < STATUSES.length; i++) {
+            if (STATUSES[i].equals(status)) {
+                return i;
+            }
+        }
+        return 0; // The app only ever uses the three statuses above
+    }
+
+    // --- The byte area: strings as an int length and UTF-8 bytes ---
+
+    // References are stored as -2 - (chunk << 32 | offset), so they never clash with packed numbers or NULL
+    private synchronized long writeString(String text) {
+        if (text == null) {
+            return NULL;
+        }
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length + 4 > CHUNK_BYTES) {
+            throw new IllegalArgumentException("A string of " + bytes.length + " bytes does not fit in an arena chunk");
+        }
+        if (dataPosition + 4 + bytes.length > CHUNK_BYTES) {
+            if (dataChunkCount >= MAX_CHUNKS) {
+                throw new IllegalStateException("The off-heap arena is full");
+            }
+            dataChunks[dataChunkCount++] = ByteBuffer.allocateDirect(CHUNK_BYTES);
+            dataPosition = 0;
+        }
+        int chunk = dataChunkCount - 1;
+        ByteBuffer data = dataChunks[chunk];
+        data.putInt(dataPosition, bytes.length);
+        data.put(dataPosition + 4, bytes);
+        long ref = ((long) chunk << 32) | dataPosition;
+        dataPosition += 4 + bytes.length;
+        return -2 - ref;
+    }
+
+    private String readString(long value) {
+        if (value == NULL) {
+            return null;
+        }
+        long ref = -2 - value;
+        ByteBuffer data = dataChunks[(int) (ref >>> 32)];
+        int offset = (int) ref;
+        byte[] bytes = new byte[data.getInt(offset)];
+        data.get(offset + 4, bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * A Message whose fields live in the arena. Two views of the same record are equal.
+     */
+    public static class View extends Message {
+        private final OffHeapMessageArena arena;
+        private final int record;
+
+        View(OffHeapMessageArena arena, int record) {
+            super(null, null, null, null, 0, null);
+            this.arena = arena;
+            this.record = record;
+        }
+
+        int getRecord() { return record; }
+        OffHeapMessageArena getArena() { return arena; }
+
+        @Override public String getId() { return arena.unpackId(arena.getLong(record, ID)); }
+        @Override public String getSender() { return arena.unpackCell(arena.getLong(record, SENDER)); }
+        @Override public String getRecipient() { return arena.unpackCell(arena.getLong(record, RECIPIENT)); }
+        @Override public String getPayload() { return arena.readString(arena.getLong(record, PAYLOAD)); }
+        @Override public String getHash() { return arena.readString(arena.getLong(record, HASH)); }
+        @Override public int getIndex() { return arena.getInt(record, INDEX); }
+        @Override public long getSendAt() { return arena.getLong(record, SEND_AT); }
+        @Override public long getCreatedAt() { return arena.getLong(record, CREATED_AT); }
+        @Override public long getSentAt() { return arena.getLong(record, SENT_AT); }
+        @Override public String getStatus() { return STATUSES[arena.getInt(record, FLAGS) & STATUS_MASK]; }
+        @Override public boolean isReceived() { return (arena.getInt(record, FLAGS) & RECEIVED) != 0; }
+        @Override public boolean isRead() { return (arena.getInt(record, FLAGS) & READ) != 0; }
+
+        @Override public void setStatus(String status) { arena.updateFlags(record, STATUS_MASK, statusCode(status)); }
+        @Override public void setReceived(boolean received) { arena.updateFlags(record, RECEIVED, received ? RECEIVED : 0); }
+        @Override public void setRead(boolean read) { arena.updateFlags(record, READ, read ? READ : 0); }
+        @Override public void setSendAt(long sendAt) { arena.putLong(record, SEND_AT, sendAt); }
+        @Override public void setCreatedAt(long createdAt) { arena.putLong(record, CREATED_AT, createdAt); }
+        @Override public void setSentAt(long sentAt) { arena.putLong(record, SENT_AT, sentAt); }
+
+        @Override
+        void markSent(int index) {
+            // The hash is new, so it goes at the end of the byte area
+            arena.putLong(record, HASH, arena.writeString(createMessageHash(getId(), index, getPayload())));
+            arena.putInt(record, INDEX, index);
+            setStatus("Sent");
+            setSentAt(System.currentTimeMillis());
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            return other instanceof View && ((View) other).arena == arena && ((View) other).record == record;
+        }
+
+        @Override
+        public int hashCode() {
+            return System.identityHashCode(arena) * 31 + record;
+        }
+    }
+
+    /**
+     * Compares the heap cost of holding messages as objects and in the arena.
+     * Usage: java koketso.OffHeapMessageArena [messages]
+     */
+    public static void main(String[] args) {
+        int count = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+        // Off-heap goes first, so garbage from the object run can't make its number look smaller
+        System.out.printf("Heap for %d messages off-heap:   %d MB%n", count, heapAfter(count, true) / (1 << 20));
+        System.out.printf("Heap for %d messages as objects: %d MB%n", count, heapAfter(count, false) / (1 << 20));
+    }
+
+    private static long heapAfter(int count, boolean offHeap) {
+        Runtime runtime = Runtime.getRuntime();
+        System.gc();
+        long before = runtime.totalMemory() - runtime.freeMemory();
+        List<Message> messages = offHeap ? new OffHeapMessageList() : new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            Message message = new Message(Message.newMessageId(), LoadGenerator.cellFor(i % 1000),
+                    LoadGenerator.cellFor(i % 997), "Load test message number " + i, i + 1, "");
+            message.markSent(i + 1);
+            messages.add(message);
+        }
+        System.gc();
+        long used = runtime.totalMemory() - runtime.freeMemory() - before;
+        if (messages.isEmpty()) {
+            System.out.println(); // Keeps the list reachable until after the measurement
+        }
+        return used;
+    }
+}
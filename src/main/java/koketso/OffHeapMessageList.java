@@ -0,0 +1,146 @@
+package koketso;
+
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.RandomAccess;
+
+/**
+ * A List of messages kept in an OffHeapMessageArena, used for allMessages when
+ * -Dquickchat.messages.offHeap=true. get() hands out a fresh view each time, the heap only
+ * holds the arena and an off-heap list of record numbers.
+ *
+ * Removing or replacing a message only takes its record number out of the list, the arena never
+ * frees single records. Once the list has dropped more records than it still holds, the live ones
+ * are copied into a new arena and the old one is let go, so a list with a lot of churn stays at
+ * most about twice its size. Views handed out before that keep the old arena alive and still show
+ * the same message, they just aren't part of the list any more.
+ *
+ * Only the messages are off the heap. A store's loadInto() still adds every message to its
+ * TimeBucketIndex, and that index keeps a small entry per message on the heap.
+ */
+public class OffHeapMessageList extends AbstractList<Message> implements RandomAccess {
+    // Compacting a few dropped records is not worth a new arena
+    private static final int MIN_GARBAGE = 1024;
+
+    private OffHeapMessageArena arena;
+    private IntBuffer order = ByteBuffer.allocateDirect(4 * 1024).asIntBuffer();
+    private int size;
+    // Records this list took out of its arena since the last compaction
+    private int dropped;
+
+    public OffHeapMessageList() {
+        this(new OffHeapMessageArena());
+    }
+
+    public OffHeapMessageList(OffHeapMessageArena arena) {
+        this.arena = arena;
+    }
+
+    /**
+     * The arena the list is in now. It changes when the list is compacted.
+     */
+    public OffHeapMessageArena getArena() {
+        return arena;
+    }
+
+    @Override
+    public Message get(int index) {
+        checkIndex(index, size);
+        return arena.view(order.get(index));
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public Message set(int index, Message message) {
+        checkIndex(index, size);
+        Message old = get(index);
+        int record = recordFor(message);
+        if (record != order.get(index)) {
+            order.put(index, record);
+            dropped++;
+            compactIfNeeded();
+        }
+        return old;
+    }
+
+    @Override
+    public void add(int index, Message message) {
+        checkIndex(index, size + 1);
+        int record = recordFor(message);
+        if (size == order.capacity()) {
+            IntBuffer bigger = ByteBuffer.allocateDirect(order.capacity() * 8).asIntBuffer();
+            order.rewind();
+            bigger.put(order);
+            order = bigger;
+        }
+        for (int i = size; i > index; i--) {
+            order.put(i, order.get(i - 1));
+        }
+        order.put(index, record);
+        size++;
+        modCount++;
+    }
+
+    @Override
+    public Message remove(int index) {
+        checkIndex(index, size);
+        Message removed = get(index);
+        for (int i = index; i < size - 1; i++) {
+            order.put(i, order.get(i + 1));
+        }
+        size--;
+        modCount++;
+        dropped++;
+        compactIfNeeded();
+        return removed;
+    }
+
+    @Override
+    public void clear() {
+        dropped += size;
+        size = 0;
+        modCount++;
+        compactIfNeeded();
+    }
+
+    // Copies the records still in the list into a new arena once most of the old one is garbage
+    private void compactIfNeeded() {
+        if (dropped < MIN_GARBAGE || dropped <= size) {
+            return;
+        }
+        OffHeapMessageArena old = arena;
+        OffHeapMessageArena fresh = new OffHeapMessageArena();
+        // A record that is in the list twice (set() with a view from the list) is copied once
+        int[] moved = new int[old.size()];
+        Arrays.fill(moved, -1);
+        for (int i = 0; i < size; i++) {
+            int record = order.get(i);
+            if (moved[record] < 0) {
+                moved[record] = fresh.append(old.view(record));
+            }
+            order.put(i, moved[record]);
+        }
+        arena = fresh;
+        dropped = 0;
+    }
+
+    // A view of this arena is already in it, anything else is copied in
+    private int recordFor(Message message) {
+        if (message instanceof OffHeapMessageArena.View && ((OffHeapMessageArena.View) message).getArena() == arena) {
+            return ((OffHeapMessageArena.View) message).getRecord();
+        }
+        return arena.append(message);
+    }
+
+    private static void checkIndex(int index, int limit) {
+        if (index < 0 || index >= limit) {
+            throw new IndexOutOfBoundsException("Index " + index + ", size " + limit);
+        }
+    }
+}
@@ -0,0 +1,381 @@
+package koketso;
+
+import org.json.simple.JSONObject;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Keeps each different payload text once, no matter how many messages carry it.
+ *
+ * Turned on with -Dquickchat.payloads.dedup=true. A payload is saved as
+ * 'messages/payloads/SHA256.txt' and the message file holds PAYLOAD_REF (the SHA-256 of the text)
+ * instead of MESSAGE_PAYLOAD. Every message that uses a payload counts as one reference. When a message
+ * is deleted its reference goes, and a payload with no references left is deleted too.
+ * Loaded messages with the same payload share one String.
+ *
+ * References are kept like the receipts: an append-only log ('payloads/refs.log') that is replayed on start.
+ * Each message ID holds at most one reference, so saving the same message twice does not count it twice.
+ * The change log and exports still carry the full text, the references only exist in the loose files.
+ */
+public class PayloadStore {
+    static final boolean ENABLED = Boolean.getBoolean("quickchat.payloads.dedup");
+    static final String PAYLOAD_REF = "PAYLOAD_REF";
+    private static final String PAYLOAD_DIR = "payloads";
+    private static final String LOG_FILE = "refs.log";
+    private static final byte REF = 1;
+    private static final byte UNREF = 0;
+
+    private static final ConcurrentHashMap<String, PayloadStore> stores = new ConcurrentHashMap<>();
+
+    // One stored payload: how many messages use it, its size on disk, and the text once it was read
+    private static class Payload {
+        int refs;
+        final int bytes;
+        String text;
+
+        Payload(int bytes) {
+            this.bytes = bytes;
+        }
+    }
+
+    private final File payloadDir;
+    private final File logFile;
+    private final HashMap<String, String> digestOf = new HashMap<>();
+    private final HashMap<String, Payload> payloads = new HashMap<>();
+    private DataOutputStream out;
+    private long events;
+
+    public PayloadStore(File messagesDir) {
+        this.payloadDir = new File(messagesDir, PAYLOAD_DIR);
+        this.logFile = new File(payloadDir, LOG_FILE);
+        replay();
+        if (events > 2L * digestOf.size() + 1000) {
+            compact();
+        }
+    }
+
+    public static PayloadStore of(File messagesDir) {
+        return stores.computeIfAbsent(messagesDir.getAbsolutePath(), path -> new PayloadStore(messagesDir));
+    }
+
+    public static PayloadStore getDefault() {
+        return of(MessageManager.getMessagesDir());
+    }
+
+    /**
+     * Whether a messages folder uses the payload store, either because dedup is on or because it was
+     * on before and some message files still point at stored payloads.
+     */
+    static boolean isInUse(File messagesDir) {
+        return ENABLED || new File(messagesDir, PAYLOAD_DIR).exists();
+    }
+
+    /**
+     * The SHA-256 of a payload as hex, which is also its file name.
+     */
+    static String digest(String payload) {
+        try {
+            MessageDigest sha = MessageDigest.getInstance("SHA-256");
+            return HexFormat.of().formatHex(sha.digest(payload.getBytes(StandardCharsets.UTF_8)));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is missing from this JVM", e);
+        }
+    }
+
+    /**
+     * Saves a message's payload in the store (if it is not there yet) and gives back a copy of the
+     * record with PAYLOAD_REF in place of the text, ready to be written to the message file.
+     */
+    @SuppressWarnings("unchecked")
+    public JSONObject externalize(String messageId, JSONObject record) {
+        String payload = (String) record.get("MESSAGE_PAYLOAD");
+        if (payload == null) {
+            return record;
+        }
+        // Hashing is the slow part, so it happens before taking the lock
+        String digest = digest(payload);
+        if (!addReference(messageId, digest, payload)) {
+            return record;
+        }
+        JSONObject copy = new JSONObject(record);
+        copy.remove("MESSAGE_PAYLOAD");
+        copy.put(PAYLOAD_REF, digest);
+        return copy;
+    }
+
+    private synchronized boolean addReference(String messageId, String digest, String payload) {
+        Payload stored = payloads.get(digest);
+        if (stored == null) {
+            byte[] bytes = payload.getBytes(StandardCharsets.UTF_8);
+            if (!writePayload(digest, bytes)) {
+                return false;
+            }
+            stored = new Payload(bytes.length);
+            stored.text = payload;
+            payloads.put(digest, stored);
+        }
+        if (digest.equals(digestOf.get(messageId))) {
+            return true; // This message already counts for this payload
+        }
+        deleteUnused(append(messageId, REF, digest, stored.bytes));
+        return true;
+    }
+
+    /**
+     * The digest of the payload a message points at, or null if it has no reference.
+     */
+    public synchronized String referenceOf(String messageId) {
+        return digestOf.get(messageId);
+    }
+
+    /**
+     * Puts a message's reference back to what it was before a write that failed: the old payload
+     * (saved again if it was already deleted), or no reference at all if digest is null.
+     */
+    synchronized void restore(String messageId, String digest, String text) {
+        if (digest == null) {
+            release(messageId);
+        } else if (text != null) {
+            addReference(messageId, digest, text);
+        }
+    }
+
+    /**
+     * Gives the text of a stored payload. Every caller gets the same String, so messages with
+     * the same payload share it in memory.
+     * @return The text, or null if the payload is not in the store.
+     */
+    public synchronized String text(String digest) {
+        Payload stored = payloads.get(digest);
+        if (stored != null && stored.text != null) {
+            return stored.text;
+        }
+        try {
+            String text = new String(Files.readAllBytes(payloadFile(digest).toPath()), StandardCharsets.UTF_8);
+            if (stored != null) {
+                stored.text = text;
+            }
+            return text;
+        } catch (IOException e) {
+            System.err.println("Could not read payload " + digest + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Puts the payload text back into a record that has PAYLOAD_REF, for anything that
+     * leaves the loose files (the archive, exports).
+     */
+    @SuppressWarnings("unchecked")
+    public void inline(JSONObject record) {
+        String digest = (String) record.get(PAYLOAD_REF);
+        if (digest != null) {
+            record.put("MESSAGE_PAYLOAD", text(digest));
+            record.remove(PAYLOAD_REF);
+        }
+    }
+
+    /**
+     * Drops a message's reference. If nothing else uses the payload, its file is deleted.
+     * @return true if the message had a reference.
+     */
+    public synchronized boolean release(String messageId) {
+        if (!digestOf.containsKey(messageId)) {
+            return false;
+        }
+        deleteUnused(append(messageId, UNREF, null, 0));
+        return true;
+    }
+
+    public synchronized int referenceCount(String digest) {
+        Payload stored = payloads.get(digest);
+        return stored == null ? 0 : stored.refs;
+    }
+
+    /**
+     * How much the store saves.
+     */
+    public synchronized Stats getStats() {
+        long logical = 0;
+        long stored = 0;
+        long references = 0;
+        for (Payload payload : payloads.values()) {
+            logical += (long) payload.bytes * payload.refs;
+            stored += payload.bytes;
+            references += payload.refs;
+        }
+        return new Stats(references, payloads.size(), logical, stored);
+    }
+
+    public static class Stats {
+        private final long references;
+        private final long uniquePayloads;
+        private final long logicalBytes;
+        private final long storedBytes;
+
+        Stats(long references, long uniquePayloads, long logicalBytes, long storedBytes) {
+            this.references = references;
+            this.uniquePayloads = uniquePayloads;
+            this.logicalBytes = logicalBytes;
+            this.storedBytes = storedBytes;
+        }
+
+        public long getReferences() { return references; }
+        public long getUniquePayloads() { return uniquePayloads; }
+        public long getBytesSaved() { return logicalBytes - storedBytes; }
+
+        /**
+         * Messages per stored payload, 1.0 means nothing was shared.
+         */
+        public double getDedupRatio() {
+            return uniquePayloads == 0 ? 1.0 : (double) references / uniquePayloads;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("Payload dedup: %d messages share %d payloads (ratio %.2f), %d bytes saved",
+                    references, uniquePayloads, getDedupRatio(), getBytesSaved());
+        }
+    }
+
+    private File payloadFile(String digest) {
+        return new File(payloadDir, digest + ".txt");
+    }
+
+    private boolean writePayload(String digest, byte[] bytes) {
+        File target = payloadFile(digest);
+        File tmp = new File(payloadDir, digest + ".tmp");
+        payloadDir.mkdirs();
+        try {
+            Files.write(tmp.toPath(), bytes);
+            Files.move(tmp.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            return true;
+        } catch (IOException e) {
+            System.err.println("Could not save payload " + digest + ": " + e.getMessage());
+            return false;
+        }
+    }
+
+    private void deleteUnused(String digest) {
+        if (digest != null) {
+            payloadFile(digest).delete();
+        }
+    }
+
+    // Returns the digest of a payload nobody uses any more, or null
+    private String append(String messageId, byte type, String digest, int bytes) {
+        String unused = apply(messageId, type, digest, bytes);
+        try {
+            if (out == null) {
+                payloadDir.mkdirs();
+                out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(logFile, true)));
+            }
+            writeEvent(out, messageId, type, digest, bytes);
+            out.flush();
+        } catch (IOException e) {
+            System.err.println("Could not write payload reference for " + messageId + ": " + e.getMessage());
+        }
+        return unused;
+    }
+
+    private static void writeEvent(DataOutputStream stream, String messageId, byte type, String digest, int bytes)
+            throws IOException {
+        stream.writeUTF(messageId);
+        stream.writeByte(type);
+        if (type == REF) {
+            stream.writeUTF(digest);
+            stream.writeInt(bytes);
+        }
+    }
+
+    private String apply(String messageId, byte type, String digest, int bytes) {
+        events++;
+        if (type == REF) {
+            payloads.computeIfAbsent(digest, d -> new Payload(bytes)).refs++;
+        }
+        String old = type == REF ? digestOf.put(messageId, digest) : digestOf.remove(messageId);
+        if (old != null) {
+            Payload payload = payloads.get(old);
+            if (payload != null && --payload.refs <= 0) {
+                payloads.remove(old);
+                return old;
+            }
+        }
+        return null;
+    }
+
+    private void replay() {
+        if (!logFile.exists()) {
+            return;
+        }
+        long goodBytes = 0;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(logFile)))) {
+            while (true) {
+                String messageId = in.readUTF();
+                byte type = in.readByte();
+                long size = 2 + messageId.getBytes(StandardCharsets.UTF_8).length + 1;
+                String digest = null;
+                int bytes = 0;
+                if (type == REF) {
+                    digest = in.readUTF();
+                    bytes = in.readInt();
+                    size += 2 + digest.length() + 4;
+                }
+                apply(messageId, type, digest, bytes);
+                goodBytes += size;
+            }
+        } catch (EOFException e) {
+            // End of the log
+        } catch (IOException e) {
+            System.err.println("Problem reading the payload references: " + e.getMessage());
+        }
+
+        // A record cut short by a crash is dropped, otherwise new events would be appended after it
+        if (goodBytes < logFile.length()) {
+            try (RandomAccessFile file = new RandomAccessFile(logFile, "rw")) {
+                file.setLength(goodBytes);
+            } catch (IOException e) {
+                System.err.println("Could not repair the payload references: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Rewrites the log with one reference per message.
+     */
+    private synchronized void compact() {
+        File tmp = new File(payloadDir, LOG_FILE + ".tmp");
+        try (DataOutputStream compacted = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+            for (Map.Entry<String, String> entry : digestOf.entrySet()) {
+                writeEvent(compacted, entry.getKey(), REF, entry.getValue(), payloads.get(entry.getValue()).bytes);
+            }
+        } catch (IOException e) {
+            System.err.println("Could not compact the payload references: " + e.getMessage());
+            tmp.delete();
+            return;
+        }
+        try {
+            Files.move(tmp.toPath(), logFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            events = digestOf.size();
+        } catch (IOException e) {
+            System.err.println("Could not compact the payload references: " + e.getMessage());
+        }
+    }
+}
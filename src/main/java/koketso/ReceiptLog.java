@@ -0,0 +1,244 @@
+package koketso;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Delivery and read receipts as an append-only stream of small events.
+ * Marking a message delivered or read appends one tiny record to 'messages/receipts.log'
+ * instead of rewriting the whole message file. In memory every message ID gets a slot
+ * number and two bitmaps hold the delivered and read flags, rebuilt from the log on start.
+ * When the log has many more events than messages it is compacted on start.
+ */
+public class ReceiptLog {
+    private static final String LOG_FILE = "receipts.log";
+
+    public static final int DELIVERED = 1;
+    public static final int READ = 2;
+    private static final byte FORGET = 0;
+
+    private static final ConcurrentHashMap<String, ReceiptLog> logs = new ConcurrentHashMap<>();
+
+    private final File messagesDir;
+    private final File logFile;
+    private final HashMap<String, Integer> slotForId = new HashMap<>();
+    private final BitSet delivered = new BitSet();
+    private final BitSet read = new BitSet();
+    private DataOutputStream out;
+    private int nextSlot;
+    private long events;
+
+    public ReceiptLog(File messagesDir) {
+        this.messagesDir = messagesDir;
+        this.logFile = new File(messagesDir, LOG_FILE);
+        replay();
+        if (events > 2L * slotForId.size() + 1000) {
+            compact();
+        }
+    }
+
+    public static ReceiptLog of(File messagesDir) {
+        return logs.computeIfAbsent(messagesDir.getAbsolutePath(), path -> new ReceiptLog(messagesDir));
+    }
+
+    public static ReceiptLog getDefault() {
+        return of(MessageManager.getMessagesDir());
+    }
+
+    /**
+     * Records that a message reached its recipient and sets the flag on the message.
+     */
+    public void markDelivered(Message message) {
+        message.setReceived(true);
+        record(message.getId(), DELIVERED);
+    }
+
+    /**
+     * Records that a message was opened. A read message counts as delivered too.
+     */
+    public void markRead(Message message) {
+        message.setReceived(true);
+        message.setRead(true);
+        record(message.getId(), READ);
+    }
+
+    /**
+     * Appends a receipt event for a message ID. Followers use this directly
+     * because they only get the ID from the leader's change log.
+     */
+    void record(String messageId, int type) {
+        ChangeLog changeLog = ChangeLog.forDir(messagesDir);
+        // Like MessageManager.storeRecord(): the change log first, and both under one lock
+        synchronized (this) {
+            Snapshot.beforeReceipt(messagesDir, messageId, type);
+            if (changeLog != null) {
+                changeLog.recordReceipt(messageId, type);
+            }
+            append(messageId, type);
+        }
+    }
+
+    /**
+     * Drops the flags of a deleted message so they are not carried forward.
+     */
+    public void forget(String messageId) {
+        synchronized (this) {
+            if (!slotForId.containsKey(messageId)) {
+                return;
+            }
+        }
+        append(messageId, FORGET);
+    }
+
+    /**
+     * The receipt flags for one message (DELIVERED and/or READ), 0 if there are none.
+     */
+    public synchronized int flagsOf(String messageId) {
+        Integer slot = slotForId.get(messageId);
+        if (slot == null) {
+            return 0;
+        }
+        return (delivered.get(slot) ? DELIVERED : 0) | (read.get(slot) ? READ : 0);
+    }
+
+    /**
+     * Looks up the receipt flags of many messages under one lock, for the sender's reports.
+     * @return One flags value for each ID, in the same order.
+     */
+    public synchronized int[] flagsOf(List<String> messageIds) {
+        int[] flags = new int[messageIds.size()];
+        for (int i = 0; i < flags.length; i++) {
+            Integer slot = slotForId.get(messageIds.get(i));
+            if (slot != null) {
+                flags[i] = (delivered.get(slot) ? DELIVERED : 0) | (read.get(slot) ? READ : 0);
+            }
+        }
+        return flags;
+    }
+
+    /**
+     * Copies the flags from the log onto freshly loaded messages.
+     * Flags only ever get added, so a message file that says read stays read.
+     */
+    public synchronized void applyTo(List<Message> messages) {
+        for (Message message : messages) {
+            Integer slot = slotForId.get(message.getId());
+            if (slot == null) {
+                continue;
+            }
+            if (delivered.get(slot)) {
+                message.setReceived(true);
+            }
+            if (read.get(slot)) {
+                message.setRead(true);
+            }
+        }
+    }
+
+    private synchronized void append(String messageId, int type) {
+        apply(messageId, type);
+        try {
+            if (out == null) {
+                logFile.getParentFile().mkdirs();
+                out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(logFile, true)));
+            }
+            out.writeUTF(messageId);
+            out.writeByte(type);
+            // Hand it to the OS straight away, like the FileWriter used to for the full record
+            out.flush();
+        } catch (IOException e) {
+            System.err.println("Could not write receipt for " + messageId + ": " + e.getMessage());
+        }
+    }
+
+    private void apply(String messageId, int type) {
+        events++;
+        if (type == FORGET) {
+            Integer slot = slotForId.remove(messageId);
+            if (slot != null) {
+                // The slot is left empty, compaction gets rid of it later
+                delivered.clear(slot);
+                read.clear(slot);
+            }
+            return;
+        }
+        Integer slot = slotForId.get(messageId);
+        if (slot == null) {
+            slot = nextSlot++;
+            slotForId.put(messageId, slot);
+        }
+        delivered.set(slot);
+        if (type == READ) {
+            read.set(slot);
+        }
+    }
+
+    private void replay() {
+        if (!logFile.exists()) {
+            return;
+        }
+        long goodBytes = 0;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(logFile)))) {
+            while (true) {
+                // Same layout as writeUTF: a two byte length, the ID bytes, then the event type
+                byte[] id = new byte[in.readUnsignedShort()];
+                in.readFully(id);
+                int type = in.readByte();
+                apply(new String(id, StandardCharsets.UTF_8), type);
+                goodBytes += 2 + id.length + 1;
+            }
+        } catch (EOFException e) {
+            // End of the log
+        } catch (IOException e) {
+            System.err.println("Problem reading the receipt log: " + e.getMessage());
+        }
+
+        // A record cut short by a crash is dropped, otherwise new events would be appended after it
+        if (goodBytes < logFile.length()) {
+            try (RandomAccessFile file = new RandomAccessFile(logFile, "rw")) {
+                file.setLength(goodBytes);
+            } catch (IOException e) {
+                System.err.println("Could not repair the receipt log: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Rewrites the log with one event per message that still has flags.
+     */
+    private synchronized void compact() {
+        File tmp = new File(logFile.getParentFile(), LOG_FILE + ".tmp");
+        try (DataOutputStream compacted = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+            for (Map.Entry<String, Integer> entry : slotForId.entrySet()) {
+                compacted.writeUTF(entry.getKey());
+                compacted.writeByte(read.get(entry.getValue()) ? READ : DELIVERED);
+            }
+        } catch (IOException e) {
+            System.err.println("Could not compact the receipt log: " + e.getMessage());
+            tmp.delete();
+            return;
+        }
+        try {
+            Files.move(tmp.toPath(), logFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            events = slotForId.size();
+        } catch (IOException e) {
+            System.err.println("Could not compact the receipt log: " + e.getMessage());
+        }
+    }
+}
@@ -1,48 +1,47 @@
 package koketso;
 
-import java.util.regex.Pattern;
-
 public class RegistrationLogin {
     private String storedUserName, storedPassword, storedCellPhoneNumber, storedFirstName, storedLastName;
     private boolean accessGranted;
 
     public String registerUser(String newUserName, String newPassword, String newCellPhoneNumber, 
                               String newFirstName, String newLastName) {
-        String feedback = "";
+        // One builder for the whole text, this also runs for every user loaded from users.json
+        StringBuilder feedback = new StringBuilder(256);
         boolean isValid = true;
 
         if (checkUserName(newUserName)) {
-            feedback += "Username successfully captured\n";
+            feedback.append("Username successfully captured\n");
         } else {
-            feedback += "Username is not correctly formatted, please ensure that your username contains an underscore and is no more than five characters in length.\n";
+            feedback.append("Username is not correctly formatted, please ensure that your username contains an underscore and is no more than five characters in length.\n");
             isValid = false;
         }
 
         if (checkPasswordComplexity(newPassword)) {
-            feedback += "Password successfully captured\n";
+            feedback.append("Password successfully captured\n");
         } else {
-            feedback += "Password is not correctly formatted, please ensure that the password contains at least eight characters, a capital letter, a number, and a special character.\n";
+            feedback.append("Password is not correctly formatted, please ensure that the password contains at least eight characters, a capital letter, a number, and a special character.\n");
             isValid = false;
         }
 
         if (checkCellPhoneNumber(newCellPhoneNumber)) {
-            feedback += "Cellphone number successfully captured\n";
+            feedback.append("Cellphone number successfully captured\n");
         } else {
-            feedback += "Cellphone number is incorrectly formatted or does not contain an international code, please correct the number and try again.\n";
+            feedback.append("Cellphone number is incorrectly formatted or does not contain an international code, please correct the number and try again.\n");
             isValid = false;
         }
 
         if (isNameValid(newFirstName)) {
-            feedback += "First name successfully captured\n";
+            feedback.append("First name successfully captured\n");
         } else {
-            feedback += "First name is invalid, please ensure it is not empty.\n";
+            feedback.append("First name is invalid, please ensure it is not empty.\n");
             isValid = false;
         }
 
         if (isNameValid(newLastName)) {
-            feedback += "Last name successfully captured\n";
+            feedback.append("Last name successfully captured\n");
         } else {
-            feedback += "Last name is invalid, please ensure it is not empty.\n";
+            feedback.append("Last name is invalid, please ensure it is not empty.\n");
             isValid = false;
         }
 
@@ -52,12 +51,12 @@ public class RegistrationLogin {
             this.storedCellPhoneNumber = newCellPhoneNumber;
             this.storedFirstName = newFirstName;
             this.storedLastName = newLastName;
-            feedback += "Registration successful";
+            feedback.append("Registration successful");
         } else {
-            feedback += "Registration aborted";
+            feedback.append("Registration aborted");
         }
 
-        return feedback;
+        return feedback.toString();
     }
 
     /**
@@ -117,18 +116,32 @@ public class RegistrationLogin {
         return userName != null && userName.length() <= 5 && userName.contains("_");
     }
 
+    // One pass over the password instead of three regex matches
     private boolean checkPasswordComplexity(String password) {
         if (password == null || password.length() < 8) return false;
-        return password.matches(".*[A-Z].*") &&
-               password.matches(".*[0-9].*") &&
-               password.matches(".*[!@#$%^&*()].*");
+        boolean capital = false, digit = false, special = false;
+        for (int i = 0; i < password.length(); i++) {
+            char c = password.charAt(i);
+            // The old ".*" patterns never matched across a line break, so those still fail
+            if (c == '\n' || c == '\r' || c == '\u0085' || c == '\u2028' || c == '\u2029') return false;
+            if (c >= 'A' && c <= 'Z') capital = true;
+            else if (c >= '0' && c <= '9') digit = true;
+            else if ("!@#$%^&*()".indexOf(c) >= 0) special = true;
+        }
+        return capital && digit && special;
     }
 
     private boolean checkCellPhoneNumber(String cellPhoneNumber) {
-        return cellPhoneNumber != null && Pattern.matches("^\\+27[0-9]{9}$", cellPhoneNumber);
+        return Message.isCellNumber(cellPhoneNumber);
     }
 
+    // Only letters A to Z, the same as matching "^[a-zA-Z]+$"
     private boolean isNameValid(String name) {
-        return name != null && !name.trim().isEmpty() && name.matches("^[a-zA-Z]+$");
+        if (name == null || name.isEmpty()) return false;
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            if ((c < 'a' || c > 'z') && (c < 'A' || c > 'Z')) return false;
+        }
+        return true;
     }
 }
\ No newline at end of file
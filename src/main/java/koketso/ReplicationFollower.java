@@ -0,0 +1,339 @@
+package koketso;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Base64;
+
+/**
+ * The read side of replication. A follower connects to the leader, asks for every change after
+ * the last offset it applied, and applies them to its own messages folder. That folder can then
+ * be used for inbox and report reads. The applied offset is saved in 'replica.offset', and
+ * applying a change twice does no harm, so after a reconnect or restart it simply carries on.
+ * Each saved offset is sent back to the leader, which trims its log below the lowest one.
+ *
+ * A follower that starts empty, or has fallen behind the start of the leader's log, gets a
+ * snapshot of the leader's store first. Everything in the folder is replaced by it, and the
+ * change log carries on from there.
+ *
+ * Two JVMs on one machine:
+ *   java -Dquickchat.replication.port=7070 koketso.ST10399194PROG5121POE
+ *   java -Dquickchat.messages.dir=replica koketso.ReplicationFollower localhost 7070
+ * or run the app itself as a read-only follower with
+ *   java -Dquickchat.messages.dir=replica -Dquickchat.replication.follow=localhost:7070 koketso.ST10399194PROG5121POE
+ */
+public class ReplicationFollower {
+    private static final String OFFSET_FILE = "replica.offset";
+    private static final int SAVE_OFFSET_EVERY = 100;
+
+    private final File messagesDir;
+    private final String host;
+    private final int port;
+    private final MessageLayout layout;
+    private volatile boolean running = true;
+    private volatile long appliedOffset;
+    // What replica.offset holds now
+    private long savedOffset;
+    private Socket socket;
+    private Thread thread;
+
+    public ReplicationFollower(File messagesDir, String host, int port) {
+        this.messagesDir = messagesDir;
+        this.host = host;
+        this.port = port;
+        this.layout = MessageLayout.of(messagesDir);
+        this.appliedOffset = loadOffset();
+        this.savedOffset = appliedOffset;
+    }
+
+    /**
+     * Starts following if quickchat.replication.follow is set to host:port.
+     * @return The follower, or null if this process is not a follower.
+     */
+    public static ReplicationFollower startIfConfigured() {
+        String target = System.getProperty("quickchat.replication.follow");
+        if (target == null || !target.contains(":")) {
+            return null;
+        }
+        String[] parts = target.split(":");
+        ReplicationFollower follower = new ReplicationFollower(MessageManager.getMessagesDir(),
+                parts[0], Integer.parseInt(parts[1]));
+        follower.start();
+        return follower;
+    }
+
+    public long getAppliedOffset() {
+        return appliedOffset;
+    }
+
+    public synchronized void start() {
+        thread = new Thread(this::followForever, "replication-follower");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Stops following and waits for the follower thread to finish, so nothing is written
+     * to the messages folder once this returns.
+     */
+    public void stop() {
+        Thread following;
+        synchronized (this) {
+            running = false;
+            closeSocket();
+            following = thread;
+        }
+        if (following != null && following != Thread.currentThread()) {
+            following.interrupt();
+            try {
+                following.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        saveOffset();
+    }
+
+    /**
+     * Drops the connection without stopping, as if the network blipped. Used to test catching up.
+     */
+    synchronized void disconnect() {
+        closeSocket();
+    }
+
+    private void closeSocket() {
+        try {
+            if (socket != null) {
+                socket.close();
+            }
+        } catch (IOException e) {
+            // Already closed
+        }
+    }
+
+    private void followForever() {
+        long backoff = 100;
+        while (running) {
+            try {
+                follow();
+                backoff = 100;
+            } catch (IOException e) {
+                if (running) {
+                    System.err.println("Lost the replication leader (" + e.getMessage() + "), retrying");
+                }
+            }
+            if (!running) {
+                // stop() saves the offset once this thread is done
+                return;
+            }
+            saveOffset();
+            try {
+                Thread.sleep(backoff);
+            } catch (InterruptedException e) {
+                return;
+            }
+            backoff = Math.min(backoff * 2, 5000);
+        }
+    }
+
+    private void follow() throws IOException {
+        Socket s = new Socket(host, port);
+        synchronized (this) {
+            if (!running) {
+                s.close();
+                return;
+            }
+            socket = s;
+        }
+        try (BufferedReader in = new BufferedReader(new InputStreamReader(s.getInputStream(), StandardCharsets.UTF_8));
+             BufferedWriter out = new BufferedWriter(new OutputStreamWriter(s.getOutputStream(), StandardCharsets.UTF_8))) {
+            out.write("FROM " + appliedOffset);
+            out.newLine();
+            out.flush();
+
+            JSONParser parser = new JSONParser();
+            int sinceSave = 0;
+            long acked = -1;
+            String line;
+            while (running && (line = in.readLine()) != null) {
+                if (!running) {
+                    break;
+                }
+                if (line.isEmpty()) {
+                    // Heartbeat, a good time to save where we are
+                    acked = acknowledge(out, saveOffset(), acked);
+                    continue;
+                }
+                if (line.startsWith("SNAPSHOT ")) {
+                    bootstrap(line, in);
+                    acked = acknowledge(out, saveOffset(), acked);
+                    continue;
+                }
+                JSONObject entry = (JSONObject) parser.parse(line);
+                long offset = (Long) entry.get("offset");
+                apply(entry);
+                appliedOffset = offset + 1;
+                if (running && (++sinceSave >= SAVE_OFFSET_EVERY || !in.ready())) {
+                    acked = acknowledge(out, saveOffset(), acked);
+                    sinceSave = 0;
+                }
+            }
+        } catch (ParseException e) {
+            throw new IOException("Bad change log line from the leader", e);
+        } finally {
+            s.close();
+        }
+    }
+
+    // Tells the leader how far this follower has saved, if that moved since the last time
+    private static long acknowledge(BufferedWriter out, long saved, long acked) throws IOException {
+        if (saved != acked) {
+            out.write("ACK " + saved);
+            out.newLine();
+            out.flush();
+        }
+        return saved;
+    }
+
+    /**
+     * Reads the snapshot that follows a "SNAPSHOT <offset> <lines>" line and replaces everything in
+     * this follower's folder with it. The snapshot is read in full before anything is touched, and
+     * the saved offset goes back to 0 while the folder is being replaced, so a follower that stops
+     * half way asks for a new snapshot next time.
+     */
+    private void bootstrap(String header, BufferedReader in) throws IOException {
+        String[] parts = header.split(" ");
+        long offset = Long.parseLong(parts[1]);
+        long lines = Long.parseLong(parts[2]);
+        File tmp = File.createTempFile("replica", ".snap");
+        try {
+            Base64.Decoder decoder = Base64.getDecoder();
+            try (OutputStream out = new FileOutputStream(tmp)) {
+                for (long i = 0; i < lines; i++) {
+                    String line = in.readLine();
+                    if (line == null) {
+                        throw new IOException("The leader stopped in the middle of a snapshot");
+                    }
+                    out.write(decoder.decode(line));
+                }
+            } catch (IllegalArgumentException e) {
+                throw new IOException("Bad snapshot line from the leader", e);
+            }
+            Snapshot snapshot = Snapshot.read(tmp);
+
+            appliedOffset = 0;
+            saveOffset();
+            clear();
+            snapshot.restoreTo(FileMessageStore.of(messagesDir), null);
+            appliedOffset = offset;
+            System.out.println("Copied " + snapshot.getMessages().size() + " messages and "
+                    + snapshot.getBroadcasts().size() + " broadcasts from the leader");
+        } finally {
+            tmp.delete();
+        }
+    }
+
+    // Deletes every message and broadcast in the folder, before a snapshot replaces them
+    private void clear() {
+        FileMessageStore store = FileMessageStore.of(messagesDir);
+        ArrayList<String> ids = new ArrayList<>();
+        store.scan(message -> ids.add(message.getId()));
+        store.deleteAll(ids);
+        BroadcastStore broadcasts = BroadcastStore.of(messagesDir);
+        for (BroadcastStore.Broadcast broadcast : broadcasts.all()) {
+            broadcasts.delete(broadcast.getId());
+        }
+    }
+
+    /**
+     * Applies one change to this follower's own store.
+     */
+    void apply(JSONObject entry) {
+        String op = (String) entry.get("op");
+        if (ChangeLog.PUT.equals(op)) {
+            JSONObject record = (JSONObject) entry.get("record");
+            MessageManager.storeRecord(layout, (String) record.get("MESSAGE_ID"), record);
+        } else if (ChangeLog.RECEIPT.equals(op)) {
+            ReceiptLog.of(messagesDir).record((String) entry.get("id"), (int) (long) (Long) entry.get("type"));
+        } else if (ChangeLog.DELETE.equals(op)) {
+            String id = (String) entry.get("id");
+            synchronized (MessageManager.writeLockFor(id)) {
+                Snapshot.beforeDelete(messagesDir, id);
+                ReceiptLog.of(messagesDir).forget(id);
+                layout.delete(id);
+                MessageArchive.of(messagesDir).remove(id);
+                MessageManager.releasePayload(messagesDir, id);
+            }
+        } else if (ChangeLog.BROADCAST.equals(op)) {
+            BroadcastStore.of(messagesDir).applyReplicated((JSONObject) entry.get("record"), (JSONArray) entry.get("recipients"));
+        } else if (ChangeLog.BROADCAST_DELETE.equals(op)) {
+            BroadcastStore.of(messagesDir).delete((String) entry.get("id"));
+        }
+    }
+
+    private long loadOffset() {
+        File file = new File(messagesDir, OFFSET_FILE);
+        if (!file.exists()) {
+            return 0;
+        }
+        try {
+            return Long.parseLong(new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8).trim());
+        } catch (IOException | NumberFormatException e) {
+            System.err.println("Could not read " + OFFSET_FILE + ", starting from the beginning");
+            return 0;
+        }
+    }
+
+    // Returns what replica.offset holds afterwards
+    private synchronized long saveOffset() {
+        // Heartbeats come every few seconds, an idle follower should not keep rewriting the file
+        long offset = appliedOffset;
+        if (offset == savedOffset) {
+            return savedOffset;
+        }
+        messagesDir.mkdirs();
+        // Write then rename, so a follower starting on this folder never reads a half written file
+        File tmp = new File(messagesDir, OFFSET_FILE + ".tmp");
+        try {
+            Files.write(tmp.toPath(), Long.toString(offset).getBytes(StandardCharsets.UTF_8));
+            Files.move(tmp.toPath(), new File(messagesDir, OFFSET_FILE).toPath(),
+                    StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            savedOffset = offset;
+        } catch (IOException e) {
+            System.err.println("Could not save " + OFFSET_FILE + ": " + e.getMessage());
+        }
+        return savedOffset;
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        if (args.length < 2) {
+            System.out.println("Usage: ReplicationFollower <leader host> <leader port>");
+            return;
+        }
+        ReplicationFollower follower = new ReplicationFollower(MessageManager.getMessagesDir(),
+                args[0], Integer.parseInt(args[1]));
+        follower.start();
+        long last = -1;
+        while (true) {
+            Thread.sleep(1000);
+            if (follower.getAppliedOffset() != last) {
+                last = follower.getAppliedOffset();
+                System.out.println("Applied changes up to offset " + last);
+            }
+        }
+    }
+}
@@ -0,0 +1,225 @@
+package koketso;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The write side of replication. This process owns all writes, and every follower that
+ * connects over a local TCP socket gets the change log streamed to it in order.
+ *
+ * The protocol is plain text: the follower sends one line "FROM <offset>", then the leader
+ * sends change log lines starting at that offset for as long as the connection stays open.
+ * An empty line is sent once a second when there is nothing new, so a dead follower is noticed.
+ * The follower answers with "ACK <offset>" whenever it has saved how far it got.
+ *
+ * A follower that starts from 0, or from an offset that has been trimmed off the log, first gets
+ * a copy of the whole store: "SNAPSHOT <offset> <lines>" and that many lines of base64 (a Snapshot
+ * file), after which the change log carries on from that offset. That way a follower of a leader
+ * that had messages before its change log started gets those too.
+ *
+ * Once a minute the log is trimmed below the lowest offset a connected follower has saved, but
+ * the last -Dquickchat.replication.keepEntries changes (100 000 by default) are always kept, so
+ * a follower that was only gone for a while can still catch up from the log.
+ *
+ * Start the app (or the load generator) as a leader with -Dquickchat.replication.port=7070,
+ * and a follower in a second JVM, see ReplicationFollower.
+ */
+public class ReplicationLeader {
+    private static final long KEEP_ENTRIES = Long.getLong("quickchat.replication.keepEntries", 100_000L);
+    // Bytes of snapshot per line, 64 KB once it is base64
+    private static final int SNAPSHOT_CHUNK = 48 * 1024;
+
+    private final ChangeLog changeLog;
+    private final ServerSocket serverSocket;
+    private volatile boolean running = true;
+    // How far each connected follower has saved, the log is never trimmed above the lowest
+    private final ConcurrentHashMap<Socket, Long> followerOffsets = new ConcurrentHashMap<>();
+    private ScheduledExecutorService trimmer;
+
+    public ReplicationLeader(int port, ChangeLog changeLog) throws IOException {
+        this.changeLog = changeLog;
+        // Only local followers are supported, so bind to the loopback address
+        this.serverSocket = new ServerSocket(port, 50, InetAddress.getLoopbackAddress());
+    }
+
+    /**
+     * Starts leading if the quickchat.replication.port system property is set.
+     * @return The leader, or null if replication is not switched on.
+     */
+    public static ReplicationLeader startIfConfigured() {
+        Integer port = Integer.getInteger("quickchat.replication.port");
+        if (port == null) {
+            return null;
+        }
+        try {
+            ChangeLog log = new ChangeLog(MessageManager.getMessagesDir());
+            ChangeLog.activate(log);
+            ReplicationLeader leader = new ReplicationLeader(port, log);
+            leader.start();
+            System.out.println("Replication leader listening on port " + leader.getPort());
+            return leader;
+        } catch (IOException e) {
+            System.err.println("Could not start the replication leader: " + e.getMessage());
+            return null;
+        }
+    }
+
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    public synchronized void start() {
+        Thread acceptor = new Thread(this::acceptFollowers, "replication-leader");
+        acceptor.setDaemon(true);
+        acceptor.start();
+        trimmer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "replication-trim");
+            t.setDaemon(true);
+            return t;
+        });
+        trimmer.scheduleWithFixedDelay(() -> trimLog(KEEP_ENTRIES), 1, 1, TimeUnit.MINUTES);
+    }
+
+    public synchronized void stop() {
+        running = false;
+        if (trimmer != null) {
+            trimmer.shutdownNow();
+        }
+        try {
+            serverSocket.close();
+        } catch (IOException e) {
+            // Already closed
+        }
+    }
+
+    private void acceptFollowers() {
+        while (running) {
+            try {
+                Socket socket = serverSocket.accept();
+                Thread sender = new Thread(() -> serveFollower(socket), "replication-to-" + socket.getPort());
+                sender.setDaemon(true);
+                sender.start();
+            } catch (IOException e) {
+                if (running) {
+                    System.err.println("Replication leader could not accept a follower: " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    /**
+     * Drops the changes that every connected follower has saved, keeping at least the newest ones.
+     * @return Where the log starts now.
+     */
+    long trimLog(long keepEntries) {
+        long keepFrom = changeLog.getNextOffset() - keepEntries;
+        for (long saved : followerOffsets.values()) {
+            keepFrom = Math.min(keepFrom, saved);
+        }
+        try {
+            changeLog.trimBelow(keepFrom);
+        } catch (IOException e) {
+            System.err.println("Could not trim the change log: " + e.getMessage());
+        }
+        return changeLog.getFirstOffset();
+    }
+
+    private void serveFollower(Socket socket) {
+        try (Socket s = socket;
+             BufferedReader in = new BufferedReader(new InputStreamReader(s.getInputStream(), StandardCharsets.UTF_8));
+             BufferedWriter out = new BufferedWriter(new OutputStreamWriter(s.getOutputStream(), StandardCharsets.UTF_8))) {
+            String hello = in.readLine();
+            if (hello == null || !hello.startsWith("FROM ")) {
+                return;
+            }
+            long offset = Long.parseLong(hello.substring(5).trim());
+            // Nothing is trimmed while this follower is being set up
+            followerOffsets.put(s, changeLog.getFirstOffset());
+            // A new follower, one that is behind the start of the log, or one that has entries we
+            // don't (it followed another leader): it starts again from a copy of the store
+            if (offset == 0 || offset < changeLog.getFirstOffset() || offset > changeLog.getNextOffset()) {
+                offset = sendSnapshot(out);
+            }
+            followerOffsets.put(s, offset);
+
+            BufferedReader log = changeLog.openFrom(offset);
+            try {
+                while (running) {
+                    long end = changeLog.awaitChanges(offset, 1000);
+                    if (end == offset) {
+                        out.newLine(); // heartbeat
+                    }
+                    for (; offset < end; offset++) {
+                        String line = log.readLine();
+                        if (line == null) {
+                            // The log was trimmed and this reader is still on the old file
+                            log.close();
+                            log = changeLog.openFrom(offset);
+                            line = log.readLine();
+                        }
+                        out.write(line);
+                        out.newLine();
+                    }
+                    out.flush();
+                    while (in.ready()) {
+                        String ack = in.readLine();
+                        if (ack != null && ack.startsWith("ACK ")) {
+                            followerOffsets.put(s, Long.parseLong(ack.substring(4).trim()));
+                        }
+                    }
+                }
+            } finally {
+                log.close();
+            }
+        } catch (IOException | NumberFormatException e) {
+            // The follower went away, it will reconnect and say where it got to
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            followerOffsets.remove(socket);
+        }
+    }
+
+    // Sends a copy of the whole store and returns the offset the follower carries on from
+    private long sendSnapshot(BufferedWriter out) throws IOException {
+        File tmp = File.createTempFile("replica", ".snap");
+        try {
+            // Read before the snapshot starts: every change below it is in the snapshot. Some of the
+            // later ones may be in it too, they are sent again, and applying a change twice is harmless.
+            long offset = changeLog.getNextOffset();
+            Snapshot.take(changeLog.getMessagesDir(), null, tmp);
+            long lines = (tmp.length() + SNAPSHOT_CHUNK - 1) / SNAPSHOT_CHUNK;
+            out.write("SNAPSHOT " + offset + " " + lines);
+            out.newLine();
+            Base64.Encoder encoder = Base64.getEncoder();
+            try (InputStream in = new FileInputStream(tmp)) {
+                byte[] chunk = new byte[SNAPSHOT_CHUNK];
+                for (long i = 0; i < lines; i++) {
+                    int read = in.readNBytes(chunk, 0, chunk.length);
+                    out.write(encoder.encodeToString(read == chunk.length ? chunk : Arrays.copyOf(chunk, read)));
+                    out.newLine();
+                }
+            }
+            out.flush();
+            return offset;
+        } finally {
+            tmp.delete();
+        }
+    }
+}
@@ -0,0 +1,256 @@
+package koketso;
+
+import org.json.simple.JSONObject;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+/**
+ * Writes the sent reports as a stream (CSV or JSONL) instead of building one big string.
+ *
+ * The messages are cut into chunks, and each chunk is filtered and formatted on the fork-join pool.
+ * The writer takes the finished chunks in their original order. Only a small window of chunks is
+ * in flight at any time, so memory stays the same however long the report is.
+ *
+ * Usage: java koketso.ReportExporter full|recipients|longest senderCell outFile [csv|jsonl]
+ */
+public class ReportExporter {
+    private static final int CHUNK_SIZE = Integer.getInteger("quickchat.report.chunkSize", 1024);
+
+    public enum Format { CSV, JSONL }
+
+    public enum Report {
+        /** Hash, recipient, message and status of everything the sender sent or stored. */
+        FULL("hash", "recipient", "message", "status"),
+        /** Sender and recipient of every sent message. */
+        SENDER_RECIPIENT("sender", "recipient"),
+        /** The sender's longest sent message. */
+        LONGEST("id", "recipient", "length", "message");
+
+        private final String[] columns;
+
+        Report(String... columns) {
+            this.columns = columns;
+        }
+    }
+
+    private final ForkJoinPool pool;
+    private final int window;
+
+    public ReportExporter(ForkJoinPool pool) {
+        this.pool = pool;
+        // Enough chunks to keep every worker busy while the writer catches up
+        this.window = pool.getParallelism() * 2;
+    }
+
+    public ReportExporter() {
+        this(ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Writes one report for a sender. The stream is flushed but not closed.
+     * @param messages The messages to report on, in the order they should appear.
+     * @param sender The sender's cellphone number.
+     * @return How many rows were written, not counting the CSV header.
+     */
+    public long export(List<Message> messages, String sender, Report report, Format format, OutputStream out)
+            throws IOException {
+        Writer writer = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8));
+        if (format == Format.CSV) {
+            writer.write(String.join(",", report.columns));
+            writer.write("\n");
+        }
+
+        long rows;
+        if (report == Report.LONGEST) {
+            Message longest = findLongest(messages, sender);
+            rows = 0;
+            if (longest != null) {
+                writer.write(formatRow(report, format, longest));
+                rows = 1;
+            }
+        } else {
+            rows = writeRows(messages, sender, report, format, writer);
+        }
+        writer.flush();
+        return rows;
+    }
+
+    /**
+     * Writes a report to a file, replacing it if it is there.
+     */
+    public long export(List<Message> messages, String sender, Report report, Format format, File file)
+            throws IOException {
+        File parent = file.getAbsoluteFile().getParentFile();
+        if (parent != null) {
+            parent.mkdirs();
+        }
+        try (OutputStream out = new FileOutputStream(file)) {
+            return export(messages, sender, report, format, out);
+        }
+    }
+
+    private long writeRows(List<Message> messages, String sender, Report report, Format format, Writer writer)
+            throws IOException {
+        ArrayDeque<ForkJoinTask<Chunk>> inFlight = new ArrayDeque<>();
+        long rows = 0;
+        int next = 0;
+        while (next < messages.size() || !inFlight.isEmpty()) {
+            // Keep the window full, then write out the oldest chunk once it is done
+            while (next < messages.size() && inFlight.size() < window) {
+                List<Message> slice = messages.subList(next, Math.min(next + CHUNK_SIZE, messages.size()));
+                inFlight.add(pool.submit(() -> formatChunk(slice, sender, report, format)));
+                next += slice.size();
+            }
+            Chunk chunk = join(inFlight.poll());
+            writer.write(chunk.text);
+            rows += chunk.rows;
+        }
+        return rows;
+    }
+
+    private Message findLongest(List<Message> messages, String sender) throws IOException {
+        ArrayDeque<ForkJoinTask<Message>> inFlight = new ArrayDeque<>();
+        Message longest = null;
+        int next = 0;
+        while (next < messages.size() || !inFlight.isEmpty()) {
+            while (next < messages.size() && inFlight.size() < window) {
+                List<Message> slice = messages.subList(next, Math.min(next + CHUNK_SIZE, messages.size()));
+                inFlight.add(pool.submit(() -> longestIn(slice, sender)));
+                next += slice.size();
+            }
+            Message candidate = join(inFlight.poll());
+            // Strictly longer, so the first of equally long messages wins like in the menu
+            if (candidate != null && (longest == null || candidate.getPayload().length() > longest.getPayload().length())) {
+                longest = candidate;
+            }
+        }
+        return longest;
+    }
+
+    private static <T> T join(ForkJoinTask<T> task) throws IOException {
+        try {
+            return task.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Report export was interrupted", e);
+        } catch (ExecutionException e) {
+            throw new IOException("Could not build the report: " + e.getCause(), e.getCause());
+        }
+    }
+
+    // The formatted text of one chunk and how many rows it holds
+    private static class Chunk {
+        final String text;
+        final int rows;
+
+        Chunk(String text, int rows) {
+            this.text = text;
+            this.rows = rows;
+        }
+    }
+
+    private static Chunk formatChunk(List<Message> slice, String sender, Report report, Format format) {
+        StringBuilder text = new StringBuilder();
+        int rows = 0;
+        for (Message msg : slice) {
+            if (matches(msg, sender, report)) {
+                text.append(formatRow(report, format, msg));
+                rows++;
+            }
+        }
+        return new Chunk(text.toString(), rows);
+    }
+
+    private static Message longestIn(List<Message> slice, String sender) {
+        Message longest = null;
+        for (Message msg : slice) {
+            if (matches(msg, sender, Report.LONGEST)
+                    && (longest == null || msg.getPayload().length() > longest.getPayload().length())) {
+                longest = msg;
+            }
+        }
+        return longest;
+    }
+
+    // Same filters as the report screens: the full report has stored messages too, the others only sent ones
+    private static boolean matches(Message msg, String sender, Report report) {
+        if (!sender.equals(msg.getSender())) {
+            return false;
+        }
+        return report == Report.FULL || "Sent".equals(msg.getStatus());
+    }
+
+    private static String[] values(Report report, Message msg) {
+        switch (report) {
+            case FULL:
+                return new String[]{msg.getHash(), msg.getRecipient(), msg.getPayload(), msg.getStatus()};
+            case SENDER_RECIPIENT:
+                return new String[]{msg.getSender(), msg.getRecipient()};
+            default:
+                return new String[]{msg.getId(), msg.getRecipient(),
+                        String.valueOf(msg.getPayload().length()), msg.getPayload()};
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    static String formatRow(Report report, Format format, Message msg) {
+        String[] values = values(report, msg);
+        if (format == Format.JSONL) {
+            JSONObject row = new JSONObject();
+            for (int i = 0; i < values.length; i++) {
+                row.put(report.columns[i], values[i]);
+            }
+            return row.toJSONString() + "\n";
+        }
+        StringBuilder line = new StringBuilder();
+        for (int i = 0; i < values.length; i++) {
+            if (i > 0) {
+                line.append(',');
+            }
+            line.append(csvField(values[i]));
+        }
+        return line.append('\n').toString();
+    }
+
+    /**
+     * Quotes a CSV field if it has a comma, quote or line break in it.
+     */
+    static String csvField(String value) {
+        if (value == null) {
+            return "";
+        }
+        if (value.indexOf(',') < 0 && value.indexOf('"') < 0 && value.indexOf('\n') < 0 && value.indexOf('\r') < 0) {
+            return value;
+        }
+        return '"' + value.replace("\"", "\"\"") + '"';
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 3) {
+            System.out.println("Usage: ReportExporter full|recipients|longest senderCell outFile [csv|jsonl]");
+            return;
+        }
+        Report report;
+        switch (args[0]) {
+            case "full": report = Report.FULL; break;
+            case "recipients": report = Report.SENDER_RECIPIENT; break;
+            case "longest": report = Report.LONGEST; break;
+            default: System.out.println("Unknown report " + args[0]); return;
+        }
+        Format format = args.length > 3 && "jsonl".equalsIgnoreCase(args[3]) ? Format.JSONL : Format.CSV;
+        long start = System.currentTimeMillis();
+        long rows = new ReportExporter().export(MessageManager.messagesFor(MessageManager.loadAllMessages(), args[1]), args[1], report, format, new File(args[2]));
+        System.out.printf("Wrote %d rows to %s in %d ms%n", rows, args[2], System.currentTimeMillis() - start);
+    }
+}
@@ -0,0 +1,124 @@
+package koketso;
+
+import java.util.Collection;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.LongSupplier;
+
+/**
+ * Drops (or archives) messages once they are older than the retention period for their kind.
+ *
+ * Periods are set per class in days, 0 keeps that class forever (the default for all of them):
+ *   -Dquickchat.retention.sentReadDays, -Dquickchat.retention.sentUnreadDays, -Dquickchat.retention.storedDays
+ * With -Dquickchat.retention.action=archive the messages go to the archive tier instead of being deleted.
+ *
+ * The sweeper never looks at messages one at a time. It asks the store's TimeBucketIndex for the
+ * buckets of each class that ended before the cutoff and hands every bucket to the store in one go.
+ * A bucket is only taken once all of it is past the cutoff, so a message can live up to one bucket
+ * (a day by default) longer than its period.
+ * The IDs of every swept bucket are handed to a listener, so a list of loaded messages can drop them too.
+ */
+public class RetentionSweeper {
+    private static final long SWEEP_MINUTES = Long.getLong("quickchat.retention.sweepMinutes", 60L);
+
+    private final MessageStore store;
+    private final EnumMap<TimeBucketIndex.StatusClass, Long> retentionMillis;
+    private final boolean archive;
+    private final LongSupplier clock;
+    private final Consumer<Collection<String>> onSwept;
+
+    public RetentionSweeper(MessageStore store, EnumMap<TimeBucketIndex.StatusClass, Long> retentionMillis,
+                            boolean archive, LongSupplier clock) {
+        this(store, retentionMillis, archive, clock, ids -> { });
+    }
+
+    /**
+     * @param store Where the messages are.
+     * @param retentionMillis How long each class is kept, a class that is missing (or 0) is kept forever.
+     * @param archive true to archive expired messages, false to delete them.
+     * @param clock Gives the time in epoch millis (System::currentTimeMillis outside of tests).
+     * @param onSwept Gets the IDs of each bucket once it has been dropped or archived. It runs on the sweeper thread.
+     */
+    public RetentionSweeper(MessageStore store, EnumMap<TimeBucketIndex.StatusClass, Long> retentionMillis,
+                            boolean archive, LongSupplier clock, Consumer<Collection<String>> onSwept) {
+        this.store = store;
+        this.retentionMillis = new EnumMap<>(retentionMillis);
+        this.archive = archive;
+        this.clock = clock;
+        this.onSwept = onSwept;
+    }
+
+    /**
+     * The retention periods from the system properties, in millis.
+     */
+    static EnumMap<TimeBucketIndex.StatusClass, Long> configuredRetention() {
+        EnumMap<TimeBucketIndex.StatusClass, Long> retention = new EnumMap<>(TimeBucketIndex.StatusClass.class);
+        putDays(retention, TimeBucketIndex.StatusClass.SENT_READ, "quickchat.retention.sentReadDays");
+        putDays(retention, TimeBucketIndex.StatusClass.SENT_UNREAD, "quickchat.retention.sentUnreadDays");
+        putDays(retention, TimeBucketIndex.StatusClass.STORED, "quickchat.retention.storedDays");
+        return retention;
+    }
+
+    private static void putDays(EnumMap<TimeBucketIndex.StatusClass, Long> retention,
+                                TimeBucketIndex.StatusClass statusClass, String property) {
+        long days = Long.getLong(property, 0L);
+        if (days > 0) {
+            retention.put(statusClass, TimeUnit.DAYS.toMillis(days));
+        }
+    }
+
+    /**
+     * Starts a background sweep of the app's store if any retention period is set. It runs every
+     * hour, or every -Dquickchat.retention.sweepMinutes. The thread is a daemon so it never keeps the app open.
+     * @param onSwept Gets the IDs of every bucket that was dropped or archived.
+     * @return The scheduler, or null if nothing expires.
+     */
+    public static ScheduledExecutorService startIfConfigured(Consumer<Collection<String>> onSwept) {
+        EnumMap<TimeBucketIndex.StatusClass, Long> retention = configuredRetention();
+        if (retention.isEmpty()) {
+            return null;
+        }
+        RetentionSweeper sweeper = new RetentionSweeper(MessageStore.getDefault(), retention,
+                "archive".equalsIgnoreCase(System.getProperty("quickchat.retention.action")),
+                System::currentTimeMillis, onSwept);
+        ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "retention-sweeper");
+            t.setDaemon(true);
+            return t;
+        });
+        scheduler.scheduleWithFixedDelay(() -> {
+            int swept = sweeper.sweep();
+            if (swept > 0) {
+                System.out.println((sweeper.archive ? "Archived " : "Deleted ") + swept + " expired messages.");
+            }
+        }, 1, SWEEP_MINUTES, TimeUnit.MINUTES);
+        return scheduler;
+    }
+
+    /**
+     * Takes every expired bucket out of the index and drops or archives it.
+     * @return How many messages were dropped or archived.
+     */
+    public int sweep() {
+        long now = clock.getAsLong();
+        TimeBucketIndex index = store.timeIndex();
+        int swept = 0;
+        for (TimeBucketIndex.StatusClass statusClass : TimeBucketIndex.StatusClass.values()) {
+            Long retention = retentionMillis.get(statusClass);
+            if (retention == null || retention <= 0) {
+                continue;
+            }
+            List<Set<String>> expired = index.takeExpired(statusClass, now - retention);
+            for (Set<String> bucket : expired) {
+                swept += archive ? store.archiveAll(bucket) : store.deleteAll(bucket);
+                onSwept.accept(bucket);
+            }
+        }
+        return swept;
+    }
+}
@@ -1,22 +1,91 @@
 package koketso;
 
 import javax.swing.JOptionPane;
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
 
 public class ST10399194PROG5121POE {
     
-    private static UserManager userManager = new UserManager();
-    private static RegistrationLogin currentUser = null;
-    private static ArrayList<Message> allMessages = new ArrayList<>();
+    private static StartupLoader loader;
+    private static UserRecord currentUser = null;
+    private static List<Message> allMessages = new ArrayList<>();
+    // The logged in user's messages for the reports, archived ones included
+    private static List<Message> myMessages = new ArrayList<>();
+    private static DeliveryScheduler deliveryScheduler;
+    private static boolean readOnlyReplica = false;
+    private static boolean loggedInBefore = false;
+    private static final int REPORT_DIALOG_LIMIT = 200;
 
     public static void main(String[] args) {
+        ReplicationLeader.startIfConfigured();
+        readOnlyReplica = ReplicationFollower.startIfConfigured() != null;
+        // The scheduler starts empty so messages can be stored for later before loading is done.
+        // Its first tick is a second away, by then the loader is there to take the sent copies.
+        deliveryScheduler = startDeliveryScheduler(readOnlyReplica);
+        // Users and messages load in the background while the welcome screen is up
+        loader = StartupLoader.start(messages -> {
+            // The analytics start from what is already on disk, after that every send keeps them up to date
+            SendAnalytics.getDefault().recordAll(messages);
+            if (deliveryScheduler != null) {
+                deliveryScheduler.rebuild(messages);
+            }
+        });
+        // Archived messages are not loaded any more, the analytics read them once on their own
+        loader.whenFullyLoaded().thenRunAsync(() -> MessageArchive.getDefault().forEach(SendAnalytics.getDefault()::record));
+        // The welcome dialog is the first screen, it is measured before it waits for the click
+        loader.firstMenuShown();
         JOptionPane.showMessageDialog(null, "Welcome to QuickChat by Koketso Modiselle");
-        allMessages = MessageManager.loadAllMessages();
+        startWritingJobs(readOnlyReplica, loader);
         while (true) {
             showMainMenu();
         }
     }
 
+    /**
+     * Starts the scheduler that sends stored messages when they are due.
+     * @return The scheduler, or null on a follower: it only writes what the leader sends it,
+     * and the leader sends the scheduled messages itself.
+     */
+    static DeliveryScheduler startDeliveryScheduler(boolean follower) {
+        if (follower) {
+            return null;
+        }
+        return DeliveryScheduler.start(new ArrayList<>(), sent -> loader.replace(sent));
+    }
+
+    /**
+     * Starts the background jobs that change the messages folder on their own: archiving,
+     * retention, snapshots and the move to the sharded layout. None of them run on a follower,
+     * whatever they would do there is done by the leader and comes through the change log.
+     * @return The scheduled jobs that were started, empty on a follower.
+     */
+    static List<ScheduledExecutorService> startWritingJobs(boolean follower, StartupLoader loader) {
+        ArrayList<ScheduledExecutorService> jobs = new ArrayList<>();
+        if (follower) {
+            return jobs;
+        }
+        jobs.add(MessageArchive.startTieringJob());
+        // Swept messages also leave the loaded list, or the reports would still show them
+        ScheduledExecutorService sweeper = RetentionSweeper.startIfConfigured(loader::forget);
+        if (sweeper != null) {
+            jobs.add(sweeper);
+        }
+        // Snapshots are taken here, in the app, so the writes made while one runs are captured
+        ScheduledExecutorService snapshots = Snapshot.startIfConfigured(loader::users);
+        if (snapshots != null) {
+            jobs.add(snapshots);
+        }
+        // Move to the sharded folder layout when asked to, or finish a migration that was cut short
+        MessageLayout layout = MessageLayout.getDefault();
+        if (Boolean.getBoolean("quickchat.messages.sharded") || MessageLayout.MIGRATING.equals(layout.getLayout())) {
+            layout.startMigration();
+        }
+        return jobs;
+    }
+
     public static void showMainMenu() {
         String[] options;
         if (currentUser == null) {
@@ -44,6 +113,10 @@ public class ST10399194PROG5121POE {
     }
 
     public static void handleLoggedInUser(int choice) {
+        if (readOnlyReplica && choice == 0) {
+            JOptionPane.showMessageDialog(null, "This is a read-only replica. Please send messages on the main server.");
+            return;
+        }
         switch (choice) {
             case 0: doSendMessage(); break;
             case 1: showInbox(); break;
@@ -56,14 +129,26 @@ public class ST10399194PROG5121POE {
     public static void showInbox() {
         StringBuilder inboxContent = new StringBuilder("--- Your Inbox ---\n");
         ArrayList<Message> userInbox = new ArrayList<>();
+        List<Message> mine;
+        if (readOnlyReplica) {
+            // The leader keeps sending changes, so always show the latest copy
+            allMessages = MessageManager.loadMessageList();
+            mine = MessageManager.messagesFor(allMessages, currentUser.getCellPhoneNumber());
+        } else {
+            // Only waits for this user's messages, archived ones included, not the whole load
+            mine = loader.messagesFor(currentUser.getCellPhoneNumber());
+        }
 
-        for (Message msg : allMessages) {
+        for (Message msg : mine) {
             if (msg.getRecipient().equals(currentUser.getCellPhoneNumber())) {
                 userInbox.add(msg);
-                if (!msg.isReceived()) {
-                    msg.setReceived(true);
-                    msg.storeMessage();
-                }
+            }
+        }
+        // Broadcasts are not in allMessages, the inbox only holds a reference to them
+        userInbox.addAll(BroadcastStore.getDefault().inboxFor(currentUser.getCellPhoneNumber()));
+        for (Message msg : userInbox) {
+            if (!msg.isReceived() && !readOnlyReplica) {
+                MessageStore.getDefault().markDelivered(msg);
             }
         }
 
@@ -91,8 +176,9 @@ public class ST10399194PROG5121POE {
             }
 
             if (messageToRead != null) {
-                messageToRead.setRead(true);
-                messageToRead.storeMessage();
+                if (!readOnlyReplica) {
+                    MessageStore.getDefault().markRead(messageToRead);
+                }
                 JOptionPane.showMessageDialog(null, "From: " + messageToRead.getSender() + "\n\n" + messageToRead.getPayload());
             } else {
                 JOptionPane.showMessageDialog(null, "Message with that ID not found in your inbox.");
@@ -101,15 +187,29 @@ public class ST10399194PROG5121POE {
     }
 
     public static void showSentReportsMenu() {
-        String[] reportOptions = {"Display Sent Sender/Recipient", "Display Longest Sent Message", "Delete a Sent Message", "Display Full Sent Report", "Back"};
+        String[] reportOptions = {"Display Sent Sender/Recipient", "Display Longest Sent Message", "Delete a Sent Message", "Display Full Sent Report", "Display Receipt Status", "Store-wide Analytics", "Back"};
         int choice = JOptionPane.showOptionDialog(null, "Sent Message Reports", "Reports Menu",
                 JOptionPane.DEFAULT_OPTION, JOptionPane.PLAIN_MESSAGE, null, reportOptions, reportOptions[0]);
+        if (readOnlyReplica) {
+            if (choice == 2) {
+                JOptionPane.showMessageDialog(null, "This is a read-only replica. Please delete messages on the main server.");
+                return;
+            }
+            allMessages = MessageManager.loadMessageList();
+        } else {
+            allMessages = loader.messages();
+        }
+        if (choice >= 0 && choice <= 4) {
+            myMessages = MessageManager.messagesFor(allMessages, currentUser.getCellPhoneNumber());
+        }
 
         switch (choice) {
             case 0: displaySenderAndRecipient(); break;
             case 1: displayLongestMessage(); break;
             case 2: deleteByHash(); break;
             case 3: displayFullReport(); break;
+            case 4: displayReceiptStatus(); break;
+            case 5: displayAnalytics(); break;
             default: return;
         }
     }
@@ -127,7 +227,7 @@ public class ST10399194PROG5121POE {
         if (lastName == null) return;
 
         RegistrationLogin newUser = new RegistrationLogin();
-        String feedback = userManager.registerUser(newUser, username, password, cellphone, firstName, lastName);
+        String feedback = loader.users().registerUser(newUser, username, password, cellphone, firstName, lastName);
         JOptionPane.showMessageDialog(null, feedback);
     }
 
@@ -137,18 +237,25 @@ public class ST10399194PROG5121POE {
         String password = JOptionPane.showInputDialog("Enter password:");
         if (password == null) return;
 
-        RegistrationLogin user = userManager.findUser(username);
-        if (user != null && user.loginUser(username, password)) {
-            currentUser = user;
-            allMessages = MessageManager.loadAllMessages();
-            JOptionPane.showMessageDialog(null, user.returnLoginStatus());
+        // Logging in only needs the users, the messages can keep loading
+        LoginResult result = loader.users().getAuthenticator().login(username, password);
+        if (result.isSuccess()) {
+            currentUser = result.getUser();
+            if (loggedInBefore) {
+                // Pick up what changed on disk since the last login without making this user wait
+                loader.reloadMessages();
+            }
+            // Start on this user's inbox while the welcome message is up
+            loader.prefetch(currentUser.getCellPhoneNumber());
+            loggedInBefore = true;
+            JOptionPane.showMessageDialog(null, result.getStatusMessage());
         } else {
             JOptionPane.showMessageDialog(null, "Login failed.");
         }
     }
     
     public static void doSendMessage() {
-        String recipient = JOptionPane.showInputDialog("Recipient's cell number:");
+        String recipient = JOptionPane.showInputDialog("Recipient's cell number (separate numbers with commas to send to a group):");
         if (recipient == null) return;
         String payload = JOptionPane.showInputDialog("Your message (max 250 chars):");
         if (payload == null) return;
@@ -158,6 +265,11 @@ public class ST10399194PROG5121POE {
             if (payload == null) return;
         }
 
+        if (recipient.contains(",")) {
+            doBroadcast(recipient, payload);
+            return;
+        }
+
         Message message = new Message(currentUser.getCellPhoneNumber(), recipient, payload);
         String[] actions = {"Send", "Disregard", "Store for later"};
         int choice = JOptionPane.showOptionDialog(null, "Action?", "Message Action",
@@ -166,31 +278,66 @@ public class ST10399194PROG5121POE {
         switch(choice) {
             case 0:
                 String result = message.sentMessage();
-                if (result.equals("Message sent successfully")) allMessages.add(message);
+                if (result.equals("Message sent successfully")) loader.add(message);
                 JOptionPane.showMessageDialog(null, result);
                 break;
             case 1:
                 JOptionPane.showMessageDialog(null, "Message disregarded.");
                 break;
             case 2:
+                String delay = JOptionPane.showInputDialog("Send automatically in how many minutes? (leave empty to just store it)");
                 message.setStatus("Stored");
+                long minutes = 0;
+                if (delay != null && !delay.trim().isEmpty()) {
+                    try {
+                        minutes = Long.parseLong(delay.trim());
+                    } catch (NumberFormatException e) {
+                        JOptionPane.showMessageDialog(null, "That is not a number, the message will only be stored.");
+                    }
+                }
+                if (minutes > 0) {
+                    message.setSendAt(System.currentTimeMillis() + minutes * 60_000L);
+                }
                 message.storeMessage();
-                allMessages.add(message);
-                JOptionPane.showMessageDialog(null, "Message stored.");
+                loader.add(message);
+                if (message.getSendAt() > 0) {
+                    deliveryScheduler.schedule(message);
+                    JOptionPane.showMessageDialog(null, "Message stored, it will be sent in " + minutes + " minute(s).");
+                } else {
+                    JOptionPane.showMessageDialog(null, "Message stored.");
+                }
                 break;
         }
     }
 
+    public static void doBroadcast(String recipients, String payload) {
+        ArrayList<String> numbers = new ArrayList<>();
+        for (String number : recipients.split(",")) {
+            if (!number.trim().isEmpty()) {
+                numbers.add(number.trim());
+            }
+        }
+        int choice = JOptionPane.showConfirmDialog(null, "Send this message to " + numbers.size() + " numbers?",
+                "Group Message", JOptionPane.YES_NO_OPTION);
+        if (choice != JOptionPane.YES_OPTION) {
+            JOptionPane.showMessageDialog(null, "Message disregarded.");
+            return;
+        }
+        JOptionPane.showMessageDialog(null, BroadcastStore.getDefault().send(currentUser.getCellPhoneNumber(), numbers, payload));
+    }
+
     public static void doLogout() {
         currentUser = null;
-        allMessages.clear();
+        // Only let go of our copy, the loader's list is reloaded at the next login
+        allMessages = new ArrayList<>();
+        myMessages = new ArrayList<>();
         JOptionPane.showMessageDialog(null, "Logged out.");
     }
     
     public static void displaySenderAndRecipient() {
         StringBuilder report = new StringBuilder("--- Your Sent Messages ---\n");
         boolean found = false;
-        for (Message msg : allMessages) {
+        for (Message msg : myMessages) {
             if (msg.getSender().equals(currentUser.getCellPhoneNumber()) && "Sent".equals(msg.getStatus())) {
                 report.append("To: ").append(msg.getRecipient()).append("\n");
                 found = true;
@@ -201,7 +348,7 @@ public class ST10399194PROG5121POE {
 
     public static void displayLongestMessage() {
         Message longestMsg = null;
-        for (Message msg : allMessages) {
+        for (Message msg : myMessages) {
             if (msg.getSender().equals(currentUser.getCellPhoneNumber()) && "Sent".equals(msg.getStatus())) {
                 if (longestMsg == null || msg.getPayload().length() > longestMsg.getPayload().length()) {
                     longestMsg = msg;
@@ -216,7 +363,7 @@ public class ST10399194PROG5121POE {
         String hash = JOptionPane.showInputDialog("Enter hash of the SENT message to delete:");
         if (hash == null) return;
         Message toDelete = null;
-        for (Message msg : allMessages) {
+        for (Message msg : myMessages) {
             if (hash.equals(msg.getHash()) && msg.getSender().equals(currentUser.getCellPhoneNumber())) {
                 toDelete = msg;
                 break;
@@ -225,19 +372,77 @@ public class ST10399194PROG5121POE {
         if (toDelete != null) {
             if (MessageManager.deleteMessageFile(toDelete.getId())) {
                 allMessages.remove(toDelete);
+                myMessages.remove(toDelete);
                 JOptionPane.showMessageDialog(null, "Message deleted: \"" + toDelete.getPayload() + "\"");
             } else {
                 JOptionPane.showMessageDialog(null, "Error: Could not delete message file.");
             }
-        } else {
+        } else if (!deleteBroadcastByHash(hash)) {
             JOptionPane.showMessageDialog(null, "Message with that hash not found in your sent items.");
         }
     }
+
+    // Group messages are not in the message list, they are looked up in the BroadcastStore
+    private static boolean deleteBroadcastByHash(String hash) {
+        for (BroadcastStore.Broadcast broadcast : BroadcastStore.getDefault().sentBy(currentUser.getCellPhoneNumber())) {
+            if (hash.equals(broadcast.getHash())) {
+                if (BroadcastStore.getDefault().delete(broadcast.getId())) {
+                    JOptionPane.showMessageDialog(null, "Group message deleted for all " + broadcast.getRecipientCount()
+                            + " recipients: \"" + broadcast.getPayload() + "\"");
+                } else {
+                    JOptionPane.showMessageDialog(null, "Error: Could not delete the group message.");
+                }
+                return true;
+            }
+        }
+        return false;
+    }
     
+    public static void displayReceiptStatus() {
+        ArrayList<Message> sent = new ArrayList<>();
+        ArrayList<String> ids = new ArrayList<>();
+        for (Message msg : myMessages) {
+            if (msg.getSender().equals(currentUser.getCellPhoneNumber()) && "Sent".equals(msg.getStatus())) {
+                sent.add(msg);
+                ids.add(msg.getId());
+            }
+        }
+        if (sent.isEmpty()) {
+            JOptionPane.showMessageDialog(null, "You haven't sent any messages.");
+            return;
+        }
+
+        // One lookup for all of them instead of reading each message file
+        int[] flags = MessageStore.getDefault().flagsOf(ids);
+        StringBuilder report = new StringBuilder("--- Receipt Status ---\n");
+        for (int i = 0; i < sent.size(); i++) {
+            String status = (flags[i] & ReceiptLog.READ) != 0 ? "READ"
+                    : (flags[i] & ReceiptLog.DELIVERED) != 0 ? "DELIVERED" : "NOT DELIVERED";
+            report.append("To: ").append(sent.get(i).getRecipient()).append(" - ").append(status).append("\n");
+        }
+        JOptionPane.showMessageDialog(null, report.toString());
+    }
+
+    public static void displayAnalytics() {
+        String report = SendAnalytics.getDefault().report();
+        if (PayloadStore.isInUse(MessageManager.getMessagesDir())) {
+            report += "\n" + PayloadStore.getDefault().getStats();
+        }
+        JOptionPane.showMessageDialog(null, report);
+    }
+
     public static void displayFullReport() {
+        // A dialog can only show a few hundred messages, bigger reports are streamed to a CSV file
+        int count = 0;
+        for (Message msg : myMessages) {
+            if (msg.getSender().equals(currentUser.getCellPhoneNumber()) && ++count > REPORT_DIALOG_LIMIT) {
+                exportFullReport();
+                return;
+            }
+        }
         StringBuilder report = new StringBuilder("--- Full Sent Items Report ---\n");
         boolean found = false;
-        for (Message msg : allMessages) {
+        for (Message msg : myMessages) {
             if (msg.getSender().equals(currentUser.getCellPhoneNumber())) {
                 report.append("Hash: ").append(msg.getHash()).append("\n");
                 report.append("Recipient: ").append(msg.getRecipient()).append("\n");
@@ -248,4 +453,15 @@ public class ST10399194PROG5121POE {
         }
         JOptionPane.showMessageDialog(null, found ? report.toString() : "You have no sent or stored messages.");
     }
+
+    private static void exportFullReport() {
+        File file = new File("reports", "full_report_" + currentUser.getCellPhoneNumber().replace("+", "") + ".csv");
+        try {
+            long rows = new ReportExporter().export(myMessages, currentUser.getCellPhoneNumber(),
+                    ReportExporter.Report.FULL, ReportExporter.Format.CSV, file);
+            JOptionPane.showMessageDialog(null, "Your report has " + rows + " messages, it was saved to " + file.getAbsolutePath());
+        } catch (IOException e) {
+            JOptionPane.showMessageDialog(null, "Could not save the report: " + e.getMessage());
+        }
+    }
 }
@@ -0,0 +1,210 @@
+package koketso;
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+/**
+ * Store-wide statistics that are updated on every send, so the reports never have to scan all messages.
+ *
+ * - Busiest senders and most messaged recipients: a Count-Min sketch estimates every number's count,
+ *   and a small min-heap keeps the K numbers with the highest estimates.
+ * - Distinct recipients per sender: one HyperLogLog per sender. Only the most recently active
+ *   senders keep one, so the memory stays fixed no matter how many users there are.
+ * - Payload lengths: a histogram with one bucket per 10 characters.
+ *
+ * Everything here has a fixed size, set when the object is made.
+ */
+public class SendAnalytics {
+    private static final int TOP_K = Integer.getInteger("quickchat.analytics.topK", 10);
+    private static final int MAX_TRACKED_SENDERS = Integer.getInteger("quickchat.analytics.maxSenders", 4096);
+    private static final int SKETCH_DEPTH = 4;
+    private static final int SKETCH_WIDTH = 4096;
+    private static final int HLL_PRECISION = 10;
+    static final int LENGTH_BUCKET = 10;
+
+    private static volatile SendAnalytics defaultAnalytics;
+
+    private final TopK senders;
+    private final TopK recipients;
+    private final HyperLogLog allRecipients = new HyperLogLog(HLL_PRECISION);
+    private final LinkedHashMap<String, HyperLogLog> recipientsPerSender;
+    // Bucket i counts payloads of i*10 to i*10+9 characters, the last one anything over 250
+    private final long[] lengthHistogram = new long[250 / LENGTH_BUCKET + 2];
+    private long totalMessages;
+
+    /**
+     * One Top-K list: a Count-Min sketch for the counts and a min-heap of the current leaders.
+     */
+    private static class TopK {
+        private final int k;
+        private final CountMinSketch sketch = new CountMinSketch(SKETCH_DEPTH, SKETCH_WIDTH);
+        private final PriorityQueue<Map.Entry<String, Long>> heap =
+                new PriorityQueue<>((a, b) -> Long.compare(a.getValue(), b.getValue()));
+        private final HashMap<String, Map.Entry<String, Long>> inHeap = new HashMap<>();
+
+        TopK(int k) {
+            this.k = k;
+        }
+
+        void add(String key) {
+            long estimate = sketch.addAndEstimate(key);
+            Map.Entry<String, Long> entry = inHeap.get(key);
+            if (entry != null) {
+                // Take it out and put it back so the heap order is right again
+                heap.remove(entry);
+                entry.setValue(estimate);
+                heap.add(entry);
+            } else if (heap.size() < k) {
+                entry = new AbstractMap.SimpleEntry<>(key, estimate);
+                heap.add(entry);
+                inHeap.put(key, entry);
+            } else if (estimate > heap.peek().getValue()) {
+                inHeap.remove(heap.poll().getKey());
+                entry = new AbstractMap.SimpleEntry<>(key, estimate);
+                heap.add(entry);
+                inHeap.put(key, entry);
+            }
+        }
+
+        List<Map.Entry<String, Long>> top() {
+            List<Map.Entry<String, Long>> result = new ArrayList<>();
+            for (Map.Entry<String, Long> entry : heap) {
+                result.add(Map.entry(entry.getKey(), entry.getValue()));
+            }
+            result.sort((a, b) -> Long.compare(b.getValue(), a.getValue()));
+            return result;
+        }
+    }
+
+    public SendAnalytics(int topK, int maxTrackedSenders) {
+        this.senders = new TopK(topK);
+        this.recipients = new TopK(topK);
+        this.recipientsPerSender = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, HyperLogLog> eldest) {
+                return size() > maxTrackedSenders;
+            }
+        };
+    }
+
+    /**
+     * The analytics the app feeds from every send.
+     */
+    public static SendAnalytics getDefault() {
+        if (defaultAnalytics == null) {
+            synchronized (SendAnalytics.class) {
+                if (defaultAnalytics == null) {
+                    defaultAnalytics = new SendAnalytics(TOP_K, MAX_TRACKED_SENDERS);
+                }
+            }
+        }
+        return defaultAnalytics;
+    }
+
+    /**
+     * Counts one sent message.
+     */
+    public synchronized void record(Message message) {
+        String sender = message.getSender();
+        String recipient = message.getRecipient();
+        totalMessages++;
+        senders.add(sender);
+        recipients.add(recipient);
+        allRecipients.add(recipient);
+        recipientsPerSender.computeIfAbsent(sender, k -> new HyperLogLog(HLL_PRECISION)).add(recipient);
+        int length = message.getPayload() == null ? 0 : message.getPayload().length();
+        lengthHistogram[Math.min(length / LENGTH_BUCKET, lengthHistogram.length - 1)]++;
+    }
+
+    /**
+     * Counts every sent message in a list, used once on start for the messages already on disk.
+     */
+    public void recordAll(List<Message> messages) {
+        for (Message message : messages) {
+            if ("Sent".equals(message.getStatus())) {
+                record(message);
+            }
+        }
+    }
+
+    public synchronized long getTotalMessages() {
+        return totalMessages;
+    }
+
+    /**
+     * The busiest senders with their estimated message counts, busiest first.
+     */
+    public synchronized List<Map.Entry<String, Long>> topSenders() {
+        return senders.top();
+    }
+
+    /**
+     * The recipients that got the most messages with their estimated counts, highest first.
+     */
+    public synchronized List<Map.Entry<String, Long>> topRecipients() {
+        return recipients.top();
+    }
+
+    /**
+     * Roughly how many different numbers a sender has messaged.
+     * @return The estimate, or -1 if the sender has not been active recently enough to be tracked.
+     */
+    public synchronized long distinctRecipients(String sender) {
+        HyperLogLog counter = recipientsPerSender.get(sender);
+        return counter == null ? -1 : counter.estimate();
+    }
+
+    /**
+     * Roughly how many different numbers have been messaged at all.
+     */
+    public synchronized long distinctRecipients() {
+        return allRecipients.estimate();
+    }
+
+    /**
+     * How many payloads fell in each 10 character bucket. The last bucket is for anything over 250.
+     */
+    public synchronized long[] lengthHistogram() {
+        return lengthHistogram.clone();
+    }
+
+    /**
+     * All of the above as text for the reports menu.
+     */
+    public synchronized String report() {
+        StringBuilder report = new StringBuilder("--- Store-wide Analytics ---\n");
+        report.append("Messages sent: ").append(totalMessages).append("\n");
+        report.append("Distinct recipients: ~").append(allRecipients.estimate()).append("\n\n");
+
+        report.append("Busiest senders:\n");
+        for (Map.Entry<String, Long> entry : senders.top()) {
+            HyperLogLog counter = recipientsPerSender.get(entry.getKey());
+            report.append("  ").append(entry.getKey()).append(" - ~").append(entry.getValue()).append(" messages");
+            if (counter != null) {
+                report.append(" to ~").append(counter.estimate()).append(" people");
+            }
+            report.append("\n");
+        }
+
+        report.append("\nMost messaged recipients:\n");
+        for (Map.Entry<String, Long> entry : recipients.top()) {
+            report.append("  ").append(entry.getKey()).append(" - ~").append(entry.getValue()).append(" messages\n");
+        }
+
+        report.append("\nMessage lengths:\n");
+        for (int i = 0; i < lengthHistogram.length; i++) {
+            if (lengthHistogram[i] == 0) {
+                continue;
+            }
+            String range = i == lengthHistogram.length - 1 ? "over 250"
+                    : (i * LENGTH_BUCKET) + "-" + (i * LENGTH_BUCKET + LENGTH_BUCKET - 1);
+            report.append("  ").append(range).append(": ").append(lengthHistogram[i]).append("\n");
+        }
+        return report.toString();
+    }
+}
@@ -0,0 +1,77 @@
+package koketso;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Compares sending messages one at a time with sentMessage() against SendPipeline.sendAsync().
+ * Prints p50, p99 and p999 latency and throughput for both. The async run keeps at most
+ * [window] sends in flight, like a client waiting on its futures would.
+ *
+ * Usage: java koketso.SendBenchmark [messages] [window] [dir]
+ * The dir (default 'sendbench') gets its own messages folder, so real data is never touched.
+ */
+public class SendBenchmark {
+
+    public static void main(String[] args) throws InterruptedException {
+        int count = args.length > 0 ? Integer.parseInt(args[0]) : 20_000;
+        int window = args.length > 1 ? Integer.parseInt(args[1]) : 512;
+        String dir = args.length > 2 ? args[2] : "sendbench";
+        // Must be set before anything asks MessageManager for its folder
+        System.setProperty("quickchat.messages.dir", new File(dir, "messages").getPath());
+
+        // Spread over 1000 senders so the per-sender burst is never used up
+        LatencyHistogram syncLatency = new LatencyHistogram();
+        int syncSent = 0;
+        long start = System.nanoTime();
+        for (int i = 0; i < count; i++) {
+            Message message = newMessage(i);
+            long sendStart = System.nanoTime();
+            if ("Message sent successfully".equals(message.sentMessage())) {
+                syncSent++;
+            }
+            syncLatency.record(System.nanoTime() - sendStart);
+        }
+        long syncNanos = System.nanoTime() - start;
+
+        LatencyHistogram asyncLatency = new LatencyHistogram();
+        Semaphore inFlight = new Semaphore(window);
+        List<CompletableFuture<SendResult>> futures = new ArrayList<>(count);
+        SendPipeline pipeline = SendPipeline.getDefault();
+        start = System.nanoTime();
+        for (int i = 0; i < count; i++) {
+            Message message = newMessage(count + i);
+            inFlight.acquire();
+            long sendStart = System.nanoTime();
+            futures.add(pipeline.sendAsync(message).whenComplete((result, error) -> {
+                asyncLatency.record(System.nanoTime() - sendStart);
+                inFlight.release();
+            }));
+        }
+        int asyncSent = 0;
+        for (CompletableFuture<SendResult> future : futures) {
+            if (future.join().isSent()) {
+                asyncSent++;
+            }
+        }
+        long asyncNanos = System.nanoTime() - start;
+        pipeline.shutdown();
+
+        print("sentMessage()", syncSent, syncNanos, syncLatency);
+        print("sendAsync()", asyncSent, asyncNanos, asyncLatency);
+    }
+
+    private static Message newMessage(int i) {
+        return new Message(LoadGenerator.cellFor(i % 1000), LoadGenerator.cellFor(5000 + i % 997),
+                "Benchmark message number " + i);
+    }
+
+    private static void print(String name, int sent, long nanos, LatencyHistogram latency) {
+        System.out.printf("%-14s %6d sent in %7.1f ms  %8.0f msg/s  p50 %6d us  p99 %6d us  p999 %6d us%n",
+                name, sent, nanos / 1e6, sent / (nanos / 1e9),
+                latency.percentile(0.50) / 1000, latency.percentile(0.99) / 1000, latency.percentile(0.999) / 1000);
+    }
+}
@@ -0,0 +1,269 @@
+package koketso;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+
+/**
+ * Sends messages asynchronously through four stages, each on its own thread:
+ *
+ *   validate (rate limit and checks) -> sequence (index and hash) -> persist -> index update (analytics)
+ *
+ * The stages are joined by bounded queues and every stage takes whatever is waiting as one batch,
+ * so under load the indexes for a batch are handed out in one step and the store writes the whole
+ * batch in one call (see MessageStore.putAll). sendAsync() never blocks: if the first queue is full
+ * the future completes straight away with RATE_LIMITED and a short retry hint.
+ *
+ * Futures are completed on the stage threads, so callbacks attached to them should be quick.
+ * Every future completes, also the ones of sends still on their way when shutdown() is called.
+ */
+public class SendPipeline {
+    private static final int QUEUE_SIZE = Integer.getInteger("quickchat.pipeline.queueSize", 1024);
+    private static final int MAX_BATCH = Integer.getInteger("quickchat.pipeline.maxBatch", 256);
+    private static final long BUSY_RETRY_MILLIS = 20;
+
+    private static volatile SendPipeline defaultPipeline;
+
+    // One message on its way through the stages
+    private static class Job {
+        final Message message;
+        final CompletableFuture<SendResult> result = new CompletableFuture<>();
+
+        Job(Message message) {
+            this.message = message;
+        }
+    }
+
+    // Put behind the last job a stage will ever get, the stage finishes what it has and stops
+    private static final Job STOP = new Job(null);
+
+    /**
+     * A queue and the thread that empties it in batches.
+     */
+    private class Stage {
+        final BlockingQueue<Job> queue = new ArrayBlockingQueue<>(QUEUE_SIZE);
+        final Thread thread;
+
+        Stage(String name, Consumer<List<Job>> work) {
+            thread = new Thread(() -> {
+                ArrayList<Job> batch = new ArrayList<>(MAX_BATCH);
+                boolean stop = false;
+                while (!stop) {
+                    try {
+                        batch.add(queue.take());
+                    } catch (InterruptedException e) {
+                        break;
+                    }
+                    queue.drainTo(batch, MAX_BATCH - 1);
+                    // STOP is always the last thing in the queue, so the rest of the batch still runs
+                    stop = batch.remove(STOP);
+                    try {
+                        if (!batch.isEmpty()) {
+                            work.accept(batch);
+                        }
+                    } catch (RuntimeException e) {
+                        // Whatever this stage did not finish fails, the pipeline keeps going
+                        for (Job job : batch) {
+                            job.result.completeExceptionally(e);
+                        }
+                    }
+                    batch.clear();
+                }
+            }, "send-" + name);
+            thread.setDaemon(true);
+        }
+
+        // Hands jobs to this stage, waiting for space so a slow stage slows down the ones before it
+        void putAll(List<Job> jobs) {
+            for (Job job : jobs) {
+                try {
+                    queue.put(job);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    job.result.completeExceptionally(e);
+                }
+            }
+        }
+    }
+
+    private final MessageStore store;
+    private final SendRateLimiter limiter;
+    // Sends check running and queue their job under the read lock, shutdown() flips it under the
+    // write lock, so no job can get into the first queue after the stop mark
+    private final ReentrantReadWriteLock shutdownLock = new ReentrantReadWriteLock();
+    private boolean running = true;
+    private final Stage validate;
+    private final Stage sequence;
+    private final Stage persist;
+    private final Stage indexUpdate;
+
+    public SendPipeline(MessageStore store, SendRateLimiter limiter) {
+        this.store = store;
+        this.limiter = limiter;
+        // Built back to front, each stage hands its batch to the next one
+        this.indexUpdate = new Stage("index", this::updateIndexes);
+        this.persist = new Stage("persist", this::persist);
+        this.sequence = new Stage("sequence", this::sequence);
+        this.validate = new Stage("validate", this::validate);
+        for (Stage stage : new Stage[]{validate, sequence, persist, indexUpdate}) {
+            stage.thread.start();
+        }
+    }
+
+    /**
+     * The pipeline over the app's message store and rate limiter.
+     */
+    public static SendPipeline getDefault() {
+        if (defaultPipeline == null) {
+            synchronized (SendPipeline.class) {
+                if (defaultPipeline == null) {
+                    defaultPipeline = new SendPipeline(MessageStore.getDefault(), SendRateLimiter.getDefault());
+                }
+            }
+        }
+        return defaultPipeline;
+    }
+
+    /**
+     * Starts sending a message and returns straight away.
+     * @return Completes with the result once the message is saved, or as soon as it is turned away.
+     */
+    public CompletableFuture<SendResult> sendAsync(Message message) {
+        Job job = new Job(message);
+        boolean queued;
+        shutdownLock.readLock().lock();
+        try {
+            if (!running) {
+                job.result.completeExceptionally(new IllegalStateException("The send pipeline is shut down"));
+                return job.result;
+            }
+            queued = validate.queue.offer(job);
+        } finally {
+            shutdownLock.readLock().unlock();
+        }
+        if (!queued) {
+            job.result.complete(new SendResult(SendResult.Status.RATE_LIMITED, message,
+                    "Failed to send message: Server is busy, please retry after " + BUSY_RETRY_MILLIS + " ms",
+                    BUSY_RETRY_MILLIS));
+        }
+        return job.result;
+    }
+
+    /**
+     * Stops taking sends and waits for the stage threads to finish the ones already accepted.
+     * The stages stop front to back: a stage only gets its stop mark once the stage before it
+     * has exited, so nothing can be handed to a stage that is already gone. Anything still
+     * queued after that (only if this thread is interrupted while waiting) fails.
+     */
+    public void shutdown() {
+        shutdownLock.writeLock().lock();
+        try {
+            if (!running) {
+                return;
+            }
+            running = false;
+        } finally {
+            shutdownLock.writeLock().unlock();
+        }
+        Stage[] stages = {validate, sequence, persist, indexUpdate};
+        boolean interrupted = false;
+        for (Stage stage : stages) {
+            try {
+                // The stage is still running, so there is room for the mark soon
+                stage.queue.put(STOP);
+                stage.thread.join();
+            } catch (InterruptedException e) {
+                interrupted = true;
+                break;
+            }
+        }
+        if (interrupted) {
+            // No more waiting for the queues to empty, the stages drop what they have
+            for (Stage stage : stages) {
+                stage.thread.interrupt();
+            }
+            for (Stage stage : stages) {
+                while (stage.thread.isAlive()) {
+                    try {
+                        stage.thread.join();
+                    } catch (InterruptedException e) {
+                        // Keep waiting, the interrupt is passed on below
+                    }
+                }
+            }
+        }
+        // Only after every thread has exited, so no stage can hand on a job after its queue was emptied
+        for (Stage stage : stages) {
+            failWaiting(stage.queue);
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void validate(List<Job> batch) {
+        ArrayList<Job> passed = new ArrayList<>(batch.size());
+        for (Job job : batch) {
+            SendRateLimiter.Decision decision = limiter.tryAcquire(job.message.getSender());
+            if (!decision.isAllowed()) {
+                job.result.complete(SendResult.rateLimited(job.message, decision));
+                continue;
+            }
+            String failure = job.message.validate();
+            if (failure != null) {
+                job.result.complete(SendResult.rejected(job.message, failure));
+                continue;
+            }
+            passed.add(job);
+        }
+        sequence.putAll(passed);
+    }
+
+    private void sequence(List<Job> batch) {
+        // One atomic step hands out the indexes for the whole batch
+        int next = Message.reserveIndexes(batch.size());
+        for (Job job : batch) {
+            job.message.markSent(next++);
+        }
+        persist.putAll(batch);
+    }
+
+    private void persist(List<Job> batch) {
+        ArrayList<Message> messages = new ArrayList<>(batch.size());
+        for (Job job : batch) {
+            messages.add(job.message);
+        }
+        boolean[] saved = store.putAll(messages);
+        ArrayList<Job> done = new ArrayList<>(batch.size());
+        for (int i = 0; i < saved.length; i++) {
+            if (saved[i]) {
+                done.add(batch.get(i));
+            } else {
+                batch.get(i).result.complete(SendResult.failed(batch.get(i).message,
+                        "Failed to send message: Could not save the message"));
+            }
+        }
+        indexUpdate.putAll(done);
+    }
+
+    private void updateIndexes(List<Job> batch) {
+        for (Job job : batch) {
+            job.message.afterSent();
+            job.result.complete(SendResult.sent(job.message));
+        }
+    }
+
+    private static void failWaiting(BlockingQueue<Job> queue) {
+        Job job;
+        while ((job = queue.poll()) != null) {
+            if (job == STOP) {
+                continue;
+            }
+            job.result.completeExceptionally(new IllegalStateException("The send pipeline is shut down"));
+        }
+    }
+}
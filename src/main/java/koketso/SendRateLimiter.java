@@ -0,0 +1,214 @@
+package koketso;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.IntSupplier;
+import java.util.function.LongSupplier;
+
+/**
+ * Limits how fast each sender can send, and pushes back on everybody when the disk is behind.
+ *
+ * Every sender cellphone has a token bucket with a refill rate and a burst size. The bucket is
+ * kept as a single AtomicLong holding the time the bucket will be full again (the "theoretical
+ * arrival time" form of a token bucket), so taking a token is one compare-and-set with no locks.
+ * A bucket that is full again carries no information, so idle buckets are simply removed.
+ *
+ * Before looking at the sender at all, the limiter checks how many message writes are in flight.
+ * If that is over the limit every send is turned away with a short retry hint, so queues stay
+ * short and latency stays flat instead of growing under overload.
+ *
+ * Broadcasts have their own limiter (forBroadcasts()) that is charged one token per recipient,
+ * so a sender can't reach thousands of people for the price of one message.
+ */
+public class SendRateLimiter {
+    private static final double RATE_PER_SECOND = Double.parseDouble(System.getProperty("quickchat.ratelimit.perSecond", "10"));
+    private static final int BURST = Integer.getInteger("quickchat.ratelimit.burst", 50);
+    private static final int MAX_PENDING_WRITES = Integer.getInteger("quickchat.persist.maxInFlight", 256);
+    private static final long BACKPRESSURE_RETRY_MILLIS = 20;
+    private static final double BROADCAST_RATE_PER_SECOND =
+            Double.parseDouble(System.getProperty("quickchat.ratelimit.broadcast.perSecond", "100"));
+    private static final int BROADCAST_BURST = Integer.getInteger("quickchat.ratelimit.broadcast.burst", 10_000);
+
+    private static final long NEW_BUCKET = Long.MIN_VALUE;
+    private static final long EVICTED = Long.MAX_VALUE;
+
+    private static volatile SendRateLimiter defaultLimiter;
+    private static volatile SendRateLimiter broadcastLimiter;
+
+    private final long intervalNanos;
+    private final long toleranceNanos;
+    private final int burst;
+    private final int maxPendingWrites;
+    private final IntSupplier pendingWrites;
+    private final LongSupplier clock;
+    private final ConcurrentHashMap<String, AtomicLong> buckets = new ConcurrentHashMap<>();
+
+    /**
+     * The answer to one send attempt.
+     */
+    public static class Decision {
+        private static final Decision ALLOWED = new Decision(true, 0, null);
+
+        private final boolean allowed;
+        private final long retryAfterMillis;
+        private final String reason;
+
+        private Decision(boolean allowed, long retryAfterMillis, String reason) {
+            this.allowed = allowed;
+            this.retryAfterMillis = retryAfterMillis;
+            this.reason = reason;
+        }
+
+        public boolean isAllowed() { return allowed; }
+        public long getRetryAfterMillis() { return retryAfterMillis; }
+
+        /**
+         * The text sentMessage() gives back when the send is turned away.
+         */
+        public String getFailureMessage() {
+            return "Failed to send message: " + reason + ", please retry after " + retryAfterMillis + " ms";
+        }
+    }
+
+    /**
+     * @param ratePerSecond How many messages a sender gets per second once the burst is used up.
+     * @param burst How many messages a sender can send at once.
+     * @param maxPendingWrites How many writes may be in flight before all sends are pushed back.
+     * @param pendingWrites Tells us how many writes are in flight right now.
+     * @param clock Gives the time in nanoseconds (System::nanoTime outside of tests).
+     */
+    public SendRateLimiter(double ratePerSecond, int burst, int maxPendingWrites,
+                           IntSupplier pendingWrites, LongSupplier clock) {
+        this.intervalNanos = (long) (1_000_000_000L / ratePerSecond);
+        this.toleranceNanos = intervalNanos * (Math.max(1, burst) - 1);
+        this.burst = Math.max(1, burst);
+        this.maxPendingWrites = maxPendingWrites;
+        this.pendingWrites = pendingWrites;
+        this.clock = clock;
+    }
+
+    /**
+     * The limiter used by Message.sentMessage(), with a background job that removes idle buckets.
+     */
+    public static SendRateLimiter getDefault() {
+        if (defaultLimiter == null) {
+            synchronized (SendRateLimiter.class) {
+                if (defaultLimiter == null) {
+                    defaultLimiter = withSweeper(RATE_PER_SECOND, BURST);
+                }
+            }
+        }
+        return defaultLimiter;
+    }
+
+    /**
+     * The limiter for broadcasts, where every recipient costs a token
+     * (quickchat.ratelimit.broadcast.perSecond and .burst, 100 and 10000 by default).
+     */
+    public static SendRateLimiter forBroadcasts() {
+        if (broadcastLimiter == null) {
+            synchronized (SendRateLimiter.class) {
+                if (broadcastLimiter == null) {
+                    broadcastLimiter = withSweeper(BROADCAST_RATE_PER_SECOND, BROADCAST_BURST);
+                }
+            }
+        }
+        return broadcastLimiter;
+    }
+
+    private static SendRateLimiter withSweeper(double ratePerSecond, int burst) {
+        SendRateLimiter limiter = new SendRateLimiter(ratePerSecond, burst, MAX_PENDING_WRITES,
+                MessageManager::pendingWrites, System::nanoTime);
+        ScheduledExecutorService sweeper = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "rate-limit-sweeper");
+            t.setDaemon(true);
+            return t;
+        });
+        sweeper.scheduleWithFixedDelay(limiter::evictIdle, 1, 1, TimeUnit.MINUTES);
+        return limiter;
+    }
+
+    /**
+     * The most tokens one tryAcquire() can ever get.
+     */
+    public int getBurst() {
+        return burst;
+    }
+
+    /**
+     * Tries to take one send token for a sender.
+     * @param sender The sender's cellphone number.
+     * @return Whether the send may go ahead, and if not, when to try again.
+     */
+    public Decision tryAcquire(String sender) {
+        return tryAcquire(sender, 1);
+    }
+
+    /**
+     * Tries to take several tokens at once, all or nothing. Asking for more than getBurst()
+     * never succeeds.
+     * @param sender The sender's cellphone number.
+     * @param permits How many tokens, for example one per recipient.
+     * @return Whether the send may go ahead, and if not, when to try again.
+     */
+    public Decision tryAcquire(String sender, int permits) {
+        if (pendingWrites.getAsInt() >= maxPendingWrites) {
+            return new Decision(false, BACKPRESSURE_RETRY_MILLIS, "Server is busy");
+        }
+        if (sender == null) {
+            return Decision.ALLOWED; // Validation will turn it away
+        }
+
+        AtomicLong bucket = buckets.computeIfAbsent(sender, k -> new AtomicLong(NEW_BUCKET));
+        while (true) {
+            long now = clock.getAsLong();
+            long fullAt = bucket.get();
+            if (fullAt == EVICTED) {
+                // The sweeper took this bucket away while we were looking at it, get the new one
+                buckets.remove(sender, bucket);
+                bucket = buckets.computeIfAbsent(sender, k -> new AtomicLong(NEW_BUCKET));
+                continue;
+            }
+            long start = fullAt == NEW_BUCKET || fullAt - now < 0 ? now : fullAt;
+            long wait = start + intervalNanos * (permits - 1) - now - toleranceNanos;
+            if (wait > 0) {
+                return new Decision(false, TimeUnit.NANOSECONDS.toMillis(wait + 999_999), "Too many messages");
+            }
+            if (bucket.compareAndSet(fullAt, start + intervalNanos * permits)) {
+                return Decision.ALLOWED;
+            }
+        }
+    }
+
+    /**
+     * Removes the buckets that have filled up again. Nothing is lost, because a missing bucket
+     * and a full one behave the same.
+     * @return How many buckets were removed.
+     */
+    public int evictIdle() {
+        long now = clock.getAsLong();
+        int removed = 0;
+        Iterator<Map.Entry<String, AtomicLong>> it = buckets.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<String, AtomicLong> entry = it.next();
+            AtomicLong bucket = entry.getValue();
+            long fullAt = bucket.get();
+            // Marking it first means a sender taking a token at the same moment either wins
+            // (and the bucket stays) or sees the mark and moves to a fresh bucket
+            if ((fullAt == NEW_BUCKET || fullAt - now <= 0) && bucket.compareAndSet(fullAt, EVICTED)) {
+                buckets.remove(entry.getKey(), bucket);
+                removed++;
+            }
+        }
+        return removed;
+    }
+
+    public int bucketCount() {
+        return buckets.size();
+    }
+}
@@ -0,0 +1,66 @@
+package koketso;
+
+/**
+ * What happened to a message sent through SendPipeline.
+ */
+public class SendResult {
+
+    public enum Status {
+        /** Saved and counted, the message has its index and hash. */
+        SENT,
+        /** Failed a check (ID, numbers, payload). */
+        REJECTED,
+        /** Turned away by the rate limiter or because the server is busy, try again later. */
+        RATE_LIMITED,
+        /** Passed the checks but could not be saved. */
+        FAILED
+    }
+
+    private final Status status;
+    private final Message message;
+    private final String text;
+    private final long retryAfterMillis;
+
+    SendResult(Status status, Message message, String text, long retryAfterMillis) {
+        this.status = status;
+        this.message = message;
+        this.text = text;
+        this.retryAfterMillis = retryAfterMillis;
+    }
+
+    static SendResult sent(Message message) {
+        return new SendResult(Status.SENT, message, "Message sent successfully", 0);
+    }
+
+    static SendResult rejected(Message message, String reason) {
+        return new SendResult(Status.REJECTED, message, reason, 0);
+    }
+
+    static SendResult rateLimited(Message message, SendRateLimiter.Decision decision) {
+        return new SendResult(Status.RATE_LIMITED, message, decision.getFailureMessage(), decision.getRetryAfterMillis());
+    }
+
+    static SendResult failed(Message message, String reason) {
+        return new SendResult(Status.FAILED, message, reason, 0);
+    }
+
+    public Status getStatus() { return status; }
+    public Message getMessage() { return message; }
+    public long getRetryAfterMillis() { return retryAfterMillis; }
+
+    public boolean isSent() {
+        return status == Status.SENT;
+    }
+
+    /**
+     * The same text sentMessage() would have given back.
+     */
+    public String getText() {
+        return text;
+    }
+
+    @Override
+    public String toString() {
+        return status + ": " + text;
+    }
+}
@@ -0,0 +1,577 @@
+package koketso;
+
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * A point-in-time copy of the users and messages in one compact binary file, taken while the app
+ * keeps running, and read back much faster than parsing users.json and every message file.
+ *
+ * Taking one does not stop writes. Before the scan starts, a capture is switched on, and from then
+ * every write to the messages folder (a saved record, a receipt or a delete) adds itself to the
+ * capture just before it touches the disk. Writes that were already running are waited for, and
+ * only moves into or out of the archive wait until the scan is done. The scan reads the folder the normal way, so it may see
+ * some of those writes and miss others. When the scan is done the capture is closed, the users are
+ * copied, and the captured changes are played over what the scan found in the order they happened.
+ * The result is the store exactly as it was when the capture closed: every write that was captured
+ * is in, and every write that wasn't can't have reached the disk before the scan finished.
+ *
+ * The capture only sees writes made in the same JVM. The app takes its own snapshots with
+ * -Dquickchat.snapshot.file (every hour, or every -Dquickchat.snapshot.everyMinutes), see
+ * startIfConfigured(). The take command runs in a JVM of its own, so it is for when the app is
+ * not running: it reads whatever is on disk and can't capture the app's writes.
+ *
+ * Every message keeps its receipt flags and timestamps, so the ReceiptLog and the TimeBucketIndex
+ * come back from the snapshot too. Archived messages are restored as loose files, the tiering job
+ * moves them back later. Broadcasts are kept with their recipient lists and the receipts of every
+ * recipient, and sending or deleting one is captured like any other write.
+ * Snapshots from before broadcasts were added ("QCS1") can still be read and restored.
+ *
+ * Usage:
+ *   java koketso.Snapshot take quickchat.snap   (offline only, with the app stopped)
+ *   java koketso.Snapshot restore quickchat.snap [messagesDir] [usersFile]
+ *   java koketso.Snapshot bench [messages] [dir]
+ */
+public class Snapshot {
+    private static final int MAGIC = 0x51435332; // "QCS2"
+    private static final int MAGIC_V1 = 0x51435331; // "QCS1", the same without broadcasts
+    private static final int END = 0x454E4421;   // "END!", a file without it was cut short
+
+    private static final byte PUT = 1;
+    private static final byte RECEIPT = 2;
+    private static final byte DELETE = 3;
+    private static final byte BROADCAST = 4;
+    private static final byte BROADCAST_DELETE = 5;
+
+    private static final String SNAPSHOT_FILE = System.getProperty("quickchat.snapshot.file");
+    private static final long SNAPSHOT_MINUTES = Long.getLong("quickchat.snapshot.everyMinutes", 60L);
+
+    private static volatile Capture capture;
+
+    private final long takenAt;
+    private final List<RegistrationLogin> users;
+    private final List<Message> messages;
+    private final List<SavedBroadcast> broadcasts;
+    private final int changesDuringScan;
+
+    // One write that happened while a snapshot was being taken
+    private static class Change {
+        final byte op;
+        final String messageId;
+        final String record;
+        final int type;
+        final BroadcastStore.Broadcast broadcast;
+
+        Change(byte op, String messageId, String record, int type) {
+            this(op, messageId, record, type, null);
+        }
+
+        Change(byte op, String messageId, String record, int type, BroadcastStore.Broadcast broadcast) {
+            this.op = op;
+            this.messageId = messageId;
+            this.record = record;
+            this.type = type;
+            this.broadcast = broadcast;
+        }
+    }
+
+    // A broadcast and the receipt flags of each of its slots
+    private static class SavedBroadcast {
+        final BroadcastStore.Broadcast broadcast;
+        final int[] flags;
+
+        SavedBroadcast(BroadcastStore.Broadcast broadcast, int[] flags) {
+            this.broadcast = broadcast;
+            this.flags = flags;
+        }
+    }
+
+    // The writes to one messages folder since the capture was switched on
+    private static class Capture {
+        final File messagesDir;
+        final ArrayList<Change> changes = new ArrayList<>();
+        boolean closed;
+
+        Capture(File messagesDir) {
+            this.messagesDir = messagesDir.getAbsoluteFile();
+        }
+
+        synchronized void add(Change change) {
+            // A write that comes after the close is after the snapshot's point in time too
+            if (!closed) {
+                changes.add(change);
+            }
+        }
+
+        synchronized List<Change> close() {
+            closed = true;
+            return changes;
+        }
+    }
+
+    private Snapshot(long takenAt, List<RegistrationLogin> users, List<Message> messages,
+                     List<SavedBroadcast> broadcasts, int changesDuringScan) {
+        this.takenAt = takenAt;
+        this.users = users;
+        this.messages = messages;
+        this.broadcasts = broadcasts;
+        this.changesDuringScan = changesDuringScan;
+    }
+
+    public long getTakenAt() { return takenAt; }
+    public List<RegistrationLogin> getUsers() { return users; }
+    public List<Message> getMessages() { return messages; }
+
+    public List<BroadcastStore.Broadcast> getBroadcasts() {
+        ArrayList<BroadcastStore.Broadcast> list = new ArrayList<>(broadcasts.size());
+        for (SavedBroadcast saved : broadcasts) {
+            list.add(saved.broadcast);
+        }
+        return list;
+    }
+
+    /**
+     * How many writes happened while the scan was running and were played over it.
+     */
+    public int getChangesDuringScan() { return changesDuringScan; }
+
+    // --- Called by the store just before each write ---
+
+    static void beforePut(File messagesDir, String messageId, JSONObject record) {
+        Capture c = capture;
+        if (c != null && c.messagesDir.equals(messagesDir.getAbsoluteFile())) {
+            // Kept as text, the same as what a load would read back from the file
+            c.add(new Change(PUT, messageId, record.toJSONString(), 0));
+        }
+    }
+
+    static void beforeReceipt(File messagesDir, String messageId, int type) {
+        Capture c = capture;
+        if (c != null && c.messagesDir.equals(messagesDir.getAbsoluteFile())) {
+            c.add(new Change(RECEIPT, messageId, null, type));
+        }
+    }
+
+    static void beforeDelete(File messagesDir, String messageId) {
+        Capture c = capture;
+        if (c != null && c.messagesDir.equals(messagesDir.getAbsoluteFile())) {
+            c.add(new Change(DELETE, messageId, null, 0));
+        }
+    }
+
+    static void beforeBroadcast(File messagesDir, BroadcastStore.Broadcast broadcast) {
+        Capture c = capture;
+        if (c != null && c.messagesDir.equals(messagesDir.getAbsoluteFile())) {
+            c.add(new Change(BROADCAST, broadcast.getId(), null, 0, broadcast));
+        }
+    }
+
+    static void beforeBroadcastDelete(File messagesDir, String broadcastId) {
+        Capture c = capture;
+        if (c != null && c.messagesDir.equals(messagesDir.getAbsoluteFile())) {
+            c.add(new Change(BROADCAST_DELETE, broadcastId, null, 0));
+        }
+    }
+
+    /**
+     * Takes a consistent snapshot of a messages folder and a user list and writes it to a file.
+     * Only one snapshot is taken at a time.
+     * @param messagesDir The messages folder.
+     * @param userManager The users to include, null for none (replication only copies messages).
+     * @param target The file to write, it is replaced in one step when the snapshot is complete.
+     * @return The snapshot that was written.
+     */
+    public static synchronized Snapshot take(File messagesDir, UserManager userManager, File target) throws IOException {
+        Capture current = new Capture(messagesDir);
+        capture = current;
+        List<Change> changes;
+        List<RegistrationLogin> users;
+        ArrayList<Message> scanned;
+        LinkedHashMap<String, SavedBroadcast> broadcastsById = new LinkedHashMap<>();
+        try {
+            // A write that looked for the capture just before it was switched on may still be on
+            // its way to the disk, the scan has to start after it or it could be seen half done
+            MessageManager.awaitWritesInFlight();
+            synchronized (ReceiptLog.of(messagesDir)) {
+                // Same for a receipt being recorded
+            }
+            scanned = new ArrayList<>();
+            // Nothing moves into the archive or out of it during the scan, so no message can slip
+            // from the loose files to the archive between the two halves of it unseen
+            synchronized (MessageArchive.of(messagesDir)) {
+                new FileMessageStore(messagesDir).scan(scanned::add);
+            }
+            // Sends and deletes of broadcasts are captured under the lock all() takes
+            BroadcastStore broadcastStore = BroadcastStore.of(messagesDir);
+            for (BroadcastStore.Broadcast broadcast : broadcastStore.all()) {
+                broadcastsById.put(broadcast.getId(), new SavedBroadcast(broadcast, broadcastStore.receiptFlags(broadcast)));
+            }
+        } finally {
+            changes = current.close();
+            users = userManager == null ? new ArrayList<>() : userManager.copyUsers();
+            capture = null;
+        }
+        long takenAt = System.currentTimeMillis();
+
+        LinkedHashMap<String, Message> byId = new LinkedHashMap<>();
+        for (Message message : scanned) {
+            byId.put(message.getId(), message);
+        }
+        for (Change change : changes) {
+            replay(byId, broadcastsById, change);
+        }
+        Snapshot snapshot = new Snapshot(takenAt, users, new ArrayList<>(byId.values()),
+                new ArrayList<>(broadcastsById.values()), changes.size());
+        snapshot.write(target);
+        return snapshot;
+    }
+
+    /**
+     * Starts taking snapshots of the app's messages folder in the background if
+     * -Dquickchat.snapshot.file is set. They run inside the app, so every write it makes is
+     * captured. The thread is a daemon so it never keeps the app open.
+     * @param users Gives the app's users, it may wait for them to load.
+     * @return The scheduler, or null if no snapshot file is set.
+     */
+    public static ScheduledExecutorService startIfConfigured(Supplier<UserManager> users) {
+        if (SNAPSHOT_FILE == null || SNAPSHOT_FILE.isEmpty()) {
+            return null;
+        }
+        File target = new File(SNAPSHOT_FILE);
+        ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "snapshot");
+            t.setDaemon(true);
+            return t;
+        });
+        scheduler.scheduleWithFixedDelay(() -> {
+            try {
+                Snapshot snapshot = take(MessageManager.getMessagesDir(), users.get(), target);
+                System.out.println("Saved a snapshot of " + snapshot.getMessages().size() + " messages to " + target);
+            } catch (IOException e) {
+                System.err.println("Could not take a snapshot: " + e.getMessage());
+            }
+        }, SNAPSHOT_MINUTES, SNAPSHOT_MINUTES, TimeUnit.MINUTES);
+        return scheduler;
+    }
+
+    private static void replay(LinkedHashMap<String, Message> byId, LinkedHashMap<String, SavedBroadcast> broadcastsById,
+                               Change change) throws IOException {
+        if (change.op == PUT) {
+            Message message;
+            try {
+                message = MessageManager.fromJson((JSONObject) new JSONParser().parse(change.record));
+            } catch (ParseException e) {
+                throw new IOException("Could not read a change made during the snapshot: " + e.getMessage());
+            }
+            Message before = byId.get(change.messageId);
+            // Receipts live apart from the record, rewriting a message does not take them away
+            if (before != null) {
+                message.setReceived(message.isReceived() || before.isReceived());
+                message.setRead(message.isRead() || before.isRead());
+            }
+            byId.put(change.messageId, message);
+        } else if (change.op == RECEIPT) {
+            Message message = byId.get(change.messageId);
+            if (message != null) {
+                message.setReceived(true);
+                if (change.type == ReceiptLog.READ) {
+                    message.setRead(true);
+                }
+            }
+            // A broadcast recipient's receipt, 'broadcastId#slot'
+            int hash = change.messageId.indexOf('#');
+            SavedBroadcast saved = hash < 0 ? null : broadcastsById.get(change.messageId.substring(0, hash));
+            if (saved != null) {
+                int slot = Integer.parseInt(change.messageId.substring(hash + 1));
+                saved.flags[slot] |= change.type == ReceiptLog.READ ? ReceiptLog.DELIVERED | ReceiptLog.READ : ReceiptLog.DELIVERED;
+            }
+        } else if (change.op == DELETE) {
+            byId.remove(change.messageId);
+        } else if (change.op == BROADCAST) {
+            broadcastsById.putIfAbsent(change.messageId,
+                    new SavedBroadcast(change.broadcast, new int[change.broadcast.getRecipientCount()]));
+        } else if (change.op == BROADCAST_DELETE) {
+            broadcastsById.remove(change.messageId);
+        }
+    }
+
+    private void write(File target) throws IOException {
+        File parent = target.getAbsoluteFile().getParentFile();
+        parent.mkdirs();
+        File tmp = new File(parent, target.getName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new DeflaterOutputStream(
+                new FileOutputStream(tmp), new Deflater(Deflater.BEST_SPEED)), 64 * 1024))) {
+            out.writeInt(MAGIC);
+            out.writeLong(takenAt);
+            out.writeInt(users.size());
+            for (RegistrationLogin user : users) {
+                writeString(out, user.getUserName());
+                writeString(out, user.getPassword());
+                writeString(out, user.getCellPhoneNumber());
+                writeString(out, user.getFirstName());
+                writeString(out, user.getLastName());
+            }
+            out.writeInt(messages.size());
+            for (Message message : messages) {
+                writeString(out, message.getId());
+                writeString(out, message.getSender());
+                writeString(out, message.getRecipient());
+                writeString(out, message.getPayload());
+                writeString(out, message.getHash());
+                writeString(out, message.getStatus());
+                out.writeInt(message.getIndex());
+                out.writeByte((message.isReceived() ? ReceiptLog.DELIVERED : 0) | (message.isRead() ? ReceiptLog.READ : 0));
+                out.writeLong(message.getSendAt());
+                out.writeLong(message.getCreatedAt());
+                out.writeLong(message.getSentAt());
+            }
+            out.writeInt(broadcasts.size());
+            for (SavedBroadcast saved : broadcasts) {
+                BroadcastStore.Broadcast broadcast = saved.broadcast;
+                writeString(out, broadcast.getId());
+                writeString(out, broadcast.getSender());
+                writeString(out, broadcast.getPayload());
+                writeString(out, broadcast.getHash());
+                out.writeInt(broadcast.getIndex());
+                int[] numbers = broadcast.recipientNumbers();
+                out.writeInt(numbers.length);
+                for (int number : numbers) {
+                    out.writeInt(number);
+                }
+                for (int flags : saved.flags) {
+                    out.writeByte(flags);
+                }
+            }
+            out.writeInt(END);
+        } catch (IOException e) {
+            tmp.delete();
+            throw e;
+        }
+        Files.move(tmp.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Reads a snapshot file back into memory, one sequential pass with no JSON parsing.
+     */
+    public static Snapshot read(File file) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+                new InflaterInputStream(new FileInputStream(file)), 64 * 1024))) {
+            int magic = in.readInt();
+            if (magic != MAGIC && magic != MAGIC_V1) {
+                throw new IOException(file.getName() + " is not a QuickChat snapshot");
+            }
+            long takenAt = in.readLong();
+            int userCount = in.readInt();
+            ArrayList<RegistrationLogin> users = new ArrayList<>(userCount);
+            for (int i = 0; i < userCount; i++) {
+                RegistrationLogin user = new RegistrationLogin();
+                user.registerUser(readString(in), readString(in), readString(in), readString(in), readString(in));
+                if (user.isRegistered()) {
+                    users.add(user);
+                }
+            }
+            int messageCount = in.readInt();
+            ArrayList<Message> messages = new ArrayList<>(messageCount);
+            for (int i = 0; i < messageCount; i++) {
+                String id = readString(in);
+                String sender = readString(in);
+                String recipient = readString(in);
+                String payload = readString(in);
+                String hash = readString(in);
+                String status = readString(in);
+                Message message = new Message(id, sender, recipient, payload, in.readInt(), hash);
+                message.setStatus(status);
+                int flags = in.readByte();
+                message.setReceived((flags & ReceiptLog.DELIVERED) != 0);
+                message.setRead((flags & ReceiptLog.READ) != 0);
+                message.setSendAt(in.readLong());
+                message.setCreatedAt(in.readLong());
+                message.setSentAt(in.readLong());
+                messages.add(message);
+            }
+            int broadcastCount = magic == MAGIC_V1 ? 0 : in.readInt();
+            ArrayList<SavedBroadcast> broadcasts = new ArrayList<>(broadcastCount);
+            for (int i = 0; i < broadcastCount; i++) {
+                String id = readString(in);
+                String sender = readString(in);
+                String payload = readString(in);
+                String hash = readString(in);
+                int index = in.readInt();
+                int[] numbers = new int[in.readInt()];
+                for (int slot = 0; slot < numbers.length; slot++) {
+                    numbers[slot] = in.readInt();
+                }
+                int[] flags = new int[numbers.length];
+                for (int slot = 0; slot < flags.length; slot++) {
+                    flags[slot] = in.readByte();
+                }
+                broadcasts.add(new SavedBroadcast(new BroadcastStore.Broadcast(id, sender, payload, hash, index, numbers), flags));
+            }
+            if (in.readInt() != END) {
+                throw new IOException(file.getName() + " is incomplete");
+            }
+            return new Snapshot(takenAt, users, messages, broadcasts, 0);
+        }
+    }
+
+    /**
+     * Writes the snapshot back out as a users file and a messages folder, for example after a disk
+     * was lost. The messages folder must not have any messages in it yet.
+     * @return How many messages were restored.
+     */
+    public int restoreTo(File messagesDir, String usersFile) throws IOException {
+        if (!MessageLayout.of(messagesDir).listMessageFiles().isEmpty() || MessageArchive.of(messagesDir).size() > 0
+                || !BroadcastStore.of(messagesDir).all().isEmpty()) {
+            throw new IOException(messagesDir + " already has messages, restore into an empty folder");
+        }
+        return restoreTo(FileMessageStore.of(messagesDir), usersFile);
+    }
+
+    /**
+     * Writes the snapshot into any message store, with the users going to a users file.
+     * The broadcasts go to the BroadcastStore of that store.
+     * @param usersFile Where the users go, null to leave the users alone.
+     * @return How many messages were restored.
+     */
+    public int restoreTo(MessageStore store, String usersFile) {
+        if (usersFile != null) {
+            new UserManager(usersFile).replaceAll(users);
+        }
+        int restored = 0;
+        for (boolean saved : store.putAll(messages)) {
+            if (saved) {
+                restored++;
+            }
+        }
+        for (Message message : messages) {
+            if (message.isRead()) {
+                store.updateFlags(message.getId(), ReceiptLog.READ);
+            } else if (message.isReceived()) {
+                store.updateFlags(message.getId(), ReceiptLog.DELIVERED);
+            }
+        }
+        BroadcastStore broadcastStore = BroadcastStore.forStore(store);
+        for (SavedBroadcast saved : broadcasts) {
+            broadcastStore.restore(saved.broadcast, saved.flags);
+        }
+        return restored;
+    }
+
+    // A length and UTF-8 bytes, -1 for null. Unlike writeUTF there is no 64 KB limit.
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1) {
+            System.out.println("Usage: Snapshot take <file>   (with the app stopped, a running app uses -Dquickchat.snapshot.file)");
+            System.out.println("       Snapshot restore <file> [messagesDir] [usersFile]");
+            System.out.println("       Snapshot bench [messages] [dir]");
+            return;
+        }
+        if ("take".equals(args[0]) && args.length > 1) {
+            // Nothing the app writes from now on is captured here, the app has to be stopped
+            Snapshot snapshot = take(MessageManager.getMessagesDir(), new UserManager(), new File(args[1]));
+            System.out.println("Saved " + snapshot.getUsers().size() + " users and " + snapshot.getMessages().size()
+                    + " messages to " + args[1] + " (" + new File(args[1]).length() + " bytes)");
+        } else if ("restore".equals(args[0]) && args.length > 1) {
+            if (!(MessageStore.getDefault() instanceof FileMessageStore)) {
+                // A memory store would be gone again as soon as this command ends
+                System.out.println("Restore only works with the file store, not -Dquickchat.store=memory");
+                return;
+            }
+            File messagesDir = args.length > 2 ? new File(args[2]) : MessageManager.getMessagesDir();
+            String usersFile = args.length > 3 ? args[3] : "users.json";
+            Snapshot snapshot = read(new File(args[1]));
+            System.out.println("Restored " + snapshot.restoreTo(messagesDir, usersFile) + " messages, "
+                    + snapshot.getBroadcasts().size() + " broadcasts and " + snapshot.getUsers().size() + " users");
+        } else if ("bench".equals(args[0])) {
+            bench(args.length > 1 ? Integer.parseInt(args[1]) : 50_000, args.length > 2 ? args[2] : "snapshotbench");
+        } else {
+            System.out.println("Unknown command: " + args[0]);
+        }
+    }
+
+    // Compares a cold load of the JSON files with reading a snapshot of the same data
+    private static void bench(int count, String dir) throws IOException {
+        File messagesDir = new File(dir, "messages");
+        String usersFile = new File(dir, "users.json").getPath();
+        new File(dir).mkdirs();
+        ArrayList<RegistrationLogin> users = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            RegistrationLogin user = new RegistrationLogin();
+            user.registerUser(LoadGenerator.userNameFor(i), "Passw0rd!", LoadGenerator.cellFor(i), "Load", "Tester");
+            users.add(user);
+        }
+        new UserManager(usersFile).replaceAll(users);
+        ArrayList<Message> messages = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            Message message = new Message(LoadGenerator.cellFor(i % 1000), LoadGenerator.cellFor(i % 997),
+                    "Benchmark message number " + i);
+            message.markSent(i + 1);
+            messages.add(message);
+        }
+        MessageManager.storeBatch(MessageLayout.of(messagesDir), messages);
+        messages = null;
+
+        long start = System.nanoTime();
+        int loadedUsers = new UserManager(usersFile).copyUsers().size();
+        ArrayList<Message> loadedMessages = new ArrayList<>();
+        new FileMessageStore(messagesDir).scan(loadedMessages::add);
+        int loaded = loadedMessages.size();
+        long coldNanos = System.nanoTime() - start;
+
+        File file = new File(dir, "quickchat.snap");
+        start = System.nanoTime();
+        take(messagesDir, new UserManager(usersFile), file);
+        long takeNanos = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        Snapshot snapshot = read(file);
+        long readNanos = System.nanoTime() - start;
+
+        System.out.printf("Cold load:     %d users, %d messages in %.0f ms%n", loadedUsers, loaded, coldNanos / 1e6);
+        System.out.printf("Take snapshot: %.0f ms, %d bytes%n", takeNanos / 1e6, file.length());
+        System.out.printf("Read snapshot: %d users, %d messages in %.0f ms (%.0fx faster)%n",
+                snapshot.getUsers().size(), snapshot.getMessages().size(), readNanos / 1e6,
+                (double) coldNanos / Math.max(1, readNanos));
+    }
+}
@@ -0,0 +1,294 @@
+package koketso;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * Loads users and messages on background threads so the first menu shows straight away.
+ *
+ * Loading happens in stages: users and messages load side by side, and once the messages are
+ * in, the follow-on work (analytics, scheduler) runs on the same thread. Login only needs the users,
+ * so it waits for those and nothing else. The inbox only needs one number's messages: while the
+ * full load is still running, messagesFor() reads just those (started at login by prefetch()).
+ * The other screens wait for all the messages.
+ *
+ * For the file store that early read only saves parsing: the archive has a per-number index, but
+ * the loose files don't, so FileMessageStore.loadFor() still reads every loose file and skips the
+ * ones that don't mention the number. With many loose files it is about as much disk work as the
+ * full load, it just gets the inbox its messages sooner because it parses far fewer of them.
+ *
+ * Two startup numbers are kept, both counted from when the JVM started: time to first screen
+ * (the welcome dialog) and time to fully loaded. They are printed once loading is done and can be
+ * read with getMetrics().
+ */
+public final class StartupLoader {
+    private final long startMillis;
+    private final ExecutorService executor;
+    private final Supplier<List<Message>> messageSource;
+    private final Function<String, List<Message>> userMessageSource;
+    // One number's messages, read at login while the full load is still running
+    private final ConcurrentHashMap<String, CompletableFuture<List<Message>>> userLoads = new ConcurrentHashMap<>();
+    private final CompletableFuture<UserManager> users;
+    private volatile CompletableFuture<List<Message>> messages;
+    private final CompletableFuture<Void> fullyLoaded;
+
+    // Messages sent while the load was still running, added to the list once it is in
+    private final ArrayList<Message> addedWhileLoading = new ArrayList<>();
+    // Newer copies from background threads, swapped in by the next messages() call
+    private final ConcurrentHashMap<String, Message> replacements = new ConcurrentHashMap<>();
+    // Messages another thread dropped from the store, taken out by the next messages() call
+    private final Set<String> forgotten = ConcurrentHashMap.newKeySet();
+
+    private volatile long firstMenuMillis = -1;
+    private volatile long usersReadyMillis = -1;
+    private volatile long messagesReadyMillis = -1;
+    private volatile long fullyLoadedMillis = -1;
+
+    /**
+     * Starts loading right away.
+     * @param userSource Loads the users.
+     * @param messageSource Loads all messages.
+     * @param afterMessages Runs on the loaded messages before they are handed out, may be null.
+     * @param startMillis The time startup began, the metrics are counted from here.
+     */
+    public StartupLoader(Supplier<UserManager> userSource, Supplier<List<Message>> messageSource,
+                         Consumer<List<Message>> afterMessages, long startMillis) {
+        this(userSource, messageSource, null, afterMessages, startMillis);
+    }
+
+    /**
+     * Starts loading right away.
+     * @param userMessageSource Reads the messages of one number, archived ones included. If it is
+     *                          null, messagesFor() waits for the full load.
+     */
+    public StartupLoader(Supplier<UserManager> userSource, Supplier<List<Message>> messageSource,
+                         Function<String, List<Message>> userMessageSource,
+                         Consumer<List<Message>> afterMessages, long startMillis) {
+        this.startMillis = startMillis;
+        this.messageSource = messageSource;
+        this.userMessageSource = userMessageSource;
+        this.executor = Executors.newFixedThreadPool(2, r -> {
+            Thread t = new Thread(r, "startup-loader");
+            t.setDaemon(true);
+            return t;
+        });
+
+        this.users = CompletableFuture.supplyAsync(userSource, executor)
+                .whenComplete((u, e) -> usersReadyMillis = elapsed());
+        this.messages = CompletableFuture.supplyAsync(messageSource, executor)
+                .thenApply(list -> {
+                    if (afterMessages != null) {
+                        afterMessages.accept(list);
+                    }
+                    return mergeAdded(list);
+                })
+                .whenComplete((m, e) -> messagesReadyMillis = elapsed());
+        this.fullyLoaded = CompletableFuture.allOf(users, messages)
+                .whenComplete((v, e) -> {
+                    fullyLoadedMillis = elapsed();
+                    System.out.println(getMetrics());
+                });
+    }
+
+    /**
+     * Starts loading the app's users and messages, counting from when the JVM started.
+     */
+    public static StartupLoader start(Consumer<List<Message>> afterMessages) {
+        return new StartupLoader(UserManager::new, MessageManager::loadMessageList,
+                cellNumber -> MessageManager.messagesFor(MessageStore.getDefault().loadFor(cellNumber), cellNumber),
+                afterMessages, ManagementFactory.getRuntimeMXBean().getStartTime());
+    }
+
+    /**
+     * The users, waiting for them if they are still loading.
+     */
+    public UserManager users() {
+        return users.join();
+    }
+
+    /**
+     * All messages, waiting for them if they are still loading.
+     * Copies handed to replace() are swapped in here, so only the thread that reads the
+     * list ever changes it.
+     */
+    public List<Message> messages() {
+        List<Message> list = messages.join();
+        if (!forgotten.isEmpty()) {
+            synchronized (addedWhileLoading) {
+                HashSet<String> gone = new HashSet<>(forgotten);
+                list.removeIf(message -> gone.contains(message.getId()));
+                forgotten.removeAll(gone);
+            }
+        }
+        if (!replacements.isEmpty()) {
+            synchronized (addedWhileLoading) {
+                for (int i = 0; i < list.size(); i++) {
+                    Message newer = replacements.remove(list.get(i).getId());
+                    if (newer != null) {
+                        list.set(i, newer);
+                    }
+                }
+                // Not in the list at all, so it came to disk after the list was read
+                for (String messageId : new ArrayList<>(replacements.keySet())) {
+                    Message newer = replacements.remove(messageId);
+                    if (newer != null) {
+                        list.add(newer);
+                    }
+                }
+            }
+        }
+        return list;
+    }
+
+    /**
+     * Starts reading one number's messages in the background if the full load is not done yet,
+     * so the inbox is ready sooner. Call it at login.
+     */
+    public void prefetch(String cellNumber) {
+        if (userMessageSource != null && !messages.isDone()) {
+            userLoads.computeIfAbsent(cellNumber,
+                    number -> CompletableFuture.supplyAsync(() -> userMessageSource.apply(number), executor));
+        }
+    }
+
+    /**
+     * The messages to or from one number, archived ones included. Once everything is loaded they
+     * come from the full list, before that only this number's messages are read, so the caller
+     * never waits for everyone else's.
+     */
+    public List<Message> messagesFor(String cellNumber) {
+        CompletableFuture<List<Message>> userLoad = userLoads.remove(cellNumber);
+        if (userMessageSource == null || messages.isDone()) {
+            return MessageManager.messagesFor(messages(), cellNumber);
+        }
+        ArrayList<Message> found = new ArrayList<>(userLoad != null ? userLoad.join() : userMessageSource.apply(cellNumber));
+        found.removeIf(message -> forgotten.contains(message.getId()));
+        HashSet<String> ids = new HashSet<>();
+        for (int i = 0; i < found.size(); i++) {
+            ids.add(found.get(i).getId());
+            Message newer = replacements.get(found.get(i).getId());
+            if (newer != null) {
+                found.set(i, newer);
+            }
+        }
+        // Sent or stored here since the load started, they may have missed the read
+        synchronized (addedWhileLoading) {
+            for (Message message : addedWhileLoading) {
+                if ((cellNumber.equals(message.getSender()) || cellNumber.equals(message.getRecipient()))
+                        && ids.add(message.getId())) {
+                    found.add(message);
+                }
+            }
+        }
+        return found;
+    }
+
+    public boolean isUsersReady() {
+        return users.isDone();
+    }
+
+    public boolean isMessagesReady() {
+        return messages.isDone();
+    }
+
+    public CompletableFuture<Void> whenFullyLoaded() {
+        return fullyLoaded;
+    }
+
+    /**
+     * Loads the messages again in the background, for example after a new login.
+     * messages() gives the new list once it is in.
+     */
+    public void reloadMessages() {
+        synchronized (addedWhileLoading) {
+            messages = CompletableFuture.supplyAsync(messageSource, executor).thenApply(this::mergeAdded);
+        }
+    }
+
+    /**
+     * Adds a message that was just sent or stored. If the messages are still loading it is
+     * kept aside and added when the load is done, unless the load already picked it up from disk.
+     */
+    public void add(Message message) {
+        synchronized (addedWhileLoading) {
+            if (messages.isDone()) {
+                messages.join().add(message);
+            } else {
+                addedWhileLoading.add(message);
+            }
+        }
+    }
+
+    /**
+     * Hands over a newer copy of a message that another thread changed, for example one the
+     * delivery scheduler just sent. It replaces the old copy the next time messages() is called.
+     */
+    public void replace(Message message) {
+        replacements.put(message.getId(), message);
+    }
+
+    /**
+     * Hands over the IDs of messages another thread took out of the store, for example the
+     * retention sweeper. They leave the list the next time messages() is called.
+     */
+    public void forget(Collection<String> messageIds) {
+        forgotten.addAll(messageIds);
+        replacements.keySet().removeAll(messageIds);
+    }
+
+    private List<Message> mergeAdded(List<Message> loaded) {
+        synchronized (addedWhileLoading) {
+            HashSet<String> ids = new HashSet<>();
+            for (Message message : loaded) {
+                ids.add(message.getId());
+            }
+            for (Message message : addedWhileLoading) {
+                if (ids.add(message.getId())) {
+                    loaded.add(message);
+                }
+            }
+            addedWhileLoading.clear();
+            return loaded;
+        }
+    }
+
+    /**
+     * Call just before the first screen goes up. That screen waits for a click, so this has to be
+     * before it or the time would include the user. Only the first call counts.
+     */
+    public void firstMenuShown() {
+        if (firstMenuMillis < 0) {
+            firstMenuMillis = elapsed();
+            System.out.println("Startup: first screen after " + firstMenuMillis + " ms");
+        }
+    }
+
+    public long getTimeToFirstMenuMillis() {
+        return firstMenuMillis;
+    }
+
+    public long getTimeToFullyLoadedMillis() {
+        return fullyLoadedMillis;
+    }
+
+    public String getMetrics() {
+        return "Startup: first screen after " + firstMenuMillis + " ms, users ready after " + usersReadyMillis
+                + " ms, messages ready after " + messagesReadyMillis + " ms, fully loaded after "
+                + fullyLoadedMillis + " ms";
+    }
+
+    private long elapsed() {
+        return System.currentTimeMillis() - startMillis;
+    }
+}
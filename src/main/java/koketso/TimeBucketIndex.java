@@ -0,0 +1,158 @@
+package koketso;
+
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.function.LongSupplier;
+
+/**
+ * Groups message IDs into time buckets (one day each by default), separately for every
+ * retention class, so the RetentionSweeper can find everything that is too old by looking at
+ * the oldest buckets only, and take a whole bucket away in one step.
+ *
+ * A message is filed under its timestamp (see Message.getTimestamp()) and its class. When a
+ * message is read it moves to the read class, in the same time bucket. Each store keeps its
+ * index up to date as messages are saved, read and deleted, and fills it while loading, so
+ * nothing extra is saved to disk.
+ */
+public class TimeBucketIndex {
+    private static final long BUCKET_MILLIS = Long.getLong("quickchat.retention.bucketHours", 24L) * 3_600_000L;
+
+    /**
+     * The kinds of messages that can have their own retention period.
+     */
+    public enum StatusClass {
+        SENT_READ, SENT_UNREAD, STORED;
+
+        static StatusClass of(Message message) {
+            if (!"Sent".equals(message.getStatus())) {
+                return STORED;
+            }
+            return message.isRead() ? SENT_READ : SENT_UNREAD;
+        }
+    }
+
+    // Where one message is filed
+    private static class Entry {
+        StatusClass statusClass;
+        final long bucket;
+
+        Entry(StatusClass statusClass, long bucket) {
+            this.statusClass = statusClass;
+            this.bucket = bucket;
+        }
+    }
+
+    private final long bucketMillis;
+    private final LongSupplier clock;
+    private final EnumMap<StatusClass, TreeMap<Long, Set<String>>> buckets = new EnumMap<>(StatusClass.class);
+    private final HashMap<String, Entry> entries = new HashMap<>();
+
+    public TimeBucketIndex() {
+        this(BUCKET_MILLIS, System::currentTimeMillis);
+    }
+
+    /**
+     * @param bucketMillis How much time one bucket covers.
+     * @param clock Gives the time in epoch millis, for messages that have no timestamp.
+     */
+    public TimeBucketIndex(long bucketMillis, LongSupplier clock) {
+        this.bucketMillis = bucketMillis;
+        this.clock = clock;
+        for (StatusClass statusClass : StatusClass.values()) {
+            buckets.put(statusClass, new TreeMap<>());
+        }
+    }
+
+    /**
+     * Files a message, or moves it if it was saved before with a different status or time.
+     * A message with no timestamp counts from now, so it is never dropped straight away.
+     */
+    public synchronized void add(Message message) {
+        long time = message.getTimestamp();
+        if (time <= 0) {
+            Entry existing = entries.get(message.getId());
+            time = existing != null ? existing.bucket * bucketMillis : clock.getAsLong();
+        }
+        StatusClass statusClass = StatusClass.of(message);
+        long bucket = Math.floorDiv(time, bucketMillis);
+        Entry entry = entries.get(message.getId());
+        if (entry != null && entry.bucket == bucket && entry.statusClass == statusClass) {
+            return;
+        }
+        if (entry != null) {
+            unfile(message.getId(), entry);
+        }
+        entry = new Entry(statusClass, bucket);
+        entries.put(message.getId(), entry);
+        buckets.get(statusClass).computeIfAbsent(bucket, b -> new HashSet<>()).add(message.getId());
+    }
+
+    /**
+     * Moves a sent message to the read class. Stored messages can't be read, they stay put.
+     */
+    public synchronized void markRead(String messageId) {
+        Entry entry = entries.get(messageId);
+        if (entry == null || entry.statusClass != StatusClass.SENT_UNREAD) {
+            return;
+        }
+        unfile(messageId, entry);
+        entry.statusClass = StatusClass.SENT_READ;
+        buckets.get(StatusClass.SENT_READ).computeIfAbsent(entry.bucket, b -> new HashSet<>()).add(messageId);
+    }
+
+    public synchronized void remove(String messageId) {
+        Entry entry = entries.remove(messageId);
+        if (entry != null) {
+            unfile(messageId, entry);
+        }
+    }
+
+    /**
+     * Takes out every bucket of a class that ended at or before the cutoff. Only the old end of
+     * the class is looked at, newer buckets are never touched.
+     * @return The IDs, one set per bucket, oldest bucket first.
+     */
+    public synchronized List<Set<String>> takeExpired(StatusClass statusClass, long cutoffMillis) {
+        // A bucket has ended by the cutoff when the bucket after it starts at or before it
+        long firstLive = Math.floorDiv(cutoffMillis, bucketMillis);
+        Map<Long, Set<String>> expired = buckets.get(statusClass).headMap(firstLive);
+        List<Set<String>> taken = new ArrayList<>(expired.values());
+        expired.clear();
+        for (Set<String> ids : taken) {
+            for (String id : ids) {
+                entries.remove(id);
+            }
+        }
+        return taken;
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public synchronized int bucketCount(StatusClass statusClass) {
+        return buckets.get(statusClass).size();
+    }
+
+    public synchronized int count(StatusClass statusClass) {
+        int count = 0;
+        for (Set<String> ids : buckets.get(statusClass).values()) {
+            count += ids.size();
+        }
+        return count;
+    }
+
+    private void unfile(String messageId, Entry entry) {
+        TreeMap<Long, Set<String>> classBuckets = buckets.get(entry.statusClass);
+        Set<String> ids = classBuckets.get(entry.bucket);
+        if (ids != null && ids.remove(messageId) && ids.isEmpty()) {
+            classBuckets.remove(entry.bucket);
+        }
+    }
+}
@@ -3,16 +3,29 @@ package koketso;
 import org.json.simple.JSONArray;
 import org.json.simple.JSONObject;
 import org.json.simple.parser.JSONParser;
+import java.io.File;
 import java.io.FileReader;
-import java.io.FileWriter;
-import java.io.IOException;
 import java.util.ArrayList;
+import java.util.List;
 
 public class UserManager {
     private ArrayList<RegistrationLogin> users;
     private static final String USERS_FILE = "users.json";
+    private final String usersFile;
+    // The same users for logins, looked up by username without going through this object's lock
+    private final Authenticator authenticator = new Authenticator();
 
     public UserManager() {
+        this(USERS_FILE);
+    }
+
+    /**
+     * Creates a user manager that keeps its users in a different file,
+     * for example a scratch file for load tests.
+     * @param usersFile The JSON file to load from and save to.
+     */
+    public UserManager(String usersFile) {
+        this.usersFile = usersFile;
         users = new ArrayList<>();
         loadUsers();
     }
@@ -22,7 +35,7 @@ public class UserManager {
      * @param regLogin The RegistrationLogin instance to register
      * @return Feedback from registration
      */
-    public String registerUser(RegistrationLogin regLogin, String username, String password, 
+    public synchronized String registerUser(RegistrationLogin regLogin, String username, String password, 
                               String cellphone, String firstName, String lastName) {
         // First, check if the username or cellphone number already exists.
         for (RegistrationLogin existingUser : users) {
@@ -37,6 +50,7 @@ public class UserManager {
         String feedback = regLogin.registerUser(username, password, cellphone, firstName, lastName);
         if (regLogin.isRegistered()) {
             users.add(regLogin);
+            authenticator.put(UserRecord.of(regLogin));
             saveUsers();
         }
         return feedback;
@@ -47,7 +61,7 @@ public class UserManager {
      * @param username The username to search for
      * @return The RegistrationLogin instance or null if not found
      */
-    public RegistrationLogin findUser(String username) {
+    public synchronized RegistrationLogin findUser(String username) {
         for (RegistrationLogin user : users) {
             if (user.getUserName() != null && user.getUserName().equals(username)) {
                 return user;
@@ -61,7 +75,7 @@ public class UserManager {
      * @param cellNumber The cellphone number to search for.
      * @return The RegistrationLogin instance or null if not found.
      */
-    public RegistrationLogin findUserByCellphone(String cellNumber) {
+    public synchronized RegistrationLogin findUserByCellphone(String cellNumber) {
         for (RegistrationLogin user : users) {
             if (user.getCellPhoneNumber() != null && user.getCellPhoneNumber().equals(cellNumber)) {
                 return user;
@@ -70,6 +84,14 @@ public class UserManager {
         return null;
     }
 
+    /**
+     * Checks logins against the registered users. It is safe to use from many threads at once
+     * and is kept up to date as users register.
+     */
+    public Authenticator getAuthenticator() {
+        return authenticator;
+    }
+
     /**
      * This method gives us all the users that are registered.
      * @return A list of all users.
@@ -78,13 +100,32 @@ public class UserManager {
         return this.users;
     }
 
+    /**
+     * A copy of the user list taken under the lock, so a registration can't change it half way.
+     */
+    public synchronized ArrayList<RegistrationLogin> copyUsers() {
+        return new ArrayList<>(users);
+    }
+
+    /**
+     * Swaps in a whole new list of users and saves it once, for restoring a snapshot.
+     */
+    synchronized void replaceAll(List<RegistrationLogin> newUsers) {
+        users = new ArrayList<>(newUsers);
+        authenticator.clear();
+        for (RegistrationLogin user : users) {
+            authenticator.put(UserRecord.of(user));
+        }
+        saveUsers();
+    }
+
     /**
      * Loads users from users.json into the users list.
      */
     @SuppressWarnings("unchecked")
     private void loadUsers() {
         JSONParser parser = new JSONParser();
-        try (FileReader reader = new FileReader(USERS_FILE)) {
+        try (FileReader reader = new FileReader(usersFile)) {
             JSONArray usersArray = (JSONArray) parser.parse(reader);
             for (Object obj : usersArray) {
                 JSONObject userJson = (JSONObject) obj;
@@ -99,6 +140,7 @@ public class UserManager {
                 );
                 if (user.isRegistered()) {
                     users.add(user);
+                    authenticator.put(UserRecord.of(user));
                 }
             }
         } catch (Exception e) {
@@ -108,7 +150,8 @@ public class UserManager {
     }
 
     /**
-     * Saves all current users to the users.json file.
+     * Saves all current users to the users.json file. It is replaced in one step, so another
+     * process reading it at the same time (like Snapshot take) never sees half a file.
      */
     @SuppressWarnings("unchecked")
     private void saveUsers() {
@@ -124,12 +167,6 @@ public class UserManager {
                 usersArray.add(userJson);
             }
         }
-        try (FileWriter file = new FileWriter(USERS_FILE)) {
-            // Write the JSON array to the file
-            file.write(usersArray.toJSONString());
-        } catch (IOException e) {
-            // Print an error if we can't save the file
-            e.printStackTrace();
-        }
+        MessageManager.writeJsonAtomically(new File(usersFile), usersArray);
     }
 }
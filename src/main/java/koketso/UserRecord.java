@@ -0,0 +1,50 @@
+package koketso;
+
+/**
+ * One registered user, as the Authenticator keeps them. Nothing in it ever changes after it is
+ * made, so any number of threads can read the same record without locking. A change to a user
+ * is a new record put in place of the old one.
+ */
+public final class UserRecord {
+    private final String userName;
+    private final String password;
+    private final String cellPhoneNumber;
+    private final String firstName;
+    private final String lastName;
+
+    public UserRecord(String userName, String password, String cellPhoneNumber, String firstName, String lastName) {
+        this.userName = userName;
+        this.password = password;
+        this.cellPhoneNumber = cellPhoneNumber;
+        this.firstName = firstName;
+        this.lastName = lastName;
+    }
+
+    /**
+     * Copies a registered user. The RegistrationLogin can keep changing, the record won't.
+     */
+    public static UserRecord of(RegistrationLogin user) {
+        return new UserRecord(user.getUserName(), user.getPassword(), user.getCellPhoneNumber(),
+                user.getFirstName(), user.getLastName());
+    }
+
+    public String getUserName() { return userName; }
+    public String getCellPhoneNumber() { return cellPhoneNumber; }
+    public String getFirstName() { return firstName; }
+    public String getLastName() { return lastName; }
+
+    /**
+     * Checks a password attempt. Every character is compared even after a mismatch, so the
+     * time taken does not give away how much of the password was right.
+     */
+    boolean passwordMatches(String attempt) {
+        if (attempt == null || password == null || attempt.length() != password.length()) {
+            return false;
+        }
+        int difference = 0;
+        for (int i = 0; i < password.length(); i++) {
+            difference |= password.charAt(i) ^ attempt.charAt(i);
+        }
+        return difference == 0;
+    }
+}
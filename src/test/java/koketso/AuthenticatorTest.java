@@ -0,0 +1,105 @@
+package koketso;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import static org.junit.jupiter.api.Assertions.*;
+
+public class AuthenticatorTest {
+    private static final String PASSWORD = "Passw0rd!";
+
+    @TempDir
+    File tempDir;
+
+    @Test
+    void testEachAttemptGetsItsOwnResult() {
+        Authenticator authenticator = new Authenticator();
+        authenticator.put(new UserRecord("kyl_1", PASSWORD, "+27838968976", "Kyle", "Smith"));
+
+        LoginResult good = authenticator.login("kyl_1", PASSWORD);
+        LoginResult bad = authenticator.login("kyl_1", "Passw0rd?");
+        LoginResult unknown = authenticator.login("nobody", PASSWORD);
+
+        // A failed attempt afterwards does not change the earlier outcome
+        assertTrue(good.isSuccess());
+        assertEquals("+27838968976", good.getUser().getCellPhoneNumber());
+        assertEquals("Welcome Kyle Smith,\nit is great to see you.", good.getStatusMessage());
+        assertFalse(bad.isSuccess());
+        assertNull(bad.getUser());
+        assertEquals("Username & Password do not match our records, please try again.", bad.getStatusMessage());
+        assertFalse(unknown.isSuccess());
+        assertFalse(authenticator.login(null, PASSWORD).isSuccess());
+        assertFalse(authenticator.login("kyl_1", null).isSuccess());
+    }
+
+    @Test
+    void testStripeCountIsAPowerOfTwo() {
+        assertEquals(1, new Authenticator(1).stripeCount());
+        assertEquals(64, new Authenticator(64).stripeCount());
+        assertEquals(128, new Authenticator(100).stripeCount());
+
+        Authenticator authenticator = new Authenticator(8);
+        for (int i = 0; i < 1000; i++) {
+            authenticator.put(new UserRecord(LoadGenerator.userNameFor(i), PASSWORD, LoadGenerator.cellFor(i), "A", "B"));
+        }
+        assertEquals(1000, authenticator.size());
+        authenticator.remove(LoadGenerator.userNameFor(7));
+        assertNull(authenticator.find(LoadGenerator.userNameFor(7)));
+        assertEquals(999, authenticator.size());
+    }
+
+    @Test
+    void testConcurrentLoginsToTheSameAccountDoNotMix() throws InterruptedException {
+        Authenticator authenticator = new Authenticator(4);
+        authenticator.put(new UserRecord("kyl_1", PASSWORD, "+27838968976", "Kyle", "Smith"));
+        int threads = 8;
+        CountDownLatch go = new CountDownLatch(1);
+        AtomicInteger wrongOutcomes = new AtomicInteger();
+        List<Thread> workers = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            boolean right = t % 2 == 0;
+            Thread worker = new Thread(() -> {
+                try {
+                    go.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                for (int i = 0; i < 20_000; i++) {
+                    // Half the threads log in correctly, the others keep failing on the same account
+                    LoginResult result = authenticator.login("kyl_1", right ? PASSWORD : "wrong");
+                    if (result.isSuccess() != right) {
+                        wrongOutcomes.incrementAndGet();
+                    }
+                }
+            });
+            worker.start();
+            workers.add(worker);
+        }
+        go.countDown();
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        assertEquals(0, wrongOutcomes.get());
+    }
+
+    @Test
+    void testUserManagerKeepsItUpToDate() {
+        String usersFile = new File(tempDir, "users.json").getPath();
+        UserManager users = new UserManager(usersFile);
+        users.registerUser(new RegistrationLogin(), "kyl_1", PASSWORD, "+27838968976", "Kyle", "Smith");
+        assertTrue(users.getAuthenticator().login("kyl_1", PASSWORD).isSuccess());
+
+        // Users loaded from the file can log in too
+        UserManager reloaded = new UserManager(usersFile);
+        assertTrue(reloaded.getAuthenticator().login("kyl_1", PASSWORD).isSuccess());
+
+        // A failed registration never adds a user
+        reloaded.registerUser(new RegistrationLogin(), "bad", PASSWORD, "+27838968977", "Bad", "User");
+        assertNull(reloaded.getAuthenticator().find("bad"));
+        assertEquals(1, reloaded.getAuthenticator().size());
+    }
+}
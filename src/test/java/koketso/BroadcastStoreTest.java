@@ -0,0 +1,118 @@
+package koketso;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import static org.junit.jupiter.api.Assertions.*;
+
+public class BroadcastStoreTest {
+    private static final String SENDER = "+27000000001";
+
+    @TempDir
+    File tempDir;
+
+    private static List<String> recipients(int count) {
+        List<String> recipients = new ArrayList<>();
+        for (int i = count; i > 0; i--) {
+            recipients.add(LoadGenerator.cellFor(1000 + i));
+        }
+        return recipients;
+    }
+
+    @Test
+    void testBroadcastIsWrittenOnce() {
+        // Its own sender, this one uses up the whole broadcast budget
+        String sender = "+27000000009";
+        BroadcastStore store = new BroadcastStore(tempDir);
+        List<String> recipients = recipients(10_000);
+        recipients.add("0838884567");          // Not a valid number, left out
+        recipients.add(LoadGenerator.cellFor(1005)); // Listed twice, sent once
+        assertEquals("Broadcast sent successfully to 10000 recipients, 1 rejected: 0838884567 (Invalid recipient)",
+                store.send(sender, recipients, "It is dinner time!"));
+
+        File[] files = new File(tempDir, "broadcasts").listFiles();
+        assertEquals(2, files.length);
+        BroadcastStore.Broadcast broadcast = store.sentBy(sender).get(0);
+        assertEquals(10_000, broadcast.getRecipientCount());
+        assertEquals(LoadGenerator.cellFor(1001), broadcast.getRecipient(0));
+    }
+
+    @Test
+    void testEachRecipientHasTheirOwnStatus() {
+        BroadcastStore store = new BroadcastStore(tempDir);
+        store.send(SENDER, recipients(3), "Reminder: meeting at 10");
+        String id = store.sentBy(SENDER).get(0).getId();
+
+        List<Message> inbox = store.inboxFor(LoadGenerator.cellFor(1002));
+        assertEquals(1, inbox.size());
+        assertEquals("Reminder: meeting at 10", inbox.get(0).getPayload());
+        assertEquals(SENDER, inbox.get(0).getSender());
+        ReceiptLog.of(tempDir).markRead(inbox.get(0));
+        ReceiptLog.of(tempDir).markDelivered(store.inboxFor(LoadGenerator.cellFor(1003)).get(0));
+
+        assertArrayEquals(new int[]{2, 1}, store.receiptCounts(id));
+        assertTrue(store.inboxFor(LoadGenerator.cellFor(1002)).get(0).isRead());
+        assertFalse(store.inboxFor(LoadGenerator.cellFor(1001)).get(0).isReceived());
+        assertTrue(store.inboxFor(LoadGenerator.cellFor(1004)).isEmpty());
+    }
+
+    @Test
+    void testBroadcastsSurviveARestartAndCanBeDeleted() {
+        BroadcastStore store = new BroadcastStore(tempDir);
+        store.send(SENDER, recipients(5), "First notice");
+        store.send(SENDER, recipients(2), "Second notice");
+
+        BroadcastStore reopened = new BroadcastStore(tempDir);
+        assertEquals(2, reopened.inboxFor(LoadGenerator.cellFor(1001)).size());
+        String first = reopened.sentBy(SENDER).stream()
+                .filter(b -> b.getPayload().equals("First notice")).findFirst().get().getId();
+        assertTrue(reopened.delete(first));
+        assertFalse(reopened.delete(first));
+        assertEquals(1, reopened.inboxFor(LoadGenerator.cellFor(1001)).size());
+        assertEquals(1, new BroadcastStore(tempDir).sentBy(SENDER).size());
+    }
+
+    @Test
+    void testBroadcastsLoadInTheOrderTheyWereSent() {
+        BroadcastStore store = new BroadcastStore(tempDir);
+        for (int i = 0; i < 5; i++) {
+            store.send(SENDER, recipients(1), "Notice " + i);
+        }
+        List<BroadcastStore.Broadcast> sent = new BroadcastStore(tempDir).sentBy(SENDER);
+        for (int i = 0; i < 5; i++) {
+            assertEquals("Notice " + i, sent.get(i).getPayload());
+        }
+    }
+
+    @Test
+    void testInvalidBroadcastsAreTurnedAway() {
+        BroadcastStore store = new BroadcastStore(tempDir);
+        assertEquals("Failed to send message: Invalid recipient", store.send(SENDER, new ArrayList<>(), "Hi"));
+        assertEquals("Failed to send message: Message content cannot be empty", store.send(SENDER, recipients(2), " "));
+        assertEquals("Failed to send message: Invalid recipient", store.send(SENDER, List.of("0838884567", "12345"), "Hi"));
+        assertTrue(store.sentBy(SENDER).isEmpty());
+    }
+
+    @Test
+    void testReceiptsGoThroughTheMessageStore() {
+        // Marked the way the inbox does it, through the store and not the receipt log
+        BroadcastStore onDisk = new BroadcastStore(tempDir);
+        onDisk.send(SENDER, recipients(2), "Reminder: meeting at 10");
+        FileMessageStore.of(tempDir).markRead(onDisk.inboxFor(LoadGenerator.cellFor(1001)).get(0));
+        assertTrue(onDisk.inboxFor(LoadGenerator.cellFor(1001)).get(0).isRead());
+
+        InMemoryMessageStore memory = new InMemoryMessageStore();
+        BroadcastStore inMemory = new BroadcastStore(memory);
+        inMemory.send(SENDER, recipients(2), "Reminder: meeting at 11");
+        memory.markRead(inMemory.inboxFor(LoadGenerator.cellFor(1001)).get(0));
+        memory.markDelivered(inMemory.inboxFor(LoadGenerator.cellFor(1002)).get(0));
+        assertTrue(inMemory.inboxFor(LoadGenerator.cellFor(1001)).get(0).isRead());
+        assertArrayEquals(new int[]{2, 1}, inMemory.receiptCounts(inMemory.sentBy(SENDER).get(0).getId()));
+        // Nothing of the memory one reached the disk
+        assertEquals(2, new File(tempDir, "broadcasts").listFiles().length);
+        assertTrue(inMemory.delete(inMemory.sentBy(SENDER).get(0).getId()));
+        assertTrue(inMemory.inboxFor(LoadGenerator.cellFor(1001)).isEmpty());
+    }
+}
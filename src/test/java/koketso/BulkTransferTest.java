@@ -0,0 +1,147 @@
+package koketso;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import static org.junit.jupiter.api.Assertions.*;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+public class BulkTransferTest {
+
+    @TempDir
+    File tempDir;
+
+    @Test
+    void testImportAcceptsValidLinesAndReportsRejects() throws IOException {
+        File messagesDir = new File(tempDir, "messages");
+        Path input = tempDir.toPath().resolve("in.jsonl");
+        Path rejects = tempDir.toPath().resolve("rejects.jsonl");
+        Files.write(input, List.of(
+                "{\"MESSAGE_SENDER\":\"+27000000000\",\"MESSAGE_RECIPIENT\":\"+27834557896\",\"MESSAGE_PAYLOAD\":\"Did you get the cake?\"}",
+                "{\"MESSAGE_SENDER\":\"+27000000000\",\"MESSAGE_RECIPIENT\":\"+27838884567\",\"MESSAGE_PAYLOAD\":\"It is dinner time!\"}",
+                "{\"MESSAGE_ID\":\"0000000001\",\"MESSAGE_SENDER\":\"+27000000000\",\"MESSAGE_RECIPIENT\":\"+27838884567\",\"MESSAGE_PAYLOAD\":\"Ok, I am leaving without you.\",\"MESSAGE_STATUS\":\"Stored\"}",
+                "{\"MESSAGE_SENDER\":\"+27000000000\",\"MESSAGE_RECIPIENT\":\"12345\",\"MESSAGE_PAYLOAD\":\"Bad recipient\"}",
+                "this is not json"));
+
+        BulkTransfer transfer = new BulkTransfer(messagesDir);
+        BulkTransfer.ImportResult result = transfer.importJsonl(input, rejects);
+
+        assertEquals(3, result.getAccepted());
+        assertEquals(2, result.getRejected());
+        List<String> rejectLines = Files.readAllLines(rejects);
+        assertEquals(2, rejectLines.size());
+        assertTrue(rejectLines.get(0).contains("Invalid recipient"));
+        assertTrue(rejectLines.get(0).contains("\"line\":4"));
+
+        assertEquals(3, MessageLayout.of(messagesDir).listMessageFiles().size());
+        assertTrue(new File(messagesDir, "message_0000000001.json").exists());
+    }
+
+    @Test
+    void testExportWritesOneLinePerMessage() throws IOException {
+        File messagesDir = new File(tempDir, "messages");
+        Path input = tempDir.toPath().resolve("in.jsonl");
+        Files.write(input, List.of(
+                "{\"MESSAGE_SENDER\":\"+27000000000\",\"MESSAGE_RECIPIENT\":\"+27834557896\",\"MESSAGE_PAYLOAD\":\"Did you get the cake?\"}",
+                "{\"MESSAGE_SENDER\":\"+27000000000\",\"MESSAGE_RECIPIENT\":\"+27838884567\",\"MESSAGE_PAYLOAD\":\"It is dinner time!\"}"));
+
+        BulkTransfer transfer = new BulkTransfer(messagesDir);
+        transfer.importJsonl(input, tempDir.toPath().resolve("rejects.jsonl"));
+
+        Path output = tempDir.toPath().resolve("out.jsonl");
+        assertEquals(2, transfer.exportJsonl(output));
+
+        // The export has to be importable again
+        BulkTransfer.ImportResult again = new BulkTransfer(new File(tempDir, "copy"))
+                .importJsonl(output, tempDir.toPath().resolve("rejects2.jsonl"));
+        assertEquals(2, again.getAccepted());
+        assertEquals(0, again.getRejected());
+    }
+
+    @Test
+    void testRoundTripKeepsStatusIndexAndHash() throws IOException {
+        File messagesDir = new File(tempDir, "messages");
+        Path input = tempDir.toPath().resolve("in.jsonl");
+        Files.write(input, List.of(
+                "{\"MESSAGE_ID\":\"0000000001\",\"MESSAGE_SENDER\":\"+27000000000\",\"MESSAGE_RECIPIENT\":\"+27834557896\",\"MESSAGE_PAYLOAD\":\"Did you get the cake?\",\"MESSAGE_STATUS\":\"Sent\",\"MESSAGE_INDEX\":7,\"MESSAGE_HASH\":\"00:7:DIDCAKE?\"}",
+                "{\"MESSAGE_ID\":\"0000000002\",\"MESSAGE_SENDER\":\"+27000000000\",\"MESSAGE_RECIPIENT\":\"+27838884567\",\"MESSAGE_PAYLOAD\":\"Yohoooo, I am at your gate.\",\"MESSAGE_STATUS\":\"Disregarded\"}"));
+
+        BulkTransfer transfer = new BulkTransfer(messagesDir);
+        assertEquals(2, transfer.importJsonl(input, tempDir.toPath().resolve("rejects.jsonl")).getAccepted());
+        Path output = tempDir.toPath().resolve("out.jsonl");
+        transfer.exportJsonl(output);
+
+        File copyDir = new File(tempDir, "copy");
+        new BulkTransfer(copyDir).importJsonl(output, tempDir.toPath().resolve("rejects2.jsonl"));
+        FileMessageStore copy = new FileMessageStore(copyDir);
+        Message sent = copy.get("0000000001");
+        assertEquals("Sent", sent.getStatus());
+        assertEquals(7, sent.getIndex());
+        assertEquals("00:7:DIDCAKE?", sent.getHash());
+        assertEquals("Disregarded", copy.get("0000000002").getStatus());
+    }
+
+    @Test
+    void testExistingAndRepeatedIdsAreRejected() throws IOException {
+        File messagesDir = new File(tempDir, "messages");
+        Path input = tempDir.toPath().resolve("in.jsonl");
+        String line = "{\"MESSAGE_ID\":\"0000000001\",\"MESSAGE_SENDER\":\"+27000000000\",\"MESSAGE_RECIPIENT\":\"+27834557896\",\"MESSAGE_PAYLOAD\":\"Did you get the cake?\"}";
+        Files.write(input, List.of(line, line.replace("cake", "pie")));
+
+        BulkTransfer transfer = new BulkTransfer(messagesDir);
+        Path rejects = tempDir.toPath().resolve("rejects.jsonl");
+        BulkTransfer.ImportResult result = transfer.importJsonl(input, rejects);
+        assertEquals(1, result.getAccepted());
+        assertEquals(1, result.getRejected());
+        assertTrue(Files.readAllLines(rejects).get(0).contains("repeated"));
+
+        // Importing the same file again must not overwrite anything
+        result = transfer.importJsonl(input, rejects);
+        assertEquals(0, result.getAccepted());
+        assertEquals(2, result.getRejected());
+        assertTrue(Files.readAllLines(rejects).get(0).contains("already exists"));
+        assertEquals("Did you get the cake?", new FileMessageStore(messagesDir).get("0000000001").getPayload());
+    }
+
+    @Test
+    void testAnyMessageStoreCanBeUsed() throws IOException {
+        Path input = tempDir.toPath().resolve("in.jsonl");
+        Files.write(input, List.of(
+                "{\"MESSAGE_ID\":\"0000000001\",\"MESSAGE_SENDER\":\"+27000000000\",\"MESSAGE_RECIPIENT\":\"+27834557896\",\"MESSAGE_PAYLOAD\":\"Did you get the cake?\"}",
+                "{\"MESSAGE_SENDER\":\"+27000000000\",\"MESSAGE_RECIPIENT\":\"+27838884567\",\"MESSAGE_PAYLOAD\":\"It is dinner time!\"}"));
+
+        InMemoryMessageStore store = new InMemoryMessageStore();
+        BulkTransfer transfer = new BulkTransfer(store);
+        Path rejects = tempDir.toPath().resolve("rejects.jsonl");
+        assertEquals(2, transfer.importJsonl(input, rejects).getAccepted());
+        assertEquals(2, store.size());
+        assertEquals("Sent", store.get("0000000001").getStatus());
+        // Nothing went to disk
+        assertFalse(new File(tempDir, "messages").exists());
+
+        // The first ID is already in this store now, the second line gets a new one
+        assertEquals(1, transfer.importJsonl(input, rejects).getRejected());
+        Path output = tempDir.toPath().resolve("out.jsonl");
+        assertEquals(3, transfer.exportJsonl(output));
+        assertEquals(3, Files.readAllLines(output).size());
+    }
+
+    @Test
+    void testNewSendsAreNumberedAfterTheStore() throws IOException {
+        File messagesDir = new File(tempDir, "messages");
+        Path input = tempDir.toPath().resolve("in.jsonl");
+        Path rejects = tempDir.toPath().resolve("rejects.jsonl");
+        Files.write(input, List.of(
+                "{\"MESSAGE_ID\":\"0000000001\",\"MESSAGE_SENDER\":\"+27000000000\",\"MESSAGE_RECIPIENT\":\"+27834557896\",\"MESSAGE_PAYLOAD\":\"Did you get the cake?\",\"MESSAGE_STATUS\":\"Sent\",\"MESSAGE_INDEX\":1000000,\"MESSAGE_HASH\":\"00:1000000:DIDCAKE?\"}"));
+        new BulkTransfer(messagesDir).importJsonl(input, rejects);
+
+        // A later run (a new BulkTransfer, like a new process) must not hand out an index that is taken
+        Files.write(input, List.of(
+                "{\"MESSAGE_ID\":\"0000000002\",\"MESSAGE_SENDER\":\"+27000000000\",\"MESSAGE_RECIPIENT\":\"+27838884567\",\"MESSAGE_PAYLOAD\":\"It is dinner time!\"}"));
+        new BulkTransfer(messagesDir).importJsonl(input, rejects);
+        assertTrue(new FileMessageStore(messagesDir).get("0000000002").getIndex() > 1000000);
+    }
+}
@@ -0,0 +1,96 @@
+package koketso;
+
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+import java.util.ArrayList;
+import java.util.List;
+
+public class DeliverySchedulerTest {
+
+    private final List<String> delivered = new ArrayList<>();
+
+    private Message storedMessage(long sendAt) {
+        Message msg = new Message("+27000000000", "+27838884567", "It is dinner time!");
+        msg.setStatus("Stored");
+        msg.setSendAt(sendAt);
+        return msg;
+    }
+
+    @Test
+    void testMessageIsDeliveredOnlyWhenDue() {
+        DeliveryScheduler scheduler = new DeliveryScheduler(1000, 0, delivered::add);
+        Message msg = storedMessage(5_000);
+        scheduler.schedule(msg);
+
+        assertEquals(0, scheduler.advanceTo(4_999));
+        assertTrue(delivered.isEmpty());
+        assertEquals(1, scheduler.advanceTo(5_000));
+        assertEquals(msg.getId(), delivered.get(0));
+        assertEquals(0, scheduler.pendingCount());
+    }
+
+    @Test
+    void testFarAwayMessagesCascadeDownTheLevels() {
+        DeliveryScheduler scheduler = new DeliveryScheduler(1, 0, delivered::add);
+        // One for each level of the wheel, and one past the end of the wheel
+        long[] dueTimes = {10, 100, 5_000, 300_000, 20_000_000};
+        for (long due : dueTimes) {
+            scheduler.schedule(storedMessage(due));
+        }
+
+        for (long due : dueTimes) {
+            int before = delivered.size();
+            scheduler.advanceTo(due - 1);
+            assertEquals(before, delivered.size(), "Nothing should be sent before " + due);
+            scheduler.advanceTo(due);
+            assertEquals(before + 1, delivered.size(), "The message due at " + due + " should be sent");
+        }
+    }
+
+    @Test
+    void testCancelledAndOverdueMessages() {
+        DeliveryScheduler scheduler = new DeliveryScheduler(1000, 10_000, delivered::add);
+        Message cancelled = storedMessage(20_000);
+        Message overdue = storedMessage(1_000);
+        scheduler.schedule(cancelled);
+        scheduler.schedule(overdue);
+
+        assertTrue(scheduler.cancel(cancelled.getId()));
+        scheduler.advanceTo(30_000);
+        assertEquals(1, delivered.size());
+        assertEquals(overdue.getId(), delivered.get(0));
+    }
+
+    @Test
+    void testRebuildOnlyPicksStoredMessagesWithASendTime() {
+        DeliveryScheduler scheduler = new DeliveryScheduler(1000, 0, delivered::add);
+        List<Message> loaded = new ArrayList<>();
+        loaded.add(storedMessage(2_000));
+        loaded.add(storedMessage(0));
+        Message sent = storedMessage(3_000);
+        sent.setStatus("Sent");
+        loaded.add(sent);
+
+        assertEquals(1, scheduler.rebuild(loaded));
+    }
+
+    @Test
+    void testDueMessagesAreReadFreshFromTheStore() {
+        DeliveryScheduler scheduler = new DeliveryScheduler(1000, 0, null);
+        Message uiCopy = storedMessage(1_000);
+        uiCopy.storeMessage();
+        Message deleted = storedMessage(1_000);
+        deleted.storeMessage();
+        scheduler.schedule(uiCopy);
+        scheduler.schedule(deleted);
+        MessageStore.getDefault().delete(deleted.getId());
+
+        assertEquals(2, scheduler.advanceTo(2_000));
+        // The ticker sent its own copy, the one the UI holds was never touched
+        assertEquals("Sent", MessageStore.getDefault().get(uiCopy.getId()).getStatus());
+        assertEquals("Stored", uiCopy.getStatus());
+        // A message deleted while it waited is not brought back
+        assertNull(MessageStore.getDefault().get(deleted.getId()));
+        MessageStore.getDefault().delete(uiCopy.getId());
+    }
+}
@@ -0,0 +1,11 @@
+package koketso;
+
+import java.io.File;
+
+public class FileMessageStoreTest extends MessageStoreContractTest {
+
+    @Override
+    protected MessageStore createStore(File dir) {
+        return new FileMessageStore(dir);
+    }
+}
@@ -0,0 +1,142 @@
+package koketso;
+
+import org.junit.jupiter.api.Test;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import static org.junit.jupiter.api.Assertions.*;
+
+public class IdempotencyCacheTest {
+    private static final String SENDER = "+27838968976";
+    private static final String OK = "Message sent successfully";
+    private static final long WINDOW = 60_000;
+
+    private final AtomicLong now = new AtomicLong(1_000_000);
+    private final AtomicInteger writes = new AtomicInteger();
+
+    private IdempotencyCache cache(int keysPerSender) {
+        return new IdempotencyCache(WINDOW, 100, keysPerSender, 1000, now::get);
+    }
+
+    private String write() {
+        writes.incrementAndGet();
+        return OK;
+    }
+
+    @Test
+    void testRetryInsideTheWindowIsNotSentAgain() {
+        IdempotencyCache cache = cache(8);
+        assertEquals(OK, cache.send(SENDER, "key-1", this::write));
+        now.addAndGet(WINDOW - 1);
+        assertEquals(OK, cache.send(SENDER, "key-1", this::write));
+        assertEquals(1, writes.get());
+        assertEquals(1, cache.getDuplicateCount());
+
+        // The same key from someone else, no key, or after the window is a new send
+        cache.send("+27838884567", "key-1", this::write);
+        cache.send(SENDER, null, this::write);
+        now.addAndGet(2);
+        cache.send(SENDER, "key-1", this::write);
+        assertEquals(4, writes.get());
+    }
+
+    @Test
+    void testFailedSendsCanBeRetried() {
+        IdempotencyCache cache = cache(8);
+        assertEquals("Failed to send message: Invalid recipient",
+                cache.send(SENDER, "key-1", () -> "Failed to send message: Invalid recipient"));
+        assertEquals(OK, cache.send(SENDER, "key-1", this::write));
+        assertEquals(1, writes.get());
+    }
+
+    @Test
+    void testMemoryIsBoundedPerSender() {
+        IdempotencyCache cache = cache(4);
+        for (int i = 0; i < 10; i++) {
+            cache.send(SENDER, "key-" + i, this::write);
+        }
+        cache.send(SENDER, "key-9", this::write);
+        assertEquals(10, writes.get(), "Recent keys are remembered");
+        cache.send(SENDER, "key-0", this::write);
+        assertEquals(11, writes.get(), "The oldest keys were dropped to stay in bounds");
+    }
+
+    @Test
+    void testRetryDuringTheFirstSendGetsItsResult() throws Exception {
+        IdempotencyCache cache = cache(8);
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        Thread first = new Thread(() -> cache.send(SENDER, "key-1", () -> {
+            started.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return write();
+        }));
+        first.start();
+        started.await();
+
+        List<String> results = new ArrayList<>();
+        Thread retry = new Thread(() -> results.add(cache.send(SENDER, "key-1", this::write)));
+        retry.start();
+        Thread.sleep(50);
+        release.countDown();
+        first.join();
+        retry.join();
+        assertEquals(List.of(OK), results);
+        assertEquals(1, writes.get());
+    }
+
+    @Test
+    void testBloomFilterHasNoFalseNegatives() {
+        BloomFilter filter = BloomFilter.forKeys(10_000, 0.01);
+        int falsePositives = 0;
+        for (int i = 0; i < 10_000; i++) {
+            if (!filter.add("key-" + i)) {
+                falsePositives++; // Looked seen already, which is allowed now and then
+            }
+        }
+        for (int i = 0; i < 10_000; i++) {
+            assertTrue(filter.mightContain("key-" + i));
+            assertFalse(filter.add("key-" + i));
+            if (filter.mightContain("other-" + i)) {
+                falsePositives++;
+            }
+        }
+        assertTrue(falsePositives < 400, "About 1% expected, got " + falsePositives);
+    }
+
+    @Test
+    void testMessageRetryIsSavedOnce() {
+        String key = "retry-" + System.nanoTime();
+        Message first = new Message(SENDER, "+27838884567", "Are we still on for lunch?");
+        Message retry = new Message(SENDER, "+27838884567", "Are we still on for lunch?");
+        assertEquals(OK, first.sentMessage(key));
+        SendResult result = retry.send(key);
+        assertEquals(OK, result.getText());
+        assertEquals("Sent", first.getStatus());
+        assertEquals("Stored", retry.getStatus(), "The retry was never sent");
+        // The retry's result points at what was saved
+        assertSame(first, result.getMessage());
+        assertEquals(first.getIndex(), result.getMessage().getIndex());
+        assertEquals(first.getHash(), result.getMessage().getHash());
+        MessageManager.deleteMessageFile(first.getId());
+    }
+
+    @Test
+    void testSendersInDifferentStripesKeepTheirKeys() {
+        IdempotencyCache cache = new IdempotencyCache(WINDOW, 1024, 8, 1000, 16, now::get);
+        for (int i = 0; i < 32; i++) {
+            cache.send(LoadGenerator.cellFor(i), "key-1", this::write);
+        }
+        for (int i = 0; i < 32; i++) {
+            cache.send(LoadGenerator.cellFor(i), "key-1", this::write);
+        }
+        assertEquals(32, writes.get());
+        assertEquals(32, cache.getDuplicateCount());
+    }
+}
@@ -0,0 +1,11 @@
+package koketso;
+
+import java.io.File;
+
+public class InMemoryMessageStoreTest extends MessageStoreContractTest {
+
+    @Override
+    protected MessageStore createStore(File dir) {
+        return new InMemoryMessageStore();
+    }
+}
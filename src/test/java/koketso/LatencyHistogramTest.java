@@ -0,0 +1,37 @@
+package koketso;
+
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+public class LatencyHistogramTest {
+
+    @Test
+    void testPercentilesAreWithinBucketAccuracy() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (long i = 1; i <= 10_000; i++) {
+            histogram.record(i * 1000); // 1 us up to 10 ms
+        }
+        assertEquals(10_000, histogram.getCount());
+        // Buckets are about 6% wide, so allow that much either way
+        assertEquals(5_000_000, histogram.percentile(0.50), 5_000_000 * 0.07);
+        assertEquals(9_900_000, histogram.percentile(0.99), 9_900_000 * 0.07);
+        assertEquals(9_990_000, histogram.percentile(0.999), 9_990_000 * 0.07);
+    }
+
+    @Test
+    void testEmptyAndResetHistogram() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals(0, histogram.percentile(0.99));
+        histogram.record(42);
+        histogram.reset();
+        assertEquals(0, histogram.getCount());
+    }
+
+    @Test
+    void testSyntheticUsersAreValid() {
+        RegistrationLogin user = new RegistrationLogin();
+        String feedback = user.registerUser(LoadGenerator.userNameFor(36 * 36 * 36 * 36 - 1), "Passw0rd!",
+                LoadGenerator.cellFor(123), "Load", "Tester");
+        assertTrue(feedback.contains("Registration successful"), feedback);
+    }
+}
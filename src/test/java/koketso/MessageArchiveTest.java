@@ -0,0 +1,162 @@
+package koketso;
+
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import static org.junit.jupiter.api.Assertions.*;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+public class MessageArchiveTest {
+
+    @TempDir
+    File messagesDir;
+
+    // Helper that writes a loose message file the same way storeMessage does
+    private File writeLooseMessage(Message msg, long ageMillis) throws IOException {
+        File file = new File(messagesDir, "message_" + msg.getId() + ".json");
+        try (FileWriter writer = new FileWriter(file)) {
+            writer.write(msg.toJson().toJSONString());
+        }
+        file.setLastModified(System.currentTimeMillis() - ageMillis);
+        return file;
+    }
+
+    @Test
+    void testOnlyOldReadMessagesAreArchived() throws IOException {
+        Message oldRead = new Message("+27000000000", "+27838884567", "It is dinner time!");
+        oldRead.setRead(true);
+        Message oldUnread = new Message("+27000000000", "+27838884567", "Did you get the cake?");
+        Message newRead = new Message("+27000000000", "+27838884567", "Ok, I am leaving without you.");
+        newRead.setRead(true);
+
+        File oldReadFile = writeLooseMessage(oldRead, 10_000_000L);
+        File oldUnreadFile = writeLooseMessage(oldUnread, 10_000_000L);
+        File newReadFile = writeLooseMessage(newRead, 0L);
+
+        MessageArchive archive = new MessageArchive(messagesDir);
+        assertEquals(1, archive.archiveOldReadMessages(1_000_000L));
+
+        assertFalse(oldReadFile.exists(), "The archived message should no longer be a loose file.");
+        assertTrue(oldUnreadFile.exists());
+        assertTrue(newReadFile.exists());
+        assertTrue(archive.contains(oldRead.getId()));
+    }
+
+    @Test
+    void testArchivedMessagesCanBeReadBackThroughTheIndex() throws IOException {
+        MessageArchive archive = new MessageArchive(messagesDir);
+        for (int i = 0; i < 3; i++) {
+            Message msg = new Message("+27000000000", "+27838884567", "Reminder number " + i);
+            msg.setRead(true);
+            writeLooseMessage(msg, 10_000_000L);
+        }
+        assertEquals(3, archive.archiveOldReadMessages(1_000_000L));
+
+        // A fresh instance has to rebuild everything from the index file
+        MessageArchive reopened = new MessageArchive(messagesDir);
+        List<Message> loaded = reopened.loadAll();
+        assertEquals(3, loaded.size());
+
+        Message first = loaded.get(0);
+        Message lookedUp = reopened.get(first.getId());
+        assertNotNull(lookedUp);
+        assertEquals(first.getPayload(), lookedUp.getPayload());
+        assertTrue(lookedUp.isRead());
+    }
+
+    @Test
+    void testRemovedMessageIsNoLongerLoaded() throws IOException {
+        Message msg = new Message("+27000000000", "+27838884567", "It is dinner time!");
+        msg.setRead(true);
+        writeLooseMessage(msg, 10_000_000L);
+
+        MessageArchive archive = new MessageArchive(messagesDir);
+        archive.archiveOldReadMessages(1_000_000L);
+        assertTrue(archive.remove(msg.getId()));
+
+        assertTrue(new MessageArchive(messagesDir).loadAll().isEmpty());
+        assertNull(archive.get(msg.getId()));
+    }
+
+    @Test
+    void testArchivedMessagesStayOutOfTheLoadUntilAskedFor() throws IOException {
+        for (int i = 0; i < 6; i++) {
+            Message msg = new Message("+27000000000", i % 2 == 0 ? "+27838884567" : "+27838884568", "Old news " + i);
+            msg.setRead(true);
+            writeLooseMessage(msg, 10_000_000L);
+        }
+        Message fresh = new Message("+27000000000", "+27838884567", "Still hot");
+        writeLooseMessage(fresh, 0L);
+        assertEquals(6, MessageArchive.of(messagesDir).archiveOldReadMessages(1_000_000L));
+
+        FileMessageStore store = new FileMessageStore(messagesDir);
+        List<Message> hot = store.loadInto(new ArrayList<>());
+        assertEquals(1, hot.size());
+        assertEquals(fresh.getId(), hot.get(0).getId());
+
+        List<Message> archived = store.loadArchived("+27838884567");
+        assertEquals(3, archived.size());
+        assertTrue(archived.get(0).isRead());
+        assertEquals(3, store.loadArchived("+27838884568").size());
+        assertEquals(6, store.loadArchived("+27000000000").size());
+        assertTrue(store.loadArchived("+27999999999").isEmpty());
+
+        List<Message> all = new ArrayList<>();
+        store.scan(all::add);
+        assertEquals(7, all.size());
+    }
+
+    @Test
+    void testNumbersAreIndexedForAnArchiveFromBefore() throws IOException {
+        Message msg = new Message("+27000000000", "+27838884567", "It is dinner time!");
+        msg.setRead(true);
+        writeLooseMessage(msg, 10_000_000L);
+        new MessageArchive(messagesDir).archiveOldReadMessages(1_000_000L);
+
+        // Take the numbers out of the index file, like an archive written by an older version
+        File indexFile = new File(new File(messagesDir, "archive"), "index.json");
+        JSONObject index;
+        try (FileReader reader = new FileReader(indexFile)) {
+            index = (JSONObject) new JSONParser().parse(reader);
+        } catch (ParseException e) {
+            throw new IOException(e);
+        }
+        index.remove("numbers");
+        try (FileWriter writer = new FileWriter(indexFile)) {
+            writer.write(index.toJSONString());
+        }
+
+        MessageArchive reopened = new MessageArchive(messagesDir);
+        assertEquals(1, reopened.loadFor("+27838884567").size());
+        assertTrue(reopened.loadFor("+27838884568").isEmpty());
+    }
+
+    @Test
+    void testFailedIndexSaveLeavesTheMessageLoose() throws IOException {
+        Message msg = new Message("+27000000000", "+27838884567", "It is dinner time!");
+        msg.setRead(true);
+        File file = writeLooseMessage(msg, 10_000_000L);
+
+        // A folder where the temporary index goes makes the save fail
+        File tmp = new File(new File(messagesDir, "archive"), "index.json.tmp");
+        assertTrue(tmp.mkdirs());
+
+        MessageArchive archive = new MessageArchive(messagesDir);
+        assertEquals(0, archive.archiveOldReadMessages(1_000_000L));
+        assertTrue(file.exists());
+        assertFalse(archive.contains(msg.getId()));
+        assertTrue(archive.loadFor("+27838884567").isEmpty());
+
+        // Once the index can be saved again the same block number is used
+        assertTrue(tmp.delete());
+        assertEquals(1, archive.archiveOldReadMessages(1_000_000L));
+        assertEquals(1, new MessageArchive(messagesDir).loadAll().size());
+    }
+}
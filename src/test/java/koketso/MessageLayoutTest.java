@@ -0,0 +1,62 @@
+package koketso;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import static org.junit.jupiter.api.Assertions.*;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.List;
+
+public class MessageLayoutTest {
+
+    @TempDir
+    File messagesDir;
+
+    private void writeFlatMessage(String id) throws IOException {
+        try (FileWriter writer = new FileWriter(new File(messagesDir, "message_" + id + ".json"))) {
+            writer.write("{\"MESSAGE_ID\":\"" + id + "\"}");
+        }
+    }
+
+    @Test
+    void testNewLayoutIsFlat() {
+        MessageLayout layout = MessageLayout.of(messagesDir);
+        assertEquals(MessageLayout.FLAT, layout.getLayout());
+        assertEquals(new File(messagesDir, "message_0123456789.json"), layout.fileForWrite("0123456789"));
+    }
+
+    @Test
+    void testMigrationMovesFilesIntoShards() throws IOException {
+        writeFlatMessage("0123456789");
+        writeFlatMessage("0199999999");
+        writeFlatMessage("4500000000");
+
+        MessageLayout layout = MessageLayout.of(messagesDir);
+        assertEquals(3, layout.migrateToShards());
+
+        assertEquals(MessageLayout.SHARDED, layout.getLayout());
+        assertEquals(List.of("01", "45"), layout.getShards());
+        assertFalse(new File(messagesDir, "message_0123456789.json").exists());
+        assertTrue(new File(messagesDir, "shards/01/message_0123456789.json").exists());
+        assertEquals(3, layout.listMessageFiles().size());
+        assertTrue(new File(messagesDir, "manifest.json").exists());
+    }
+
+    @Test
+    void testLookupAndDeleteWorkAcrossBothLayouts() throws IOException {
+        MessageLayout layout = MessageLayout.of(messagesDir);
+        writeFlatMessage("1111111111");
+        layout.migrateToShards();
+
+        // A file that is still in the flat folder after the switch must still be found
+        writeFlatMessage("2222222222");
+        assertNotNull(layout.findFile("1111111111"));
+        assertEquals(new File(messagesDir, "message_2222222222.json"), layout.findFile("2222222222"));
+
+        assertTrue(layout.delete("1111111111"));
+        assertTrue(layout.delete("2222222222"));
+        assertNull(layout.findFile("1111111111"));
+        assertNull(layout.findFile("2222222222"));
+    }
+}
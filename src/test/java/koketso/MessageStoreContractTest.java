@@ -0,0 +1,191 @@
+package koketso;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.IntStream;
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * The tests every MessageStore must pass. Each store gets a subclass that says how to make one.
+ */
+public abstract class MessageStoreContractTest {
+
+    @TempDir
+    File tempDir;
+
+    protected MessageStore store;
+
+    /**
+     * Makes an empty store. File based stores should keep their files in the given folder.
+     */
+    protected abstract MessageStore createStore(File dir);
+
+    @BeforeEach
+    void setUp() {
+        store = createStore(tempDir);
+    }
+
+    private static Message sent(String id, String payload) {
+        Message message = new Message(id, "+27000000001", "+27838884567", payload, 0, "");
+        message.markSent(3);
+        return message;
+    }
+
+    @Test
+    void testPutThenGet() {
+        Message message = sent("0000000001", "Did you get the cake?");
+        message.setSendAt(99L);
+        assertTrue(store.put(message));
+
+        Message loaded = store.get("0000000001");
+        assertNotNull(loaded);
+        assertEquals("+27000000001", loaded.getSender());
+        assertEquals("+27838884567", loaded.getRecipient());
+        assertEquals("Did you get the cake?", loaded.getPayload());
+        assertEquals(message.getHash(), loaded.getHash());
+        assertEquals(3, loaded.getIndex());
+        assertEquals("Sent", loaded.getStatus());
+        assertEquals(99L, loaded.getSendAt());
+        assertFalse(loaded.isReceived());
+        assertNull(store.get("0000000404"));
+    }
+
+    @Test
+    void testPutReplacesAndKeepsItsOwnCopy() {
+        Message message = new Message("0000000001", "+27000000001", "+27838884567", "Later", 0, "");
+        store.put(message);
+        assertEquals("Stored", store.get("0000000001").getStatus());
+
+        message.markSent(5);
+        assertEquals("Stored", store.get("0000000001").getStatus(), "Changing the message must not change the store");
+        store.put(message);
+        assertEquals("Sent", store.get("0000000001").getStatus());
+        assertEquals(1, scanAll().size());
+    }
+
+    @Test
+    void testFlagsAreOnlyAdded() {
+        store.put(sent("0000000001", "Hi"));
+        store.put(sent("0000000002", "Hello"));
+        assertTrue(store.updateFlags("0000000001", ReceiptLog.DELIVERED));
+        assertTrue(store.updateFlags("0000000002", ReceiptLog.READ));
+        store.updateFlags("0000000002", ReceiptLog.DELIVERED);
+
+        Message first = store.get("0000000001");
+        assertTrue(first.isReceived());
+        assertFalse(first.isRead());
+        Message second = store.get("0000000002");
+        assertTrue(second.isReceived(), "Read means delivered too");
+        assertTrue(second.isRead(), "A later delivered flag must not clear read");
+
+        for (Message scanned : scanAll()) {
+            assertTrue(scanned.isReceived());
+        }
+    }
+
+    @Test
+    void testFlagsOfManyMessages() {
+        store.put(sent("0000000001", "Did you get the cake?"));
+        store.put(sent("0000000002", "It is dinner time!"));
+        store.updateFlags("0000000001", ReceiptLog.DELIVERED);
+        store.updateFlags("0000000002", ReceiptLog.READ);
+
+        int[] flags = store.flagsOf(List.of("0000000001", "0000000002", "0000000404"));
+        assertEquals(ReceiptLog.DELIVERED, flags[0]);
+        assertEquals(ReceiptLog.DELIVERED | ReceiptLog.READ, flags[1]);
+        assertEquals(0, flags[2]);
+    }
+
+    @Test
+    void testMarkReadSetsTheMessageToo() {
+        Message message = sent("0000000001", "Hi");
+        store.put(message);
+        store.markRead(message);
+        assertTrue(message.isRead());
+        assertTrue(store.get("0000000001").isRead());
+    }
+
+    @Test
+    void testDelete() {
+        store.put(sent("0000000001", "Hi"));
+        store.updateFlags("0000000001", ReceiptLog.READ);
+        assertTrue(store.delete("0000000001"));
+        assertFalse(store.delete("0000000001"));
+        assertNull(store.get("0000000001"));
+        assertTrue(scanAll().isEmpty());
+
+        // A new message with the same ID starts without the old flags
+        store.put(sent("0000000001", "Hi again"));
+        assertFalse(store.get("0000000001").isReceived());
+    }
+
+    @Test
+    void testScanAndLoadIntoSeeEverything() {
+        for (int i = 0; i < 50; i++) {
+            store.put(sent(String.format("%010d", i), "Message " + i));
+        }
+        Set<String> ids = new HashSet<>();
+        for (Message message : scanAll()) {
+            ids.add(message.getId());
+        }
+        assertEquals(50, ids.size());
+        assertEquals(50, store.loadInto(new OffHeapMessageList()).size());
+    }
+
+    @Test
+    void testConcurrentPuts() {
+        ConcurrentHashMap<String, Boolean> results = new ConcurrentHashMap<>();
+        IntStream.range(0, 400).parallel().forEach(i -> {
+            String id = String.format("%010d", i);
+            results.put(id, store.put(sent(id, "Message " + i)) && store.updateFlags(id, ReceiptLog.DELIVERED));
+        });
+        assertFalse(results.containsValue(false));
+        List<Message> all = scanAll();
+        assertEquals(400, all.size());
+        assertTrue(all.stream().allMatch(Message::isReceived));
+    }
+
+    @Test
+    void testTimestampsAreKept() {
+        Message message = sent("0000000001", "Hi");
+        message.setCreatedAt(1_000L);
+        message.setSentAt(2_000L);
+        store.put(message);
+        Message loaded = store.get("0000000001");
+        assertEquals(1_000L, loaded.getCreatedAt());
+        assertEquals(2_000L, loaded.getSentAt());
+        assertEquals(2_000L, loaded.getTimestamp());
+    }
+
+    @Test
+    void testTimeIndexFollowsTheStore() {
+        store.put(sent("0000000001", "Hi"));
+        store.put(sent("0000000002", "Hello"));
+        store.put(new Message("0000000003", "+27000000001", "+27838884567", "Later", 0, ""));
+        TimeBucketIndex index = store.timeIndex();
+        assertEquals(2, index.count(TimeBucketIndex.StatusClass.SENT_UNREAD));
+        assertEquals(1, index.count(TimeBucketIndex.StatusClass.STORED));
+
+        store.updateFlags("0000000001", ReceiptLog.READ);
+        assertEquals(1, index.count(TimeBucketIndex.StatusClass.SENT_READ));
+        assertEquals(1, index.count(TimeBucketIndex.StatusClass.SENT_UNREAD));
+
+        store.delete("0000000002");
+        assertEquals(2, store.deleteAll(List.of("0000000001", "0000000003", "0000000404")));
+        assertEquals(0, index.size());
+        assertTrue(scanAll().isEmpty());
+    }
+
+    private List<Message> scanAll() {
+        List<Message> all = new ArrayList<>();
+        store.scan(all::add);
+        return all;
+    }
+}
@@ -120,4 +120,25 @@ public class MessageTest {
         
         assertEquals(3, testData.size(), "The message list should have 3 items after deletion.");
     }
+
+    @Test
+    void testHashAndChecksMatchTheOldRegexVersions() {
+        Message message = new Message("+27838968976", "+27838884567", "Hi");
+        String[] payloads = {"Hi", "Hi hi", "  It is dinner time!  ", "a\tb\nc", "One", "",
+                "   ", "Hi\u00A0there", "end END", "x\u000By", "Ok, I am leaving without you."};
+        for (String payload : payloads) {
+            String[] words = payload.trim().split("\\s+");
+            String firstWord = words.length > 0 ? words[0] : "";
+            String lastWord = words.length > 1 ? words[words.length - 1] : firstWord;
+            String combined = firstWord.equalsIgnoreCase(lastWord) ? firstWord : firstWord + lastWord;
+            assertEquals(("12:7:" + combined).toUpperCase(), message.createMessageHash("1234567890", 7, payload), payload);
+        }
+        String[] cells = {"+27838884567", "0838884567", "+2783888456", "+278388845671", "+2783888456a",
+                "+27\u0661\u0662\u0663\u0664\u0665\u0666\u0667\u0668\u0669", null};
+        for (String cell : cells) {
+            int expected = cell != null && cell.matches("^\\+27\\d{9}$") ? 1 : 403;
+            assertEquals(expected, message.checkRecipientCell(cell), String.valueOf(cell));
+        }
+        assertTrue(message.checkMessageID(Message.newMessageId()));
+    }
 }
@@ -0,0 +1,148 @@
+package koketso;
+
+import org.junit.jupiter.api.Test;
+import java.util.List;
+import static org.junit.jupiter.api.Assertions.*;
+
+public class OffHeapMessageArenaTest {
+
+    private static Message sent(String id, String sender, String recipient, String payload) {
+        Message message = new Message(id, sender, recipient, payload, 0, "");
+        message.markSent(7);
+        return message;
+    }
+
+    @Test
+    void testViewsReadBackEveryField() {
+        OffHeapMessageArena arena = new OffHeapMessageArena();
+        Message original = sent("0012345678", "+27000000001", "+27838884567", "Did you get the cake? 🎂");
+        original.setReceived(true);
+        original.setSendAt(1234L);
+        Message view = arena.view(arena.append(original));
+
+        assertEquals("0012345678", view.getId());
+        assertEquals("+27000000001", view.getSender());
+        assertEquals("+27838884567", view.getRecipient());
+        assertEquals("Did you get the cake? 🎂", view.getPayload());
+        assertEquals(original.getHash(), view.getHash());
+        assertEquals(7, view.getIndex());
+        assertEquals("Sent", view.getStatus());
+        assertTrue(view.isReceived());
+        assertFalse(view.isRead());
+        assertEquals(1234L, view.getSendAt());
+        assertEquals(original.toJson(), view.toJson());
+    }
+
+    @Test
+    void testOddValuesAreKeptAsText() {
+        OffHeapMessageArena arena = new OffHeapMessageArena();
+        // A stored message can have any recipient, and broadcast views have longer IDs
+        Message odd = new Message("1234567890#3", "+27000000001", "0838884567", null, 0, "");
+        Message view = arena.view(arena.append(odd));
+        assertEquals("1234567890#3", view.getId());
+        assertEquals("0838884567", view.getRecipient());
+        assertNull(view.getPayload());
+        assertEquals("Stored", view.getStatus());
+    }
+
+    @Test
+    void testSettersWriteThrough() {
+        OffHeapMessageArena arena = new OffHeapMessageArena();
+        int record = arena.append(new Message("0000000001", "+27000000001", "+27000000002", "Hello there", 0, ""));
+        Message view = arena.view(record);
+        view.setRead(true);
+        view.markSent(42);
+        Message again = arena.view(record);
+        assertTrue(again.isRead());
+        assertEquals("Sent", again.getStatus());
+        assertEquals(42, again.getIndex());
+        assertEquals("00:42:HELLOTHERE", again.getHash());
+        assertEquals(view, again);
+    }
+
+    @Test
+    void testListBehavesLikeAList() {
+        List<Message> list = new OffHeapMessageList();
+        for (int i = 0; i < 5000; i++) {
+            list.add(sent(String.format("%010d", i), "+27000000001", "+27000000002", "Message " + i));
+        }
+        assertEquals(5000, list.size());
+        Message third = list.get(2);
+        assertTrue(list.remove(third));
+        assertEquals("0000000003", list.get(2).getId());
+        list.add(0, sent("9999999999", "+27000000001", "+27000000002", "First"));
+        assertEquals("9999999999", list.get(0).getId());
+        assertEquals("0000000000", list.get(1).getId());
+        assertEquals(5000, list.size());
+        assertEquals("Message 4999", list.get(4999).getPayload());
+    }
+
+    @Test
+    void testReplacedMessagesDoNotPileUpInTheArena() {
+        OffHeapMessageList list = new OffHeapMessageList();
+        for (int i = 0; i < 100; i++) {
+            list.add(sent(String.format("%010d", i), "+27000000001", "+27000000002", "Message " + i));
+        }
+        Message kept = list.get(7);
+        // Like a message being marked and saved over and over
+        for (int round = 0; round < 100; round++) {
+            for (int i = 0; i < 100; i++) {
+                list.set(i, sent(String.format("%010d", i), "+27000000001", "+27000000002", "Message " + i + " v" + round));
+            }
+        }
+        assertTrue(list.getArena().size() <= 2 * 100 + 1024, "The arena has " + list.getArena().size() + " records");
+        assertEquals("Message 42 v99", list.get(42).getPayload());
+        // A view from before the compaction still shows its own message
+        assertEquals("Message 7", kept.getPayload());
+
+        for (int i = 0; i < 50; i++) {
+            list.remove(0);
+        }
+        assertEquals(50, list.size());
+        assertEquals("0000000050", list.get(0).getId());
+    }
+
+    @Test
+    void testManyMessagesSpanChunks() {
+        OffHeapMessageArena arena = new OffHeapMessageArena();
+        Message message = sent("0000000001", "+27000000001", "+27000000002", "x".repeat(200));
+        // More than one chunk of headers and of payload bytes
+        for (int i = 0; i < 400_000; i++) {
+            arena.append(message);
+        }
+        assertEquals("x".repeat(200), arena.view(399_999).getPayload());
+        assertTrue(arena.reservedBytes() > 32L << 20);
+    }
+
+    @Test
+    void testReadersSeeHashesWhileTheyAreWritten() throws InterruptedException {
+        OffHeapMessageArena arena = new OffHeapMessageArena();
+        int count = 20_000;
+        for (int i = 0; i < count; i++) {
+            arena.append(new Message(String.format("%010d", i), "+27000000001", "+27838884567", "Message " + i, 0, ""));
+        }
+        Throwable[] failure = new Throwable[1];
+        Thread reader = new Thread(() -> {
+            try {
+                for (int pass = 0; pass < 5; pass++) {
+                    for (int i = 0; i < count; i++) {
+                        Message view = arena.view(i);
+                        // Either not sent yet or the full hash, never a broken one
+                        String hash = view.getHash();
+                        if (!hash.isEmpty() && !hash.equals(view.createMessageHash(view.getId(), i + 1, view.getPayload()))) {
+                            throw new AssertionError("Half written hash for record " + i + ": " + hash);
+                        }
+                    }
+                }
+            } catch (Throwable t) {
+                failure[0] = t;
+            }
+        });
+        reader.start();
+        for (int i = 0; i < count; i++) {
+            arena.view(i).markSent(i + 1);
+        }
+        reader.join();
+        assertNull(failure[0]);
+    }
+}
@@ -0,0 +1,90 @@
+package koketso;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.json.simple.JSONObject;
+import java.io.File;
+import static org.junit.jupiter.api.Assertions.*;
+
+public class PayloadStoreTest {
+
+    @TempDir
+    File tempDir;
+
+    private static JSONObject record(String id, String payload) {
+        Message message = new Message(id, "+27000000001", "+27000000002", payload, 1, "");
+        message.markSent(1);
+        return message.toJson();
+    }
+
+    @Test
+    void testSamePayloadIsStoredOnce() {
+        PayloadStore store = new PayloadStore(tempDir);
+        String payload = "It is dinner time!";
+        JSONObject first = store.externalize("0000000001", record("0000000001", payload));
+        JSONObject second = store.externalize("0000000002", record("0000000002", payload));
+        // Saving the same message again must not count it twice
+        store.externalize("0000000002", record("0000000002", payload));
+
+        String digest = (String) first.get(PayloadStore.PAYLOAD_REF);
+        assertEquals(digest, second.get(PayloadStore.PAYLOAD_REF));
+        assertFalse(first.containsKey("MESSAGE_PAYLOAD"));
+        assertEquals(2, store.referenceCount(digest));
+        assertEquals(1, new File(tempDir, "payloads").listFiles((d, n) -> n.endsWith(".txt")).length);
+
+        PayloadStore.Stats stats = store.getStats();
+        assertEquals(2.0, stats.getDedupRatio());
+        assertEquals(payload.length(), stats.getBytesSaved());
+    }
+
+    @Test
+    void testReleaseCollectsUnusedPayloads() {
+        PayloadStore store = new PayloadStore(tempDir);
+        String digest = (String) store.externalize("0000000001", record("0000000001", "Reminder")).get(PayloadStore.PAYLOAD_REF);
+        store.externalize("0000000002", record("0000000002", "Reminder"));
+        File file = new File(new File(tempDir, "payloads"), digest + ".txt");
+
+        assertTrue(store.release("0000000001"));
+        assertEquals(1, store.referenceCount(digest));
+        assertTrue(file.exists());
+        assertTrue(store.release("0000000002"));
+        assertFalse(store.release("0000000002"));
+        assertEquals(0, store.referenceCount(digest));
+        assertFalse(file.exists());
+    }
+
+    @Test
+    void testChangingAPayloadMovesTheReference() {
+        PayloadStore store = new PayloadStore(tempDir);
+        String oldDigest = (String) store.externalize("0000000001", record("0000000001", "First")).get(PayloadStore.PAYLOAD_REF);
+        String newDigest = (String) store.externalize("0000000001", record("0000000001", "Second")).get(PayloadStore.PAYLOAD_REF);
+        assertEquals(0, store.referenceCount(oldDigest));
+        assertEquals(1, store.referenceCount(newDigest));
+        assertFalse(new File(new File(tempDir, "payloads"), oldDigest + ".txt").exists());
+
+        // The file write failed, so the message goes back to the payload its old file points at
+        store.restore("0000000001", oldDigest, "First");
+        assertEquals(1, store.referenceCount(oldDigest));
+        assertEquals(0, store.referenceCount(newDigest));
+        assertEquals("First", store.text(oldDigest));
+        store.restore("0000000001", null, null);
+        assertNull(store.referenceOf("0000000001"));
+    }
+
+    @Test
+    void testReferencesSurviveARestartAndTextIsShared() {
+        PayloadStore store = new PayloadStore(tempDir);
+        String digest = (String) store.externalize("0000000001", record("0000000001", "Reminder")).get(PayloadStore.PAYLOAD_REF);
+        store.externalize("0000000002", record("0000000002", "Reminder"));
+        store.release("0000000001");
+
+        PayloadStore reopened = new PayloadStore(tempDir);
+        assertEquals(1, reopened.referenceCount(digest));
+        assertSame(reopened.text(digest), reopened.text(digest));
+
+        JSONObject onDisk = reopened.externalize("0000000003", record("0000000003", "Reminder"));
+        reopened.inline(onDisk);
+        assertEquals("Reminder", onDisk.get("MESSAGE_PAYLOAD"));
+        assertFalse(onDisk.containsKey(PayloadStore.PAYLOAD_REF));
+    }
+}
@@ -0,0 +1,214 @@
+package koketso;
+
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Runs the hot operations under Java Flight Recorder and fails when one of them allocates
+ * more bytes per call, or has a slower p99, than its budget in perf-budgets.properties.
+ *
+ * Allocation comes from the jdk.ThreadAllocationStatistics events of the thread that ran the
+ * operation (taken when the recording starts and stops), latency from one custom event per call.
+ * Every operation is warmed up first so the JIT has finished with it before the recording.
+ * When a budget fails, the message has the measured numbers, so raising a budget on purpose is
+ * a one line change in the properties file.
+ */
+public class PerformanceBudgetTest {
+    private static final int WARMUP = 50_000;
+    private static final int CALLS = 20_000;
+
+    @TempDir
+    File tempDir;
+
+    @Name("koketso.BudgetedOperation")
+    @Label("Budgeted Operation")
+    static class OperationEvent extends Event {
+        @Label("Operation")
+        String operation;
+    }
+
+    // What one run of an operation measured
+    private static class Measurement {
+        long bytesPerCall;
+        long p99Micros;
+    }
+
+    private static final String[] PAYLOADS = {
+        "Did you get the cake?",
+        "Where are you? You are late! I have asked you to be on time.",
+        "  It is dinner time!  ",
+        "Ok, I am leaving without you.",
+    };
+
+    private static Properties budgets() throws IOException {
+        Properties budgets = new Properties();
+        try (InputStream in = PerformanceBudgetTest.class.getResourceAsStream("/perf-budgets.properties")) {
+            assertNotNull(in, "perf-budgets.properties is missing from src/test/resources");
+            budgets.load(in);
+        }
+        return budgets;
+    }
+
+    @Test
+    void testNewMessage() throws Exception {
+        check("message.new", i -> new Message("+27838968976", "+27838884567", PAYLOADS[i & 3]));
+    }
+
+    @Test
+    void testCreateMessageHash() throws Exception {
+        Message message = new Message("+27838968976", "+27838884567", PAYLOADS[0]);
+        check("message.hash", i -> message.createMessageHash("0012345678", i, PAYLOADS[i & 3]));
+    }
+
+    @Test
+    void testCheckRecipientCell() throws Exception {
+        Message message = new Message("+27838968976", "+27838884567", PAYLOADS[0]);
+        String[] cells = {"+27838884567", "0838884567", "+2783888456a", "+27834557896"};
+        check("message.checkRecipientCell", i -> message.checkRecipientCell(cells[i & 3]));
+    }
+
+    @Test
+    void testValidate() throws Exception {
+        Message message = new Message("+27838968976", "+27838884567", PAYLOADS[1]);
+        check("message.validate", i -> message.validate());
+    }
+
+    @Test
+    void testRegisterUser() throws Exception {
+        check("registration.registerUser", i -> new RegistrationLogin().registerUser(
+                (i & 1) == 0 ? "ky_1" : "kyle!!!!!!!", "Ch&&sec@ke99!", "+27838968976", "Kyle", "Smith"));
+    }
+
+    interface Operation {
+        Object run(int i);
+    }
+
+    private void check(String name, Operation operation) throws Exception {
+        long bytesBudget = Long.parseLong(budgets().getProperty(name + ".bytesPerCall"));
+        long p99Budget = Long.parseLong(budgets().getProperty(name + ".p99Micros"));
+        Measurement measured = measure(name, operation);
+        String numbers = name + " measured " + measured.bytesPerCall + " bytes/call and p99 "
+                + measured.p99Micros + " us (budgets " + bytesBudget + " bytes, " + p99Budget + " us)";
+        assertTrue(measured.bytesPerCall <= bytesBudget, "Allocation over budget: " + numbers);
+        assertTrue(measured.p99Micros <= p99Budget, "Latency over budget: " + numbers);
+    }
+
+    private Measurement measure(String name, Operation operation) throws Exception {
+        String threadName = "budget-" + name;
+        Object[] sink = new Object[1];
+        // The recording is stopped while the worker is still alive, so its allocation
+        // statistics are in the end-of-recording sample
+        Object lock = new Object();
+        boolean[] state = new boolean[2]; // {done, release}
+        Thread worker = new Thread(() -> {
+            for (int i = 0; i < WARMUP; i++) {
+                sink[0] = operation.run(i);
+            }
+            synchronized (lock) {
+                state[0] = true;
+                lock.notifyAll();
+                while (!state[1]) {
+                    try {
+                        lock.wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+            }
+            for (int i = 0; i < CALLS; i++) {
+                OperationEvent event = new OperationEvent();
+                event.operation = name;
+                event.begin();
+                sink[0] = operation.run(i);
+                event.commit();
+            }
+            synchronized (lock) {
+                state[0] = true;
+                lock.notifyAll();
+                while (state[1]) {
+                    try {
+                        lock.wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+            }
+        }, threadName);
+
+        File file = new File(tempDir, name + ".jfr");
+        worker.start();
+        awaitDone(lock, state);
+        try (Recording recording = new Recording()) {
+            recording.enable("jdk.ThreadAllocationStatistics").with("period", "everyChunk");
+            recording.enable(OperationEvent.class).withoutThreshold();
+            recording.start();
+            synchronized (lock) {
+                state[0] = false;
+                state[1] = true;
+                lock.notifyAll();
+            }
+            awaitDone(lock, state);
+            recording.stop();
+            recording.dump(file.toPath());
+        } finally {
+            synchronized (lock) {
+                state[1] = false;
+                lock.notifyAll();
+            }
+            worker.join();
+        }
+        return read(file, name, threadName);
+    }
+
+    private static void awaitDone(Object lock, boolean[] state) throws InterruptedException {
+        synchronized (lock) {
+            while (!state[0]) {
+                lock.wait();
+            }
+        }
+    }
+
+    private static Measurement read(File file, String name, String threadName) throws IOException {
+        long firstAllocated = -1;
+        long lastAllocated = -1;
+        List<Long> durations = new ArrayList<>();
+        for (RecordedEvent event : RecordingFile.readAllEvents(file.toPath())) {
+            String type = event.getEventType().getName();
+            if ("jdk.ThreadAllocationStatistics".equals(type)) {
+                if (event.getThread("thread") == null || !threadName.equals(event.getThread("thread").getJavaName())) {
+                    continue;
+                }
+                long allocated = event.getLong("allocated");
+                if (firstAllocated < 0) {
+                    firstAllocated = allocated;
+                }
+                lastAllocated = allocated;
+            } else if ("koketso.BudgetedOperation".equals(type) && name.equals(event.getString("operation"))) {
+                durations.add(event.getDuration().toNanos());
+            }
+        }
+        assertTrue(firstAllocated >= 0, "The recording has no allocation statistics for " + threadName);
+        assertEquals(CALLS, durations.size(), "The recording lost some operation events");
+
+        long[] sorted = durations.stream().mapToLong(Long::longValue).toArray();
+        Arrays.sort(sorted);
+        Measurement measurement = new Measurement();
+        measurement.bytesPerCall = (lastAllocated - firstAllocated) / CALLS;
+        measurement.p99Micros = sorted[(int) (sorted.length * 0.99)] / 1000;
+        return measurement;
+    }
+}
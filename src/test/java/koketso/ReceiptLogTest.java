@@ -0,0 +1,78 @@
+package koketso;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import static org.junit.jupiter.api.Assertions.*;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.List;
+
+public class ReceiptLogTest {
+
+    @TempDir
+    File messagesDir;
+
+    @Test
+    void testReceiptsSetTheFlagsOnTheMessage() {
+        ReceiptLog log = new ReceiptLog(messagesDir);
+        Message msg = new Message("+27000000000", "+27838884567", "It is dinner time!");
+
+        log.markDelivered(msg);
+        assertTrue(msg.isReceived());
+        assertFalse(msg.isRead());
+        assertEquals(ReceiptLog.DELIVERED, log.flagsOf(msg.getId()));
+
+        log.markRead(msg);
+        assertTrue(msg.isRead());
+        assertEquals(ReceiptLog.DELIVERED | ReceiptLog.READ, log.flagsOf(msg.getId()));
+    }
+
+    @Test
+    void testFlagsAreRebuiltFromTheLog() {
+        ReceiptLog log = new ReceiptLog(messagesDir);
+        Message delivered = new Message("+27000000000", "+27838884567", "Did you get the cake?");
+        Message read = new Message("+27000000000", "+27838884567", "It is dinner time!");
+        Message untouched = new Message("+27000000000", "+27838884567", "Ok, I am leaving without you.");
+        log.markDelivered(delivered);
+        log.markRead(read);
+
+        // A second instance only has the file to go on, like after a restart
+        ReceiptLog reopened = new ReceiptLog(messagesDir);
+        int[] flags = reopened.flagsOf(List.of(delivered.getId(), read.getId(), untouched.getId()));
+        assertArrayEquals(new int[]{ReceiptLog.DELIVERED, ReceiptLog.DELIVERED | ReceiptLog.READ, 0}, flags);
+
+        Message loaded = new Message(read.getId(), read.getSender(), read.getRecipient(), read.getPayload(), 1, "");
+        reopened.applyTo(List.of(loaded));
+        assertTrue(loaded.isRead());
+    }
+
+    @Test
+    void testForgottenMessageHasNoFlags() {
+        ReceiptLog log = new ReceiptLog(messagesDir);
+        Message msg = new Message("+27000000000", "+27838884567", "It is dinner time!");
+        log.markRead(msg);
+        log.forget(msg.getId());
+
+        assertEquals(0, log.flagsOf(msg.getId()));
+        assertEquals(0, new ReceiptLog(messagesDir).flagsOf(msg.getId()));
+    }
+
+    @Test
+    void testTornRecordAtTheEndIsIgnored() throws IOException {
+        ReceiptLog log = new ReceiptLog(messagesDir);
+        Message msg = new Message("+27000000000", "+27838884567", "It is dinner time!");
+        log.markRead(msg);
+
+        // Half a record, as if the app died in the middle of a write
+        try (FileOutputStream out = new FileOutputStream(new File(messagesDir, "receipts.log"), true)) {
+            out.write(new byte[]{0, 10, '1', '2'});
+        }
+
+        ReceiptLog reopened = new ReceiptLog(messagesDir);
+        assertEquals(ReceiptLog.DELIVERED | ReceiptLog.READ, reopened.flagsOf(msg.getId()));
+        Message other = new Message("+27000000000", "+27838884567", "Did you get the cake?");
+        reopened.markDelivered(other);
+        assertEquals(ReceiptLog.DELIVERED, new ReceiptLog(messagesDir).flagsOf(other.getId()));
+    }
+}
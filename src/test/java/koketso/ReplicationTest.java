@@ -0,0 +1,233 @@
+package koketso;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import static org.junit.jupiter.api.Assertions.*;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.stream.Stream;
+
+public class ReplicationTest {
+
+    @TempDir
+    File tempDir;
+
+    private ReplicationLeader leader;
+    private ReplicationFollower follower;
+
+    @AfterEach
+    void tearDown() {
+        if (follower != null) follower.stop();
+        if (leader != null) leader.stop();
+        ChangeLog.activate(null);
+    }
+
+    // Waits for the follower to apply changes up to the given offset
+    private void awaitOffset(long offset) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10_000;
+        while (follower.getAppliedOffset() < offset && System.currentTimeMillis() < deadline) {
+            Thread.sleep(20);
+        }
+        assertEquals(offset, follower.getAppliedOffset(), "The follower did not catch up in time");
+    }
+
+    private Message sendOnLeader(File leaderDir, String payload) {
+        Message msg = new Message("+27000000000", "+27838884567", payload);
+        msg.markSent(1);
+        MessageManager.storeRecord(MessageLayout.of(leaderDir), msg.getId(), msg.toJson());
+        return msg;
+    }
+
+    @Test
+    void testFollowerAppliesChangesAndCatchesUpAfterReconnect() throws IOException, InterruptedException {
+        File leaderDir = new File(tempDir, "leader");
+        File followerDir = new File(tempDir, "follower");
+        ChangeLog changeLog = new ChangeLog(leaderDir);
+        ChangeLog.activate(changeLog);
+        leader = new ReplicationLeader(0, changeLog);
+        leader.start();
+
+        Message first = sendOnLeader(leaderDir, "Did you get the cake?");
+        ReceiptLog.of(leaderDir).record(first.getId(), ReceiptLog.READ);
+
+        follower = new ReplicationFollower(followerDir, "localhost", leader.getPort());
+        follower.start();
+        awaitOffset(2);
+
+        assertNotNull(MessageLayout.of(followerDir).findFile(first.getId()));
+        assertEquals(ReceiptLog.DELIVERED | ReceiptLog.READ, ReceiptLog.of(followerDir).flagsOf(first.getId()));
+
+        // Changes made while the follower is cut off arrive once it reconnects
+        follower.disconnect();
+        Message second = sendOnLeader(leaderDir, "It is dinner time!");
+        assertTrue(MessageManager.storeRecord(MessageLayout.of(leaderDir), second.getId(), second.toJson()));
+        awaitOffset(4);
+        assertNotNull(MessageLayout.of(followerDir).findFile(second.getId()));
+
+        changeLog.recordDelete(first.getId());
+        MessageLayout.of(leaderDir).delete(first.getId());
+        awaitOffset(5);
+        assertNull(MessageLayout.of(followerDir).findFile(first.getId()));
+        assertEquals(0, ReceiptLog.of(followerDir).flagsOf(first.getId()));
+    }
+
+    @Test
+    void testFollowerResumesFromItsSavedOffset() throws IOException, InterruptedException {
+        File leaderDir = new File(tempDir, "leader");
+        File followerDir = new File(tempDir, "follower");
+        ChangeLog changeLog = new ChangeLog(leaderDir);
+        ChangeLog.activate(changeLog);
+        leader = new ReplicationLeader(0, changeLog);
+        leader.start();
+
+        for (int i = 0; i < 3; i++) {
+            sendOnLeader(leaderDir, "Reminder " + i);
+        }
+        follower = new ReplicationFollower(followerDir, "localhost", leader.getPort());
+        follower.start();
+        awaitOffset(3);
+        follower.stop();
+
+        // A new follower process on the same folder starts where the old one stopped
+        sendOnLeader(leaderDir, "Reminder 3");
+        follower = new ReplicationFollower(followerDir, "localhost", leader.getPort());
+        assertTrue(follower.getAppliedOffset() >= 2);
+        follower.start();
+        awaitOffset(4);
+        assertEquals(4, MessageLayout.of(followerDir).listMessageFiles().size());
+    }
+
+    @Test
+    void testBroadcastsAreReplicated() throws IOException, InterruptedException {
+        File leaderDir = new File(tempDir, "leader");
+        File followerDir = new File(tempDir, "follower");
+        ChangeLog changeLog = new ChangeLog(leaderDir);
+        ChangeLog.activate(changeLog);
+        leader = new ReplicationLeader(0, changeLog);
+        leader.start();
+
+        BroadcastStore leaderStore = BroadcastStore.of(leaderDir);
+        leaderStore.send("+27000000000", java.util.List.of("+27838884567", "+27834557896"), "Reminder: meeting at 10");
+        String id = leaderStore.sentBy("+27000000000").get(0).getId();
+
+        follower = new ReplicationFollower(followerDir, "localhost", leader.getPort());
+        follower.start();
+        awaitOffset(1);
+        assertEquals(1, BroadcastStore.of(followerDir).inboxFor("+27834557896").size());
+        // It is on the follower's disk too, not only in memory
+        assertEquals(2, new BroadcastStore(followerDir).get(id).getRecipientCount());
+
+        assertTrue(leaderStore.delete(id));
+        awaitOffset(2);
+        assertNull(BroadcastStore.of(followerDir).get(id));
+    }
+
+    // Every file under a folder with its size and time, to see if anything was written
+    private static Map<String, String> filesUnder(File dir) throws IOException {
+        TreeMap<String, String> files = new TreeMap<>();
+        try (Stream<Path> paths = Files.walk(dir.toPath())) {
+            for (Path path : (Iterable<Path>) paths.filter(Files::isRegularFile)::iterator) {
+                files.put(path.toString(), Files.size(path) + "@" + Files.getLastModifiedTime(path).toMillis());
+            }
+        }
+        return files;
+    }
+
+    @Test
+    void testFollowerNeverWritesOnItsOwn() throws IOException, InterruptedException {
+        File leaderDir = new File(tempDir, "leader");
+        File followerDir = new File(tempDir, "follower");
+        ChangeLog changeLog = new ChangeLog(leaderDir);
+        ChangeLog.activate(changeLog);
+        leader = new ReplicationLeader(0, changeLog);
+        leader.start();
+
+        // A message that is due to be sent and an old read one, both things a leader's jobs would act on
+        Message due = new Message("+27000000000", "+27838884567", "Did you get the cake?");
+        due.setSendAt(System.currentTimeMillis() - 1000);
+        MessageManager.storeRecord(MessageLayout.of(leaderDir), due.getId(), due.toJson());
+        Message read = sendOnLeader(leaderDir, "It is dinner time!");
+        ReceiptLog.of(leaderDir).record(read.getId(), ReceiptLog.READ);
+
+        follower = new ReplicationFollower(followerDir, "localhost", leader.getPort());
+        follower.start();
+        awaitOffset(3);
+
+        // The app starts none of its writing jobs on a follower
+        assertNull(ST10399194PROG5121POE.startDeliveryScheduler(true));
+        assertTrue(ST10399194PROG5121POE.startWritingJobs(true, null).isEmpty());
+
+        // Past a scheduler tick and a few heartbeats, nothing in the follower's folder changes
+        Map<String, String> before = filesUnder(followerDir);
+        Thread.sleep(1500);
+        assertEquals(before, filesUnder(followerDir));
+        assertEquals("Stored", FileMessageStore.of(followerDir).get(due.getId()).getStatus());
+    }
+
+    @Test
+    void testNewFollowerGetsWhatWasStoredBeforeTheLog() throws IOException, InterruptedException {
+        File leaderDir = new File(tempDir, "leader");
+        File followerDir = new File(tempDir, "follower");
+        // Stored before the leader kept a change log, so only a snapshot can carry it over
+        Message old = sendOnLeader(leaderDir, "Did you get the cake?");
+        ReceiptLog.of(leaderDir).record(old.getId(), ReceiptLog.READ);
+
+        ChangeLog changeLog = new ChangeLog(leaderDir);
+        ChangeLog.activate(changeLog);
+        leader = new ReplicationLeader(0, changeLog);
+        leader.start();
+        Message next = sendOnLeader(leaderDir, "It is dinner time!");
+
+        follower = new ReplicationFollower(followerDir, "localhost", leader.getPort());
+        follower.start();
+        awaitOffset(1);
+        assertNotNull(MessageLayout.of(followerDir).findFile(old.getId()));
+        assertNotNull(MessageLayout.of(followerDir).findFile(next.getId()));
+        assertEquals(ReceiptLog.DELIVERED | ReceiptLog.READ, ReceiptLog.of(followerDir).flagsOf(old.getId()));
+    }
+
+    @Test
+    void testLogIsTrimmedBelowTheFollowers() throws IOException, InterruptedException {
+        File leaderDir = new File(tempDir, "leader");
+        File followerDir = new File(tempDir, "follower");
+        ChangeLog changeLog = new ChangeLog(leaderDir);
+        ChangeLog.activate(changeLog);
+        leader = new ReplicationLeader(0, changeLog);
+        leader.start();
+        sendOnLeader(leaderDir, "Reminder 0");
+
+        follower = new ReplicationFollower(followerDir, "localhost", leader.getPort());
+        follower.start();
+        awaitOffset(1);
+        for (int i = 1; i < 5; i++) {
+            sendOnLeader(leaderDir, "Reminder " + i);
+        }
+        awaitOffset(5);
+
+        // The follower's ack comes in a moment, until then nothing it still needs is dropped
+        long deadline = System.currentTimeMillis() + 10_000;
+        while (leader.trimLog(0) < 4 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(20);
+        }
+        // The newest entry is always kept, so the offsets carry on after a restart
+        assertEquals(4, changeLog.getFirstOffset());
+        assertEquals(5, new ChangeLog(leaderDir).getNextOffset());
+
+        // The follower keeps getting changes after the trim
+        sendOnLeader(leaderDir, "Reminder 5");
+        awaitOffset(6);
+
+        // A new follower starts from a snapshot, the trimmed entries are not needed
+        follower.stop();
+        follower = new ReplicationFollower(new File(tempDir, "second"), "localhost", leader.getPort());
+        follower.start();
+        awaitOffset(6);
+        assertEquals(6, MessageLayout.of(new File(tempDir, "second")).listMessageFiles().size());
+        assertEquals(6, MessageLayout.of(followerDir).listMessageFiles().size());
+    }
+}
@@ -0,0 +1,78 @@
+package koketso;
+
+import org.junit.jupiter.api.Test;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ReportExporterTest {
+    private static final String SENDER = "+27000000001";
+
+    private static List<Message> messages(int count) {
+        List<Message> messages = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            String sender = i % 3 == 0 ? "+27000000002" : SENDER;
+            Message message = new Message(String.format("%010d", i), sender, "+27000000003", "Message " + i, 0, "");
+            if (i % 5 != 0) {
+                message.markSent(i + 1);
+            }
+            messages.add(message);
+        }
+        return messages;
+    }
+
+    private static String export(List<Message> messages, ReportExporter.Report report, ReportExporter.Format format)
+            throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        // Small parallelism and lots of chunks, so the window has to move many times
+        try (ForkJoinPool pool = new ForkJoinPool(3)) {
+            new ReportExporter(pool).export(messages, SENDER, report, format, out);
+        }
+        return out.toString(StandardCharsets.UTF_8);
+    }
+
+    @Test
+    void testFullReportKeepsOrderAcrossChunks() throws IOException {
+        List<Message> messages = messages(10_000);
+        String[] lines = export(messages, ReportExporter.Report.FULL, ReportExporter.Format.CSV).split("\n");
+        assertEquals("hash,recipient,message,status", lines[0]);
+
+        int line = 1;
+        for (Message msg : messages) {
+            if (msg.getSender().equals(SENDER)) {
+                assertEquals(msg.getHash() + ",+27000000003," + msg.getPayload() + "," + msg.getStatus(), lines[line++]);
+            }
+        }
+        assertEquals(line, lines.length);
+    }
+
+    @Test
+    void testRecipientReportOnlyHasSentMessages() throws IOException {
+        List<Message> messages = messages(3000);
+        long expected = messages.stream()
+                .filter(m -> m.getSender().equals(SENDER) && "Sent".equals(m.getStatus())).count();
+        String jsonl = export(messages, ReportExporter.Report.SENDER_RECIPIENT, ReportExporter.Format.JSONL);
+        assertEquals(expected, jsonl.lines().count());
+        assertTrue(jsonl.lines().allMatch(l -> l.contains("\"recipient\":\"+27000000003\"")));
+    }
+
+    @Test
+    void testLongestMessage() throws IOException {
+        List<Message> messages = messages(5000);
+        Message longest = new Message("9999999999", SENDER, "+27000000004", "x".repeat(200), 0, "");
+        longest.markSent(1);
+        messages.add(2500, longest);
+        String csv = export(messages, ReportExporter.Report.LONGEST, ReportExporter.Format.CSV);
+        assertEquals("id,recipient,length,message\n9999999999,+27000000004,200," + "x".repeat(200) + "\n", csv);
+    }
+
+    @Test
+    void testCsvQuoting() {
+        assertEquals("plain", ReportExporter.csvField("plain"));
+        assertEquals("\"a, \"\"b\"\"\"", ReportExporter.csvField("a, \"b\""));
+    }
+}
@@ -0,0 +1,150 @@
+package koketso;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import static org.junit.jupiter.api.Assertions.*;
+
+public class RetentionSweeperTest {
+    private static final long DAY = TimeUnit.DAYS.toMillis(1);
+    private static final long NOW = 1_000 * DAY;
+
+    @TempDir
+    File tempDir;
+
+    private static Message sentDaysAgo(String id, int days) {
+        Message message = new Message(id, "+27000000001", "+27838884567", "Message " + id, 0, "");
+        message.markSent(1);
+        message.setSentAt(NOW - days * DAY);
+        return message;
+    }
+
+    private static EnumMap<TimeBucketIndex.StatusClass, Long> retention(long sentRead, long sentUnread, long stored) {
+        EnumMap<TimeBucketIndex.StatusClass, Long> retention = new EnumMap<>(TimeBucketIndex.StatusClass.class);
+        retention.put(TimeBucketIndex.StatusClass.SENT_READ, sentRead);
+        retention.put(TimeBucketIndex.StatusClass.SENT_UNREAD, sentUnread);
+        retention.put(TimeBucketIndex.StatusClass.STORED, stored);
+        return retention;
+    }
+
+    @Test
+    void testOnlyWholeExpiredBucketsAreTaken() {
+        TimeBucketIndex index = new TimeBucketIndex(DAY, () -> NOW);
+        for (int days = 0; days < 10; days++) {
+            index.add(sentDaysAgo(String.format("%010d", days), days));
+        }
+        Message late = sentDaysAgo("0000000099", 5);
+        late.setSentAt(NOW - 5 * DAY + DAY / 2); // Same day as the 5 day old one, but half a day later
+        index.add(late);
+
+        // Anything in a bucket that ended at or before 5 days ago
+        List<Set<String>> expired = index.takeExpired(TimeBucketIndex.StatusClass.SENT_UNREAD, NOW - 5 * DAY);
+        assertEquals(4, expired.size());
+        assertTrue(expired.get(0).contains("0000000009"), "Oldest bucket first");
+        assertEquals(7, index.size());
+
+        // Once the whole bucket is past the cutoff it goes in one piece
+        expired = index.takeExpired(TimeBucketIndex.StatusClass.SENT_UNREAD, NOW - 4 * DAY);
+        assertEquals(1, expired.size());
+        assertEquals(Set.of("0000000005", "0000000099"), expired.get(0));
+        assertEquals(5, index.size());
+    }
+
+    @Test
+    void testEachClassHasItsOwnPeriod() {
+        FileMessageStore store = new FileMessageStore(tempDir);
+        store.put(sentDaysAgo("0000000001", 40)); // read, past 30 days
+        store.put(sentDaysAgo("0000000002", 40)); // unread, kept for 90 days
+        store.put(sentDaysAgo("0000000003", 100)); // unread, past 90 days
+        store.updateFlags("0000000001", ReceiptLog.READ);
+        Message stored = new Message("0000000004", "+27000000001", "+27838884567", "Draft", 0, "");
+        stored.setCreatedAt(NOW - 400 * DAY);
+        store.put(stored); // Stored messages are kept forever here
+
+        RetentionSweeper sweeper = new RetentionSweeper(store, retention(30 * DAY, 90 * DAY, 0), false, () -> NOW);
+        assertEquals(2, sweeper.sweep());
+        assertNull(store.get("0000000001"));
+        assertNotNull(store.get("0000000002"));
+        assertNull(store.get("0000000003"));
+        assertNotNull(store.get("0000000004"));
+        assertEquals(0, sweeper.sweep());
+    }
+
+    @Test
+    void testArchiveKeepsTheMessagesReadable() {
+        FileMessageStore store = new FileMessageStore(tempDir);
+        for (int i = 0; i < 20; i++) {
+            store.put(sentDaysAgo(String.format("%010d", i), 10 + i));
+        }
+        store.put(sentDaysAgo("0000000100", 1));
+
+        RetentionSweeper sweeper = new RetentionSweeper(store, retention(0, 7 * DAY, 0), true, () -> NOW);
+        assertEquals(20, sweeper.sweep());
+        assertEquals(20, MessageArchive.of(tempDir).size());
+        assertEquals(1, MessageLayout.of(tempDir).listMessageFiles().size());
+        assertEquals("Message 0000000005", store.get("0000000005").getPayload());
+        // Archived messages stay out of the normal load but are still there
+        assertEquals(1, store.loadInto(new ArrayList<>()).size());
+        List<Message> all = new ArrayList<>();
+        store.scan(all::add);
+        assertEquals(21, all.size());
+    }
+
+    @Test
+    void testOldFilesWithoutTimestampsUseTheFileTime() throws Exception {
+        FileMessageStore store = new FileMessageStore(tempDir);
+        Message message = new Message("0000000001", "+27000000001", "+27838884567", "Old one", 0, "");
+        store.put(message);
+        File file = MessageLayout.of(tempDir).findFile("0000000001");
+        long fileTime = System.currentTimeMillis() - 400 * DAY;
+        assertTrue(file.setLastModified(fileTime));
+
+        Message loaded = new FileMessageStore(tempDir).loadInto(new ArrayList<>()).get(0);
+        assertEquals(fileTime / 1000, loaded.getTimestamp() / 1000);
+    }
+
+    @Test
+    void testArchivedRecordsWithoutTimestampsUseTheBlockTime() {
+        FileMessageStore store = new FileMessageStore(tempDir);
+        store.put(new Message("0000000001", "+27000000001", "+27838884567", "Old one", 0, ""));
+        assertEquals(1, store.archiveAll(List.of("0000000001")));
+
+        long timestamp = store.get("0000000001").getTimestamp();
+        assertTrue(timestamp > 0);
+        assertTrue(Math.abs(System.currentTimeMillis() - timestamp) < DAY);
+    }
+
+    @Test
+    void testBatchWritesAreSweptToo() {
+        List<Message> batch = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            batch.add(sentDaysAgo(String.format("%010d", i), 100));
+        }
+        assertEquals(10, MessageManager.storeBatch(MessageLayout.of(tempDir), batch));
+
+        RetentionSweeper sweeper = new RetentionSweeper(FileMessageStore.of(tempDir), retention(0, 7 * DAY, 0), false, () -> NOW);
+        assertEquals(10, sweeper.sweep());
+        assertTrue(MessageLayout.of(tempDir).listMessageFiles().isEmpty());
+    }
+
+    @Test
+    void testSweptMessagesLeaveTheLoadedList() {
+        FileMessageStore store = new FileMessageStore(tempDir);
+        store.put(sentDaysAgo("0000000001", 100));
+        store.put(sentDaysAgo("0000000002", 1));
+        StartupLoader loader = new StartupLoader(() -> new UserManager(new File(tempDir, "users.json").getPath()),
+                () -> store.loadInto(new ArrayList<>()), list -> { }, System.currentTimeMillis());
+        assertEquals(2, loader.messages().size());
+
+        RetentionSweeper sweeper = new RetentionSweeper(store, retention(0, 7 * DAY, 0), false, () -> NOW, loader::forget);
+        assertEquals(1, sweeper.sweep());
+        List<Message> left = loader.messages();
+        assertEquals(1, left.size());
+        assertEquals("0000000002", left.get(0).getId());
+    }
+}
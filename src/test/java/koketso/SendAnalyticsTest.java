@@ -0,0 +1,69 @@
+package koketso;
+
+import org.junit.jupiter.api.Test;
+import java.util.List;
+import java.util.Map;
+import static org.junit.jupiter.api.Assertions.*;
+
+public class SendAnalyticsTest {
+
+    private static Message sent(String sender, String recipient, String payload) {
+        Message message = new Message(Message.newMessageId(), sender, recipient, payload, 0, "");
+        message.markSent(1);
+        return message;
+    }
+
+    @Test
+    void testTopSendersAndRecipients() {
+        SendAnalytics analytics = new SendAnalytics(3, 100);
+        // Sender n sends n*10 messages, so the three busiest are 9, 8 and 7
+        for (int n = 1; n <= 9; n++) {
+            for (int i = 0; i < n * 10; i++) {
+                analytics.record(sent(LoadGenerator.cellFor(n), LoadGenerator.cellFor(100 + n), "Hi"));
+            }
+        }
+        List<Map.Entry<String, Long>> top = analytics.topSenders();
+        assertEquals(3, top.size());
+        assertEquals(LoadGenerator.cellFor(9), top.get(0).getKey());
+        assertEquals(LoadGenerator.cellFor(8), top.get(1).getKey());
+        assertEquals(LoadGenerator.cellFor(7), top.get(2).getKey());
+        assertTrue(top.get(0).getValue() >= 90);
+        assertEquals(LoadGenerator.cellFor(109), analytics.topRecipients().get(0).getKey());
+        assertEquals(450, analytics.getTotalMessages());
+    }
+
+    @Test
+    void testDistinctRecipientsAreClose() {
+        SendAnalytics analytics = new SendAnalytics(10, 100);
+        for (int i = 0; i < 20_000; i++) {
+            // Every recipient gets two messages, the count should still be about 10000
+            analytics.record(sent("+27000000001", LoadGenerator.cellFor(i % 10_000), "Hi"));
+        }
+        assertEquals(10_000, analytics.distinctRecipients("+27000000001"), 10_000 * 0.1);
+        assertEquals(10_000, analytics.distinctRecipients(), 10_000 * 0.1);
+        assertEquals(-1, analytics.distinctRecipients("+27000000002"));
+    }
+
+    @Test
+    void testOnlyRecentSendersAreTracked() {
+        SendAnalytics analytics = new SendAnalytics(10, 2);
+        analytics.record(sent("+27000000001", "+27000000009", "Hi"));
+        analytics.record(sent("+27000000002", "+27000000009", "Hi"));
+        analytics.record(sent("+27000000003", "+27000000009", "Hi"));
+        assertEquals(-1, analytics.distinctRecipients("+27000000001"));
+        assertEquals(1, analytics.distinctRecipients("+27000000003"));
+    }
+
+    @Test
+    void testLengthHistogram() {
+        SendAnalytics analytics = new SendAnalytics(10, 100);
+        analytics.record(sent("+27000000001", "+27000000002", "Hi"));
+        analytics.record(sent("+27000000001", "+27000000002", "x".repeat(25)));
+        analytics.record(sent("+27000000001", "+27000000002", "x".repeat(250)));
+        long[] histogram = analytics.lengthHistogram();
+        assertEquals(1, histogram[0]);
+        assertEquals(1, histogram[2]);
+        assertEquals(1, histogram[25]);
+        assertTrue(analytics.report().contains("Busiest senders"));
+    }
+}
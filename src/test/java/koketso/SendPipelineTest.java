@@ -0,0 +1,120 @@
+package koketso;
+
+import org.junit.jupiter.api.Test;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import static org.junit.jupiter.api.Assertions.*;
+
+public class SendPipelineTest {
+
+    private static SendRateLimiter allowAll() {
+        return new SendRateLimiter(1_000_000, 1_000_000, Integer.MAX_VALUE, () -> 0, System::nanoTime);
+    }
+
+    @Test
+    void testSentMessagesGetUniqueIndexesAndAreSaved() {
+        InMemoryMessageStore store = new InMemoryMessageStore();
+        SendPipeline pipeline = new SendPipeline(store, allowAll());
+        try {
+            List<CompletableFuture<SendResult>> futures = new ArrayList<>();
+            for (int i = 0; i < 500; i++) {
+                futures.add(pipeline.sendAsync(new Message(LoadGenerator.cellFor(i % 10), "+27838884567", "Hello " + i)));
+            }
+            Set<Integer> indexes = new HashSet<>();
+            for (CompletableFuture<SendResult> future : futures) {
+                SendResult result = future.join();
+                assertTrue(result.isSent(), result.toString());
+                assertEquals("Message sent successfully", result.getText());
+                Message message = result.getMessage();
+                assertTrue(indexes.add(message.getIndex()));
+                assertEquals("Sent", message.getStatus());
+                assertNotNull(message.getHash());
+                assertNotNull(store.get(message.getId()));
+            }
+        } finally {
+            pipeline.shutdown();
+        }
+    }
+
+    @Test
+    void testInvalidMessageIsRejectedWithTheSameText() {
+        SendPipeline pipeline = new SendPipeline(new InMemoryMessageStore(), allowAll());
+        try {
+            Message message = new Message("+27838968976", "0838884567", "Hi there");
+            String expected = new Message("+27838968976", "0838884567", "Hi there").validate();
+            SendResult result = pipeline.sendAsync(message).join();
+            assertEquals(SendResult.Status.REJECTED, result.getStatus());
+            assertEquals(expected, result.getText());
+            assertNotEquals("Sent", message.getStatus());
+        } finally {
+            pipeline.shutdown();
+        }
+    }
+
+    @Test
+    void testRateLimitedSendIsNotSaved() {
+        InMemoryMessageStore store = new InMemoryMessageStore();
+        SendRateLimiter limiter = new SendRateLimiter(1, 1, Integer.MAX_VALUE, () -> 0, System::nanoTime);
+        SendPipeline pipeline = new SendPipeline(store, limiter);
+        try {
+            assertTrue(pipeline.sendAsync(new Message("+27838968976", "+27838884567", "First")).join().isSent());
+            Message second = new Message("+27838968976", "+27838884567", "Second");
+            SendResult result = pipeline.sendAsync(second).join();
+            assertEquals(SendResult.Status.RATE_LIMITED, result.getStatus());
+            assertTrue(result.getRetryAfterMillis() > 0);
+            assertNull(store.get(second.getId()));
+        } finally {
+            pipeline.shutdown();
+        }
+    }
+
+    @Test
+    void testEverySendCompletesWhenShutdownRacesWithSenders() throws Exception {
+        InMemoryMessageStore store = new InMemoryMessageStore();
+        SendPipeline pipeline = new SendPipeline(store, allowAll());
+        List<List<CompletableFuture<SendResult>>> perThread = new ArrayList<>();
+        List<Thread> senders = new ArrayList<>();
+        CountDownLatch started = new CountDownLatch(4);
+        for (int t = 0; t < 4; t++) {
+            List<CompletableFuture<SendResult>> futures = new ArrayList<>();
+            perThread.add(futures);
+            String sender = LoadGenerator.cellFor(t);
+            Thread thread = new Thread(() -> {
+                started.countDown();
+                for (int i = 0; i < 5000; i++) {
+                    futures.add(pipeline.sendAsync(new Message(sender, "+27838884567", "Hello " + i)));
+                }
+            });
+            thread.start();
+            senders.add(thread);
+        }
+        started.await();
+        pipeline.shutdown();
+        for (Thread thread : senders) {
+            thread.join();
+        }
+
+        int sent = 0;
+        for (List<CompletableFuture<SendResult>> futures : perThread) {
+            for (CompletableFuture<SendResult> future : futures) {
+                // Nothing is left hanging: a send either went through, was turned away or failed with the shutdown
+                try {
+                    SendResult result = future.get(5, TimeUnit.SECONDS);
+                    if (result.isSent()) {
+                        assertNotNull(store.get(result.getMessage().getId()));
+                        sent++;
+                    }
+                } catch (java.util.concurrent.ExecutionException e) {
+                    assertTrue(e.getCause() instanceof IllegalStateException, e.getCause().toString());
+                }
+            }
+        }
+        assertTrue(sent <= 20_000);
+        assertTrue(pipeline.sendAsync(new Message("+27838968976", "+27838884567", "Late")).isCompletedExceptionally());
+    }
+}
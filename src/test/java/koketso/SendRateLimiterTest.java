@@ -0,0 +1,82 @@
+package koketso;
+
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class SendRateLimiterTest {
+
+    private final AtomicLong now = new AtomicLong(1_000_000_000L);
+    private final AtomicInteger pendingWrites = new AtomicInteger();
+
+    // 2 messages a second with a burst of 3, on a clock we move by hand
+    private SendRateLimiter createLimiter() {
+        return new SendRateLimiter(2, 3, 10, pendingWrites::get, now::get);
+    }
+
+    @Test
+    void testBurstIsAllowedThenSenderIsLimited() {
+        SendRateLimiter limiter = createLimiter();
+        for (int i = 0; i < 3; i++) {
+            assertTrue(limiter.tryAcquire("+27000000000").isAllowed(), "Send " + i + " is inside the burst");
+        }
+        SendRateLimiter.Decision decision = limiter.tryAcquire("+27000000000");
+        assertFalse(decision.isAllowed());
+        assertEquals(500, decision.getRetryAfterMillis());
+        assertTrue(decision.getFailureMessage().startsWith("Failed to send message:"));
+
+        // Another sender has its own bucket
+        assertTrue(limiter.tryAcquire("+27838884567").isAllowed());
+
+        // After the retry hint one more token has come back
+        now.addAndGet(500_000_000L);
+        assertTrue(limiter.tryAcquire("+27000000000").isAllowed());
+        assertFalse(limiter.tryAcquire("+27000000000").isAllowed());
+    }
+
+    @Test
+    void testSeveralTokensAreTakenAllOrNothing() {
+        SendRateLimiter limiter = createLimiter();
+        assertFalse(limiter.tryAcquire("+27000000000", 4).isAllowed(), "More than the burst never fits");
+        assertTrue(limiter.tryAcquire("+27000000000", 2).isAllowed());
+        SendRateLimiter.Decision decision = limiter.tryAcquire("+27000000000", 2);
+        assertFalse(decision.isAllowed());
+        assertEquals(500, decision.getRetryAfterMillis());
+        // The failed attempt took nothing, so one token is still there
+        assertTrue(limiter.tryAcquire("+27000000000").isAllowed());
+        assertEquals(3, limiter.getBurst());
+    }
+
+    @Test
+    void testBackpressureWhenTooManyWritesArePending() {
+        SendRateLimiter limiter = createLimiter();
+        pendingWrites.set(10);
+        SendRateLimiter.Decision decision = limiter.tryAcquire("+27000000000");
+        assertFalse(decision.isAllowed());
+        assertTrue(decision.getRetryAfterMillis() > 0);
+
+        pendingWrites.set(0);
+        assertTrue(limiter.tryAcquire("+27000000000").isAllowed());
+    }
+
+    @Test
+    void testIdleBucketsAreEvicted() {
+        SendRateLimiter limiter = createLimiter();
+        limiter.tryAcquire("+27000000000");
+        limiter.tryAcquire("+27834557896");
+        limiter.tryAcquire("+27834557896");
+        limiter.tryAcquire("+27834557896");
+        assertEquals(2, limiter.bucketCount());
+
+        // Half a second fills the first bucket again but not the second
+        now.addAndGet(500_000_000L);
+        assertEquals(1, limiter.evictIdle());
+        assertEquals(1, limiter.bucketCount());
+
+        now.addAndGet(2_000_000_000L);
+        assertEquals(1, limiter.evictIdle());
+        assertEquals(0, limiter.bucketCount());
+        assertTrue(limiter.tryAcquire("+27834557896").isAllowed());
+    }
+}
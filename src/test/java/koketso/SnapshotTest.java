@@ -0,0 +1,232 @@
+package koketso;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import static org.junit.jupiter.api.Assertions.*;
+
+public class SnapshotTest {
+    @TempDir
+    File tempDir;
+
+    private static Message message(int n) {
+        Message message = new Message(String.format("%010d", n), "+27000000001", "+27838884567", "Message " + n, 0, "");
+        message.markSent(n + 1);
+        return message;
+    }
+
+    private UserManager usersWith(String file, int count) {
+        UserManager users = new UserManager(new File(tempDir, file).getPath());
+        for (int i = 0; i < count; i++) {
+            users.registerUser(new RegistrationLogin(), LoadGenerator.userNameFor(i), "Passw0rd!",
+                    LoadGenerator.cellFor(i), "Snap", "Shot");
+        }
+        return users;
+    }
+
+    // What a message looks like for comparing: read flag and payload
+    private static Map<String, String> stateOf(List<Message> messages) {
+        HashMap<String, String> state = new HashMap<>();
+        for (Message message : messages) {
+            state.put(message.getId(), message.isRead() + ":" + message.getPayload());
+        }
+        return state;
+    }
+
+    @Test
+    void testSnapshotIsConsistentWhileWritesGoOn() throws Exception {
+        File messagesDir = new File(tempDir, "messages");
+        FileMessageStore store = new FileMessageStore(messagesDir);
+        HashMap<String, String> state = new HashMap<>();
+        for (int i = 0; i < 1000; i++) {
+            Message message = message(i);
+            store.put(message);
+            state.put(message.getId(), "false:" + message.getPayload());
+        }
+        UserManager users = usersWith("users.json", 3);
+
+        // Each write is one change: the ID and what it looks like after, null once deleted
+        List<String[]> writes = new ArrayList<>();
+        AtomicBoolean stop = new AtomicBoolean();
+        Thread writer = new Thread(() -> {
+            int n = 1000;
+            int oldest = 0;
+            while (!stop.get() && oldest + 1 < n) {
+                Message message = message(n++);
+                store.put(message);
+                synchronized (writes) { writes.add(new String[] {message.getId(), "false:" + message.getPayload()}); }
+
+                Message old = message(oldest + 1);
+                store.markRead(old);
+                synchronized (writes) { writes.add(new String[] {old.getId(), "true:" + old.getPayload()}); }
+
+                store.delete(message(oldest).getId());
+                synchronized (writes) { writes.add(new String[] {message(oldest).getId(), null}); }
+                oldest += 2;
+            }
+        });
+        writer.start();
+        Snapshot snapshot;
+        try {
+            Thread.sleep(20);
+            snapshot = Snapshot.take(messagesDir, users, new File(tempDir, "quickchat.snap"));
+        } finally {
+            stop.set(true);
+            writer.join();
+        }
+
+        // Every write is one captured change, so the snapshot has to match the state after some number of them
+        Map<String, String> taken = stateOf(snapshot.getMessages());
+        boolean matched = state.equals(taken);
+        for (int i = 0; i < writes.size() && !matched; i++) {
+            String[] write = writes.get(i);
+            if (write[1] == null) {
+                state.remove(write[0]);
+            } else {
+                state.put(write[0], write[1]);
+            }
+            matched = state.equals(taken);
+        }
+        assertTrue(matched, "The snapshot is not the state after any of the writes");
+        assertTrue(writes.size() > 0, "Nothing was written during the snapshot");
+        assertEquals(3, snapshot.getUsers().size());
+
+        Snapshot read = Snapshot.read(new File(tempDir, "quickchat.snap"));
+        assertEquals(taken, stateOf(read.getMessages()));
+        assertEquals(snapshot.getTakenAt(), read.getTakenAt());
+    }
+
+    @Test
+    void testReadKeepsEveryField() throws IOException {
+        File messagesDir = new File(tempDir, "messages");
+        FileMessageStore store = new FileMessageStore(messagesDir);
+        Message sent = message(1);
+        sent.setCreatedAt(1234L);
+        store.put(sent);
+        store.markDelivered(sent);
+        Message stored = new Message("0000000002", "+27000000001", "+27838884567", "Keep é this", 0, "");
+        stored.setSendAt(98765L);
+        store.put(stored);
+
+        Snapshot.take(messagesDir, usersWith("users.json", 2), new File(tempDir, "quickchat.snap"));
+        Snapshot read = Snapshot.read(new File(tempDir, "quickchat.snap"));
+
+        assertEquals(2, read.getUsers().size());
+        assertEquals(LoadGenerator.cellFor(1), read.getUsers().get(1).getCellPhoneNumber());
+        Map<String, Message> byId = new HashMap<>();
+        for (Message message : read.getMessages()) {
+            byId.put(message.getId(), message);
+        }
+        Message back = byId.get(sent.getId());
+        assertEquals("Sent", back.getStatus());
+        assertEquals(sent.getHash(), back.getHash());
+        assertEquals(sent.getIndex(), back.getIndex());
+        assertTrue(back.isReceived());
+        assertFalse(back.isRead());
+        assertEquals(1234L, back.getCreatedAt());
+        assertEquals(sent.getSentAt(), back.getSentAt());
+        Message other = byId.get("0000000002");
+        assertEquals("Stored", other.getStatus());
+        assertEquals("Keep é this", other.getPayload());
+        assertEquals(98765L, other.getSendAt());
+    }
+
+    @Test
+    void testRestoreIntoAnEmptyFolder() throws IOException {
+        File messagesDir = new File(tempDir, "messages");
+        FileMessageStore store = new FileMessageStore(messagesDir);
+        for (int i = 0; i < 20; i++) {
+            Message message = message(i);
+            store.put(message);
+            if (i % 3 == 0) {
+                store.markRead(message);
+            }
+        }
+        Snapshot.take(messagesDir, usersWith("users.json", 4), new File(tempDir, "quickchat.snap"));
+        Snapshot snapshot = Snapshot.read(new File(tempDir, "quickchat.snap"));
+
+        File restoredDir = new File(tempDir, "restored");
+        String restoredUsers = new File(tempDir, "restored-users.json").getPath();
+        assertEquals(20, snapshot.restoreTo(restoredDir, restoredUsers));
+
+        assertEquals(4, new UserManager(restoredUsers).getAllUsers().size());
+        List<Message> loaded = new FileMessageStore(restoredDir).loadInto(new ArrayList<>());
+        assertEquals(stateOf(new FileMessageStore(messagesDir).loadInto(new ArrayList<>())), stateOf(loaded));
+
+        // A folder that already has messages is never written over
+        assertThrows(IOException.class, () -> snapshot.restoreTo(restoredDir, restoredUsers));
+    }
+
+    @Test
+    void testBroadcastsAndTheirReceiptsAreRestored() throws IOException {
+        File messagesDir = new File(tempDir, "messages");
+        FileMessageStore store = FileMessageStore.of(messagesDir);
+        store.put(message(1));
+        BroadcastStore broadcasts = BroadcastStore.of(messagesDir);
+        broadcasts.send("+27000000001", List.of(LoadGenerator.cellFor(1001), LoadGenerator.cellFor(1002),
+                LoadGenerator.cellFor(1003)), "Reminder: meeting at 10");
+        store.markRead(broadcasts.inboxFor(LoadGenerator.cellFor(1002)).get(0));
+        store.markDelivered(broadcasts.inboxFor(LoadGenerator.cellFor(1003)).get(0));
+
+        File file = new File(tempDir, "quickchat.snap");
+        Snapshot.take(messagesDir, usersWith("users.json", 1), file);
+        Snapshot snapshot = Snapshot.read(file);
+        assertEquals(1, snapshot.getBroadcasts().size());
+
+        File restoredDir = new File(tempDir, "restored");
+        snapshot.restoreTo(restoredDir, new File(tempDir, "restored-users.json").getPath());
+        // A fresh store reads the broadcast back from the restored folder
+        BroadcastStore restored = new BroadcastStore(restoredDir);
+        BroadcastStore.Broadcast broadcast = restored.sentBy("+27000000001").get(0);
+        assertEquals("Reminder: meeting at 10", broadcast.getPayload());
+        assertEquals(3, broadcast.getRecipientCount());
+        assertArrayEquals(new int[]{2, 1}, restored.receiptCounts(broadcast.getId()));
+        assertTrue(restored.inboxFor(LoadGenerator.cellFor(1002)).get(0).isRead());
+        assertFalse(restored.inboxFor(LoadGenerator.cellFor(1001)).get(0).isReceived());
+    }
+
+    @Test
+    void testCutShortFileIsRejected() throws IOException {
+        File messagesDir = new File(tempDir, "messages");
+        FileMessageStore store = new FileMessageStore(messagesDir);
+        for (int i = 0; i < 200; i++) {
+            store.put(message(i));
+        }
+        File file = new File(tempDir, "quickchat.snap");
+        Snapshot.take(messagesDir, usersWith("users.json", 1), file);
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(raf.length() / 2);
+        }
+        assertThrows(IOException.class, () -> Snapshot.read(file));
+    }
+
+    @Test
+    void testUsersFileIsNeverReadHalfWritten() throws Exception {
+        UserManager users = usersWith("users.json", 50);
+        String usersFile = new File(tempDir, "users.json").getPath();
+        AtomicBoolean stop = new AtomicBoolean();
+        Thread writer = new Thread(() -> {
+            List<RegistrationLogin> same = users.copyUsers();
+            while (!stop.get()) {
+                users.replaceAll(same);
+            }
+        });
+        writer.start();
+        try {
+            // Another process (like Snapshot take) reading while the app saves gets every user
+            for (int i = 0; i < 200; i++) {
+                assertEquals(50, new UserManager(usersFile).copyUsers().size());
+            }
+        } finally {
+            stop.set(true);
+            writer.join();
+        }
+    }
+}
@@ -0,0 +1,100 @@
+package koketso;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import static org.junit.jupiter.api.Assertions.*;
+
+public class StartupLoaderTest {
+
+    @TempDir
+    File tempDir;
+
+    @Test
+    void testLoginDoesNotWaitForMessages() throws Exception {
+        CountDownLatch releaseMessages = new CountDownLatch(1);
+        File usersFile = new File(tempDir, "users.json");
+        StartupLoader loader = new StartupLoader(() -> new UserManager(usersFile.getPath()), () -> {
+            try {
+                releaseMessages.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return new ArrayList<Message>();
+        }, null, System.currentTimeMillis());
+
+        // The users come back while the messages are still held up
+        assertNotNull(loader.users());
+        assertTrue(loader.isUsersReady());
+        assertFalse(loader.isMessagesReady());
+        loader.firstMenuShown();
+        assertTrue(loader.getTimeToFirstMenuMillis() >= 0);
+
+        releaseMessages.countDown();
+        loader.whenFullyLoaded().get(5, TimeUnit.SECONDS);
+        assertTrue(loader.isMessagesReady());
+        assertTrue(loader.getTimeToFullyLoadedMillis() >= 0);
+    }
+
+    @Test
+    void testMessagesSentWhileLoadingAreKept() throws Exception {
+        CountDownLatch releaseMessages = new CountDownLatch(1);
+        Message onDisk = new Message("0000000001", "+27000000001", "+27000000002", "Already saved", 1, "");
+        AtomicInteger afterCalls = new AtomicInteger();
+        StartupLoader loader = new StartupLoader(() -> new UserManager(new File(tempDir, "users.json").getPath()), () -> {
+            try {
+                releaseMessages.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            ArrayList<Message> list = new ArrayList<>();
+            list.add(onDisk);
+            return list;
+        }, list -> afterCalls.incrementAndGet(), System.currentTimeMillis());
+
+        Message sentEarly = new Message("0000000002", "+27000000001", "+27000000003", "Sent early", 2, "");
+        loader.add(sentEarly);
+        // The load found this one on disk as well, it must not show up twice
+        loader.add(onDisk);
+        releaseMessages.countDown();
+
+        List<Message> messages = loader.messages();
+        assertEquals(2, messages.size());
+        assertTrue(messages.contains(sentEarly));
+        assertEquals(1, afterCalls.get());
+
+        Message sentLater = new Message("0000000003", "+27000000001", "+27000000003", "Sent later", 3, "");
+        loader.add(sentLater);
+        assertEquals(3, loader.messages().size());
+    }
+
+    @Test
+    void testInboxOnlyWaitsForThatUsersMessages() {
+        CountDownLatch releaseMessages = new CountDownLatch(1);
+        Message mine = new Message("0000000001", "+27000000002", "+27000000001", "For me", 1, "");
+        StartupLoader loader = new StartupLoader(() -> new UserManager(new File(tempDir, "users.json").getPath()), () -> {
+            try {
+                releaseMessages.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return new ArrayList<Message>();
+        }, cellNumber -> cellNumber.equals(mine.getRecipient()) ? List.of(mine) : List.of(), null, System.currentTimeMillis());
+
+        loader.prefetch("+27000000001");
+        Message sentEarly = new Message("0000000002", "+27000000001", "+27000000003", "Sent early", 2, "");
+        loader.add(sentEarly);
+
+        // The full load is still held up, but this user's messages are there
+        List<Message> found = loader.messagesFor("+27000000001");
+        assertFalse(loader.isMessagesReady());
+        assertEquals(List.of(mine, sentEarly), found);
+        assertTrue(loader.messagesFor("+27000000009").isEmpty());
+        releaseMessages.countDown();
+    }
+}